@@ -0,0 +1,78 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import entity.QueuedServerStatusMessage;
+import storage.ColumnarStatStorage;
+import storage.IStatStorage;
+import storage.RingStatStorage;
+import storage.StatStorage;
+
+/**
+ * @author alex
+ *
+ * The storage write path on its own, called from a single thread like MessageProcessor does. Every server reports
+ * once per simulated second, so buckets keep rolling over and retention keeps running.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AddToMapsBenchmark {
+
+	@Param({ "StatStorage", "RingStatStorage", "ColumnarStatStorage" })
+	public String storage;
+
+	@Param({ "10", "10000" })
+	public int servers;
+
+	private IStatStorage statStorage;
+
+	private String[] names;
+
+	private final QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+
+	private int next = 0;
+
+	private long timestampUtc = 1500000000L;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (storage.equals("RingStatStorage")) {
+			statStorage = new RingStatStorage();
+		} else if (storage.equals("ColumnarStatStorage")) {
+			statStorage = new ColumnarStatStorage();
+		} else {
+			statStorage = new StatStorage();
+		}
+		names = new String[servers];
+		for (int i = 0; i < servers; i++) {
+			names[i] = "server" + i;
+		}
+	}
+
+	@Benchmark
+	public void addToMaps() {
+		message.set(names[next], 1.0 + next % 7, 2.0 + next % 5, timestampUtc);
+		if (++next == names.length) {
+			next = 0;
+			timestampUtc++;
+		}
+		statStorage.addToMaps(message);
+	}
+}
@@ -0,0 +1,26 @@
+package benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author alex
+ *
+ * Runs the benchmarks with the GC profiler, which adds allocation per operation (gc.alloc.rate.norm) and GC counts
+ * to every score. An allocation regression in a hot path shows up there before it shows up as GC pauses.
+ * 
+ * The first argument is an optional regular expression selecting benchmarks, for example "QueryBenchmark".
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : "benchmark\\..*")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,99 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+import storage.RetentionPolicy;
+import storage.StatStorage;
+
+/**
+ * @author alex
+ *
+ * Decode speed of the compressed cold tier. Every server reports once a second for a week, so its minute buckets
+ * are aggregates of 60 reports, and everything but the last hour of minutes lives in cold blocks. A query reads one
+ * day of cold minutes, so the score is the time per decoded bucket.
+ *
+ * The compression ratio is printed once the history is loaded: compressed bytes per cold bucket, compared to the
+ * 24 bytes of the raw columns and the roughly 480 bytes of a hot StatStorage bucket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@State(Scope.Benchmark)
+public class ColdTierBenchmark {
+
+	private static final long START_UTC = 1500000000L / 86400 * 86400;
+
+	private static final int DAYS = 7;
+
+	@Param({ "100" })
+	public int servers;
+
+	private StatStorage statStorage;
+
+	private String[] names;
+
+	/**
+	 * Position of the next server and day to query, one per thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next = 0;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setColdRetentionSeconds(DAYS * 86400);
+		statStorage = new StatStorage(retentionPolicy);
+		names = new String[servers];
+		Random random = new Random(42);
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		for (int i = 0; i < servers; i++) {
+			names[i] = "server" + i;
+			double cpuLoad = random.nextDouble() * 100;
+			double memoryLoad = random.nextDouble() * 100;
+			for (int minute = 0; minute < DAYS * 1440; minute++) {
+				// a random walk with two decimals, the resolution agents usually report
+				cpuLoad = Math.min(100, Math.max(0, cpuLoad + random.nextGaussian()));
+				memoryLoad = Math.min(100, Math.max(0, memoryLoad + random.nextGaussian() / 10));
+				message.set(names[i], 60, Math.round(cpuLoad * 100) * 60 / 100.0,
+						Math.round(memoryLoad * 100) * 60 / 100.0, START_UTC + minute * 60);
+				statStorage.addToMaps(message);
+			}
+		}
+		long coldBuckets = statStorage.getColdBucketCount();
+		double bytesPerBucket = (double) statStorage.getColdBytes() / coldBuckets;
+		System.out.printf("%n%d cold buckets in %d bytes: %.1f bytes per bucket, %.1fx smaller than raw columns, "
+				+ "%.1fx smaller than hot buckets%n", coldBuckets, statStorage.getColdBytes(), bytesPerBucket,
+				24 / bytesPerBucket, 480 / bytesPerBucket);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(1440)
+	public ServerStatusResult decodeDay(Cursor cursor) {
+		int next = cursor.next;
+		cursor.next = next + 1 == servers * (DAYS - 1) ? 0 : next + 1;
+		long dayUtc = START_UTC + (next % (DAYS - 1)) * 86400;
+		return statStorage.getData(names[next / (DAYS - 1)], dayUtc, dayUtc + 86400, 60);
+	}
+}
@@ -0,0 +1,91 @@
+package benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import entity.QueuedServerStatusMessage;
+import loader.CsvLineParser;
+import loader.NameTable;
+
+/**
+ * @author alex
+ *
+ * CSV line parsing from a direct buffer, the way CsvLoader sees a memory-mapped file, compared with the
+ * readLine/split/parse approach it replaced. Scores are per line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvParseBenchmark {
+
+	private static final int LINES = 10000;
+
+	private ByteBuffer buffer;
+
+	private int[] lineStarts;
+
+	private String[] lines;
+
+	private CsvLineParser parser;
+
+	private final QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		StringBuilder content = new StringBuilder();
+		lines = new String[LINES];
+		lineStarts = new int[LINES + 1];
+		for (int i = 0; i < LINES; i++) {
+			lines[i] = (1500000000L + i) + ",myserver" + (i % 1000) + "," + (i % 97) / 10.0 + "," + (i % 89) / 100.0;
+			lineStarts[i] = content.length();
+			content.append(lines[i]).append('\n');
+		}
+		lineStarts[LINES] = content.length();
+		byte[] bytes = content.toString().getBytes(StandardCharsets.US_ASCII);
+		buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		parser = new CsvLineParser(new NameTable());
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public int parseInPlace() {
+		int parsed = 0;
+		for (int i = 0; i < LINES; i++) {
+			if (parser.parse(buffer, lineStarts[i], lineStarts[i + 1] - 1, 0, message)) {
+				parsed++;
+			}
+		}
+		return parsed;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public int splitAndParse() {
+		int parsed = 0;
+		for (int i = 0; i < LINES; i++) {
+			String[] fields = lines[i].split(",");
+			message.set(fields[1], Double.parseDouble(fields[2]), Double.parseDouble(fields[3]),
+					Long.parseLong(fields[0]));
+			parsed++;
+		}
+		return parsed;
+	}
+}
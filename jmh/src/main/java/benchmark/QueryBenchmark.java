@@ -0,0 +1,99 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.ServerStatusResult;
+import storage.ColumnarStatStorage;
+import storage.IStatStorage;
+import storage.RingStatStorage;
+import storage.StatStorage;
+
+/**
+ * @author alex
+ *
+ * Query latency with every server holding a full history: 60 minute buckets and 24 hour buckets. Queries rotate
+ * over all servers, so with many servers most of them miss the CPU caches like they would in production.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+	private static final long NOW_UTC = 1500000000L / 3600 * 3600 + 1800;
+
+	@Param({ "StatStorage", "RingStatStorage", "ColumnarStatStorage" })
+	public String storage;
+
+	@Param({ "10", "10000", "100000" })
+	public int servers;
+
+	private IStatStorage statStorage;
+
+	private String[] names;
+
+	/**
+	 * Position of the next server to query, one per thread.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		int next = 0;
+
+		String next(String[] names) {
+			String name = names[next];
+			next = next + 1 == names.length ? 0 : next + 1;
+			return name;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if (storage.equals("RingStatStorage")) {
+			statStorage = new RingStatStorage();
+		} else if (storage.equals("ColumnarStatStorage")) {
+			statStorage = new ColumnarStatStorage();
+		} else {
+			statStorage = new StatStorage();
+		}
+		names = new String[servers];
+		long minuteUtc = NOW_UTC / 60 * 60;
+		long hourUtc = NOW_UTC / 3600 * 3600;
+		for (int i = 0; i < servers; i++) {
+			names[i] = "server" + i;
+			for (int minute = 0; minute < 60; minute++) {
+				statStorage.restoreBucket(names[i], 60, minuteUtc - minute * 60, 60, 60.0 * (1 + i % 7),
+						60.0 * (2 + i % 5));
+			}
+			for (int hour = 0; hour < 24; hour++) {
+				statStorage.restoreBucket(names[i], 3600, hourUtc - hour * 3600, 3600, 3600.0 * (1 + i % 7),
+						3600.0 * (2 + i % 5));
+			}
+		}
+	}
+
+	@Benchmark
+	public ServerStatusResult last60Minutes(Cursor cursor) {
+		return statStorage.getDataForLast60Minutes(cursor.next(names), NOW_UTC);
+	}
+
+	@Benchmark
+	public ServerStatusResult last24Hours(Cursor cursor) {
+		return statStorage.getDataForLast24Hours(cursor.next(names), NOW_UTC);
+	}
+}
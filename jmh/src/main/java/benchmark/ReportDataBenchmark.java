@@ -0,0 +1,101 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.ServerStatusMessage;
+import processor.ServerTrack;
+import processor.ServerTrackConfig;
+import storage.RingStatStorage;
+import storage.StatStorage;
+
+/**
+ * @author alex
+ *
+ * End-to-end ingest through ServerTrack.reportData: validation, queue hand-off and the processor thread writing to
+ * storage. The queue blocks when full, so the score is what the whole pipeline sustains, not just the producer.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReportDataBenchmark {
+
+	@Param({ "StatStorage", "RingStatStorage" })
+	public String storage;
+
+	@Param({ "1", "4" })
+	public int shards;
+
+	@Param({ "1000" })
+	public int servers;
+
+	private ServerTrack serverTrack;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setStorageFactory(storage.equals("RingStatStorage") ? RingStatStorage::new : StatStorage::new);
+		config.setShardCount(shards);
+		serverTrack = new ServerTrack(config);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		// stops the processors of this trial
+		serverTrack.Reset();
+	}
+
+	/**
+	 * Messages of one producer thread, created up front so only reportData is measured.
+	 */
+	@State(Scope.Thread)
+	public static class Producer {
+
+		ServerStatusMessage[] messages;
+
+		int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(ReportDataBenchmark benchmark) {
+			messages = new ServerStatusMessage[benchmark.servers];
+			for (int i = 0; i < messages.length; i++) {
+				messages[i] = new ServerStatusMessage("server" + i, 1.0 + i % 7, 2.0 + i % 5);
+			}
+		}
+
+		ServerStatusMessage next() {
+			ServerStatusMessage message = messages[next];
+			next = next + 1 == messages.length ? 0 : next + 1;
+			return message;
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public boolean singleProducer(Producer producer) {
+		return serverTrack.reportData(producer.next());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public boolean multiProducer(Producer producer) {
+		return serverTrack.reportData(producer.next());
+	}
+}
@@ -1,58 +1,74 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.Collections;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import client.ServerStatusMessage;
 import client.ServerStatusResult;
+import export.JsonResultWriter;
+import listener.IngestListener;
+import loader.BinaryFormat;
+import loader.BinaryLoader;
+import loader.CsvLoader;
+import loader.LoadStats;
+import loader.ParallelBackfill;
 import processor.ServerTrack;
 
 public class ServerStatusMonitor {
 
-	private static long getTimestampFromLine(String line) {
-		String[] parts = line.split(",");
-		long timestamp = Long.parseLong(parts[0]);
-		// negative means this many seconds ago
-		if (timestamp < 0)
-			timestamp = System.currentTimeMillis() / 1000 + timestamp;
-		return timestamp;
-	}
-
-	private static ServerStatusMessage line2record(String line) {
-		String[] parts = line.split(",");
-		String serverName = parts[1];
-		double cpuLoad = Double.parseDouble(parts[2]);
-		double memoryLoad = Double.parseDouble(parts[3]);
-		return new ServerStatusMessage(serverName, cpuLoad, memoryLoad);
-	}
-
 	public static void main(String[] args) {
 		Logger logger = LoggerFactory.getLogger(ServerStatusMonitor.class);
 		logger.info("start");
 		String filename = "./input.csv";
-		if ( args.length > 0 ) filename = args[0];
+		// -backfill parses the file on all cores and reports per-minute aggregates
+		boolean backfill = false;
+		// -listen port accepts the same lines over TCP and UDP instead of reading a file
+		int listenPort = -1;
+		// -json writes the results to stdout as JSON lines instead of logging them
+		boolean json = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-backfill")) {
+				backfill = true;
+			} else if (args[i].equals("-json")) {
+				json = true;
+			} else if (args[i].equals("-listen") && i + 1 < args.length) {
+				listenPort = Integer.parseInt(args[++i]);
+			} else {
+				filename = args[i];
+			}
+		}
 		ServerTrack serverTrack = new ServerTrack();
+		if (listenPort >= 0) {
+			listen(serverTrack, listenPort, logger);
+			return;
+		}
 		logger.info("trying to open file " + filename);
 		File csvFile = new File(filename);
 		long start = System.currentTimeMillis();
-		int count = 0;
-		Set<String> servers = new HashSet<String>();
+		long count = 0;
+		Collection<String> servers = Collections.emptyList();
 
-		try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				if ( line.equals("")) continue;
-				long timestamp = getTimestampFromLine(line);
-				ServerStatusMessage serverStatusMessage = line2record(line);
-				serverTrack.reportData(serverStatusMessage, timestamp);
-				servers.add(serverStatusMessage.getServerName());
-				count++;
+		try {
+			LoadStats stats;
+			if (backfill) {
+				ParallelBackfill loader = new ParallelBackfill(serverTrack);
+				stats = loader.load(csvFile);
+				servers = loader.getServerNames();
+			} else if (isBinary(csvFile)) {
+				BinaryLoader loader = new BinaryLoader(serverTrack);
+				stats = loader.load(csvFile);
+				servers = loader.getServerNames();
+			} else {
+				CsvLoader loader = new CsvLoader(serverTrack);
+				stats = loader.load(csvFile);
+				servers = loader.getServerNames();
 			}
+			logger.info("loaded " + csvFile + ": " + stats);
+			count = stats.getAccepted();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -61,6 +77,10 @@ public class ServerStatusMonitor {
 		long end = System.currentTimeMillis();
 		logger.info("processed " + count + " messages in " + (end - start) + "ms ("
 				+ (60.0 / ((end - start) / (double) count)) + " messages per minute)");
+		if (json) {
+			writeJson(serverTrack, servers);
+			servers = Collections.emptyList();
+		}
 		for (String server : servers) {
 			ServerStatusResult result = serverTrack.getDataForLast60Minutes(server);
 			logger.info("result by minute for " + server + ": " + result.toString());
@@ -71,6 +91,58 @@ public class ServerStatusMonitor {
 		System.exit(0);
 	}
 
+	/**
+	 * @param serverTrack
+	 * @param servers
+	 *
+	 * Writes the minute and hour results of every server to stdout, one JSON line per result.
+	 */
+	private static void writeJson(ServerTrack serverTrack, Collection<String> servers) {
+		JsonResultWriter writer = new JsonResultWriter(System.out);
+		try {
+			for (String server : servers) {
+				writer.write(serverTrack.getDataForLast60Minutes(server));
+				writer.write(serverTrack.getDataForLast24Hours(server));
+			}
+			writer.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file starts with a BinaryFormat frame rather than a CSV line
+	 */
+	private static boolean isBinary(File file) throws IOException {
+		try (FileInputStream in = new FileInputStream(file)) {
+			return in.read() == (BinaryFormat.MAGIC & 0xFF);
+		}
+	}
+
+	/**
+	 * @param serverTrack
+	 * @param port TCP and UDP port to listen on
+	 * @param logger
+	 *
+	 * Runs the ingest listener until the process is stopped, and logs its counters every minute.
+	 */
+	private static void listen(ServerTrack serverTrack, int port, Logger logger) {
+		InetSocketAddress address = new InetSocketAddress(port);
+		try (IngestListener listener = new IngestListener(serverTrack, address, address)) {
+			listener.start();
+			logger.info("listening on tcp " + listener.getTcpAddress() + " and udp " + listener.getUdpAddress());
+			while (true) {
+				Thread.sleep(60000);
+				logger.info(listener.toString());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			logger.info("stopping listener");
+		}
+	}
+
 	/**
 	 * @param serverTrack
 	 * 
@@ -78,13 +150,7 @@ public class ServerStatusMonitor {
 	 *            during operation, but we want our tests be exact.
 	 */
 	private static void waitForQueue(ServerTrack serverTrack) {
-		while (!serverTrack.queueIsEmpty()) {
-			try {
-				Thread.sleep(10);
-			} catch (Exception e) {
-
-			}
-		}
+		serverTrack.flush().join();
 	}
 
 }
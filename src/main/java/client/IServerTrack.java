@@ -1,5 +1,10 @@
 package client;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
 /**
  * @author alex
  *
@@ -10,10 +15,41 @@ public interface IServerTrack {
 	/**
 	 * @param serverStatusMessage ServerStatusMessage
 	 * @return true if the message passed validation and will be processed, false otherwise.
+	 * Implementations with a bounded queue may also return false when the queue is full.
 	 * 
 	 * Note that the reported data may not be immediately visible in the stats because aggregation process is asynchronous.
 	 */
 	boolean reportData(ServerStatusMessage serverStatusMessage);
+
+	/**
+	 * @param serverStatusMessages ServerStatusMessages in iteration order
+	 * @return bit i is set if the i-th message passed validation and will be processed.
+	 * 
+	 * Batch version of reportData. Same visibility rules apply.
+	 */
+	BitSet reportData(Collection<? extends ServerStatusMessage> serverStatusMessages);
+
+	/**
+	 * @param serverStatusMessage ServerStatusMessage
+	 * @return completes with true once the message is visible in the stats, or right away with false if it failed
+	 * validation or the queue did not take it.
+	 * 
+	 * Futures complete on the aggregation thread; run anything slow that depends on them on an executor.
+	 */
+	CompletableFuture<Boolean> reportDataAsync(ServerStatusMessage serverStatusMessage);
+
+	/**
+	 * @param serverStatusMessages ServerStatusMessages in iteration order
+	 * @return completes with the same bits as reportData once all accepted messages are visible in the stats.
+	 */
+	CompletableFuture<BitSet> reportDataAsync(Collection<? extends ServerStatusMessage> serverStatusMessages);
+
+	/**
+	 * @return completes once everything reported before the call is visible in the stats.
+	 * 
+	 * A barrier for read-your-writes, for example flush().join() before a query.
+	 */
+	CompletableFuture<Void> flush();
 	
 	/**
 	 * @param serverName The name of the server to report the data for.
@@ -26,5 +62,67 @@ public interface IServerTrack {
 	 * @return Stats for the last 24 hours by hour for the given server.
 	 */
 	ServerStatusResult getDataForLast24Hours(String serverName);
-	
+
+	/**
+	 * @param serverName The name of the server to report the data for.
+	 * @param fromUtc Start of the range, rounded down to a multiple of stepSeconds.
+	 * @param toUtc End of the range, exclusive.
+	 * @param stepSeconds Length of every interval, a positive multiple of 60. For example 300 for "last 6 hours at
+	 * 5 minute resolution" or 3600 for "yesterday 14:00 to 16:00 by hour".
+	 * @return Stats for every interval of the range, oldest first. Intervals the storage no longer keeps at the
+	 * requested resolution are empty.
+	 * @throws IllegalArgumentException if the step is not a positive multiple of 60, the range is empty or has
+	 * too many intervals
+	 */
+	ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds);
+
+	/**
+	 * @param serverNames The names of the servers to report the data for.
+	 * @return Stats for the last 60 minutes by minutes for every given server, all for the same 60 minutes.
+	 * 
+	 * The stream is lazy and parallel: results are computed as they are consumed, so thousands of servers can be
+	 * rendered without holding all their results at once. Use forEachOrdered or sequential() to keep the order.
+	 */
+	Stream<ServerStatusResult> getDataForLast60Minutes(Collection<String> serverNames);
+
+	/**
+	 * @param serverNames The names of the servers to report the data for.
+	 * @return Stats for the last 24 hours by hour for every given server, all for the same 24 hours.
+	 * 
+	 * Lazy and parallel like getDataForLast60Minutes(Collection).
+	 */
+	Stream<ServerStatusResult> getDataForLast24Hours(Collection<String> serverNames);
+
+	/**
+	 * @param prefix Only servers whose name starts with prefix are included, the empty prefix selects all servers.
+	 * @return Stats for the last 60 minutes by minutes for every known server with a matching name, in no
+	 * particular order.
+	 * 
+	 * Lazy and parallel like getDataForLast60Minutes(Collection).
+	 */
+	Stream<ServerStatusResult> getDataForLast60MinutesByPrefix(String prefix);
+
+	/**
+	 * @param prefix Only servers whose name starts with prefix are included, the empty prefix selects all servers.
+	 * @return Stats for the last 24 hours by hour for every known server with a matching name, in no particular
+	 * order.
+	 * 
+	 * Lazy and parallel like getDataForLast60Minutes(Collection).
+	 */
+	Stream<ServerStatusResult> getDataForLast24HoursByPrefix(String prefix);
+
+	/**
+	 * @param groupName The server group, null for all servers.
+	 * @return Count, average, total and maximum load of the servers in the group for the last 60 minutes by minutes.
+	 * 
+	 * Rollups are maintained while the data is aggregated, so the cost does not depend on the number of servers.
+	 */
+	RollupResult getRollupForLast60Minutes(String groupName);
+
+	/**
+	 * @param groupName The server group, null for all servers.
+	 * @return Count, average, total and maximum load of the servers in the group for the last 24 hours by hour.
+	 */
+	RollupResult getRollupForLast24Hours(String groupName);
+
 }
@@ -0,0 +1,94 @@
+package client;
+
+import entity.RollupRecord;
+
+/**
+ * @author alex
+ * One interval of a fleet or group rollup.
+ * timestampUtc is the UTC timestamp corresponding to start of the time interval, like in ServerStatusData.
+ */
+public class RollupData {
+
+	private long timestampUtc;
+	private int servers;
+	private double cpuLoad;
+	private double memoryLoad;
+	private double totalCpuLoad;
+	private double totalMemoryLoad;
+	private double maxCpuLoad;
+	private double maxMemoryLoad;
+
+	public RollupData(long timestampUtc, RollupRecord rollupRecord) {
+		this.timestampUtc = timestampUtc;
+		this.servers = rollupRecord.getServers();
+		if (rollupRecord.getCount() > 0) {
+			this.cpuLoad = rollupRecord.getCpuLoadValue() / rollupRecord.getCount();
+			this.memoryLoad = rollupRecord.getMemoryLoadValue() / rollupRecord.getCount();
+		}
+		this.totalCpuLoad = rollupRecord.getCpuLoadTotal();
+		this.totalMemoryLoad = rollupRecord.getMemoryLoadTotal();
+		this.maxCpuLoad = rollupRecord.getCpuLoadMax();
+		this.maxMemoryLoad = rollupRecord.getMemoryLoadMax();
+	}
+
+	public long getTimestampUtc() {
+		return timestampUtc;
+	}
+
+	/**
+	 * @return number of servers that reported in this interval
+	 */
+	public int getServers() {
+		return servers;
+	}
+
+	/**
+	 * @return average cpuLoad of all measurements in this interval
+	 */
+	public double getCpuLoad() {
+		return cpuLoad;
+	}
+
+	/**
+	 * @return average memoryLoad of all measurements in this interval
+	 */
+	public double getMemoryLoad() {
+		return memoryLoad;
+	}
+
+	/**
+	 * @return sum of the average cpuLoad of every server, the load of the whole fleet or group
+	 */
+	public double getTotalCpuLoad() {
+		return totalCpuLoad;
+	}
+
+	/**
+	 * @return sum of the average memoryLoad of every server
+	 */
+	public double getTotalMemoryLoad() {
+		return totalMemoryLoad;
+	}
+
+	/**
+	 * @return highest single cpuLoad measurement in this interval
+	 */
+	public double getMaxCpuLoad() {
+		return maxCpuLoad;
+	}
+
+	/**
+	 * @return highest single memoryLoad measurement in this interval
+	 */
+	public double getMaxMemoryLoad() {
+		return maxMemoryLoad;
+	}
+
+	@Override
+	public String toString() {
+		return "RollupData [timestampUtc=" + timestampUtc + ", servers=" + servers + ", cpuLoad=" + cpuLoad
+				+ ", memoryLoad=" + memoryLoad + ", totalCpuLoad=" + totalCpuLoad + ", totalMemoryLoad="
+				+ totalMemoryLoad + ", maxCpuLoad=" + maxCpuLoad + ", maxMemoryLoad=" + maxMemoryLoad + "]";
+	}
+
+}
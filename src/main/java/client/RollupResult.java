@@ -0,0 +1,45 @@
+package client;
+
+import java.util.List;
+
+/**
+ * @author alex
+ *
+ * Rollup of all servers, or of one group of servers, returned by the rollup queries of IServerTrack.
+ *
+ */
+public class RollupResult {
+
+	private String groupName;
+	private List<RollupData> data;
+
+	/**
+	 * @param groupName null for the whole fleet
+	 * @param result intervals, newest first
+	 */
+	public RollupResult(String groupName, List<RollupData> result) {
+		this.groupName = groupName;
+		this.data = result;
+	}
+
+	/**
+	 * @return the group, or null for the whole fleet
+	 */
+	public String getGroupName() {
+		return groupName;
+	}
+
+	public List<RollupData> getData() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("RollupResult [groupName=" + groupName + "\n");
+		for (RollupData rollupData : data) {
+			result.append("[").append(rollupData).append("]\n");
+		}
+		return result.append("]").toString();
+	}
+
+}
@@ -1,5 +1,6 @@
 package client;
 
+import entity.LoadSketch;
 import entity.ServerStatusRecord;
 
 /**
@@ -7,12 +8,26 @@ import entity.ServerStatusRecord;
  * This is the basic object that will be returned to the caller.
  * timestampUtc is the UTC timestamp corresponding to start of the time interval.
  * For example, timestampUtc "1472020260" will mark the record correpoding to the minute that started on Wed Aug 24 06:31:00 2016 UTC
+ * 
+ * Besides the averages, min, max and the 50th, 95th and 99th percentiles are available from storage engines that
+ * keep them. They are NaN for empty intervals and for engines that only keep sums. After a DurableStatStorage
+ * restart they are NaN, or cover only the newer samples, for intervals that were restored from its snapshot.
  */
 public class ServerStatusData {
 
 	private long timestampUtc;
 	private double cpuLoad;
 	private double memoryLoad;
+	private double cpuLoadMin = Double.NaN;
+	private double cpuLoadMax = Double.NaN;
+	private double cpuLoadP50 = Double.NaN;
+	private double cpuLoadP95 = Double.NaN;
+	private double cpuLoadP99 = Double.NaN;
+	private double memoryLoadMin = Double.NaN;
+	private double memoryLoadMax = Double.NaN;
+	private double memoryLoadP50 = Double.NaN;
+	private double memoryLoadP95 = Double.NaN;
+	private double memoryLoadP99 = Double.NaN;
 
 	public ServerStatusData(long timestampUtc, double cpuLoad, double memoryLoad) {
 		super();
@@ -26,7 +41,51 @@ public class ServerStatusData {
 		this.cpuLoad = serverStatusRecord.getCpuLoadValue();
 		this.memoryLoad = serverStatusRecord.getMemoryLoadValue();		
 	}
-	
+
+	/**
+	 * @param timestampUtc
+	 * @param cpuLoad average
+	 * @param memoryLoad average
+	 * @param cpuLoadSketch distribution of the cpuLoad measurements
+	 * @param memoryLoadSketch distribution of the memoryLoad measurements
+	 */
+	public ServerStatusData(long timestampUtc, double cpuLoad, double memoryLoad, LoadSketch cpuLoadSketch,
+			LoadSketch memoryLoadSketch) {
+		this(timestampUtc, cpuLoad, memoryLoad);
+		this.cpuLoadMin = cpuLoadSketch.getMin();
+		this.cpuLoadMax = cpuLoadSketch.getMax();
+		this.cpuLoadP50 = cpuLoadSketch.getQuantile(0.50);
+		this.cpuLoadP95 = cpuLoadSketch.getQuantile(0.95);
+		this.cpuLoadP99 = cpuLoadSketch.getQuantile(0.99);
+		this.memoryLoadMin = memoryLoadSketch.getMin();
+		this.memoryLoadMax = memoryLoadSketch.getMax();
+		this.memoryLoadP50 = memoryLoadSketch.getQuantile(0.50);
+		this.memoryLoadP95 = memoryLoadSketch.getQuantile(0.95);
+		this.memoryLoadP99 = memoryLoadSketch.getQuantile(0.99);
+	}
+
+	/**
+	 * @param timestampUtc
+	 * @param cpuLoad average
+	 * @param memoryLoad average
+	 * @param cpuLoadStats min, max, 50th, 95th and 99th percentile of cpuLoad, as read back from a serialized result
+	 * @param memoryLoadStats the same for memoryLoad
+	 */
+	public ServerStatusData(long timestampUtc, double cpuLoad, double memoryLoad, double[] cpuLoadStats,
+			double[] memoryLoadStats) {
+		this(timestampUtc, cpuLoad, memoryLoad);
+		this.cpuLoadMin = cpuLoadStats[0];
+		this.cpuLoadMax = cpuLoadStats[1];
+		this.cpuLoadP50 = cpuLoadStats[2];
+		this.cpuLoadP95 = cpuLoadStats[3];
+		this.cpuLoadP99 = cpuLoadStats[4];
+		this.memoryLoadMin = memoryLoadStats[0];
+		this.memoryLoadMax = memoryLoadStats[1];
+		this.memoryLoadP50 = memoryLoadStats[2];
+		this.memoryLoadP95 = memoryLoadStats[3];
+		this.memoryLoadP99 = memoryLoadStats[4];
+	}
+
 	public long getTimestampUtc() {
 		return timestampUtc;
 	}
@@ -39,10 +98,51 @@ public class ServerStatusData {
 		return memoryLoad;
 	}
 
+	public double getCpuLoadMin() {
+		return cpuLoadMin;
+	}
+
+	public double getCpuLoadMax() {
+		return cpuLoadMax;
+	}
+
+	public double getCpuLoadP50() {
+		return cpuLoadP50;
+	}
+
+	public double getCpuLoadP95() {
+		return cpuLoadP95;
+	}
+
+	public double getCpuLoadP99() {
+		return cpuLoadP99;
+	}
+
+	public double getMemoryLoadMin() {
+		return memoryLoadMin;
+	}
+
+	public double getMemoryLoadMax() {
+		return memoryLoadMax;
+	}
+
+	public double getMemoryLoadP50() {
+		return memoryLoadP50;
+	}
+
+	public double getMemoryLoadP95() {
+		return memoryLoadP95;
+	}
+
+	public double getMemoryLoadP99() {
+		return memoryLoadP99;
+	}
+
 	@Override
 	public String toString() {
 		return "ServerStatusData [timestampUtc=" + timestampUtc + ", cpuLoad=" + cpuLoad + ", memoryLoad=" + memoryLoad
-				+ "]";
+				+ ", cpuLoadMax=" + cpuLoadMax + ", cpuLoadP99=" + cpuLoadP99 + ", memoryLoadMax=" + memoryLoadMax
+				+ ", memoryLoadP99=" + memoryLoadP99 + "]";
 	}
 
 }
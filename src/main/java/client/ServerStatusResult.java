@@ -29,12 +29,13 @@ public class ServerStatusResult {
 
 	@Override
 	public String toString() {
-		String result = "ServerStatusResult [serverName=" + serverName + "\n";
+		StringBuilder result = new StringBuilder(64 + data.size() * 160);
+		result.append("ServerStatusResult [serverName=").append(serverName).append('\n');
 		for (ServerStatusData ssd : data) {
-			result += "[" + ssd.toString() + "]\n";
+			result.append('[').append(ssd).append("]\n");
 		}
-		result += "]";
-		return result;
+		result.append(']');
+		return result.toString();
 	}
 
 }
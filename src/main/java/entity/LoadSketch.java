@@ -0,0 +1,182 @@
+package entity;
+
+import java.util.Arrays;
+
+/**
+ * @author alex
+ *
+ * Fixed-size quantile sketch for load values, in the style of DDSketch.
+ * 
+ * A value v is counted in bin ceil(log(v) / log(GAMMA)), so every bin covers values within a constant ratio and
+ * the midpoint of a bin is within RELATIVE_ACCURACY of every value in it. The sketch keeps BINS consecutive bins
+ * in a preallocated array. When a value falls above the covered range the range moves up, and the lowest bins are
+ * collapsed into the new lowest one. High quantiles, the ones that show spikes, therefore stay within the
+ * relative accuracy; only quantiles in the collapsed low end are overestimated.
+ * 
+ * Min and max are tracked exactly. Adding values never allocates, and two sketches can be merged, so an hour
+ * bucket can be built from its minute buckets.
+ * 
+ * Not thread safe.
+ */
+public class LoadSketch {
+
+	static final double GAMMA = 1.1;
+
+	/**
+	 * Relative error of a quantile that was not collapsed, (GAMMA - 1) / (GAMMA + 1), just under 5%.
+	 */
+	public static final double RELATIVE_ACCURACY = (GAMMA - 1) / (GAMMA + 1);
+
+	static final int BINS = 32;
+
+	private static final double LOG_GAMMA = Math.log(GAMMA);
+
+	private final int[] counts = new int[BINS];
+
+	/**
+	 * Bin index of counts[0].
+	 */
+	private int offset;
+
+	/**
+	 * Number of values in counts.
+	 */
+	private long binnedCount;
+
+	/**
+	 * Number of values that are zero or negative, which have no bin.
+	 */
+	private long zeroCount;
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public LoadSketch() {
+	}
+
+	/**
+	 * @param original
+	 * Copy constructor.
+	 */
+	public LoadSketch(LoadSketch original) {
+		System.arraycopy(original.counts, 0, counts, 0, BINS);
+		this.offset = original.offset;
+		this.binnedCount = original.binnedCount;
+		this.zeroCount = original.zeroCount;
+		this.min = original.min;
+		this.max = original.max;
+	}
+
+	/**
+	 * @param value
+	 * @param count number of times the value was measured
+	 */
+	public void add(double value, int count) {
+		if (count <= 0) {
+			return;
+		}
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+		if (value <= 0.0) {
+			zeroCount += count;
+		} else {
+			addToBin((int) Math.ceil(Math.log(value) / LOG_GAMMA), count);
+		}
+	}
+
+	public void add(double value) {
+		add(value, 1);
+	}
+
+	/**
+	 * @param other
+	 * Adds all values of another sketch.
+	 */
+	public void merge(LoadSketch other) {
+		if (other.getCount() == 0) {
+			return;
+		}
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		zeroCount += other.zeroCount;
+		if (other.binnedCount == 0) {
+			return;
+		}
+		// the highest bins first, so the range moves up at most once
+		for (int i = BINS - 1; i >= 0; i--) {
+			if (other.counts[i] > 0) {
+				addToBin(other.offset + i, other.counts[i]);
+			}
+		}
+	}
+
+	private void addToBin(int index, int count) {
+		if (binnedCount == 0) {
+			// start with the value in the upper half, spikes are more interesting than dips
+			offset = index - BINS * 3 / 4;
+		} else if (index >= offset + BINS) {
+			int shift = index - (offset + BINS - 1);
+			long collapsed = 0;
+			for (int i = 0; i < Math.min(shift + 1, BINS); i++) {
+				collapsed += counts[i];
+			}
+			if (shift < BINS) {
+				System.arraycopy(counts, shift + 1, counts, 1, BINS - shift - 1);
+			}
+			Arrays.fill(counts, Math.max(1, BINS - shift), BINS, 0);
+			counts[0] = (int) collapsed;
+			offset += shift;
+		}
+		binnedCount += count;
+		counts[Math.max(0, index - offset)] += count;
+	}
+
+	public long getCount() {
+		return binnedCount + zeroCount;
+	}
+
+	/**
+	 * @return the smallest value, NaN if the sketch is empty
+	 */
+	public double getMin() {
+		return getCount() == 0 ? Double.NaN : min;
+	}
+
+	/**
+	 * @return the largest value, NaN if the sketch is empty
+	 */
+	public double getMax() {
+		return getCount() == 0 ? Double.NaN : max;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, 0.99 for the 99th percentile
+	 * @return an estimate of the value at this quantile, NaN if the sketch is empty
+	 */
+	public double getQuantile(double quantile) {
+		long count = getCount();
+		if (count == 0) {
+			return Double.NaN;
+		}
+		long rank = (long) (quantile * (count - 1));
+		if (rank < zeroCount) {
+			return min;
+		}
+		long seen = zeroCount;
+		for (int i = 0; i < BINS; i++) {
+			seen += counts[i];
+			if (seen > rank) {
+				double value = 2 * Math.pow(GAMMA, offset + i) / (GAMMA + 1);
+				return Math.max(min, Math.min(max, value));
+			}
+		}
+		return max;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadSketch [count=" + getCount() + ", min=" + getMin() + ", p50=" + getQuantile(0.5) + ", p99="
+				+ getQuantile(0.99) + ", max=" + getMax() + "]";
+	}
+}
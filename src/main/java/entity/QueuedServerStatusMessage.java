@@ -11,6 +11,23 @@ public class QueuedServerStatusMessage extends ServerStatusMessage {
 
 	private long timestampUtc;
 
+	/**
+	 * Number of measurements in this message. 1 for a single report, more for an aggregate, in which case cpuLoad
+	 * and ramLoad hold the sums of all measurements.
+	 */
+	private int count = 1;
+
+	/**
+	 * ID of the server in the ServerRegistry, -1 if the name has not been resolved. Once ServerTrack has queued the
+	 * message, the ID of the server within its shard, see ServerRegistry.localId.
+	 */
+	private int serverId = -1;
+
+	/**
+	 * For aggregates built from parsed data: all measurements with their distribution. Null otherwise.
+	 */
+	private ServerStatusRecord record;
+
 	/**
 	 * @param serverName
 	 * @param cpuLoad
@@ -34,13 +51,96 @@ public class QueuedServerStatusMessage extends ServerStatusMessage {
 		this.timestampUtc = System.currentTimeMillis()/1000;
 	}
 
+	/**
+	 * Constructor for empty preallocated slots that are filled with set() and reused.
+	 */
+	public QueuedServerStatusMessage() {
+		super(null, 0.0, 0.0);
+	}
+
+	/**
+	 * @param serverName
+	 * @param cpuLoad
+	 * @param ramLoad
+	 * @param timestampUtc
+	 * Overwrites all fields, so a preallocated message can be reused without allocating.
+	 */
+	public void set(String serverName, double cpuLoad, double ramLoad, long timestampUtc) {
+		set(serverName, 1, cpuLoad, ramLoad, timestampUtc);
+	}
+
+	/**
+	 * @param serverName
+	 * @param count number of measurements
+	 * @param cpuLoad sum of the cpuLoad of all measurements
+	 * @param ramLoad sum of the ramLoad of all measurements
+	 * @param timestampUtc all measurements must fall into the minute that starts here
+	 * Overwrites all fields with an aggregate of several measurements. The server ID is reset.
+	 */
+	public void set(String serverName, int count, double cpuLoad, double ramLoad, long timestampUtc) {
+		this.serverName = serverName;
+		this.serverId = -1;
+		this.record = null;
+		this.count = count;
+		this.cpuLoad = cpuLoad;
+		this.ramLoad = ramLoad;
+		this.timestampUtc = timestampUtc;
+	}
+
+	/**
+	 * @param serverName
+	 * @param record all measurements of one minute, which must not be modified afterwards
+	 * @param timestampUtc start of the minute
+	 * Overwrites all fields with an aggregate that keeps the distribution of its measurements.
+	 */
+	public void set(String serverName, ServerStatusRecord record, long timestampUtc) {
+		set(serverName, record.getCount(), record.getCpuLoadValue(), record.getMemoryLoadValue(), timestampUtc);
+		this.record = record;
+	}
+
+	/**
+	 * @param other
+	 * Copies all fields from another message.
+	 */
+	public void set(QueuedServerStatusMessage other) {
+		set(other.serverName, other.count, other.cpuLoad, other.ramLoad, other.timestampUtc);
+		this.serverId = other.serverId;
+		this.record = other.record;
+	}
+
 	public long getTimestampUtc() {
 		return timestampUtc;
 	}
 
+	/**
+	 * @return the ID of the server in the ServerRegistry, -1 if it has not been resolved
+	 */
+	public int getServerId() {
+		return serverId;
+	}
+
+	/**
+	 * @param serverId the ID of serverName in the ServerRegistry
+	 */
+	public void setServerId(int serverId) {
+		this.serverId = serverId;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the full aggregate if this message carries one, null otherwise
+	 */
+	public ServerStatusRecord getRecord() {
+		return record;
+	}
+
 	@Override
 	public String toString() {
-		return "QueuedServerStatusMessage [timestampUtc=" + timestampUtc + ", serverName=" + serverName + ", cpuLoad="
+		return "QueuedServerStatusMessage [timestampUtc=" + timestampUtc + ", count=" + count + ", serverName=" + serverName
+				+ ", serverId=" + serverId + ", cpuLoad="
 				+ cpuLoad + ", ramLoad=" + ramLoad + "]";
 	}
 
@@ -0,0 +1,135 @@
+package entity;
+
+/**
+ * @author alex
+ *
+ * Storage format for one interval of a fleet or group rollup. Like ServerStatusRecord it only holds values that can
+ * be accumulated: the number of servers and measurements, the sums of all measurements, the sums of the per-server
+ * averages and the highest single measurement. Records of different shards can simply be merged.
+ *
+ * Not thread safe. RollupSeries updates and copies a shared record under its monitor, see there for why the fields
+ * are not adders.
+ */
+public class RollupRecord {
+
+	private int servers;
+	private int count;
+	private double cpuLoadValue;
+	private double memoryLoadValue;
+	private double cpuLoadTotal;
+	private double memoryLoadTotal;
+	private double cpuLoadMax;
+	private double memoryLoadMax;
+
+	public RollupRecord() {
+	}
+
+	/**
+	 * @param originalRecord
+	 * Copy constructor.
+	 */
+	public RollupRecord(RollupRecord originalRecord) {
+		this.servers = originalRecord.servers;
+		this.count = originalRecord.count;
+		this.cpuLoadValue = originalRecord.cpuLoadValue;
+		this.memoryLoadValue = originalRecord.memoryLoadValue;
+		this.cpuLoadTotal = originalRecord.cpuLoadTotal;
+		this.memoryLoadTotal = originalRecord.memoryLoadTotal;
+		this.cpuLoadMax = originalRecord.cpuLoadMax;
+		this.memoryLoadMax = originalRecord.memoryLoadMax;
+	}
+
+	/**
+	 * @return number of servers that reported in this interval
+	 */
+	public int getServers() {
+		return servers;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public double getCpuLoadValue() {
+		return cpuLoadValue;
+	}
+
+	public double getMemoryLoadValue() {
+		return memoryLoadValue;
+	}
+
+	/**
+	 * @return sum of the average cpuLoad of every server
+	 */
+	public double getCpuLoadTotal() {
+		return cpuLoadTotal;
+	}
+
+	/**
+	 * @return sum of the average memoryLoad of every server
+	 */
+	public double getMemoryLoadTotal() {
+		return memoryLoadTotal;
+	}
+
+	public double getCpuLoadMax() {
+		return cpuLoadMax;
+	}
+
+	public double getMemoryLoadMax() {
+		return memoryLoadMax;
+	}
+
+	/**
+	 * @param beforeCount the server's bucket count before the update, 0 if the server had no data in this interval yet
+	 * @param beforeCpuLoadValue the server's cpuLoad sum before the update
+	 * @param beforeMemoryLoadValue the server's memoryLoad sum before the update
+	 * @param after the server's bucket after the update
+	 * @param cpuLoadMax highest cpuLoad of the new measurements
+	 * @param memoryLoadMax highest memoryLoad of the new measurements
+	 * 
+	 * Applies the change of one server's bucket. The per-server averages are kept up to date by adding the
+	 * difference between the old and the new average.
+	 */
+	public void update(int beforeCount, double beforeCpuLoadValue, double beforeMemoryLoadValue,
+			ServerStatusRecord after, double cpuLoadMax, double memoryLoadMax) {
+		if (beforeCount == 0) {
+			servers++;
+		}
+		count += after.getCount() - beforeCount;
+		cpuLoadValue += after.getCpuLoadValue() - beforeCpuLoadValue;
+		memoryLoadValue += after.getMemoryLoadValue() - beforeMemoryLoadValue;
+		cpuLoadTotal += average(after.getCpuLoadValue(), after.getCount())
+				- average(beforeCpuLoadValue, beforeCount);
+		memoryLoadTotal += average(after.getMemoryLoadValue(), after.getCount())
+				- average(beforeMemoryLoadValue, beforeCount);
+		this.cpuLoadMax = Math.max(this.cpuLoadMax, cpuLoadMax);
+		this.memoryLoadMax = Math.max(this.memoryLoadMax, memoryLoadMax);
+	}
+
+	/**
+	 * @param other
+	 * Adds a record for a disjoint set of servers, for example from another shard.
+	 */
+	public void merge(RollupRecord other) {
+		servers += other.servers;
+		count += other.count;
+		cpuLoadValue += other.cpuLoadValue;
+		memoryLoadValue += other.memoryLoadValue;
+		cpuLoadTotal += other.cpuLoadTotal;
+		memoryLoadTotal += other.memoryLoadTotal;
+		cpuLoadMax = Math.max(cpuLoadMax, other.cpuLoadMax);
+		memoryLoadMax = Math.max(memoryLoadMax, other.memoryLoadMax);
+	}
+
+	private static double average(double value, int count) {
+		return count == 0 ? 0.0 : value / count;
+	}
+
+	@Override
+	public String toString() {
+		return "RollupRecord [servers=" + servers + ", count=" + count + ", cpuLoadValue=" + cpuLoadValue
+				+ ", memoryLoadValue=" + memoryLoadValue + ", cpuLoadTotal=" + cpuLoadTotal + ", memoryLoadTotal="
+				+ memoryLoadTotal + ", cpuLoadMax=" + cpuLoadMax + ", memoryLoadMax=" + memoryLoadMax + "]";
+	}
+}
@@ -0,0 +1,132 @@
+package entity;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * @author alex
+ *
+ * Dictionary of server names to int IDs, handed out in the order the names are first seen.
+ *
+ * Names are resolved once at the edge, when a message is reported or a line is parsed, and the ID travels with the
+ * message. The storage engines use it as an array index on the ingest path instead of hashing the name again.
+ *
+ * The registry can be split into stripes, one per shard of a ServerTrack. The IDs of a stripe are stripe,
+ * stripe + stripes, stripe + 2 * stripes and so on, so localId gives every shard dense IDs of its own and its
+ * index only grows with the servers the shard owns. With one stripe the IDs are simply 0, 1, 2 and so on.
+ *
+ * Looking up a known name is a plain ConcurrentHashMap read and takes no lock. Only registering a new name
+ * synchronizes. IDs are never reused, so a server keeps its ID for the lifetime of the registry even if the storage
+ * evicts it; ServerTrack starts a new registry on every Reset. To bound the memory under server churn, at most
+ * maxSize names get an ID. Further names get -1 and the storage engines find them by name, which is slower but
+ * correct.
+ */
+public class ServerRegistry {
+
+	public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * names[id] is the name registered under id. Replaced when it grows, entries are never changed once set.
+	 */
+	private volatile String[] names = new String[1024];
+
+	private final int stripes;
+
+	private final ToIntFunction<String> stripeOf;
+
+	private final int maxSize;
+
+	/**
+	 * stripeSizes[stripe] is the number of IDs handed out in the stripe. Guarded by this.
+	 */
+	private final int[] stripeSizes;
+
+	private int size = 0;
+
+	public ServerRegistry() {
+		this(1, serverName -> 0, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param stripes number of stripes, usually the number of shards
+	 * @param stripeOf stripe of a name, between 0 and stripes - 1
+	 * @param maxSize number of names that get an ID at most
+	 */
+	public ServerRegistry(int stripes, ToIntFunction<String> stripeOf, int maxSize) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("stripes must be at least 1, got " + stripes);
+		}
+		this.stripes = stripes;
+		this.stripeOf = stripeOf;
+		this.maxSize = maxSize;
+		this.stripeSizes = new int[stripes];
+	}
+
+	/**
+	 * @param serverName
+	 * @return the ID of the server, registering it if the name is new, -1 if the registry is full
+	 */
+	public int idOf(String serverName) {
+		Integer id = ids.get(serverName);
+		return null != id ? id : register(serverName);
+	}
+
+	private synchronized int register(String serverName) {
+		Integer id = ids.get(serverName);
+		if (null != id) {
+			return id;
+		}
+		if (size >= maxSize) {
+			return -1;
+		}
+		int stripe = stripeOf.applyAsInt(serverName);
+		int newId = stripe + stripes * stripeSizes[stripe];
+		String[] current = names;
+		if (newId >= current.length) {
+			current = Arrays.copyOf(current, Math.max(current.length * 2, newId + 1));
+		}
+		current[newId] = serverName;
+		// publish the name before the ID, so nameOf works for every ID a reader can get
+		names = current;
+		ids.put(serverName, newId);
+		stripeSizes[stripe]++;
+		size++;
+		return newId;
+	}
+
+	/**
+	 * @param serverName
+	 * @return the ID of the server, -1 if the name was never registered
+	 */
+	public int lookup(String serverName) {
+		Integer id = ids.get(serverName);
+		return null == id ? -1 : id;
+	}
+
+	/**
+	 * @param serverId
+	 * @return the name registered under this ID, null if there is none
+	 */
+	public String nameOf(int serverId) {
+		String[] current = names;
+		return serverId >= 0 && serverId < current.length ? current[serverId] : null;
+	}
+
+	/**
+	 * @param serverId
+	 * @return the position of the ID within its stripe, dense from 0 for every stripe, -1 for -1
+	 */
+	public int localId(int serverId) {
+		return serverId < 0 ? -1 : serverId / stripes;
+	}
+
+	/**
+	 * @return the number of registered names
+	 */
+	public int size() {
+		return ids.size();
+	}
+}
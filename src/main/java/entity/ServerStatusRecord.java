@@ -6,18 +6,35 @@ package entity;
  * The internal storage format for server status data.
  * The record contains the sum of cpuLoad and memoryLoad values, and the count of measurements.
  * This allows us to accumulate the data without multiplication or division and always be able to get the average.
+ * 
+ * Next to the sums the record keeps a LoadSketch per value, for min, max and percentiles. Sketches have a fixed
+ * size and merge like the sums do.
  */
 public class ServerStatusRecord {
 
 	private int count;
 	private double cpuLoadValue;
 	private double memoryLoadValue;
+	private final LoadSketch cpuLoadSketch;
+	private final LoadSketch memoryLoadSketch;
 
+	/**
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 * Creates a record from sums only. The distribution is unknown, so the sketches get the averages.
+	 */
 	public ServerStatusRecord(int count, double cpuLoadValue, double memoryLoadValue) {
 		super();
 		this.count = count;
 		this.cpuLoadValue = cpuLoadValue;
 		this.memoryLoadValue = memoryLoadValue;
+		this.cpuLoadSketch = new LoadSketch();
+		this.memoryLoadSketch = new LoadSketch();
+		if (count > 0) {
+			cpuLoadSketch.add(cpuLoadValue / count, count);
+			memoryLoadSketch.add(memoryLoadValue / count, count);
+		}
 	}
 
 	/**
@@ -28,6 +45,8 @@ public class ServerStatusRecord {
 		this.count = originalRecord.count;
 		this.cpuLoadValue = originalRecord.cpuLoadValue;
 		this.memoryLoadValue = originalRecord.memoryLoadValue;
+		this.cpuLoadSketch = new LoadSketch(originalRecord.cpuLoadSketch);
+		this.memoryLoadSketch = new LoadSketch(originalRecord.memoryLoadSketch);
 	}
 
 	public int getCount() {
@@ -42,6 +61,14 @@ public class ServerStatusRecord {
 		return memoryLoadValue;
 	}
 
+	public LoadSketch getCpuLoadSketch() {
+		return cpuLoadSketch;
+	}
+
+	public LoadSketch getMemoryLoadSketch() {
+		return memoryLoadSketch;
+	}
+
 	/**
 	 * @return a record containing the averages for the given time period.
 	 */
@@ -62,5 +89,40 @@ public class ServerStatusRecord {
 		count += 1;
 		this.cpuLoadValue += cpuLoadValue;
 		this.memoryLoadValue += memoryLoadValue;
+		cpuLoadSketch.add(cpuLoadValue);
+		memoryLoadSketch.add(memoryLoadValue);
+	}
+
+	/**
+	 * @param count number of measurements
+	 * @param cpuLoadValue sum of their cpuLoad values
+	 * @param memoryLoadValue sum of their memoryLoad values
+	 * Adds an already aggregated set of measurements. Since the record holds sums and counts, the order of
+	 * updates does not matter. Only the sums are known, so the sketches count the average count times.
+	 */
+	public void update(int count, double cpuLoadValue, double memoryLoadValue) {
+		if (count == 1) {
+			update(cpuLoadValue, memoryLoadValue);
+			return;
+		}
+		this.count += count;
+		this.cpuLoadValue += cpuLoadValue;
+		this.memoryLoadValue += memoryLoadValue;
+		if (count > 0) {
+			cpuLoadSketch.add(cpuLoadValue / count, count);
+			memoryLoadSketch.add(memoryLoadValue / count, count);
+		}
+	}
+
+	/**
+	 * @param other
+	 * Adds the measurements of another record to this one.
+	 */
+	public void merge(ServerStatusRecord other) {
+		count += other.count;
+		cpuLoadValue += other.cpuLoadValue;
+		memoryLoadValue += other.memoryLoadValue;
+		cpuLoadSketch.merge(other.cpuLoadSketch);
+		memoryLoadSketch.merge(other.memoryLoadSketch);
 	}
 }
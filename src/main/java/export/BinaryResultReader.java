@@ -0,0 +1,97 @@
+package export;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+
+/**
+ * @author alex
+ *
+ * Reads the output of a BinaryResultWriter back, one series at a time.
+ *
+ * Not thread safe.
+ */
+public class BinaryResultReader {
+
+	private final DataInputStream in;
+
+	private long intervalSeconds;
+
+	/**
+	 * @param in
+	 */
+	public BinaryResultReader(InputStream in) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+	}
+
+	/**
+	 * @return the next series, null at the end of the stream
+	 * @throws IOException if the stream ends within a series or holds something that is not a series
+	 */
+	public ServerStatusResult read() throws IOException {
+		int tag = in.read();
+		if (tag < 0) {
+			return null;
+		}
+		if (tag != BinaryResultWriter.SERIES) {
+			throw new IOException("expected a series, found " + tag);
+		}
+		long nameLength = readVarLong();
+		if (nameLength > Short.MAX_VALUE) {
+			throw new IOException("server name of " + nameLength + " bytes");
+		}
+		byte[] name = new byte[(int) nameLength];
+		in.readFully(name);
+		intervalSeconds = readVarLong();
+		List<ServerStatusData> data = new ArrayList<ServerStatusData>();
+		long timestampUtc = 0;
+		while ((tag = in.readUnsignedByte()) != BinaryResultWriter.END) {
+			long delta = readVarLong();
+			timestampUtc += (delta >>> 1) ^ -(delta & 1);
+			double cpuLoad = in.readDouble();
+			double memoryLoad = in.readDouble();
+			if (tag == BinaryResultWriter.POINT) {
+				data.add(new ServerStatusData(timestampUtc, cpuLoad, memoryLoad));
+			} else if (tag == BinaryResultWriter.POINT_WITH_STATS) {
+				double[] cpuLoadStats = new double[5];
+				double[] memoryLoadStats = new double[5];
+				for (int i = 0; i < 5; i++) {
+					cpuLoadStats[i] = in.readDouble();
+				}
+				for (int i = 0; i < 5; i++) {
+					memoryLoadStats[i] = in.readDouble();
+				}
+				data.add(new ServerStatusData(timestampUtc, cpuLoad, memoryLoad, cpuLoadStats, memoryLoadStats));
+			} else {
+				throw new IOException("expected a point, found " + tag);
+			}
+		}
+		return new ServerStatusResult(new String(name, StandardCharsets.UTF_8), data);
+	}
+
+	/**
+	 * @return the interval of the series read last, 0 if it was not known to the writer
+	 */
+	public long getIntervalSeconds() {
+		return intervalSeconds;
+	}
+
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if (b < 0x80) {
+				return value;
+			}
+		}
+		throw new IOException("varint longer than 10 bytes");
+	}
+}
@@ -0,0 +1,112 @@
+package export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import client.ServerStatusData;
+
+/**
+ * @author alex
+ *
+ * Writes results in a compact binary form, read back by BinaryResultReader. All fixed-size values are big-endian.
+ *
+ * <pre>
+ * series   SERIES, name length (varint), name (UTF-8), intervalSeconds (varint, 0 if unknown), points, END
+ * point    POINT, timestamp minus the previous one in the series (zigzag varint), cpuLoad, memoryLoad (float64)
+ *          or
+ *          POINT_WITH_STATS, the same, then min, max, p50, p95 and p99 of cpuLoad and of memoryLoad (float64)
+ * </pre>
+ *
+ * Points of a ServerStatusResult are written with their statistics, points from buckets without.
+ */
+public class BinaryResultWriter extends ResultWriter {
+
+	static final byte END = 0;
+
+	static final byte SERIES = 1;
+
+	static final byte POINT = 2;
+
+	static final byte POINT_WITH_STATS = 3;
+
+	private long previousUtc;
+
+	/**
+	 * @param out where the output goes
+	 */
+	public BinaryResultWriter(OutputStream out) {
+		super(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param target receives the output at its position
+	 */
+	public BinaryResultWriter(ByteBuffer target) {
+		super(target);
+	}
+
+	@Override
+	protected void beginSeries(String serverName, long intervalSeconds) throws IOException {
+		byte[] name = serverName.getBytes(StandardCharsets.UTF_8);
+		ensure(1 + 10 + name.length + 10);
+		buffer.put(SERIES);
+		putVarLong(name.length);
+		buffer.put(name);
+		putVarLong(intervalSeconds);
+		previousUtc = 0;
+	}
+
+	@Override
+	protected void point(ServerStatusData data) throws IOException {
+		ensure(1 + 10 + 12 * 8);
+		beginPoint(POINT_WITH_STATS, data.getTimestampUtc(), data.getCpuLoad(), data.getMemoryLoad());
+		putDouble(data.getCpuLoadMin());
+		putDouble(data.getCpuLoadMax());
+		putDouble(data.getCpuLoadP50());
+		putDouble(data.getCpuLoadP95());
+		putDouble(data.getCpuLoadP99());
+		putDouble(data.getMemoryLoadMin());
+		putDouble(data.getMemoryLoadMax());
+		putDouble(data.getMemoryLoadP50());
+		putDouble(data.getMemoryLoadP95());
+		putDouble(data.getMemoryLoadP99());
+	}
+
+	@Override
+	protected void point(long timestampUtc, double cpuLoad, double memoryLoad) throws IOException {
+		ensure(1 + 10 + 2 * 8);
+		beginPoint(POINT, timestampUtc, cpuLoad, memoryLoad);
+	}
+
+	private void beginPoint(byte tag, long timestampUtc, double cpuLoad, double memoryLoad) {
+		buffer.put(tag);
+		long delta = timestampUtc - previousUtc;
+		putVarLong((delta << 1) ^ (delta >> 63));
+		previousUtc = timestampUtc;
+		putDouble(cpuLoad);
+		putDouble(memoryLoad);
+	}
+
+	@Override
+	protected void endSeries() throws IOException {
+		ensure(1);
+		buffer.put(END);
+	}
+
+	private void putVarLong(long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private void putDouble(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			buffer.put((byte) (bits >>> shift));
+		}
+	}
+}
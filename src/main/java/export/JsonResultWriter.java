@@ -0,0 +1,161 @@
+package export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import client.ServerStatusData;
+
+/**
+ * @author alex
+ *
+ * Writes results as JSON lines, one object per series:
+ *
+ * <pre>
+ * {"serverName":"myserver1","intervalSeconds":60,"data":[{"timestampUtc":1472020260,"cpuLoad":1.5,...},...]}
+ * </pre>
+ *
+ * intervalSeconds is left out when it is not known, which is the case for a ServerStatusResult. Points of a
+ * ServerStatusResult also carry cpuLoadMin, cpuLoadMax, cpuLoadP50, cpuLoadP95, cpuLoadP99 and the same for
+ * memoryLoad, null where they are NaN.
+ *
+ * Numbers are formatted into a reused StringBuilder and copied to the buffer, so a point creates no garbage.
+ */
+public class JsonResultWriter extends ResultWriter {
+
+	private final StringBuilder scratch = new StringBuilder(32);
+
+	private boolean firstPoint;
+
+	/**
+	 * @param out where the output goes
+	 */
+	public JsonResultWriter(OutputStream out) {
+		super(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param target receives the output at its position
+	 */
+	public JsonResultWriter(ByteBuffer target) {
+		super(target);
+	}
+
+	@Override
+	protected void beginSeries(String serverName, long intervalSeconds) throws IOException {
+		ascii("{\"serverName\":");
+		string(serverName);
+		if (intervalSeconds > 0) {
+			ascii(",\"intervalSeconds\":");
+			scratch.setLength(0);
+			scratch.append(intervalSeconds);
+			scratch();
+		}
+		ascii(",\"data\":[");
+		firstPoint = true;
+	}
+
+	@Override
+	protected void point(ServerStatusData data) throws IOException {
+		beginPoint(data.getTimestampUtc(), data.getCpuLoad(), data.getMemoryLoad());
+		field("cpuLoadMin", data.getCpuLoadMin());
+		field("cpuLoadMax", data.getCpuLoadMax());
+		field("cpuLoadP50", data.getCpuLoadP50());
+		field("cpuLoadP95", data.getCpuLoadP95());
+		field("cpuLoadP99", data.getCpuLoadP99());
+		field("memoryLoadMin", data.getMemoryLoadMin());
+		field("memoryLoadMax", data.getMemoryLoadMax());
+		field("memoryLoadP50", data.getMemoryLoadP50());
+		field("memoryLoadP95", data.getMemoryLoadP95());
+		field("memoryLoadP99", data.getMemoryLoadP99());
+		ascii("}");
+	}
+
+	@Override
+	protected void point(long timestampUtc, double cpuLoad, double memoryLoad) throws IOException {
+		beginPoint(timestampUtc, cpuLoad, memoryLoad);
+		ascii("}");
+	}
+
+	private void beginPoint(long timestampUtc, double cpuLoad, double memoryLoad) throws IOException {
+		ascii(firstPoint ? "{\"timestampUtc\":" : ",{\"timestampUtc\":");
+		firstPoint = false;
+		scratch.setLength(0);
+		scratch.append(timestampUtc);
+		scratch();
+		field("cpuLoad", cpuLoad);
+		field("memoryLoad", memoryLoad);
+	}
+
+	@Override
+	protected void endSeries() throws IOException {
+		ascii("]}\n");
+	}
+
+	private void field(String name, double value) throws IOException {
+		ensure(name.length() + 4);
+		buffer.put((byte) ',').put((byte) '"');
+		for (int i = 0; i < name.length(); i++) {
+			buffer.put((byte) name.charAt(i));
+		}
+		buffer.put((byte) '"').put((byte) ':');
+		scratch.setLength(0);
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			scratch.append("null");
+		} else {
+			scratch.append(value);
+		}
+		scratch();
+	}
+
+	private void scratch() throws IOException {
+		ensure(scratch.length());
+		for (int i = 0; i < scratch.length(); i++) {
+			buffer.put((byte) scratch.charAt(i));
+		}
+	}
+
+	private void ascii(String text) throws IOException {
+		ensure(text.length());
+		for (int i = 0; i < text.length(); i++) {
+			buffer.put((byte) text.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes a quoted, escaped JSON string in UTF-8.
+	 */
+	private void string(String value) throws IOException {
+		ensure(1);
+		buffer.put((byte) '"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				ensure(2);
+				buffer.put((byte) '\\').put((byte) c);
+			} else if (c < 0x20) {
+				ascii(String.format("\\u%04x", (int) c));
+			} else if (c < 0x80) {
+				ensure(1);
+				buffer.put((byte) c);
+			} else {
+				int codePoint = value.codePointAt(i);
+				i += Character.charCount(codePoint) - 1;
+				ensure(4);
+				if (codePoint < 0x800) {
+					buffer.put((byte) (0xC0 | (codePoint >> 6)));
+				} else if (codePoint < 0x10000) {
+					buffer.put((byte) (0xE0 | (codePoint >> 12)));
+					buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				} else {
+					buffer.put((byte) (0xF0 | (codePoint >> 18)));
+					buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+					buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+				}
+				buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+			}
+		}
+		ensure(1);
+		buffer.put((byte) '"');
+	}
+}
@@ -0,0 +1,167 @@
+package export;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+import storage.BucketVisitor;
+
+/**
+ * @author alex
+ *
+ * Streams query results to an OutputStream or into a ByteBuffer, series by series and point by point, without
+ * building the whole output first.
+ *
+ * Output goes through one reusable buffer. With an OutputStream the buffer is written out whenever it is full and
+ * on flush; with a ByteBuffer the output goes straight into it, and a BufferOverflowException is thrown when it is
+ * full.
+ *
+ * A ServerStatusResult is written with write. As a BucketVisitor, a writer serializes the raw buckets of a storage
+ * engine, for example through ServerTrack.forEachBucket, without any ServerStatusData or list in between:
+ * consecutive buckets of the same server and interval become one series of averages, so a server may show up in
+ * several series, for example one for its compressed and one for its recent buckets. IOExceptions of the stream
+ * are thrown as UncheckedIOException from visit.
+ *
+ * Not thread safe.
+ */
+public abstract class ResultWriter implements BucketVisitor, Flushable, Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final OutputStream out;
+
+	protected final ByteBuffer buffer;
+
+	private boolean inSeries = false;
+
+	private String seriesName;
+
+	private long seriesInterval;
+
+	/**
+	 * @param out where the output goes
+	 * @param bufferSize bytes buffered before they are written to out
+	 */
+	protected ResultWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * @param target receives the output at its position, which is advanced past it
+	 */
+	protected ResultWriter(ByteBuffer target) {
+		this.out = null;
+		this.buffer = target;
+	}
+
+	/**
+	 * @param result written as one series
+	 * @throws IOException
+	 */
+	public void write(ServerStatusResult result) throws IOException {
+		endOpenSeries();
+		beginSeries(result.getServerName(), 0);
+		for (ServerStatusData data : result.getData()) {
+			point(data);
+		}
+		endSeries();
+	}
+
+	@Override
+	public void visit(String serverName, long intervalSeconds, long bucketUtc, int count, double cpuLoadValue,
+			double memoryLoadValue) {
+		try {
+			if (!inSeries || seriesInterval != intervalSeconds || !seriesName.equals(serverName)) {
+				endOpenSeries();
+				beginSeries(serverName, intervalSeconds);
+				inSeries = true;
+				seriesName = serverName;
+				seriesInterval = intervalSeconds;
+			}
+			if (count == 0) {
+				point(bucketUtc, 0.0, 0.0);
+			} else {
+				point(bucketUtc, cpuLoadValue / count, memoryLoadValue / count);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void endOpenSeries() throws IOException {
+		if (inSeries) {
+			inSeries = false;
+			endSeries();
+		}
+	}
+
+	/**
+	 * @param serverName
+	 * @param intervalSeconds width of the buckets, 0 if unknown
+	 */
+	protected abstract void beginSeries(String serverName, long intervalSeconds) throws IOException;
+
+	/**
+	 * Writes a point with averages, min, max and percentiles.
+	 */
+	protected abstract void point(ServerStatusData data) throws IOException;
+
+	/**
+	 * Writes a point with only the averages.
+	 */
+	protected abstract void point(long timestampUtc, double cpuLoad, double memoryLoad) throws IOException;
+
+	protected abstract void endSeries() throws IOException;
+
+	/**
+	 * @param bytes
+	 * Makes room for this many bytes in the buffer.
+	 */
+	protected void ensure(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return;
+		}
+		if (null == out) {
+			throw new BufferOverflowException();
+		}
+		drain();
+		if (buffer.remaining() < bytes) {
+			throw new IOException(bytes + " bytes do not fit into a buffer of " + buffer.capacity());
+		}
+	}
+
+	private void drain() throws IOException {
+		out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+		buffer.clear();
+	}
+
+	/**
+	 * Ends the open series, if any, and writes the buffer to the stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		endOpenSeries();
+		if (null != out) {
+			drain();
+			out.flush();
+		}
+	}
+
+	/**
+	 * Flushes and closes the stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+		if (null != out) {
+			out.close();
+		}
+	}
+}
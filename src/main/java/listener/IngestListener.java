@@ -0,0 +1,534 @@
+package listener;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import entity.QueuedServerStatusMessage;
+import loader.BinaryBatchDecoder;
+import loader.BinaryFormat;
+import loader.CsvLineParser;
+import loader.NameTable;
+import processor.ServerTrack;
+
+/**
+ * @author alex
+ *
+ * Network front end for a ServerTrack. Accepts "timestamp,serverName,cpuLoad,ramLoad" lines, the format of the CSV
+ * files, over persistent TCP connections and in UDP datagrams. As in the files, a negative timestamp means "this
+ * many seconds ago".
+ *
+ * One thread runs a selector over all channels. Every TCP connection reads into its own direct buffer and every
+ * datagram into a shared one, and a CsvLineParser decodes the lines in place into a preallocated batch, which goes
+ * to ServerTrack through the batch ingest path once per wakeup or when it is full. A partial line at the end of a
+ * TCP read is kept for the next read, and a line longer than the buffer is skipped as malformed. A datagram holds
+ * one or more whole lines, the last one needs no newline.
+ *
+ * BinaryFormat frames are accepted as well, read in place by a BinaryBatchDecoder. A TCP connection that starts with
+ * the magic byte of the format sends frames only, a datagram that starts with it holds whole frames. An invalid
+ * frame, or one longer than the buffer, closes the connection, since the following frames cannot be found.
+ *
+ * Backpressure: while the queue refuses messages (FullQueuePolicy.REJECT) the thread keeps retrying them and reads
+ * nothing else, and with FullQueuePolicy.BLOCK reportData itself waits. Either way the socket buffers fill up, TCP
+ * senders are slowed down by flow control, and datagrams beyond the socket buffer are dropped by the kernel.
+ */
+public class IngestListener implements Closeable {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 << 10;
+
+	/**
+	 * Largest UDP payload.
+	 */
+	static final int MAX_DATAGRAM_SIZE = 65507;
+
+	/**
+	 * Datagrams received per wakeup at most, so a flood of datagrams cannot starve the TCP connections.
+	 */
+	private static final int DATAGRAMS_PER_WAKEUP = 64;
+
+	private static final long RETRY_MILLIS = 1;
+
+	/**
+	 * Read state of one TCP connection.
+	 */
+	private static class Connection {
+
+		private final ByteBuffer buffer;
+
+		/**
+		 * True while the rest of a line that did not fit into the buffer is discarded.
+		 */
+		private boolean skipping;
+
+		/**
+		 * Set by the first byte of the connection.
+		 */
+		private boolean binary;
+
+		private boolean formatKnown;
+
+		private Connection(int bufferSize) {
+			this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+	}
+
+	private final ServerTrack serverTrack;
+
+	private final int bufferSize;
+
+	private final Selector selector;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final DatagramChannel datagramChannel;
+
+	private final ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+
+	private final CsvLineParser parser;
+
+	private final BinaryBatchDecoder decoder;
+
+	private final QueuedServerStatusMessage[] batch;
+
+	private int batchCount = 0;
+
+	private final Thread thread;
+
+	private volatile boolean running = true;
+
+	/*
+	 * Counters, written by the listener thread only.
+	 */
+
+	private volatile long lines;
+
+	private volatile long accepted;
+
+	private volatile long rejected;
+
+	private volatile long malformed;
+
+	private volatile long connections;
+
+	private final static Logger logger = LoggerFactory.getLogger(IngestListener.class);
+
+	/**
+	 * @param serverTrack where the messages go
+	 * @param tcpAddress where to accept TCP connections, null for no TCP. Port 0 picks a free port.
+	 * @param udpAddress where to receive datagrams, null for no UDP. Port 0 picks a free port.
+	 * @throws IOException if an address cannot be bound
+	 */
+	public IngestListener(ServerTrack serverTrack, InetSocketAddress tcpAddress, InetSocketAddress udpAddress)
+			throws IOException {
+		this(serverTrack, tcpAddress, udpAddress, DEFAULT_BUFFER_SIZE, 1024);
+	}
+
+	/**
+	 * @param serverTrack where the messages go
+	 * @param tcpAddress where to accept TCP connections, null for no TCP. Port 0 picks a free port.
+	 * @param udpAddress where to receive datagrams, null for no UDP. Port 0 picks a free port.
+	 * @param bufferSize read buffer per TCP connection, the longest line accepted over TCP
+	 * @param batchSize number of messages handed to ServerTrack at once
+	 * @throws IOException if an address cannot be bound
+	 *
+	 * Binds the addresses right away, so the ports are known before start.
+	 */
+	public IngestListener(ServerTrack serverTrack, InetSocketAddress tcpAddress, InetSocketAddress udpAddress,
+			int bufferSize, int batchSize) throws IOException {
+		this.serverTrack = serverTrack;
+		this.bufferSize = bufferSize;
+		NameTable names = new NameTable(serverTrack.getServerRegistry());
+		this.parser = new CsvLineParser(names);
+		this.decoder = new BinaryBatchDecoder(names);
+		this.batch = new QueuedServerStatusMessage[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+		this.selector = Selector.open();
+		ServerSocketChannel tcp = null;
+		DatagramChannel udp = null;
+		try {
+			if (null != tcpAddress) {
+				tcp = ServerSocketChannel.open();
+				tcp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				tcp.bind(tcpAddress);
+				tcp.configureBlocking(false);
+				tcp.register(selector, SelectionKey.OP_ACCEPT);
+			}
+			if (null != udpAddress) {
+				udp = DatagramChannel.open();
+				udp.bind(udpAddress);
+				udp.configureBlocking(false);
+				udp.register(selector, SelectionKey.OP_READ);
+			}
+		} catch (IOException e) {
+			closeQuietly(tcp);
+			closeQuietly(udp);
+			selector.close();
+			throw e;
+		}
+		this.serverChannel = tcp;
+		this.datagramChannel = udp;
+		this.thread = new Thread(this::run, "IngestListener");
+	}
+
+	/**
+	 * Starts the listener thread.
+	 */
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * @return the bound TCP address, null if there is no TCP
+	 */
+	public InetSocketAddress getTcpAddress() throws IOException {
+		return null == serverChannel ? null : (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+
+	/**
+	 * @return the bound UDP address, null if there is no UDP
+	 */
+	public InetSocketAddress getUdpAddress() throws IOException {
+		return null == datagramChannel ? null : (InetSocketAddress) datagramChannel.getLocalAddress();
+	}
+
+	/**
+	 * Stops the listener thread and closes all channels. Messages already parsed are still reported, messages the
+	 * queue keeps refusing are counted as rejected.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		if (thread.getState() == Thread.State.NEW) {
+			// never started, nothing else will close the channels
+			closeChannels();
+			return;
+		}
+		try {
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting for the listener thread to exit, continuing");
+		}
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				selector.select();
+				long nowUtc = System.currentTimeMillis() / 1000;
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.channel() == datagramChannel) {
+						receive(nowUtc);
+					} else if (key.isReadable()) {
+						read(key, nowUtc);
+					}
+				}
+				flushBatch();
+			}
+		} catch (IOException e) {
+			logger.warn("Listener stopped: " + e.getMessage());
+		} finally {
+			flushBatch();
+			closeChannels();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (null == channel) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, new Connection(bufferSize));
+		connections++;
+	}
+
+	private void read(SelectionKey key, long nowUtc) {
+		Connection connection = (Connection) key.attachment();
+		ByteBuffer buffer = connection.buffer;
+		int read;
+		try {
+			read = ((SocketChannel) key.channel()).read(buffer);
+		} catch (IOException e) {
+			logger.debug("Closing connection after read error: " + e.getMessage());
+			read = -1;
+		}
+		int limit = buffer.position();
+		if (!connection.formatKnown && limit > 0) {
+			connection.binary = buffer.get(0) == BinaryFormat.MAGIC;
+			connection.formatKnown = true;
+		}
+		if (connection.binary) {
+			readFrames(key, buffer, limit, read < 0, nowUtc);
+			return;
+		}
+		int consumed = lines(buffer, limit, read < 0, connection, nowUtc);
+		if (read < 0) {
+			key.cancel();
+			closeQuietly(key.channel());
+			return;
+		}
+		if (consumed == 0 && limit == buffer.capacity()) {
+			// no newline in a full buffer, drop the line up to its end and count it once, not once per buffer
+			if (!connection.skipping) {
+				connection.skipping = true;
+				lines++;
+				malformed++;
+			}
+			buffer.clear();
+			return;
+		}
+		// keep the partial line for the next read
+		buffer.limit(limit);
+		buffer.position(consumed);
+		buffer.compact();
+	}
+
+	private void readFrames(SelectionKey key, ByteBuffer buffer, int limit, boolean last, long nowUtc) {
+		try {
+			int consumed = frames(buffer, limit, nowUtc);
+			if (last && consumed < limit) {
+				throw new IllegalArgumentException("truncated frame");
+			}
+			if (consumed == 0 && limit == buffer.capacity()) {
+				throw new IllegalArgumentException("frame longer than " + buffer.capacity() + " bytes");
+			}
+			// keep the partial frame for the next read
+			buffer.limit(limit);
+			buffer.position(consumed);
+			buffer.compact();
+		} catch (IllegalArgumentException e) {
+			logger.debug("Closing connection after an invalid frame: " + e.getMessage());
+			malformed++;
+			last = true;
+		}
+		if (last) {
+			key.cancel();
+			closeQuietly(key.channel());
+		}
+	}
+
+	private void receive(long nowUtc) throws IOException {
+		for (int i = 0; i < DATAGRAMS_PER_WAKEUP; i++) {
+			datagram.clear();
+			if (null == datagramChannel.receive(datagram)) {
+				return;
+			}
+			int limit = datagram.position();
+			if (limit > 0 && datagram.get(0) == BinaryFormat.MAGIC) {
+				try {
+					if (frames(datagram, limit, nowUtc) < limit) {
+						malformed++;
+					}
+				} catch (IllegalArgumentException e) {
+					malformed++;
+				}
+			} else {
+				lines(datagram, limit, true, null, nowUtc);
+			}
+		}
+	}
+
+	/**
+	 * @param buffer
+	 * @param limit end of the data in the buffer
+	 * @param nowUtc
+	 * @return the number of bytes consumed, which ends after the last complete frame
+	 * @throws IllegalArgumentException if a frame is invalid, the messages before it are kept
+	 */
+	private int frames(ByteBuffer buffer, int limit, long nowUtc) {
+		int offset = 0;
+		int length;
+		while ((length = BinaryFormat.frameLength(buffer, offset, limit)) > 0 && length <= limit - offset) {
+			decoder.wrap(buffer, offset, limit, nowUtc);
+			while (decoder.next()) {
+				lines++;
+				if (decoder.timestampUtc() < 0) {
+					malformed++;
+					continue;
+				}
+				decoder.decodeTo(batch[batchCount]);
+				add();
+			}
+			offset += length;
+		}
+		return offset;
+	}
+
+	/**
+	 * @param buffer
+	 * @param limit end of the data in the buffer
+	 * @param last true if no more data follows, so a line without a newline at the end is complete
+	 * @param connection the TCP connection the data came from, null for a datagram
+	 * @param nowUtc
+	 * @return the number of bytes consumed, which ends after the last complete line unless last is true
+	 */
+	private int lines(ByteBuffer buffer, int limit, boolean last, Connection connection, long nowUtc) {
+		int lineStart = 0;
+		for (int i = 0; i < limit; i++) {
+			if (buffer.get(i) == '\n') {
+				if (null != connection && connection.skipping) {
+					connection.skipping = false;
+				} else {
+					line(buffer, lineStart, i, nowUtc);
+				}
+				lineStart = i + 1;
+			}
+		}
+		if (last && lineStart < limit) {
+			if (null == connection || !connection.skipping) {
+				line(buffer, lineStart, limit, nowUtc);
+			}
+			lineStart = limit;
+		}
+		return lineStart;
+	}
+
+	private void line(ByteBuffer buffer, int start, int end, long nowUtc) {
+		if (end == start || (end == start + 1 && buffer.get(start) == '\r')) {
+			return;
+		}
+		lines++;
+		if (parser.parse(buffer, start, end, nowUtc, batch[batchCount])) {
+			add();
+		} else {
+			malformed++;
+		}
+	}
+
+	/**
+	 * Keeps the message just decoded into batch[batchCount] if it is valid.
+	 */
+	private void add() {
+		if (!serverTrack.validateMessage(batch[batchCount])) {
+			rejected++;
+			return;
+		}
+		batchCount++;
+		if (batchCount == batch.length) {
+			flushBatch();
+		}
+	}
+
+	/**
+	 * Reports the batch. Messages the queue refuses are moved to the front of the batch and reported again until
+	 * they are accepted or the listener is closed.
+	 */
+	private void flushBatch() {
+		while (batchCount > 0) {
+			BitSet acceptedBits = serverTrack.reportData(batch, 0, batchCount);
+			int acceptedCount = acceptedBits.cardinality();
+			accepted += acceptedCount;
+			if (acceptedCount == batchCount) {
+				break;
+			}
+			int kept = 0;
+			for (int i = 0; i < batchCount; i++) {
+				if (!acceptedBits.get(i)) {
+					// swap rather than copy, so every preallocated message stays in the batch exactly once
+					QueuedServerStatusMessage message = batch[kept];
+					batch[kept++] = batch[i];
+					batch[i] = message;
+				}
+			}
+			batchCount = kept;
+			if (!running) {
+				rejected += kept;
+				break;
+			}
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				rejected += kept;
+				break;
+			}
+		}
+		batchCount = 0;
+	}
+
+	private void closeChannels() {
+		if (!selector.isOpen()) {
+			return;
+		}
+		for (SelectionKey key : selector.keys()) {
+			closeQuietly(key.channel());
+		}
+		closeQuietly(serverChannel);
+		closeQuietly(datagramChannel);
+		closeQuietly(selector);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (null == closeable) {
+			return;
+		}
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.debug("Failed to close " + closeable + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return non-empty lines and binary messages received
+	 */
+	public long getLines() {
+		return lines;
+	}
+
+	/**
+	 * @return messages accepted by ServerTrack
+	 */
+	public long getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return well-formed lines that ServerTrack refused, for example because a load was not positive
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+
+	/**
+	 * @return lines that could not be parsed or were too long, and invalid frames
+	 */
+	public long getMalformed() {
+		return malformed;
+	}
+
+	/**
+	 * @return TCP connections accepted
+	 */
+	public long getConnections() {
+		return connections;
+	}
+
+	@Override
+	public String toString() {
+		return "IngestListener [lines=" + lines + ", accepted=" + accepted + ", rejected=" + rejected
+				+ ", malformed=" + malformed + ", connections=" + connections + "]";
+	}
+}
@@ -0,0 +1,192 @@
+package loader;
+
+import java.nio.ByteBuffer;
+
+import entity.QueuedServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Flyweight reader for BinaryFormat frames. wrap positions the decoder on a frame, next decodes the following
+ * message in place, and the getters return its fields, so decoding creates no message objects.
+ * Names are interned through a NameTable, which also supplies their server IDs, so a known name costs a hash of its
+ * bytes once per frame.
+ *
+ * The buffer may be a heap, direct or mapped buffer; its position, limit and byte order are not used. A frame that
+ * ends early or holds an invalid index is reported with an IllegalArgumentException.
+ *
+ * Not thread safe, use one decoder per thread.
+ */
+public class BinaryBatchDecoder {
+
+	private final NameTable names;
+
+	/**
+	 * Names and IDs of the current frame, by name index.
+	 */
+	private String[] frameNames = new String[64];
+
+	private int[] frameIds = new int[64];
+
+	private int nameCount;
+
+	private ByteBuffer buffer;
+
+	private int position;
+
+	private int end;
+
+	private boolean scaledLoads;
+
+	private int remaining;
+
+	private long nowUtc;
+
+	private long timestampUtc;
+
+	private int nameIndex;
+
+	private double cpuLoad;
+
+	private double ramLoad;
+
+	/**
+	 * @param names interns the names, give it a ServerRegistry to get server IDs
+	 */
+	public BinaryBatchDecoder(NameTable names) {
+		this.names = names;
+	}
+
+	/**
+	 * @param buffer
+	 * @param offset absolute position of the frame
+	 * @param limit end of the available data
+	 * @param nowUtc reference time for negative timestamps
+	 * @return the length of the frame, header included
+	 * @throws IllegalArgumentException if there is no complete, valid frame at offset
+	 */
+	public int wrap(ByteBuffer buffer, int offset, int limit, long nowUtc) {
+		int length = BinaryFormat.frameLength(buffer, offset, limit);
+		if (length < 0 || length > limit - offset) {
+			throw new IllegalArgumentException("incomplete frame at " + offset);
+		}
+		this.buffer = buffer;
+		this.position = offset + BinaryFormat.HEADER_SIZE;
+		this.end = offset + length;
+		this.scaledLoads = (buffer.get(offset + 2) & BinaryFormat.FLAG_SCALED_LOADS) != 0;
+		this.nowUtc = nowUtc;
+		nameCount = count(readVarLong());
+		if (nameCount > end - position) {
+			throw new IllegalArgumentException("more names than bytes in the frame");
+		}
+		if (nameCount > frameNames.length) {
+			frameNames = new String[Integer.highestOneBit(nameCount) << 1];
+			frameIds = new int[frameNames.length];
+		}
+		for (int i = 0; i < nameCount; i++) {
+			int nameLength = count(readVarLong());
+			if (nameLength > end - position) {
+				throw new IllegalArgumentException("name beyond the end of the frame");
+			}
+			int slot = names.slot(buffer, position, position + nameLength);
+			frameNames[i] = names.nameAt(slot);
+			frameIds[i] = names.idAt(slot);
+			position += nameLength;
+		}
+		remaining = count(readVarLong());
+		timestampUtc = BinaryFormat.zigZag(readVarLong());
+		return length;
+	}
+
+	/**
+	 * @return true if the decoder moved to the next message, false at the end of the frame
+	 */
+	public boolean next() {
+		if (remaining == 0) {
+			return false;
+		}
+		remaining--;
+		long index = readVarLong();
+		if (index >= nameCount) {
+			throw new IllegalArgumentException("name index " + index + " of " + nameCount);
+		}
+		nameIndex = (int) index;
+		timestampUtc += BinaryFormat.zigZag(readVarLong());
+		if (scaledLoads) {
+			cpuLoad = BinaryFormat.zigZag(readVarLong()) / BinaryFormat.LOAD_SCALE;
+			ramLoad = BinaryFormat.zigZag(readVarLong()) / BinaryFormat.LOAD_SCALE;
+		} else {
+			if (end - position < 16) {
+				throw new IllegalArgumentException("message beyond the end of the frame");
+			}
+			cpuLoad = Double.longBitsToDouble(BinaryFormat.getBigEndian(buffer, position, 8));
+			ramLoad = Double.longBitsToDouble(BinaryFormat.getBigEndian(buffer, position + 8, 8));
+			position += 16;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of messages after the current one
+	 */
+	public int remaining() {
+		return remaining;
+	}
+
+	/**
+	 * @return the timestamp, negative ones resolved against nowUtc. Still negative if the message went back further
+	 * than the epoch, such a message is malformed.
+	 */
+	public long timestampUtc() {
+		return timestampUtc < 0 ? nowUtc + timestampUtc : timestampUtc;
+	}
+
+	public String serverName() {
+		return frameNames[nameIndex];
+	}
+
+	/**
+	 * @return the server ID, -1 if the NameTable has no ServerRegistry
+	 */
+	public int serverId() {
+		return frameIds[nameIndex];
+	}
+
+	public double cpuLoad() {
+		return cpuLoad;
+	}
+
+	public double ramLoad() {
+		return ramLoad;
+	}
+
+	/**
+	 * @param target receives the current message, server ID included
+	 */
+	public void decodeTo(QueuedServerStatusMessage target) {
+		target.set(serverName(), cpuLoad, ramLoad, timestampUtc());
+		target.setServerId(serverId());
+	}
+
+	private long readVarLong() {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (position >= end) {
+				throw new IllegalArgumentException("varint beyond the end of the frame");
+			}
+			byte b = buffer.get(position++);
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("varint longer than 10 bytes");
+	}
+
+	private static int count(long value) {
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid count " + value);
+		}
+		return (int) value;
+	}
+}
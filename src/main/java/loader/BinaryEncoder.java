@@ -0,0 +1,187 @@
+package loader;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import client.ServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Collects messages and writes them as one BinaryFormat frame. Meant for agents, tests and tools; the receiving
+ * side uses a BinaryBatchDecoder.
+ *
+ * Not thread safe.
+ */
+public class BinaryEncoder {
+
+	private final boolean scaledLoads;
+
+	private final Map<String, Integer> nameIndexes = new HashMap<String, Integer>();
+
+	private final List<byte[]> names = new ArrayList<byte[]>();
+
+	private int[] nameIndex = new int[64];
+
+	private long[] timestamps = new long[64];
+
+	private double[] cpuLoads = new double[64];
+
+	private double[] ramLoads = new double[64];
+
+	private int count = 0;
+
+	public BinaryEncoder() {
+		this(false);
+	}
+
+	/**
+	 * @param scaledLoads true to send loads as scaled varints, see BinaryFormat.FLAG_SCALED_LOADS
+	 */
+	public BinaryEncoder(boolean scaledLoads) {
+		this.scaledLoads = scaledLoads;
+	}
+
+	/**
+	 * @param serverName
+	 * @param cpuLoad
+	 * @param ramLoad
+	 * @param timestampUtc negative means this many seconds before the receiver decodes it
+	 */
+	public void add(String serverName, double cpuLoad, double ramLoad, long timestampUtc) {
+		Integer index = nameIndexes.get(serverName);
+		if (null == index) {
+			index = names.size();
+			nameIndexes.put(serverName, index);
+			names.add(serverName.getBytes(StandardCharsets.UTF_8));
+		}
+		if (count == timestamps.length) {
+			int capacity = count * 2;
+			nameIndex = Arrays.copyOf(nameIndex, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			cpuLoads = Arrays.copyOf(cpuLoads, capacity);
+			ramLoads = Arrays.copyOf(ramLoads, capacity);
+		}
+		nameIndex[count] = index;
+		timestamps[count] = timestampUtc;
+		cpuLoads[count] = cpuLoad;
+		ramLoads[count] = ramLoad;
+		count++;
+	}
+
+	/**
+	 * @param message
+	 * @param timestampUtc
+	 */
+	public void add(ServerStatusMessage message, long timestampUtc) {
+		add(message.getServerName(), message.getCpuLoad(), message.getRamLoad(), timestampUtc);
+	}
+
+	/**
+	 * @return the number of messages added since the last clear
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Removes all messages, so the encoder can build the next frame.
+	 */
+	public void clear() {
+		nameIndexes.clear();
+		names.clear();
+		count = 0;
+	}
+
+	/**
+	 * @return the length of the frame, header included
+	 */
+	public int encodedLength() {
+		return BinaryFormat.HEADER_SIZE + bodyLength();
+	}
+
+	private int bodyLength() {
+		int length = BinaryFormat.varLongSize(names.size());
+		for (byte[] name : names) {
+			length += BinaryFormat.varLongSize(name.length) + name.length;
+		}
+		length += BinaryFormat.varLongSize(count);
+		long previous = count == 0 ? 0 : timestamps[0];
+		length += BinaryFormat.zigZagSize(previous);
+		for (int i = 0; i < count; i++) {
+			length += BinaryFormat.varLongSize(nameIndex[i]) + BinaryFormat.zigZagSize(timestamps[i] - previous);
+			previous = timestamps[i];
+			if (scaledLoads) {
+				length += BinaryFormat.zigZagSize(scale(cpuLoads[i])) + BinaryFormat.zigZagSize(scale(ramLoads[i]));
+			} else {
+				length += 16;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @param target receives the frame at its position, which is advanced past it. Written big-endian whatever the
+	 * byte order of the buffer.
+	 * @return the length of the frame
+	 * @throws BufferOverflowException if the frame does not fit, nothing is written then
+	 */
+	public int encode(ByteBuffer target) {
+		int bodyLength = bodyLength();
+		if (target.remaining() < BinaryFormat.HEADER_SIZE + bodyLength) {
+			throw new BufferOverflowException();
+		}
+		target.put(BinaryFormat.MAGIC);
+		target.put(BinaryFormat.VERSION);
+		target.put((byte) (scaledLoads ? BinaryFormat.FLAG_SCALED_LOADS : 0));
+		target.put((byte) 0);
+		putBigEndian(target, bodyLength, 4);
+		BinaryFormat.putVarLong(target, names.size());
+		for (byte[] name : names) {
+			BinaryFormat.putVarLong(target, name.length);
+			target.put(name);
+		}
+		BinaryFormat.putVarLong(target, count);
+		long previous = count == 0 ? 0 : timestamps[0];
+		BinaryFormat.putZigZag(target, previous);
+		for (int i = 0; i < count; i++) {
+			BinaryFormat.putVarLong(target, nameIndex[i]);
+			BinaryFormat.putZigZag(target, timestamps[i] - previous);
+			previous = timestamps[i];
+			if (scaledLoads) {
+				BinaryFormat.putZigZag(target, scale(cpuLoads[i]));
+				BinaryFormat.putZigZag(target, scale(ramLoads[i]));
+			} else {
+				putBigEndian(target, Double.doubleToRawLongBits(cpuLoads[i]), 8);
+				putBigEndian(target, Double.doubleToRawLongBits(ramLoads[i]), 8);
+			}
+		}
+		return BinaryFormat.HEADER_SIZE + bodyLength;
+	}
+
+	/**
+	 * @return a new buffer holding the frame, ready to be read
+	 */
+	public ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+		encode(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static long scale(double load) {
+		return Math.round(load * BinaryFormat.LOAD_SCALE);
+	}
+
+	private static void putBigEndian(ByteBuffer target, long value, int bytes) {
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			target.put((byte) (value >>> shift));
+		}
+	}
+}
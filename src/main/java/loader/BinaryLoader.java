@@ -0,0 +1,125 @@
+package loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+
+import entity.QueuedServerStatusMessage;
+import processor.ServerTrack;
+
+/**
+ * @author alex
+ *
+ * Streams a file of BinaryFormat frames into a ServerTrack, the binary counterpart of CsvLoader.
+ *
+ * The file is memory-mapped in large chunks that end on a frame boundary, and a BinaryBatchDecoder reads every
+ * message in place into a preallocated batch. In the stats, every message counts as a line.
+ *
+ * Not thread safe, use one loader per thread.
+ */
+public class BinaryLoader {
+
+	private final ServerTrack serverTrack;
+
+	private final int chunkSize;
+
+	private final NameTable names;
+
+	private final BinaryBatchDecoder decoder;
+
+	private final QueuedServerStatusMessage[] batch;
+
+	private int batchCount = 0;
+
+	public BinaryLoader(ServerTrack serverTrack) {
+		this(serverTrack, CsvLoader.DEFAULT_BATCH_SIZE, CsvLoader.DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param serverTrack where the messages go
+	 * @param batchSize number of messages handed to ServerTrack at once
+	 * @param chunkSize number of bytes mapped at once, must be larger than the longest frame
+	 */
+	public BinaryLoader(ServerTrack serverTrack, int batchSize, int chunkSize) {
+		this.serverTrack = serverTrack;
+		this.chunkSize = chunkSize;
+		this.names = new NameTable(serverTrack.getServerRegistry());
+		this.decoder = new BinaryBatchDecoder(names);
+		this.batch = new QueuedServerStatusMessage[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return counters for this file
+	 * @throws IOException if the file cannot be read or holds an invalid frame, the messages before it are loaded
+	 */
+	public LoadStats load(File file) throws IOException {
+		LoadStats stats = new LoadStats();
+		long start = System.nanoTime();
+		long nowUtc = System.currentTimeMillis() / 1000;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long position = 0;
+			long size = channel.size();
+			while (position < size) {
+				int length = (int) Math.min(chunkSize, size - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				int consumed = 0;
+				try {
+					int frameLength;
+					while ((frameLength = BinaryFormat.frameLength(buffer, consumed, length)) > 0
+							&& frameLength <= length - consumed) {
+						decoder.wrap(buffer, consumed, length, nowUtc);
+						while (decoder.next()) {
+							stats.lines++;
+							if (decoder.timestampUtc() < 0) {
+								stats.malformed++;
+								continue;
+							}
+							decoder.decodeTo(batch[batchCount++]);
+							if (batchCount == batch.length) {
+								flushBatch(stats);
+							}
+						}
+						consumed += frameLength;
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException("invalid frame at offset " + (position + consumed) + " in " + file + ": "
+							+ e.getMessage());
+				} finally {
+					flushBatch(stats);
+				}
+				if (consumed == 0) {
+					throw new IOException("frame longer than " + chunkSize + " bytes or truncated at offset "
+							+ position + " in " + file);
+				}
+				position += consumed;
+			}
+		}
+		stats.elapsedNanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	/**
+	 * @return every server name seen by this loader
+	 */
+	public Collection<String> getServerNames() {
+		return names.names();
+	}
+
+	private void flushBatch(LoadStats stats) {
+		if (batchCount == 0) {
+			return;
+		}
+		BitSet accepted = serverTrack.reportData(batch, 0, batchCount);
+		stats.accepted += accepted.cardinality();
+		stats.rejected += batchCount - accepted.cardinality();
+		batchCount = 0;
+	}
+}
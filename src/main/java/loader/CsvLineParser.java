@@ -0,0 +1,157 @@
+package loader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import entity.QueuedServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Parses "timestamp,serverName,cpuLoad,ramLoad" lines straight from a ByteBuffer into a reusable message.
+ * 
+ * Numbers are parsed in place. Plain decimals with up to 15 significant digits take a fast path that gives exactly
+ * the same result as Double.parseDouble (the mantissa and the power of ten are both exact doubles, so a single
+ * division rounds correctly). Anything else, such as exponents, falls back to Double.parseDouble.
+ * Server names are interned through a NameTable, which also supplies the server ID if it has a registry.
+ * 
+ * Positive timestamps are used verbatim, negative timestamps mean "this many seconds ago". A line whose timestamp
+ * is still negative after that is malformed.
+ * 
+ * Not thread safe, use one parser per thread.
+ */
+public class CsvLineParser {
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+			1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private static final int MAX_FAST_DIGITS = 15;
+
+	private final NameTable names;
+
+	public CsvLineParser(NameTable names) {
+		this.names = names;
+	}
+
+	/**
+	 * @param buffer
+	 * @param start absolute position of the first byte of the line
+	 * @param end absolute position after the last byte of the line, without the line separator
+	 * @param nowUtc reference time for negative timestamps
+	 * @param target receives the parsed values
+	 * @return true if the line was well formed and target was filled
+	 */
+	public boolean parse(ByteBuffer buffer, int start, int end, long nowUtc, QueuedServerStatusMessage target) {
+		if (end > start && buffer.get(end - 1) == '\r') {
+			end--;
+		}
+		int comma1 = indexOf(buffer, start, end, (byte) ',');
+		int comma2 = comma1 < 0 ? -1 : indexOf(buffer, comma1 + 1, end, (byte) ',');
+		int comma3 = comma2 < 0 ? -1 : indexOf(buffer, comma2 + 1, end, (byte) ',');
+		if (comma3 < 0 || indexOf(buffer, comma3 + 1, end, (byte) ',') >= 0 || comma2 == comma1 + 1) {
+			return false;
+		}
+		long timestampUtc = parseLong(buffer, start, comma1);
+		double cpuLoad = parseDouble(buffer, comma2 + 1, comma3);
+		double ramLoad = parseDouble(buffer, comma3 + 1, end);
+		if (timestampUtc == Long.MIN_VALUE || Double.isNaN(cpuLoad) || Double.isNaN(ramLoad)) {
+			return false;
+		}
+		if (timestampUtc < 0) {
+			timestampUtc = nowUtc + timestampUtc;
+			if (timestampUtc < 0) {
+				return false;
+			}
+		}
+		int slot = names.slot(buffer, comma1 + 1, comma2);
+		target.set(names.nameAt(slot), cpuLoad, ramLoad, timestampUtc);
+		target.setServerId(names.idAt(slot));
+		return true;
+	}
+
+	private static int indexOf(ByteBuffer buffer, int start, int end, byte value) {
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the value, or Long.MIN_VALUE if the field is not a valid integer
+	 */
+	static long parseLong(ByteBuffer buffer, int start, int end) {
+		boolean negative = false;
+		int i = start;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		if (i == end || end - i > 18) {
+			return Long.MIN_VALUE;
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				return Long.MIN_VALUE;
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return the value, or NaN if the field is not a valid number
+	 */
+	static double parseDouble(ByteBuffer buffer, int start, int end) {
+		boolean negative = false;
+		int i = start;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = -1;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				if (mantissa != 0 || b != '0') {
+					digits++;
+				}
+				mantissa = mantissa * 10 + (b - '0');
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			} else if (b == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				return parseDoubleSlow(buffer, start, end);
+			}
+			if (digits > MAX_FAST_DIGITS || fractionDigits >= POWERS_OF_TEN.length) {
+				return parseDoubleSlow(buffer, start, end);
+			}
+		}
+		int firstDigit = (negative || (end > start && buffer.get(start) == '+')) ? start + 1 : start;
+		if (end - firstDigit == 0 || end - firstDigit == (fractionDigits >= 0 ? 1 : 0)) {
+			// empty or just a dot
+			return Double.NaN;
+		}
+		double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : (double) mantissa;
+		return negative ? -value : value;
+	}
+
+	private static double parseDoubleSlow(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		try {
+			return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Collection;
+
+import entity.QueuedServerStatusMessage;
+import processor.ServerTrack;
+
+/**
+ * @author alex
+ *
+ * Streams a CSV file of "timestamp,serverName,cpuLoad,ramLoad" lines into a ServerTrack.
+ * 
+ * The file is memory-mapped in large chunks that end on a line boundary, and every line is parsed in place by a
+ * CsvLineParser into a preallocated batch of messages, which goes to ServerTrack through the batch ingest path.
+ * No String is created per line, only once per distinct server name.
+ * 
+ * Not thread safe, use one loader per thread.
+ */
+public class CsvLoader {
+
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+	private final ServerTrack serverTrack;
+
+	private final int chunkSize;
+
+	private final NameTable names;
+
+	private final CsvLineParser parser;
+
+	private final QueuedServerStatusMessage[] batch;
+
+	private int batchCount = 0;
+
+	public CsvLoader(ServerTrack serverTrack) {
+		this(serverTrack, DEFAULT_BATCH_SIZE, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param serverTrack where the messages go
+	 * @param batchSize number of messages handed to ServerTrack at once
+	 * @param chunkSize number of bytes mapped at once, must be larger than the longest line
+	 */
+	public CsvLoader(ServerTrack serverTrack, int batchSize, int chunkSize) {
+		this.serverTrack = serverTrack;
+		this.chunkSize = chunkSize;
+		this.names = new NameTable(serverTrack.getServerRegistry());
+		this.parser = new CsvLineParser(names);
+		this.batch = new QueuedServerStatusMessage[batchSize];
+		for (int i = 0; i < batchSize; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return counters for this file
+	 * @throws IOException
+	 */
+	public LoadStats load(File file) throws IOException {
+		LoadStats stats = new LoadStats();
+		long start = System.nanoTime();
+		long nowUtc = System.currentTimeMillis() / 1000;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			forEachLine(channel, 0, channel.size(), chunkSize, file,
+					(buffer, lineStart, lineEnd) -> parseLine(buffer, lineStart, lineEnd, nowUtc, stats));
+		}
+		flushBatch(stats);
+		stats.elapsedNanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	/**
+	 * @return every server name seen by this loader
+	 */
+	public Collection<String> getServerNames() {
+		return names.names();
+	}
+
+	/**
+	 * Receives one line without its newline. Empty lines are skipped before they get here.
+	 */
+	@FunctionalInterface
+	interface LineHandler {
+		void line(MappedByteBuffer buffer, int start, int end);
+	}
+
+	/**
+	 * @param channel
+	 * @param from first byte, must be the start of a line
+	 * @param to end of the range, must be the end of the file or the byte after a newline
+	 * @param chunkSize number of bytes mapped at once
+	 * @param file only used for error messages
+	 * @param handler
+	 * @throws IOException if a line is longer than chunkSize
+	 * 
+	 * Maps the range in chunks that end on a line boundary and passes every non-empty line to the handler.
+	 */
+	static void forEachLine(FileChannel channel, long from, long to, int chunkSize, File file, LineHandler handler)
+			throws IOException {
+		long position = from;
+		while (position < to) {
+			int length = (int) Math.min(chunkSize, to - position);
+			boolean last = position + length == to;
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			int consumed = forEachLine(buffer, length, last, handler);
+			if (consumed == 0) {
+				throw new IOException("line longer than " + chunkSize + " bytes at offset " + position + " in " + file);
+			}
+			position += consumed;
+		}
+	}
+
+	/**
+	 * @return the number of bytes consumed, which ends after the last complete line unless this is the last chunk
+	 */
+	private static int forEachLine(MappedByteBuffer buffer, int limit, boolean last, LineHandler handler) {
+		int lineStart = 0;
+		for (int i = 0; i < limit; i++) {
+			if (buffer.get(i) == '\n') {
+				line(buffer, lineStart, i, handler);
+				lineStart = i + 1;
+			}
+		}
+		if (last && lineStart < limit) {
+			line(buffer, lineStart, limit, handler);
+			lineStart = limit;
+		}
+		return lineStart;
+	}
+
+	private static void line(MappedByteBuffer buffer, int start, int end, LineHandler handler) {
+		if (end == start || (end == start + 1 && buffer.get(start) == '\r')) {
+			return;
+		}
+		handler.line(buffer, start, end);
+	}
+
+	private void parseLine(MappedByteBuffer buffer, int start, int end, long nowUtc, LoadStats stats) {
+		stats.lines++;
+		if (parser.parse(buffer, start, end, nowUtc, batch[batchCount])) {
+			batchCount++;
+			if (batchCount == batch.length) {
+				flushBatch(stats);
+			}
+		} else {
+			stats.malformed++;
+		}
+	}
+
+	private void flushBatch(LoadStats stats) {
+		if (batchCount == 0) {
+			return;
+		}
+		BitSet accepted = serverTrack.reportData(batch, 0, batchCount);
+		stats.accepted += accepted.cardinality();
+		stats.rejected += batchCount - accepted.cardinality();
+		batchCount = 0;
+	}
+}
@@ -0,0 +1,74 @@
+package loader;
+
+/**
+ * @author alex
+ *
+ * Counters for one run of a loader.
+ */
+public class LoadStats {
+
+	/**
+	 * Non-empty lines read.
+	 */
+	long lines;
+
+	/**
+	 * Messages accepted by ServerTrack.
+	 */
+	long accepted;
+
+	/**
+	 * Well-formed lines that ServerTrack refused, for example because a load was not positive.
+	 */
+	long rejected;
+
+	/**
+	 * Lines that could not be parsed.
+	 */
+	long malformed;
+
+	long elapsedNanos;
+
+	/**
+	 * @param other
+	 * Adds the line counters of another run, used to combine the parts of a parallel load.
+	 */
+	void add(LoadStats other) {
+		lines += other.lines;
+		accepted += other.accepted;
+		rejected += other.rejected;
+		malformed += other.malformed;
+	}
+
+	public long getLines() {
+		return lines;
+	}
+
+	public long getAccepted() {
+		return accepted;
+	}
+
+	public long getRejected() {
+		return rejected;
+	}
+
+	public long getMalformed() {
+		return malformed;
+	}
+
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	public double getLinesPerSecond() {
+		return elapsedNanos == 0 ? 0.0 : lines * 1e9 / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadStats [lines=" + lines + ", accepted=" + accepted + ", rejected=" + rejected + ", malformed="
+				+ malformed + ", elapsedMillis=" + getElapsedMillis() + ", linesPerSecond="
+				+ Math.round(getLinesPerSecond()) + "]";
+	}
+
+}
@@ -0,0 +1,190 @@
+package loader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import entity.ServerRegistry;
+
+/**
+ * @author alex
+ *
+ * Interns server names straight from bytes. A name that was seen before is found by hashing and comparing the
+ * bytes in place, so the common case does not create a String. Every distinct name is decoded once.
+ * 
+ * If a ServerRegistry is given, the ID of every name is resolved when the name is first seen and kept next to it,
+ * so the parser gets the ID of a known name without another lookup.
+ * 
+ * Open addressing with linear probing, not thread safe.
+ */
+public class NameTable {
+
+	private byte[][] keys;
+
+	private String[] values;
+
+	private int[] hashes;
+
+	private int[] ids;
+
+	private final ServerRegistry registry;
+
+	private int size = 0;
+
+	public NameTable() {
+		this(1024, null);
+	}
+
+	/**
+	 * @param expectedNames initial capacity hint
+	 */
+	public NameTable(int expectedNames) {
+		this(expectedNames, null);
+	}
+
+	/**
+	 * @param registry resolves the ID of every new name
+	 */
+	public NameTable(ServerRegistry registry) {
+		this(1024, registry);
+	}
+
+	/**
+	 * @param expectedNames initial capacity hint
+	 * @param registry resolves the ID of every new name, null if IDs are not needed
+	 */
+	public NameTable(int expectedNames, ServerRegistry registry) {
+		int capacity = Integer.highestOneBit(Math.max(16, expectedNames * 2) - 1) << 1;
+		keys = new byte[capacity][];
+		values = new String[capacity];
+		hashes = new int[capacity];
+		ids = new int[capacity];
+		this.registry = registry;
+	}
+
+	/**
+	 * @param buffer
+	 * @param start absolute position of the first byte
+	 * @param end absolute position after the last byte
+	 * @return the interned name for these bytes
+	 */
+	public String intern(ByteBuffer buffer, int start, int end) {
+		int slot = slot(buffer, start, end);
+		return values[slot];
+	}
+
+	/**
+	 * @param buffer
+	 * @param start absolute position of the first byte
+	 * @param end absolute position after the last byte
+	 * @return the slot of the name, valid for nameAt and idAt until the next call
+	 */
+	public int slot(ByteBuffer buffer, int start, int end) {
+		int hash = hash(buffer, start, end);
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		while (keys[slot] != null) {
+			if (hashes[slot] == hash && matches(keys[slot], buffer, start, end)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		byte[] key = new byte[end - start];
+		for (int i = 0; i < key.length; i++) {
+			key[i] = buffer.get(start + i);
+		}
+		String name = new String(key, StandardCharsets.UTF_8);
+		keys[slot] = key;
+		values[slot] = name;
+		hashes[slot] = hash;
+		ids[slot] = null == registry ? -1 : registry.idOf(name);
+		size++;
+		if (size * 2 > keys.length) {
+			grow();
+			slot = hash & (keys.length - 1);
+			while (keys[slot] != key) {
+				slot = (slot + 1) & (keys.length - 1);
+			}
+		}
+		return slot;
+	}
+
+	/**
+	 * @param slot
+	 * @return the name in this slot
+	 */
+	public String nameAt(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * @param slot
+	 * @return the server ID of the name in this slot, -1 if there is no registry
+	 */
+	public int idAt(int slot) {
+		return ids[slot];
+	}
+
+	/**
+	 * @return all names seen so far
+	 */
+	public Collection<String> names() {
+		List<String> names = new ArrayList<String>(size);
+		for (String value : values) {
+			if (value != null) {
+				names.add(value);
+			}
+		}
+		return names;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private static int hash(ByteBuffer buffer, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + buffer.get(i);
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static boolean matches(byte[] key, ByteBuffer buffer, int start, int end) {
+		if (key.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != buffer.get(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void grow() {
+		byte[][] oldKeys = keys;
+		String[] oldValues = values;
+		int[] oldHashes = hashes;
+		int[] oldIds = ids;
+		keys = new byte[oldKeys.length * 2][];
+		values = new String[oldKeys.length * 2];
+		hashes = new int[oldKeys.length * 2];
+		ids = new int[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = oldHashes[i] & mask;
+				while (keys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				hashes[slot] = oldHashes[i];
+				ids[slot] = oldIds[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import entity.QueuedServerStatusMessage;
+import entity.ServerStatusRecord;
+import processor.ServerTrack;
+
+/**
+ * @author alex
+ *
+ * Backfill mode for large CSV files: the file is split at line boundaries into one range per worker, every range
+ * is parsed on a ForkJoinPool into its own PartialAggregate of minute buckets, and the partial aggregates are
+ * merged pairwise as the tasks join. Since a ServerStatusRecord is just a count and two sums the merge order does
+ * not matter.
+ * 
+ * The merged minutes are then reported to ServerTrack as aggregate messages, one per server and minute, through
+ * the usual batch path. Storage still has a single writer per shard and builds the hour buckets from the minutes,
+ * so the end result is the same as loading the file line by line with CsvLoader, in a fraction of the time.
+ */
+public class ParallelBackfill {
+
+	private final ServerTrack serverTrack;
+
+	private final ForkJoinPool pool;
+
+	private final int chunkSize;
+
+	private Collection<String> serverNames = Collections.emptyList();
+
+	public ParallelBackfill(ServerTrack serverTrack) {
+		this(serverTrack, ForkJoinPool.commonPool(), CsvLoader.DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param serverTrack where the aggregates go
+	 * @param pool workers that parse the file, the file is split into one range per worker
+	 * @param chunkSize number of bytes mapped at once, must be larger than the longest line
+	 */
+	public ParallelBackfill(ServerTrack serverTrack, ForkJoinPool pool, int chunkSize) {
+		this.serverTrack = serverTrack;
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param file
+	 * @return counters for this file. Accepted and rejected count measurements, not aggregate messages.
+	 * @throws IOException
+	 */
+	public LoadStats load(File file) throws IOException {
+		long start = System.nanoTime();
+		long nowUtc = System.currentTimeMillis() / 1000;
+		PartialAggregate aggregate;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long[] boundaries = split(channel, pool.getParallelism());
+			aggregate = pool.invoke(new RangeTask(file, channel, boundaries, 0, boundaries.length - 1, nowUtc));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		report(aggregate);
+		serverNames = aggregate.minutes.keySet();
+		LoadStats stats = aggregate.stats;
+		stats.elapsedNanos = System.nanoTime() - start;
+		return stats;
+	}
+
+	/**
+	 * @return every server name seen in the last file
+	 */
+	public Collection<String> getServerNames() {
+		return serverNames;
+	}
+
+	/**
+	 * @param channel
+	 * @param parts
+	 * @return parts + 1 offsets, every one of them the start of a line or the end of the file
+	 * @throws IOException
+	 */
+	static long[] split(FileChannel channel, int parts) throws IOException {
+		long size = channel.size();
+		long[] boundaries = new long[parts + 1];
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		for (int i = 1; i < parts; i++) {
+			long position = Math.max(size * i / parts, boundaries[i - 1]);
+			boundaries[i] = nextLineStart(channel, position, size, buffer);
+		}
+		boundaries[parts] = size;
+		return boundaries;
+	}
+
+	/**
+	 * @return the offset after the first newline at or after position, or size if there is none
+	 */
+	private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer buffer)
+			throws IOException {
+		if (position == 0) {
+			return 0;
+		}
+		// a range starts right after a newline, so look from the byte before position
+		position--;
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	/**
+	 * @param aggregate
+	 * 
+	 * Sends one aggregate message per server and minute, oldest minute first, in batches.
+	 */
+	private void report(PartialAggregate aggregate) {
+		LoadStats stats = aggregate.stats;
+		QueuedServerStatusMessage[] batch = new QueuedServerStatusMessage[CsvLoader.DEFAULT_BATCH_SIZE];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+		int batchCount = 0;
+		for (Map.Entry<String, Map<Long, ServerStatusRecord>> server : aggregate.minutes.entrySet()) {
+			List<Long> minutes = new ArrayList<Long>(server.getValue().keySet());
+			Collections.sort(minutes);
+			int serverId = serverTrack.getServerRegistry().idOf(server.getKey());
+			for (Long minuteTimestampUtc : minutes) {
+				ServerStatusRecord record = server.getValue().get(minuteTimestampUtc);
+				batch[batchCount].set(server.getKey(), record, minuteTimestampUtc);
+				batch[batchCount++].setServerId(serverId);
+				if (batchCount == batch.length) {
+					flushBatch(batch, batchCount, stats);
+					batchCount = 0;
+				}
+			}
+		}
+		flushBatch(batch, batchCount, stats);
+	}
+
+	private void flushBatch(QueuedServerStatusMessage[] batch, int batchCount, LoadStats stats) {
+		if (batchCount == 0) {
+			return;
+		}
+		BitSet accepted = serverTrack.reportData(batch, 0, batchCount);
+		for (int i = 0; i < batchCount; i++) {
+			if (accepted.get(i)) {
+				stats.accepted += batch[i].getCount();
+			} else {
+				stats.rejected += batch[i].getCount();
+			}
+		}
+	}
+
+	/**
+	 * Parses ranges [first, last) of the file. A single range is parsed in place, more are split in two halves
+	 * whose results are merged.
+	 */
+	private class RangeTask extends RecursiveTask<PartialAggregate> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private final long[] boundaries;
+
+		private final int first;
+
+		private final int last;
+
+		private final long nowUtc;
+
+		RangeTask(File file, FileChannel channel, long[] boundaries, int first, int last, long nowUtc) {
+			this.file = file;
+			this.channel = channel;
+			this.boundaries = boundaries;
+			this.first = first;
+			this.last = last;
+			this.nowUtc = nowUtc;
+		}
+
+		@Override
+		protected PartialAggregate compute() {
+			if (last - first > 1) {
+				int middle = (first + last) >>> 1;
+				RangeTask right = new RangeTask(file, channel, boundaries, middle, last, nowUtc);
+				right.fork();
+				PartialAggregate left = new RangeTask(file, channel, boundaries, first, middle, nowUtc).compute();
+				return left.merge(right.join());
+			}
+			PartialAggregate aggregate = new PartialAggregate();
+			LoadStats stats = aggregate.stats;
+			CsvLineParser parser = new CsvLineParser(new NameTable());
+			QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+			try {
+				CsvLoader.forEachLine(channel, boundaries[first], boundaries[last], chunkSize, file,
+						(buffer, start, end) -> {
+							stats.lines++;
+							if (!parser.parse(buffer, start, end, nowUtc, message)) {
+								stats.malformed++;
+							} else if (!serverTrack.validateMessage(message)) {
+								stats.rejected++;
+							} else {
+								aggregate.add(message.getServerName(), message.getTimestampUtc(),
+										message.getCpuLoad(), message.getRamLoad());
+							}
+						});
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return aggregate;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package loader;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import entity.ServerStatusRecord;
+
+/**
+ * @author alex
+ *
+ * Minute buckets for part of an input file, built by one backfill task without any sharing.
+ * 
+ * Records hold counts and sums, so two partial aggregates can be merged in any order and the result is the same
+ * as if all lines had been added to one of them.
+ */
+class PartialAggregate {
+
+	/**
+	 * server name -> start of the minute -> measurements in that minute
+	 */
+	final Map<String, Map<Long, ServerStatusRecord>> minutes = new HashMap<String, Map<Long, ServerStatusRecord>>();
+
+	final LoadStats stats = new LoadStats();
+
+	/**
+	 * @param serverName
+	 * @param timestampUtc
+	 * @param cpuLoad
+	 * @param ramLoad
+	 */
+	void add(String serverName, long timestampUtc, double cpuLoad, double ramLoad) {
+		Map<Long, ServerStatusRecord> serverMinutes = minutes.get(serverName);
+		if (null == serverMinutes) {
+			serverMinutes = new HashMap<Long, ServerStatusRecord>();
+			minutes.put(serverName, serverMinutes);
+		}
+		long minuteTimestampUtc = (timestampUtc / 60) * 60;
+		ServerStatusRecord record = serverMinutes.get(minuteTimestampUtc);
+		if (null == record) {
+			record = new ServerStatusRecord(0, 0.0, 0.0);
+			serverMinutes.put(minuteTimestampUtc, record);
+		}
+		record.update(cpuLoad, ramLoad);
+	}
+
+	/**
+	 * @param other
+	 * @return the merged aggregate, which reuses the larger of the two
+	 */
+	PartialAggregate merge(PartialAggregate other) {
+		if (other.minutes.size() > minutes.size()) {
+			return other.merge(this);
+		}
+		for (Map.Entry<String, Map<Long, ServerStatusRecord>> server : other.minutes.entrySet()) {
+			Map<Long, ServerStatusRecord> serverMinutes = minutes.get(server.getKey());
+			if (null == serverMinutes) {
+				minutes.put(server.getKey(), server.getValue());
+				continue;
+			}
+			for (Map.Entry<Long, ServerStatusRecord> minute : server.getValue().entrySet()) {
+				ServerStatusRecord record = serverMinutes.get(minute.getKey());
+				if (null == record) {
+					serverMinutes.put(minute.getKey(), minute.getValue());
+				} else {
+					record.merge(minute.getValue());
+				}
+			}
+		}
+		stats.add(other.stats);
+		return this;
+	}
+}
@@ -0,0 +1,125 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author alex
+ *
+ * Latency histogram in the style of HdrHistogram, for nanosecond values.
+ *
+ * Values below 16 have a bucket each. Above that, every power of two is split into 16 linear sub-buckets, so a
+ * bucket is never wider than 1/16 of its lower bound and a reported quantile is within about 3% of the real one.
+ * 960 buckets cover the whole range of a long, so recording never allocates or resizes, and it costs one atomic
+ * increment plus two striped adders.
+ *
+ * Safe for any number of recording threads. Reads are weakly consistent: a quantile computed while values are
+ * recorded may include some of them and not others.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder totalCount = new LongAdder();
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * @param nanos a latency, negative values count as 0
+	 */
+	public void record(long nanos) {
+		record(nanos, 1);
+	}
+
+	/**
+	 * @param nanos a latency, negative values count as 0
+	 * @param count number of times it was measured, for example the messages of a batch timed as a whole
+	 */
+	public void record(long nanos, long count) {
+		if (count <= 0) {
+			return;
+		}
+		long value = Math.max(0, nanos);
+		counts.addAndGet(indexOf(value), count);
+		totalCount.add(count);
+		totalNanos.add(value * count);
+		maxNanos.accumulate(value);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return the middle of the values that fall into this bucket
+	 */
+	static long valueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + ((1L << shift) >>> 1);
+	}
+
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	/**
+	 * @return the highest recorded value, exact, 0 if there is none
+	 */
+	public long getMax() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return the average of the recorded values, exact, 0 if there is none
+	 */
+	public double getMean() {
+		long count = totalCount.sum();
+		return count == 0 ? 0.0 : totalNanos.sum() / (double) count;
+	}
+
+	/**
+	 * @param quantile between 0 and 1, for example 0.99
+	 * @return the value below which this fraction of the recorded values fall, 0 if there are none
+	 */
+	public long getQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				// never report more than was measured
+				return Math.min(valueOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+}
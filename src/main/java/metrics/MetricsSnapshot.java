@@ -0,0 +1,163 @@
+package metrics;
+
+/**
+ * @author alex
+ *
+ * The metrics of a ServerTrack at one point in time, see ServerTrack.getMetrics. Counts are totals since the
+ * ServerTrack was created, so rates come from comparing two snapshots.
+ */
+public class MetricsSnapshot {
+
+	private final long timestampMillis;
+
+	long receivedCount;
+
+	long invalidCount;
+
+	long droppedCount;
+
+	long processedCount;
+
+	long processingErrorCount;
+
+	long queueDepth;
+
+	long serverCount;
+
+	long bucketCount;
+
+	long processingLatencyP50Nanos;
+
+	long processingLatencyP99Nanos;
+
+	long processingLatencyMaxNanos;
+
+	long queryCount;
+
+	long queryLatencyP50Nanos;
+
+	long queryLatencyP99Nanos;
+
+	long queryLatencyMaxNanos;
+
+	MetricsSnapshot(long timestampMillis) {
+		this.timestampMillis = timestampMillis;
+	}
+
+	/**
+	 * @return wall clock time the snapshot was taken
+	 */
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	/**
+	 * @return messages handed to reportData
+	 */
+	public long getReceivedCount() {
+		return receivedCount;
+	}
+
+	/**
+	 * @return messages that failed validation
+	 */
+	public long getInvalidCount() {
+		return invalidCount;
+	}
+
+	/**
+	 * @return messages dropped or rejected because a queue was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount;
+	}
+
+	/**
+	 * @return messages applied to the storage, including the ones that failed
+	 */
+	public long getProcessedCount() {
+		return processedCount;
+	}
+
+	/**
+	 * @return messages the storage failed to apply
+	 */
+	public long getProcessingErrorCount() {
+		return processingErrorCount;
+	}
+
+	/**
+	 * @return messages waiting in the queues
+	 */
+	public long getQueueDepth() {
+		return queueDepth;
+	}
+
+	public long getServerCount() {
+		return serverCount;
+	}
+
+	/**
+	 * @return buckets held by the storage engines, -1 if an engine cannot tell
+	 */
+	public long getBucketCount() {
+		return bucketCount;
+	}
+
+	/**
+	 * @return median time to apply one message to the storage
+	 */
+	public long getProcessingLatencyP50Nanos() {
+		return processingLatencyP50Nanos;
+	}
+
+	public long getProcessingLatencyP99Nanos() {
+		return processingLatencyP99Nanos;
+	}
+
+	public long getProcessingLatencyMaxNanos() {
+		return processingLatencyMaxNanos;
+	}
+
+	/**
+	 * @return number of per-server queries answered
+	 */
+	public long getQueryCount() {
+		return queryCount;
+	}
+
+	/**
+	 * @return median time to answer a query for one server
+	 */
+	public long getQueryLatencyP50Nanos() {
+		return queryLatencyP50Nanos;
+	}
+
+	public long getQueryLatencyP99Nanos() {
+		return queryLatencyP99Nanos;
+	}
+
+	public long getQueryLatencyMaxNanos() {
+		return queryLatencyMaxNanos;
+	}
+
+	/**
+	 * @param previous an earlier snapshot of the same ServerTrack
+	 * @return messages processed per second between the two snapshots, 0 if they were taken at the same time
+	 */
+	public double getProcessedPerSecond(MetricsSnapshot previous) {
+		long elapsedMillis = timestampMillis - previous.timestampMillis;
+		return elapsedMillis <= 0 ? 0.0 : (processedCount - previous.processedCount) * 1000.0 / elapsedMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "MetricsSnapshot [receivedCount=" + receivedCount + ", invalidCount=" + invalidCount
+				+ ", droppedCount=" + droppedCount + ", processedCount=" + processedCount + ", processingErrorCount="
+				+ processingErrorCount + ", queueDepth=" + queueDepth + ", serverCount=" + serverCount
+				+ ", bucketCount=" + bucketCount + ", processingLatencyP50Nanos=" + processingLatencyP50Nanos
+				+ ", processingLatencyP99Nanos=" + processingLatencyP99Nanos + ", queryCount=" + queryCount
+				+ ", queryLatencyP50Nanos=" + queryLatencyP50Nanos + ", queryLatencyP99Nanos="
+				+ queryLatencyP99Nanos + "]";
+	}
+}
@@ -0,0 +1,159 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author alex
+ *
+ * Publishes the metrics of a ServerTrack as an MXBean named statusmonitor:type=ServerTrack,name=... on the platform
+ * MBean server. A JMX client reads the attributes one by one, so a snapshot is reused for a second instead of being
+ * taken for every attribute.
+ */
+public class ServerTrackJmx implements ServerTrackMXBean {
+
+	static final long SNAPSHOT_MAX_AGE_MILLIS = 1000;
+
+	private final Supplier<MetricsSnapshot> metrics;
+
+	private MetricsSnapshot current;
+
+	/**
+	 * The snapshot getProcessedPerSecond compares with.
+	 */
+	private MetricsSnapshot previousRate;
+
+	private final static Logger logger = LoggerFactory.getLogger(ServerTrackJmx.class);
+
+	/**
+	 * @param metrics takes a fresh snapshot
+	 */
+	public ServerTrackJmx(Supplier<MetricsSnapshot> metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param name the name property of the ObjectName
+	 * @return the ObjectName of the MXBean
+	 */
+	public static ObjectName objectName(String name) throws JMException {
+		return new ObjectName("statusmonitor:type=ServerTrack,name=" + ObjectName.quote(name));
+	}
+
+	/**
+	 * @param name the name property of the ObjectName
+	 * 
+	 * Registers this MXBean, replacing an earlier one of the same name. Failures are logged, metrics are not worth
+	 * failing the ServerTrack for.
+	 */
+	public void register(String name) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName objectName = objectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(this, objectName);
+		} catch (JMException e) {
+			logger.warn("Failed to register metrics MXBean " + name + ": " + e.getMessage());
+		}
+	}
+
+	private synchronized MetricsSnapshot snapshot() {
+		long nowMillis = System.currentTimeMillis();
+		if (null == current || nowMillis - current.getTimestampMillis() >= SNAPSHOT_MAX_AGE_MILLIS) {
+			current = metrics.get();
+		}
+		return current;
+	}
+
+	@Override
+	public long getReceivedCount() {
+		return snapshot().getReceivedCount();
+	}
+
+	@Override
+	public long getInvalidCount() {
+		return snapshot().getInvalidCount();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return snapshot().getDroppedCount();
+	}
+
+	@Override
+	public long getProcessedCount() {
+		return snapshot().getProcessedCount();
+	}
+
+	@Override
+	public long getProcessingErrorCount() {
+		return snapshot().getProcessingErrorCount();
+	}
+
+	@Override
+	public synchronized double getProcessedPerSecond() {
+		MetricsSnapshot snapshot = snapshot();
+		double rate = null == previousRate ? 0.0 : snapshot.getProcessedPerSecond(previousRate);
+		previousRate = snapshot;
+		return rate;
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return snapshot().getQueueDepth();
+	}
+
+	@Override
+	public long getServerCount() {
+		return snapshot().getServerCount();
+	}
+
+	@Override
+	public long getBucketCount() {
+		return snapshot().getBucketCount();
+	}
+
+	@Override
+	public long getProcessingLatencyP50Nanos() {
+		return snapshot().getProcessingLatencyP50Nanos();
+	}
+
+	@Override
+	public long getProcessingLatencyP99Nanos() {
+		return snapshot().getProcessingLatencyP99Nanos();
+	}
+
+	@Override
+	public long getProcessingLatencyMaxNanos() {
+		return snapshot().getProcessingLatencyMaxNanos();
+	}
+
+	@Override
+	public long getQueryCount() {
+		return snapshot().getQueryCount();
+	}
+
+	@Override
+	public long getQueryLatencyP50Nanos() {
+		return snapshot().getQueryLatencyP50Nanos();
+	}
+
+	@Override
+	public long getQueryLatencyP99Nanos() {
+		return snapshot().getQueryLatencyP99Nanos();
+	}
+
+	@Override
+	public long getQueryLatencyMaxNanos() {
+		return snapshot().getQueryLatencyMaxNanos();
+	}
+}
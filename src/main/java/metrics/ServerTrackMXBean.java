@@ -0,0 +1,57 @@
+package metrics;
+
+/**
+ * @author alex
+ *
+ * What a ServerTrack shows over JMX, see ServerTrackConfig.setJmxName. Counts are totals since the ServerTrack was
+ * created, latencies are in nanoseconds.
+ */
+public interface ServerTrackMXBean {
+
+	long getReceivedCount();
+
+	/**
+	 * @return messages that failed validation
+	 */
+	long getInvalidCount();
+
+	/**
+	 * @return messages dropped or rejected because a queue was full
+	 */
+	long getDroppedCount();
+
+	long getProcessedCount();
+
+	/**
+	 * @return messages the storage failed to apply
+	 */
+	long getProcessingErrorCount();
+
+	/**
+	 * @return messages processed per second since the previous read of this attribute
+	 */
+	double getProcessedPerSecond();
+
+	/**
+	 * @return messages waiting in the queues
+	 */
+	long getQueueDepth();
+
+	long getServerCount();
+
+	long getBucketCount();
+
+	long getProcessingLatencyP50Nanos();
+
+	long getProcessingLatencyP99Nanos();
+
+	long getProcessingLatencyMaxNanos();
+
+	long getQueryCount();
+
+	long getQueryLatencyP50Nanos();
+
+	long getQueryLatencyP99Nanos();
+
+	long getQueryLatencyMaxNanos();
+}
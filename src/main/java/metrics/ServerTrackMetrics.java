@@ -0,0 +1,114 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author alex
+ *
+ * Counters and latency histograms of one ServerTrack, updated by the reporting threads, the message processors and
+ * the query methods. Counters are LongAdders, which stripe their cells across threads, so the hot path never
+ * contends on a shared counter. The processors count and time a whole batch at once instead of every message.
+ *
+ * Values only grow, from the creation of the ServerTrack, across resets. Gauges such as queue depth and stored
+ * buckets are not kept here, ServerTrack reads them from the shards when a snapshot is taken.
+ */
+public class ServerTrackMetrics {
+
+	private final LongAdder receivedCount = new LongAdder();
+
+	private final LongAdder invalidCount = new LongAdder();
+
+	private final LongAdder processedCount = new LongAdder();
+
+	private final LongAdder processingErrorCount = new LongAdder();
+
+	/**
+	 * Messages dropped or rejected by the queues of shards that have since been replaced by a reset.
+	 */
+	private final LongAdder retiredDroppedCount = new LongAdder();
+
+	private final LatencyHistogram processingLatency = new LatencyHistogram();
+
+	private final LatencyHistogram queryLatency = new LatencyHistogram();
+
+	/**
+	 * @param count number of messages handed to reportData
+	 */
+	public void received(int count) {
+		receivedCount.add(count);
+	}
+
+	/**
+	 * @param count number of messages that failed validateMessage
+	 */
+	public void invalid(int count) {
+		invalidCount.add(count);
+	}
+
+	/**
+	 * @param count number of messages applied to the storage in one batch
+	 * @param nanos time it took to apply them
+	 */
+	public void processed(int count, long nanos) {
+		if (count > 0) {
+			processedCount.add(count);
+			processingLatency.record(nanos / count, count);
+		}
+	}
+
+	/**
+	 * Counts a message the storage failed to apply.
+	 */
+	public void processingError() {
+		processingErrorCount.increment();
+	}
+
+	/**
+	 * @param droppedCount dropped count of a queue that is being replaced
+	 */
+	public void retired(long droppedCount) {
+		retiredDroppedCount.add(droppedCount);
+	}
+
+	/**
+	 * @param nanos time it took to answer one query for one server
+	 */
+	public void query(long nanos) {
+		queryLatency.record(nanos);
+	}
+
+	/**
+	 * @param queueDepth messages waiting in all queues
+	 * @param droppedCount messages dropped or rejected by the current queues
+	 * @param serverCount servers in all storage engines
+	 * @param bucketCount buckets in all storage engines
+	 * @return the current values
+	 */
+	public MetricsSnapshot snapshot(long queueDepth, long droppedCount, long serverCount, long bucketCount) {
+		MetricsSnapshot snapshot = new MetricsSnapshot(System.currentTimeMillis());
+		snapshot.receivedCount = receivedCount.sum();
+		snapshot.invalidCount = invalidCount.sum();
+		snapshot.droppedCount = retiredDroppedCount.sum() + droppedCount;
+		snapshot.processedCount = processedCount.sum();
+		snapshot.processingErrorCount = processingErrorCount.sum();
+		snapshot.queueDepth = queueDepth;
+		snapshot.serverCount = serverCount;
+		snapshot.bucketCount = bucketCount;
+		snapshot.processingLatencyP50Nanos = processingLatency.getQuantile(0.50);
+		snapshot.processingLatencyP99Nanos = processingLatency.getQuantile(0.99);
+		snapshot.processingLatencyMaxNanos = processingLatency.getMax();
+		snapshot.queryCount = queryLatency.getCount();
+		snapshot.queryLatencyP50Nanos = queryLatency.getQuantile(0.50);
+		snapshot.queryLatencyP99Nanos = queryLatency.getQuantile(0.99);
+		snapshot.queryLatencyMaxNanos = queryLatency.getMax();
+		return snapshot;
+	}
+
+	public LatencyHistogram getProcessingLatency() {
+		return processingLatency;
+	}
+
+	public LatencyHistogram getQueryLatency() {
+		return queryLatency;
+	}
+}
@@ -0,0 +1,29 @@
+package processor;
+
+/**
+ * @author alex
+ *
+ * What ServerTrack.reportData does when the message queue is full.
+ */
+public enum FullQueuePolicy {
+
+	/**
+	 * Wait until the processor frees a slot.
+	 */
+	BLOCK,
+
+	/**
+	 * Discard the new message. reportData still returns true.
+	 */
+	DROP_NEWEST,
+
+	/**
+	 * Discard the oldest queued message that the processor has not picked up yet to make room for the new one.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Discard the new message and return false from reportData.
+	 */
+	REJECT
+}
@@ -1,17 +1,21 @@
 package processor;
 
-import java.util.concurrent.LinkedBlockingQueue;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import entity.QueuedServerStatusMessage;
+import metrics.ServerTrackMetrics;
 import storage.IStatStorage;
 
 /**
  * @author alex
  *
  * Single-threaded processor for the incoming queue. Reads the messages from the queue and forwards to storage engine.
+ * ServerTrack runs one processor per shard, each with its own queue and storage.
+ * Every wakeup drains all published messages (up to BATCH_SIZE) from the queue at once and applies them in order.
+ * The batch is counted and timed as a whole, so metrics cost two clock reads per batch, not per message.
+ * Only messages the storage applied count as processed. If the processor dies of an Error, it fails the pending
+ * waiters of the queue on its way out instead of leaving them to hang.
  *
  */
 public class MessageProcessor implements Runnable {
@@ -19,7 +23,7 @@ public class MessageProcessor implements Runnable {
 	/**
 	 * The queue we wil process.
 	 */
-	private LinkedBlockingQueue<QueuedServerStatusMessage> queue;
+	private MessageRingBuffer queue;
 	
 	/**
 	 * Storage engine reference
@@ -28,44 +32,94 @@ public class MessageProcessor implements Runnable {
 	
 	private int processedCount = 0;
 
+	private final ServerTrackMetrics metrics;
+
+	/**
+	 * Maximum number of messages taken from the queue per wakeup.
+	 */
+	static final int BATCH_SIZE = 256;
+
 	private final static Logger logger = LoggerFactory.getLogger(MessageProcessor.class);
 
-	// we will stop the processor when we see a message with this timestamp
-	private long STOP_REQUEST_TIMESTAMP = -1L;
-	
-	public MessageProcessor(LinkedBlockingQueue<QueuedServerStatusMessage> queue, IStatStorage storage) {
+	public MessageProcessor(MessageRingBuffer queue, IStatStorage storage) {
+		this(queue, storage, new ServerTrackMetrics());
+	}
+
+	/**
+	 * @param queue
+	 * @param storage
+	 * @param metrics receives the processed and failed counts and the processing latency
+	 */
+	public MessageProcessor(MessageRingBuffer queue, IStatStorage storage, ServerTrackMetrics metrics) {
 		this.queue = queue;
 		this.storage = storage;
+		this.metrics = metrics;
 	}
 
 	public void run() {
-		QueuedServerStatusMessage message = null;
+		try {
+			processBatches();
+		} catch (Throwable t) {
+			logger.error("MessageProcessor failed, exiting after " + processedCount + " messages", t);
+			queue.failWaiters(t);
+			throw t;
+		}
+	}
+
+	private void processBatches() {
+		// messages are copied out of the queue into these, so producers can reuse the slots right away
+		QueuedServerStatusMessage[] batch = new QueuedServerStatusMessage[BATCH_SIZE];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
 		while(true) {
+			int count;
 			try {
-				message = queue.take();
-				if ( isStopRequest(message)) {
-					logger.info("Request to stop processing received, exiting after " + processedCount + " messages");
-					return;
-				}
-				processMessage(message);
-				processedCount++;
+				count = queue.drainTo(batch);
 			} catch (InterruptedException e) {
 				logger.info("MessageProcessor interrupted, exiting after " + processedCount + " messages");
 				return;
-			} catch (Exception e) {
-				logger.warn("Failed to process message: " + (message == null ? "NULL" : message.toString()));
 			}
+			if (count == 0) {
+				logger.info("Request to stop processing received, exiting after " + processedCount + " messages");
+				queue.markProcessed();
+				return;
+			}
+			long startNanos = System.nanoTime();
+			int applied = 0;
+			try {
+				for (int i = 0; i < count; i++) {
+					QueuedServerStatusMessage message = batch[i];
+					try {
+						processMessage(message);
+						applied++;
+						processedCount++;
+					} catch (Exception e) {
+						metrics.processingError();
+						queue.markFailed(i);
+						logger.warn("Failed to process message: " + message.toString());
+					}
+				}
+			} finally {
+				flushStorage();
+				metrics.processed(applied, System.nanoTime() - startNanos);
+			}
+			// not in the finally: after an Error the rest of the batch was never applied, run fails its waiters
+			queue.markProcessed();
 		}
 	}
 	
 	/**
-	 * @param message
-	 * @return true if this message is a request to stop queue processing, false otherwise
+	 * Lets the storage commit whatever it buffered for the batch.
 	 */
-	private boolean isStopRequest(QueuedServerStatusMessage message) {
-		return null != message && message.getTimestampUtc() == STOP_REQUEST_TIMESTAMP;
+	private void flushStorage() {
+		try {
+			storage.flush();
+		} catch (Exception e) {
+			logger.warn("Failed to flush storage: " + e.getMessage());
+		}
 	}
-	
+
 	/**
 	 * @param message
 	 * 
@@ -0,0 +1,492 @@
+package processor;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import entity.QueuedServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Bounded lock-free hand-off between the producers calling ServerTrack.reportData and the single MessageProcessor
+ * thread.
+ * 
+ * All message slots are allocated up front and reused, so the steady state does not create any garbage.
+ * Producers claim a sequence number with a CAS, fill the slot for that sequence and publish it. The consumer takes
+ * the slots in sequence order by advancing the consumed sequence with a CAS, which frees the slot for the producers.
+ * 
+ * When the buffer is full the producer applies the FullQueuePolicy. For DROP_OLDEST the producer advances the
+ * consumed sequence itself, which is why the consumer copies the slot out and only keeps the copy if its own CAS wins.
+ * 
+ * The consumer parks when the buffer is empty and is woken up by the next publish.
+ * 
+ * The stop request of requestStop is a sequence of its own rather than a special message, so nothing a producer
+ * writes into a slot can stop the consumer.
+ * 
+ * Anyone can wait for the consumer to get past a sequence with whenProcessed. The futures are kept by sequence and
+ * completed by the consumer after the batch that passed them, so waiting costs one wakeup and no polling.
+ * A producer can also wait for its own message with whenApplied, which tells a processed message from one that
+ * DROP_OLDEST discarded.
+ */
+public class MessageRingBuffer {
+
+	private final int capacity;
+
+	private final int mask;
+
+	private final QueuedServerStatusMessage[] slots;
+
+	/**
+	 * The sequence number currently published in each slot.
+	 */
+	private final AtomicLongArray published;
+
+	/**
+	 * Next sequence number to hand out to a producer.
+	 */
+	private final AtomicLong claimed = new AtomicLong(0);
+
+	/**
+	 * Next sequence number to be taken by the consumer. Everything below it is free for the producers.
+	 */
+	private final AtomicLong consumed = new AtomicLong(0);
+
+	/**
+	 * Everything below this sequence has been processed or dropped.
+	 */
+	private final AtomicLong processed = new AtomicLong(0);
+
+	/**
+	 * Futures of whenProcessed by the sequence they wait for, completed once processed reaches it.
+	 */
+	private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> waiters =
+			new ConcurrentSkipListMap<Long, CompletableFuture<Void>>();
+
+	/**
+	 * Futures of whenApplied by the sequence of their message. The consumer completes them with true after it has
+	 * processed the message, a DROP_OLDEST producer with false when it discards the message.
+	 */
+	private final ConcurrentSkipListMap<Long, CompletableFuture<Boolean>> messageWaiters =
+			new ConcurrentSkipListMap<Long, CompletableFuture<Boolean>>();
+
+	/**
+	 * Messages that were not queued or were discarded because the buffer was full.
+	 */
+	private final LongAdder droppedCount = new LongAdder();
+
+	private final FullQueuePolicy fullQueuePolicy;
+
+	/**
+	 * Sequence of the stop request, Long.MAX_VALUE until requestStop is called. Its slot carries no message.
+	 */
+	private volatile long stopSequence = Long.MAX_VALUE;
+
+	/**
+	 * Consumer side only. Everything below this sequence has been taken by the consumer.
+	 */
+	private long taken = 0;
+
+	/**
+	 * Consumer side only. First sequence of the last take or drainTo, which took everything from here to taken.
+	 */
+	private long takenFrom = 0;
+
+	private volatile Thread consumerThread;
+
+	private volatile boolean consumerWaiting = false;
+
+	/**
+	 * @param capacity number of slots, rounded up to the next power of two
+	 * @param fullQueuePolicy what claim() does when the buffer is full
+	 */
+	public MessageRingBuffer(int capacity, FullQueuePolicy fullQueuePolicy) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("capacity must be between 1 and 2^30, got " + capacity);
+		}
+		this.capacity = Integer.bitCount(capacity) == 1 ? capacity : Integer.highestOneBit(capacity) << 1;
+		this.mask = this.capacity - 1;
+		this.fullQueuePolicy = fullQueuePolicy;
+		this.slots = new QueuedServerStatusMessage[this.capacity];
+		this.published = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			slots[i] = new QueuedServerStatusMessage();
+			published.set(i, -1L);
+		}
+	}
+
+	public MessageRingBuffer(int capacity) {
+		this(capacity, FullQueuePolicy.BLOCK);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public FullQueuePolicy getFullQueuePolicy() {
+		return fullQueuePolicy;
+	}
+
+	/**
+	 * @return a sequence number reserved for the caller, or -1 if the buffer is full and the policy discards the new
+	 * message.
+	 * 
+	 * The caller must fill slot(sequence) and then call publish(sequence).
+	 */
+	public long claim() {
+		return claim(fullQueuePolicy);
+	}
+
+	/**
+	 * @param policy
+	 * @return a sequence number reserved for the caller, or -1 if the message was discarded
+	 * 
+	 * The stop request uses this with BLOCK so it is never discarded for lack of room.
+	 */
+	long claim(FullQueuePolicy policy) {
+		long sequence = claim(1, policy);
+		if (sequence < 0) {
+			droppedCount.increment();
+		}
+		return sequence;
+	}
+
+	/**
+	 * @param count number of consecutive sequences to claim, at most the capacity
+	 * @return the first of count consecutive sequence numbers reserved for the caller, or -1 if the policy is
+	 * DROP_NEWEST or REJECT and there is not enough room for all of them.
+	 * 
+	 * Claims room for a whole batch with a single CAS. Nothing is counted as dropped when this returns -1,
+	 * the caller is expected to fall back to claim() for the individual messages.
+	 */
+	public long claimBatch(int count) {
+		return claim(count, fullQueuePolicy);
+	}
+
+	private long claim(int count, FullQueuePolicy policy) {
+		if (count < 1 || count > capacity) {
+			throw new IllegalArgumentException("count must be between 1 and " + capacity + ", got " + count);
+		}
+		int idle = 0;
+		while (true) {
+			long sequence = claimed.get();
+			long consumedSequence = consumed.get();
+			if (sequence + count - consumedSequence > capacity) {
+				switch (policy) {
+				case DROP_NEWEST:
+				case REJECT:
+					return -1L;
+				case DROP_OLDEST:
+					// only a published slot may be dropped, otherwise its producer could still be writing to it, and
+					// never the stop request, stopSequence is set before it is published
+					if (published.get((int) consumedSequence & mask) == consumedSequence
+							&& consumedSequence != stopSequence
+							&& consumed.compareAndSet(consumedSequence, consumedSequence + 1)) {
+						droppedCount.increment();
+						if (!messageWaiters.isEmpty()) {
+							CompletableFuture<Boolean> waiter = messageWaiters.remove(consumedSequence);
+							if (null != waiter) {
+								waiter.complete(false);
+							}
+						}
+					} else {
+						idle = backOff(idle);
+					}
+					break;
+				default:
+					idle = backOff(idle);
+				}
+			} else if (claimed.compareAndSet(sequence, sequence + count)) {
+				return sequence;
+			}
+		}
+	}
+
+	/**
+	 * @param sequence
+	 * @return the preallocated message slot for this sequence
+	 */
+	public QueuedServerStatusMessage slot(long sequence) {
+		return slots[(int) sequence & mask];
+	}
+
+	/**
+	 * @param sequence
+	 * 
+	 * Makes a filled slot visible to the consumer.
+	 */
+	public void publish(long sequence) {
+		published.set((int) sequence & mask, sequence);
+		if (consumerWaiting) {
+			LockSupport.unpark(consumerThread);
+		}
+	}
+
+	/**
+	 * @param firstSequence
+	 * @param count
+	 * 
+	 * Publishes a batch claimed with claimBatch, waking the consumer at most once.
+	 */
+	public void publish(long firstSequence, int count) {
+		for (long sequence = firstSequence; sequence < firstSequence + count; sequence++) {
+			published.set((int) sequence & mask, sequence);
+		}
+		if (consumerWaiting) {
+			LockSupport.unpark(consumerThread);
+		}
+	}
+
+	/**
+	 * Queues a stop request behind every message claimed so far. drainTo returns 0 once it gets there.
+	 */
+	void requestStop() {
+		long sequence = claim(FullQueuePolicy.BLOCK);
+		stopSequence = sequence;
+		publish(sequence);
+	}
+
+	/**
+	 * @param target message that receives a copy of the next slot
+	 * @return the sequence of the message copied into target
+	 * @throws InterruptedException
+	 * 
+	 * Consumer side. Parks the calling thread until the next message is published, then takes it out of the buffer.
+	 * Messages dropped by producers in the meantime are skipped. Does not tell a stop request from a message, the
+	 * MessageProcessor uses drainTo.
+	 */
+	public long take(QueuedServerStatusMessage target) throws InterruptedException {
+		while (true) {
+			long sequence = consumed.get();
+			int index = (int) sequence & mask;
+			if (published.get(index) != sequence) {
+				awaitPublished(sequence);
+				continue;
+			}
+			target.set(slots[index]);
+			if (consumed.compareAndSet(sequence, sequence + 1)) {
+				takenFrom = sequence;
+				taken = sequence + 1;
+				return sequence;
+			}
+			// a producer dropped the slot while we were copying it, the copy may be torn
+		}
+	}
+
+	/**
+	 * @param targets preallocated messages that receive copies of the next slots
+	 * @return the number of messages copied, 0 if the next sequence was the stop request
+	 * @throws InterruptedException
+	 * 
+	 * Consumer side. Parks until at least one message is published, then takes every published message in sequence
+	 * order up to targets.length with a single CAS. A batch ends before the stop request, which is taken on its own.
+	 */
+	public int drainTo(QueuedServerStatusMessage[] targets) throws InterruptedException {
+		while (true) {
+			long firstSequence = consumed.get();
+			if (published.get((int) firstSequence & mask) != firstSequence) {
+				awaitPublished(firstSequence);
+				continue;
+			}
+			// stopSequence is set before the stop request is published, so it must be read after the publish is seen
+			if (firstSequence == stopSequence) {
+				if (consumed.compareAndSet(firstSequence, firstSequence + 1)) {
+					takenFrom = firstSequence;
+					taken = firstSequence + 1;
+					return 0;
+				}
+				continue;
+			}
+			int count = 0;
+			while (count < targets.length) {
+				long sequence = firstSequence + count;
+				int index = (int) sequence & mask;
+				if (published.get(index) != sequence || sequence == stopSequence) {
+					break;
+				}
+				targets[count].set(slots[index]);
+				count++;
+			}
+			if (consumed.compareAndSet(firstSequence, firstSequence + count)) {
+				takenFrom = firstSequence;
+				taken = firstSequence + count;
+				return count;
+			}
+			// producers dropped some of the slots while we were copying them
+		}
+	}
+
+	/**
+	 * @param sequence
+	 * @throws InterruptedException
+	 * 
+	 * Spins briefly, then parks until the given sequence is published or dropped.
+	 */
+	private void awaitPublished(long sequence) throws InterruptedException {
+		int index = (int) sequence & mask;
+		consumerThread = Thread.currentThread();
+		int idle = 0;
+		while (published.get(index) != sequence && consumed.get() == sequence) {
+			if (idle < 100) {
+				idle++;
+				continue;
+			}
+			consumerWaiting = true;
+			if (published.get(index) != sequence) {
+				LockSupport.park(this);
+			}
+			consumerWaiting = false;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Consumer side. Records that every message taken so far has been fully processed.
+	 */
+	public void markProcessed() {
+		// a full volatile write, so either the consumer sees a new waiter or the waiter sees the new sequence
+		processed.set(taken);
+		if (!waiters.isEmpty()) {
+			completeWaiters();
+		}
+		if (!messageWaiters.isEmpty()) {
+			completeMessageWaiters();
+		}
+	}
+
+	/**
+	 * Consumer side only, call before markProcessed. Completes the whenApplied future of a message the consumer
+	 * could not apply with false.
+	 * @param index position of the message in the last drainTo batch, 0 after take
+	 */
+	void markFailed(int index) {
+		if (!messageWaiters.isEmpty()) {
+			CompletableFuture<Boolean> waiter = messageWaiters.remove(takenFrom + index);
+			if (null != waiter) {
+				waiter.complete(false);
+			}
+		}
+	}
+
+	/**
+	 * Completes the whenApplied futures of the messages taken last. Only those: a message below them may have been
+	 * dropped, and its producer completes the future with false once it has removed it.
+	 */
+	private void completeMessageWaiters() {
+		Map.Entry<Long, CompletableFuture<Boolean>> waiter;
+		while (null != (waiter = messageWaiters.ceilingEntry(takenFrom)) && waiter.getKey() < taken) {
+			if (messageWaiters.remove(waiter.getKey(), waiter.getValue())) {
+				waiter.getValue().complete(true);
+			}
+		}
+	}
+
+	/**
+	 * @param sequence a claimed sequence whose message has not been published yet
+	 * @return completes with true once the consumer has processed the message, with false if a DROP_OLDEST
+	 * producer discards it first. Completes on the thread that decided, so dependent actions should be quick or use
+	 * an executor.
+	 */
+	public CompletableFuture<Boolean> whenApplied(long sequence) {
+		CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+		// registered before the publish, so neither the consumer nor a dropping producer can get there first
+		messageWaiters.put(sequence, future);
+		return future;
+	}
+
+	/**
+	 * @param sequence
+	 * @return a future completed once every message below sequence has been processed or dropped. It completes on
+	 * the consumer thread, so dependent actions should be quick or use an executor.
+	 */
+	public CompletableFuture<Void> whenProcessed(long sequence) {
+		if (processed.get() >= sequence) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> future = waiters.computeIfAbsent(sequence, key -> new CompletableFuture<Void>());
+		// the consumer may have passed the sequence before the future was registered
+		if (processed.get() >= sequence) {
+			completeWaiters();
+		}
+		// callers share the future of a sequence, give each its own so that one cannot complete it for the others
+		return future.thenRun(() -> {
+		});
+	}
+
+	private void completeWaiters() {
+		long processedSequence = processed.get();
+		Map.Entry<Long, CompletableFuture<Void>> waiter;
+		while (null != (waiter = waiters.firstEntry()) && waiter.getKey() <= processedSequence) {
+			if (waiters.remove(waiter.getKey(), waiter.getValue())) {
+				waiter.getValue().complete(null);
+			}
+		}
+	}
+
+	/**
+	 * @param cause
+	 * 
+	 * Fails every pending whenProcessed and whenApplied future, used when the consumer stops for good.
+	 */
+	void failWaiters(Throwable cause) {
+		Map.Entry<Long, CompletableFuture<Void>> waiter;
+		while (null != (waiter = waiters.pollFirstEntry())) {
+			waiter.getValue().completeExceptionally(cause);
+		}
+		Map.Entry<Long, CompletableFuture<Boolean>> messageWaiter;
+		while (null != (messageWaiter = messageWaiters.pollFirstEntry())) {
+			messageWaiter.getValue().completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * @return the sequence the next claim gets. Every message claimed so far is below it.
+	 */
+	public long getClaimedSequence() {
+		return claimed.get();
+	}
+
+	/**
+	 * @return true if every claimed message has been processed or dropped
+	 */
+	public boolean isEmpty() {
+		return processed.get() >= claimed.get();
+	}
+
+	/**
+	 * @return the number of claimed messages not yet taken by the consumer
+	 */
+	public long size() {
+		return Math.max(0, claimed.get() - consumed.get());
+	}
+
+	/**
+	 * @return the number of messages discarded or rejected because the buffer was full
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * @param idle number of times we have already waited
+	 * @return the new idle count
+	 * 
+	 * Spin first, then yield, then sleep briefly. The consumer does not signal producers.
+	 */
+	private static int backOff(int idle) {
+		if (idle < 100) {
+			// busy spin
+		} else if (idle < 200) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(1000L);
+		}
+		return idle + 1;
+	}
+}
@@ -1,64 +1,145 @@
 package processor;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import client.IServerTrack;
+import client.RollupData;
+import client.RollupResult;
 import client.ServerStatusMessage;
 import client.ServerStatusResult;
 import entity.QueuedServerStatusMessage;
+import entity.RollupRecord;
+import entity.ServerRegistry;
+import metrics.MetricsSnapshot;
+import metrics.ServerTrackJmx;
+import metrics.ServerTrackMetrics;
+import storage.BucketVisitor;
+import storage.IStatStorage;
 import storage.StatStorage;
 
 public class ServerTrack implements IServerTrack {
 
 	/**
-	 * The queue we wil process.
+	 * Default number of preallocated queue slots.
 	 */
-	private LinkedBlockingQueue<QueuedServerStatusMessage> queue;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+
+	private ServerTrackConfig config;
 
 	/**
-	 * Storage engine for data.
+	 * Queues, processors and storage, partitioned by server name.
 	 */
-	private StatStorage storage;
+	Shard[] shards;
 
 	/**
-	 * Number of messages processed since last reset.
+	 * Server name to ID dictionary with one stripe per shard. Replaced on every reset, so the IDs of servers that
+	 * are gone are given up with their storage.
 	 */
-	private int processedCount = 0;
+	private volatile ServerRegistry serverRegistry;
 
 	/**
-	 * Message processor
+	 * Counters and latencies since construction, kept across resets.
 	 */
-	private MessageProcessor messageProcessor = null;
+	private final ServerTrackMetrics metrics = new ServerTrackMetrics();
 
-	Thread workerThread;
+	/**
+	 * Number of messages processed since last reset.
+	 */
+	private int processedCount = 0;
 
 	private final static Logger logger = LoggerFactory.getLogger(MessageProcessor.class);
 
 	public ServerTrack() {
-		this.queue = new LinkedBlockingQueue<QueuedServerStatusMessage>();
+		this(StatStorage::new);
+	}
+
+	/**
+	 * @param storageFactory
+	 * 
+	 * Allows choosing the storage engine, for example RingStatStorage::new for constant memory per server.
+	 */
+	public ServerTrack(Supplier<? extends IStatStorage> storageFactory) {
+		this(storageFactory, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param storageFactory
+	 * @param queueCapacity number of preallocated queue slots, rounded up to a power of two.
+	 * 
+	 * With RingStatStorage this is the allocation-free ingest mode: after warm-up neither the queue nor the storage
+	 * allocate anything per message.
+	 */
+	public ServerTrack(Supplier<? extends IStatStorage> storageFactory, int queueCapacity) {
+		this(configFor(storageFactory, queueCapacity));
+	}
+
+	/**
+	 * @param config storage engine, queue capacity, full queue policy and number of shards
+	 */
+	public ServerTrack(ServerTrackConfig config) {
+		this.config = config;
 		Reset();
+		if (null != config.getJmxName()) {
+			new ServerTrackJmx(this::getMetrics).register(config.getJmxName());
+		}
+	}
+
+	private static ServerTrackConfig configFor(Supplier<? extends IStatStorage> storageFactory, int queueCapacity) {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setStorageFactory(storageFactory);
+		config.setQueueCapacity(queueCapacity);
+		return config;
 	}
 
 	public void Reset() {
-		queue.clear();
 		processedCount = 0;
-		storage = new StatStorage();
-		if (null != messageProcessor) {
+		if (null != shards) {
 			logger.info("stopping existing messageProcessor");
-			// stop existing message processor and start a new one
-			queue.add(new QueuedServerStatusMessage("", 0.0, 0.0, -1L));
-			try {
-				workerThread.join(5000);
-			} catch (InterruptedException e) {
-				logger.warn("Interrupted while waiting for worker thread to exit, continuing");
+			// stop existing message processors and start new ones
+			for (Shard shard : shards) {
+				shard.stop();
+				metrics.retired(shard.queue.getDroppedCount());
 			}
 		}
-		messageProcessor = new MessageProcessor(queue, storage);
-		workerThread = new Thread(messageProcessor);
-		workerThread.start();
+		// the old queues may still hold messages for the old storage, start from empty ones
+		int shardCount = config.getShardCount();
+		serverRegistry = new ServerRegistry(shardCount, serverName -> shardIndexFor(serverName, shardCount),
+				config.getMaxServerIds());
+		Shard[] newShards = new Shard[shardCount];
+		for (int i = 0; i < newShards.length; i++) {
+			newShards[i] = new Shard(i, config, metrics);
+			newShards[i].start();
+		}
+		shards = newShards;
+	}
+
+	/**
+	 * @param serverName
+	 * @return the shard that owns this server
+	 * 
+	 * Shards are picked by the name, not the server ID: IDs depend on the order servers are first seen, and a
+	 * DurableStatStorage shard must get the same servers back after a restart.
+	 */
+	Shard shardFor(String serverName) {
+		return shards[shardIndexFor(serverName, shards.length)];
+	}
+
+	private static int shardIndexFor(String serverName, int shardCount) {
+		if (shardCount == 1) {
+			return 0;
+		}
+		int hash = serverName.hashCode();
+		return Math.floorMod(hash ^ (hash >>> 16), shardCount);
 	}
 
 	/**
@@ -68,7 +149,8 @@ public class ServerTrack implements IServerTrack {
 	 *         The message is valid if:
 	 * 
 	 *         - server name is not null or empty and cpuload and ramload are
-	 *         positive.
+	 *         positive, and a QueuedServerStatusMessage has no negative
+	 *         timestamp.
 	 * 
 	 *         We may want to add a test to make sure that cpu and ram load are
 	 *         "reasonable" (less than 100?)
@@ -77,56 +159,329 @@ public class ServerTrack implements IServerTrack {
 	public boolean validateMessage(ServerStatusMessage serverStatusMessage) {
 		return serverStatusMessage != null && serverStatusMessage.getServerName() != null
 				&& !serverStatusMessage.getServerName().equals("") && serverStatusMessage.getCpuLoad() > 0.0
-				&& serverStatusMessage.getRamLoad() > 0.0;
+				&& serverStatusMessage.getRamLoad() > 0.0
+				&& (!(serverStatusMessage instanceof QueuedServerStatusMessage)
+						|| ((QueuedServerStatusMessage) serverStatusMessage).getTimestampUtc() >= 0);
 	}
 
 	@Override
 	public boolean reportData(ServerStatusMessage serverStatusMessage) {
+		metrics.received(1);
 		// validate message
-		if (!validateMessage(serverStatusMessage))
+		if (!validateMessage(serverStatusMessage)) {
+			metrics.invalid(1);
 			return false;
+		}
 		// queue for processing
-		QueuedServerStatusMessage qm = new QueuedServerStatusMessage(serverStatusMessage.getServerName(),
-				serverStatusMessage.getCpuLoad(), serverStatusMessage.getRamLoad());
-		queue.add(qm);
-		return true;
+		String serverName = serverStatusMessage.getServerName();
+		return shardFor(serverName).enqueue(localIdOf(serverName), serverName,
+				serverStatusMessage.getCpuLoad(), serverStatusMessage.getRamLoad(), System.currentTimeMillis() / 1000);
 	}
 
 	/**
 	 * @param serverStatusMessage
-	 * @param timestampUtc
+	 * @param timestampUtc not negative
 	 * @return true if the message is valid and was accepted, false otherwise.
 	 *
 	 * For testing only. Making this public to allow testing from a command-line tool.
 	 */
 	public boolean reportData(ServerStatusMessage serverStatusMessage, long timestampUtc) {
+		metrics.received(1);
 		// validate message
-		if (!validateMessage(serverStatusMessage))
+		if (!validateMessage(serverStatusMessage) || timestampUtc < 0) {
+			metrics.invalid(1);
 			return false;
+		}
 		// queue for processing
-		QueuedServerStatusMessage qm = new QueuedServerStatusMessage(serverStatusMessage.getServerName(),
+		String serverName = serverStatusMessage.getServerName();
+		return shardFor(serverName).enqueue(localIdOf(serverName), serverName,
 				serverStatusMessage.getCpuLoad(), serverStatusMessage.getRamLoad(), timestampUtc);
-		queue.add(qm);
-		return true;		
 	}
-	
+
+	/**
+	 * With FullQueuePolicy.DROP_NEWEST a message the queue had no room for completes with false. With DROP_OLDEST
+	 * a queued message can still be discarded for a newer one; its future then completes with false, on the thread
+	 * of the producer that discarded it.
+	 */
+	@Override
+	public CompletableFuture<Boolean> reportDataAsync(ServerStatusMessage serverStatusMessage) {
+		metrics.received(1);
+		if (!validateMessage(serverStatusMessage)) {
+			metrics.invalid(1);
+			return CompletableFuture.completedFuture(false);
+		}
+		String serverName = serverStatusMessage.getServerName();
+		return shardFor(serverName).enqueueAsync(localIdOf(serverName), serverName,
+				serverStatusMessage.getCpuLoad(), serverStatusMessage.getRamLoad(), System.currentTimeMillis() / 1000);
+	}
+
+	@Override
+	public CompletableFuture<BitSet> reportDataAsync(Collection<? extends ServerStatusMessage> serverStatusMessages) {
+		BitSet accepted = reportData(serverStatusMessages);
+		return flush().thenApply(processed -> accepted);
+	}
+
+	/**
+	 * Takes the claimed sequence of every shard's queue and waits for its processor to get there, so messages
+	 * reported concurrently with the call may be included as well.
+	 */
+	@Override
+	public CompletableFuture<Void> flush() {
+		Shard[] current = shards;
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[current.length];
+		for (int i = 0; i < current.length; i++) {
+			MessageRingBuffer queue = current[i].queue;
+			futures[i] = queue.whenProcessed(queue.getClaimedSequence());
+		}
+		return CompletableFuture.allOf(futures);
+	}
+
+	@Override
+	public BitSet reportData(Collection<? extends ServerStatusMessage> serverStatusMessages) {
+		ServerStatusMessage[] messages = serverStatusMessages
+				.toArray(new ServerStatusMessage[serverStatusMessages.size()]);
+		return reportData(messages, 0, messages.length);
+	}
+
+	/**
+	 * @param messages
+	 * @param offset first message to report
+	 * @param length number of messages to report
+	 * @return bit i is set if messages[offset + i] was valid and accepted.
+	 * 
+	 * Validates the whole batch and resolves the server IDs in one pass, then claims queue room once per shard.
+	 * QueuedServerStatusMessages keep their own timestamp and count, which is what loaders and tests use; all other
+	 * messages get the current time. QueuedServerStatusMessages that already carry the server ID of their name in
+	 * getServerRegistry() are not looked up again. Their timestamps are trusted, except that a negative one makes
+	 * the message invalid.
+	 */
+	public BitSet reportData(ServerStatusMessage[] messages, int offset, int length) {
+		long timestampUtc = System.currentTimeMillis() / 1000;
+		BitSet accepted = new BitSet(length);
+		int[] shardOf = new int[length];
+		int[] serverIds = new int[length];
+		int[] shardCounts = new int[shards.length];
+		int invalid = 0;
+		for (int i = 0; i < length; i++) {
+			ServerStatusMessage message = messages[offset + i];
+			if (validateMessage(message)) {
+				serverIds[i] = serverRegistry.localId(serverIdOf(message));
+				shardOf[i] = shardIndexFor(message.getServerName(), shards.length);
+				shardCounts[shardOf[i]]++;
+			} else {
+				shardOf[i] = -1;
+				invalid++;
+			}
+		}
+		metrics.received(length);
+		metrics.invalid(invalid);
+		for (int shard = 0; shard < shards.length; shard++) {
+			if (shardCounts[shard] == 0) {
+				continue;
+			}
+			int[] indexes = new int[shardCounts[shard]];
+			int count = 0;
+			for (int i = 0; i < length; i++) {
+				if (shardOf[i] == shard) {
+					indexes[count++] = i;
+				}
+			}
+			shards[shard].enqueueBatch(messages, offset, indexes, serverIds, count, timestampUtc, accepted);
+		}
+		return accepted;
+	}
+
+	/**
+	 * @param serverName
+	 * @return the ID of the server within its shard, -1 if the registry is full
+	 */
+	private int localIdOf(String serverName) {
+		ServerRegistry registry = serverRegistry;
+		return registry.localId(registry.idOf(serverName));
+	}
+
+	/**
+	 * @param message
+	 * @return the ID of the server in this ServerTrack's registry
+	 * 
+	 * The ID a QueuedServerStatusMessage carries is only a hint: it is used if it belongs to the same name in this
+	 * registry. An ID from another registry, or from before a Reset, would otherwise write into another server.
+	 */
+	private int serverIdOf(ServerStatusMessage message) {
+		if (message instanceof QueuedServerStatusMessage) {
+			int serverId = ((QueuedServerStatusMessage) message).getServerId();
+			if (serverId >= 0 && message.getServerName().equals(serverRegistry.nameOf(serverId))) {
+				return serverId;
+			}
+		}
+		return serverRegistry.idOf(message.getServerName());
+	}
+
+	/**
+	 * @return the server name to ID dictionary. Loaders resolve names through it once per distinct name and set
+	 * the IDs on their messages. Reset replaces it; IDs from an older registry no longer match their names and are
+	 * resolved again.
+	 */
+	public ServerRegistry getServerRegistry() {
+		return serverRegistry;
+	}
+
 	@Override
 	public ServerStatusResult getDataForLast60Minutes(String serverName) {
-		return storage.getDataForLast60Minutes(serverName);
+		return timed(System.nanoTime(), shardFor(serverName).storage.getDataForLast60Minutes(serverName));
 	}
 
 	@Override
 	public ServerStatusResult getDataForLast24Hours(String serverName) {
-		return storage.getDataForLast24Hours(serverName);
+		return timed(System.nanoTime(), shardFor(serverName).storage.getDataForLast24Hours(serverName));
+	}
+
+	@Override
+	public ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds) {
+		return timed(System.nanoTime(), shardFor(serverName).storage.getData(serverName, fromUtc, toUtc, stepSeconds));
+	}
+
+	@Override
+	public Stream<ServerStatusResult> getDataForLast60Minutes(Collection<String> serverNames) {
+		long timestampUtc = System.currentTimeMillis() / 1000;
+		return serverNames.parallelStream().map(serverName -> timed(System.nanoTime(),
+				shardFor(serverName).storage.getDataForLast60Minutes(serverName, timestampUtc)));
+	}
+
+	@Override
+	public Stream<ServerStatusResult> getDataForLast24Hours(Collection<String> serverNames) {
+		long timestampUtc = System.currentTimeMillis() / 1000;
+		return serverNames.parallelStream().map(serverName -> timed(System.nanoTime(),
+				shardFor(serverName).storage.getDataForLast24Hours(serverName, timestampUtc)));
+	}
+
+	/**
+	 * @param startNanos when the query started. Arguments are evaluated left to right, so timed(System.nanoTime(),
+	 * query) reads the clock before running the query.
+	 * @param result
+	 * @return the result, after recording the query latency
+	 */
+	private ServerStatusResult timed(long startNanos, ServerStatusResult result) {
+		metrics.query(System.nanoTime() - startNanos);
+		return result;
+	}
+
+	@Override
+	public Stream<ServerStatusResult> getDataForLast60MinutesByPrefix(String prefix) {
+		long timestampUtc = System.currentTimeMillis() / 1000;
+		return serversByPrefix(prefix, (storage, serverName) -> storage.getDataForLast60Minutes(serverName, timestampUtc));
+	}
+
+	@Override
+	public Stream<ServerStatusResult> getDataForLast24HoursByPrefix(String prefix) {
+		long timestampUtc = System.currentTimeMillis() / 1000;
+		return serversByPrefix(prefix, (storage, serverName) -> storage.getDataForLast24Hours(serverName, timestampUtc));
+	}
+
+	/**
+	 * @param prefix
+	 * @param query runs against the storage that owns the server
+	 * @return one lazy stream over the servers of every shard, concatenated so that each shard's servers can
+	 * still be split across threads
+	 */
+	private Stream<ServerStatusResult> serversByPrefix(String prefix,
+			BiFunction<IStatStorage, String, ServerStatusResult> query) {
+		Stream<ServerStatusResult> results = Stream.empty();
+		for (Shard shard : shards) {
+			IStatStorage storage = shard.storage;
+			results = Stream.concat(results, storage.serverNames().parallel()
+					.filter(serverName -> serverName.startsWith(prefix))
+					.map(serverName -> timed(System.nanoTime(), query.apply(storage, serverName))));
+		}
+		return results.parallel();
+	}
+
+	@Override
+	public RollupResult getRollupForLast60Minutes(String groupName) {
+		return rollup(groupName, 60, 60);
+	}
+
+	@Override
+	public RollupResult getRollupForLast24Hours(String groupName) {
+		return rollup(groupName, 24, 3600);
+	}
+
+	/**
+	 * @param groupName
+	 * @param size number of intervals
+	 * @param intervalSeconds
+	 * @return the rollups of all shards merged, newest interval first
+	 */
+	private RollupResult rollup(String groupName, int size, long intervalSeconds) {
+		long endUtc = (System.currentTimeMillis() / 1000 / intervalSeconds) * intervalSeconds;
+		List<RollupData> result = new ArrayList<RollupData>(size);
+		for (int i = 0; i < size; i++) {
+			long bucketUtc = endUtc - i * intervalSeconds;
+			RollupRecord rollupRecord = new RollupRecord();
+			for (Shard shard : shards) {
+				RollupRecord shardRecord = shard.storage.getRollup(groupName, intervalSeconds, bucketUtc);
+				if (null != shardRecord) {
+					rollupRecord.merge(shardRecord);
+				}
+			}
+			result.add(new RollupData(bucketUtc, rollupRecord));
+		}
+		return new RollupResult(groupName, result);
+	}
+
+	/**
+	 * @param visitor receives every stored bucket of every shard, in no particular order
+	 *
+	 * For exports, for example with a JsonResultWriter, without building a ServerStatusResult per server.
+	 */
+	public void forEachBucket(BucketVisitor visitor) {
+		for (Shard shard : shards) {
+			shard.storage.forEachBucket(visitor);
+		}
+	}
+
+	/**
+	 * @return the number of messages discarded or rejected because the queue was full
+	 */
+	public long getDroppedCount() {
+		long droppedCount = 0;
+		for (Shard shard : shards) {
+			droppedCount += shard.queue.getDroppedCount();
+		}
+		return droppedCount;
 	}
 
 	/**
-	 * @return true if the queue is empty
+	 * @return the current counters, latencies, queue depth and storage size. Counters are totals since this
+	 * ServerTrack was created. Counting the buckets visits every server, so this is meant to be polled, not called
+	 * per message.
+	 */
+	public MetricsSnapshot getMetrics() {
+		long queueDepth = 0;
+		long droppedCount = 0;
+		long serverCount = 0;
+		long bucketCount = 0;
+		for (Shard shard : shards) {
+			queueDepth += shard.queue.size();
+			droppedCount += shard.queue.getDroppedCount();
+			serverCount += shard.storage.getServerCount();
+			bucketCount += shard.storage.getBucketCount();
+		}
+		return metrics.snapshot(queueDepth, droppedCount, serverCount, bucketCount);
+	}
+
+	/**
+	 * @return true if all queues are empty and the processors have finished the last message
 	 * 
-	 * Useful for testing.
+	 * To wait for the processors, use flush, which does not need polling.
 	 */
 	public boolean queueIsEmpty() {
-		return queue.isEmpty();
+		for (Shard shard : shards) {
+			if (!shard.queue.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 }
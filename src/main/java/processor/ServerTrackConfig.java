@@ -0,0 +1,132 @@
+package processor;
+
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+import entity.ServerRegistry;
+import storage.IStatStorage;
+import storage.StatStorage;
+
+/**
+ * @author alex
+ *
+ * Settings for a ServerTrack instance. The defaults match the behaviour of new ServerTrack().
+ * The queue capacity and storage factory apply to each shard.
+ */
+public class ServerTrackConfig {
+
+	/**
+	 * Creates a fresh storage engine on every reset.
+	 */
+	private Supplier<? extends IStatStorage> storageFactory = StatStorage::new;
+
+	/**
+	 * Creates the storage engine for a given shard index. Takes precedence over storageFactory when set,
+	 * for engines that need a separate location per shard.
+	 */
+	private IntFunction<? extends IStatStorage> shardStorageFactory = null;
+
+	/**
+	 * Number of preallocated queue slots, rounded up to a power of two.
+	 */
+	private int queueCapacity = ServerTrack.DEFAULT_QUEUE_CAPACITY;
+
+	/**
+	 * What to do with new messages when the queue is full.
+	 */
+	private FullQueuePolicy fullQueuePolicy = FullQueuePolicy.BLOCK;
+
+	/**
+	 * Number of independent queue/processor/storage partitions. Servers are assigned by a hash of their name.
+	 */
+	private int shardCount = 1;
+
+	/**
+	 * Name of the metrics MXBean, null to not register one.
+	 */
+	private String jmxName = null;
+
+	/**
+	 * Number of server names that get an integer ID at most, see ServerRegistry.
+	 */
+	private int maxServerIds = ServerRegistry.DEFAULT_MAX_SIZE;
+
+	public Supplier<? extends IStatStorage> getStorageFactory() {
+		return storageFactory;
+	}
+
+	public void setStorageFactory(Supplier<? extends IStatStorage> storageFactory) {
+		this.storageFactory = storageFactory;
+	}
+
+	/**
+	 * @return the factory that creates the storage engine for a given shard
+	 */
+	public IntFunction<? extends IStatStorage> getShardStorageFactory() {
+		if (null != shardStorageFactory) {
+			return shardStorageFactory;
+		}
+		Supplier<? extends IStatStorage> factory = storageFactory;
+		return shard -> factory.get();
+	}
+
+	public void setShardStorageFactory(IntFunction<? extends IStatStorage> shardStorageFactory) {
+		this.shardStorageFactory = shardStorageFactory;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public FullQueuePolicy getFullQueuePolicy() {
+		return fullQueuePolicy;
+	}
+
+	public void setFullQueuePolicy(FullQueuePolicy fullQueuePolicy) {
+		this.fullQueuePolicy = fullQueuePolicy;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public void setShardCount(int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException("shardCount must be at least 1, got " + shardCount);
+		}
+		this.shardCount = shardCount;
+	}
+
+	public String getJmxName() {
+		return jmxName;
+	}
+
+	/**
+	 * @param jmxName if set, the metrics are published as statusmonitor:type=ServerTrack,name=jmxName
+	 */
+	public void setJmxName(String jmxName) {
+		this.jmxName = jmxName;
+	}
+
+	public int getMaxServerIds() {
+		return maxServerIds;
+	}
+
+	/**
+	 * @param maxServerIds servers beyond this many are found by name on the ingest path
+	 */
+	public void setMaxServerIds(int maxServerIds) {
+		this.maxServerIds = maxServerIds;
+	}
+
+	@Override
+	public String toString() {
+		return "ServerTrackConfig [queueCapacity=" + queueCapacity + ", fullQueuePolicy=" + fullQueuePolicy
+				+ ", shardCount=" + shardCount + ", jmxName=" + jmxName + ", maxServerIds=" + maxServerIds + "]";
+	}
+
+}
@@ -0,0 +1,190 @@
+package processor;
+
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import client.ServerStatusMessage;
+import entity.QueuedServerStatusMessage;
+import metrics.ServerTrackMetrics;
+import storage.IStatStorage;
+
+/**
+ * @author alex
+ *
+ * One partition of a ServerTrack. A shard owns its queue, its processor thread and its slice of the storage.
+ * Every server name maps to exactly one shard, so each server still has a single writer.
+ */
+class Shard {
+
+	/**
+	 * The queue this shard's processor reads from.
+	 */
+	final MessageRingBuffer queue;
+
+	/**
+	 * Storage engine for the servers owned by this shard.
+	 */
+	final IStatStorage storage;
+
+	final MessageProcessor messageProcessor;
+
+	final Thread workerThread;
+
+	private final static Logger logger = LoggerFactory.getLogger(Shard.class);
+
+	/**
+	 * @param index
+	 * @param config
+	 * @param metrics shared by all shards of the ServerTrack
+	 */
+	Shard(int index, ServerTrackConfig config, ServerTrackMetrics metrics) {
+		this.queue = new MessageRingBuffer(config.getQueueCapacity(), config.getFullQueuePolicy());
+		this.storage = config.getShardStorageFactory().apply(index);
+		this.messageProcessor = new MessageProcessor(queue, storage, metrics);
+		this.workerThread = new Thread(messageProcessor, "MessageProcessor-" + index);
+	}
+
+	void start() {
+		workerThread.start();
+	}
+
+	/**
+	 * Sends a stop request through the queue and waits for the processor to exit. If it does not get to the request
+	 * in time it is interrupted. The storage is only closed once the processor has exited, since it may still be
+	 * writing to it.
+	 */
+	void stop() {
+		queue.requestStop();
+		try {
+			workerThread.join(5000);
+			if (workerThread.isAlive()) {
+				logger.warn("Worker thread did not stop within 5 seconds, interrupting it");
+				workerThread.interrupt();
+				workerThread.join(5000);
+			}
+		} catch (InterruptedException e) {
+			logger.warn("Interrupted while waiting for worker thread to exit, continuing");
+		}
+		queue.failWaiters(new IllegalStateException("processor stopped before the message was processed"));
+		if (workerThread.isAlive()) {
+			logger.error("Worker thread " + workerThread.getName() + " is still running, its storage is left open");
+			return;
+		}
+		storage.close();
+	}
+
+	/**
+	 * @param serverId ID of the server within this shard, see ServerRegistry.localId
+	 * @param serverName
+	 * @param cpuLoad
+	 * @param ramLoad
+	 * @param timestampUtc
+	 * @return false if the queue is full and the policy is REJECT, true otherwise
+	 * 
+	 * Copies the values into a preallocated queue slot and hands it to the processor.
+	 */
+	boolean enqueue(int serverId, String serverName, double cpuLoad, double ramLoad, long timestampUtc) {
+		long sequence = queue.claim();
+		if (sequence < 0) {
+			return queue.getFullQueuePolicy() != FullQueuePolicy.REJECT;
+		}
+		fill(queue.slot(sequence), serverId, serverName, cpuLoad, ramLoad, timestampUtc);
+		queue.publish(sequence);
+		return true;
+	}
+
+	/**
+	 * @param serverId ID of the server within this shard, see ServerRegistry.localId
+	 * @param serverName
+	 * @param cpuLoad
+	 * @param ramLoad
+	 * @param timestampUtc
+	 * @return completes with true once the message has been processed, with false if the queue had no room for it
+	 * or DROP_OLDEST discarded it before the processor got to it
+	 */
+	CompletableFuture<Boolean> enqueueAsync(int serverId, String serverName, double cpuLoad, double ramLoad,
+			long timestampUtc) {
+		long sequence = queue.claim();
+		if (sequence < 0) {
+			return CompletableFuture.completedFuture(false);
+		}
+		CompletableFuture<Boolean> applied = queue.whenApplied(sequence);
+		fill(queue.slot(sequence), serverId, serverName, cpuLoad, ramLoad, timestampUtc);
+		queue.publish(sequence);
+		return applied;
+	}
+
+	private static void fill(QueuedServerStatusMessage slot, int serverId, String serverName, double cpuLoad,
+			double ramLoad, long timestampUtc) {
+		slot.set(serverName, cpuLoad, ramLoad, timestampUtc);
+		slot.setServerId(serverId);
+	}
+
+	/**
+	 * @param messages
+	 * @param offset position of the batch in messages
+	 * @param indexes positions in the batch that belong to this shard, all of them already validated
+	 * @param serverIds serverIds[i] is the shard ID of the server of the message at batch position i
+	 * @param count number of valid entries in indexes
+	 * @param timestampUtc timestamp for messages that do not carry their own
+	 * @param accepted receives a set bit for every accepted position in the batch
+	 * 
+	 * Claims queue room for as many messages as fit in one go. If a non-blocking policy cannot fit the whole chunk,
+	 * the rest goes through enqueue one by one so the policy is applied per message.
+	 */
+	void enqueueBatch(ServerStatusMessage[] messages, int offset, int[] indexes, int[] serverIds, int count,
+			long timestampUtc, BitSet accepted) {
+		int done = 0;
+		while (done < count) {
+			int chunk = Math.min(count - done, queue.getCapacity());
+			long firstSequence = queue.claimBatch(chunk);
+			if (firstSequence < 0) {
+				for (int i = done; i < count; i++) {
+					if (enqueue(messages[offset + indexes[i]], serverIds[indexes[i]], timestampUtc)) {
+						accepted.set(indexes[i]);
+					}
+				}
+				return;
+			}
+			for (int i = 0; i < chunk; i++) {
+				copy(messages[offset + indexes[done + i]], serverIds[indexes[done + i]], timestampUtc,
+						queue.slot(firstSequence + i));
+				accepted.set(indexes[done + i]);
+			}
+			queue.publish(firstSequence, chunk);
+			done += chunk;
+		}
+	}
+
+	private boolean enqueue(ServerStatusMessage message, int serverId, long timestampUtc) {
+		long sequence = queue.claim();
+		if (sequence < 0) {
+			return queue.getFullQueuePolicy() != FullQueuePolicy.REJECT;
+		}
+		copy(message, serverId, timestampUtc, queue.slot(sequence));
+		queue.publish(sequence);
+		return true;
+	}
+
+	/**
+	 * @param message
+	 * @param serverId ID of the server within this shard, see ServerRegistry.localId
+	 * @param timestampUtc
+	 * @param slot
+	 * 
+	 * QueuedServerStatusMessages are copied as they are, with their own timestamp and count, which is what loaders
+	 * and tests use. All other messages are a single measurement taken at timestampUtc.
+	 */
+	private static void copy(ServerStatusMessage message, int serverId, long timestampUtc,
+			QueuedServerStatusMessage slot) {
+		if (message instanceof QueuedServerStatusMessage) {
+			slot.set((QueuedServerStatusMessage) message);
+		} else {
+			slot.set(message.getServerName(), message.getCpuLoad(), message.getRamLoad(), timestampUtc);
+		}
+		slot.setServerId(serverId);
+	}
+}
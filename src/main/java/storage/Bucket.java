@@ -0,0 +1,183 @@
+package storage;
+
+import java.util.concurrent.locks.StampedLock;
+
+import entity.ServerStatusRecord;
+
+/**
+ * @author alex
+ *
+ * One bucket of a StatStorage BucketMap. The record is updated in place, so a message costs no allocation.
+ *
+ * Writers take the write lock, so several ingest threads can add to the same bucket. Readers use an optimistic read
+ * that is validated afterwards, the StampedLock equivalent of a seqlock: they do not block the writers, and if a
+ * write happened while they were reading they read again, so they never see a count without its sums. Only after
+ * repeated failures does a reader take the read lock.
+ *
+ * The count and sums are deliberately not LongAdder/DoubleAdder-style accumulators. An adder is summed cell by cell
+ * with no common moment, so a reader could pair a count with sums that already include a later sample and report
+ * a wrong average. The sketches, with their shifting bin range and exact min and max, cannot be split into adders
+ * at all, and the rollups need each write's exact before and after values. Most writes to a bucket come from the
+ * processor of one shard, where the uncontended write lock costs a single CAS, less than updating five adders.
+ *
+ * Once the watermark of its server has passed, a bucket is sealed: its record never changes again, writers are
+ * turned away and readers use the record without the lock or a retry.
+ */
+final class Bucket {
+
+	private static final int OPTIMISTIC_ATTEMPTS = 3;
+
+	private final StampedLock lock = new StampedLock();
+
+	/**
+	 * Guarded by the lock. Changed in place by add, replaced by restore.
+	 */
+	private ServerStatusRecord record = new ServerStatusRecord(0, 0.0, 0.0);
+
+	/**
+	 * Incremented by every write, so a reader can tell whether the bucket changed since it last read it. Guarded by
+	 * the lock.
+	 */
+	private long version;
+
+	/**
+	 * The record once the bucket is sealed, null before. Published after the last write, so readers that see it
+	 * also see the final record and version.
+	 */
+	private volatile ServerStatusRecord sealed;
+
+	/**
+	 * @return the stamp to pass to unlockWrite, 0 if the bucket is sealed and must not be changed. The lock is not
+	 * held in that case.
+	 */
+	long writeLock() {
+		long stamp = lock.writeLock();
+		if (null != sealed) {
+			lock.unlockWrite(stamp);
+			return 0;
+		}
+		return stamp;
+	}
+
+	/**
+	 * @param stamp
+	 * Ends a write and makes it visible to readers.
+	 */
+	void unlockWrite(long stamp) {
+		version++;
+		lock.unlockWrite(stamp);
+	}
+
+	/**
+	 * Makes the current record final. Waits for a write in progress.
+	 */
+	void seal() {
+		long stamp = lock.writeLock();
+		try {
+			sealed = record;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	boolean isSealed() {
+		return null != sealed;
+	}
+
+	/**
+	 * @return the live record, only to be used while holding the write lock
+	 */
+	ServerStatusRecord record() {
+		return record;
+	}
+
+	/**
+	 * @param record replaces the current record, only to be used while holding the write lock
+	 */
+	void replace(ServerStatusRecord record) {
+		this.record = record;
+	}
+
+	/**
+	 * @return the number of writes so far
+	 */
+	long version() {
+		if (null != sealed) {
+			return version;
+		}
+		long stamp = lock.tryOptimisticRead();
+		long result = version;
+		if (lock.validate(stamp)) {
+			return result;
+		}
+		stamp = lock.readLock();
+		try {
+			return version;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return a copy of the record, sketches included, taken between two writes
+	 */
+	ServerStatusRecord snapshot() {
+		ServerStatusRecord sealedRecord = sealed;
+		if (null != sealedRecord) {
+			return new ServerStatusRecord(sealedRecord);
+		}
+		for (int i = 0; i < OPTIMISTIC_ATTEMPTS; i++) {
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				ServerStatusRecord copy = new ServerStatusRecord(record);
+				if (lock.validate(stamp)) {
+					return copy;
+				}
+			}
+		}
+		long stamp = lock.readLock();
+		try {
+			return new ServerStatusRecord(record);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @param serverName
+	 * @param intervalSeconds
+	 * @param bucketUtc
+	 * @param visitor receives the count and the sums, taken between two writes
+	 */
+	void visit(String serverName, long intervalSeconds, long bucketUtc, BucketVisitor visitor) {
+		ServerStatusRecord sealedRecord = sealed;
+		if (null != sealedRecord) {
+			visitor.visit(serverName, intervalSeconds, bucketUtc, sealedRecord.getCount(),
+					sealedRecord.getCpuLoadValue(), sealedRecord.getMemoryLoadValue());
+			return;
+		}
+		int count = 0;
+		double cpuLoadValue = 0.0;
+		double memoryLoadValue = 0.0;
+		boolean valid = false;
+		for (int i = 0; i < OPTIMISTIC_ATTEMPTS && !valid; i++) {
+			long stamp = lock.tryOptimisticRead();
+			ServerStatusRecord current = record;
+			count = current.getCount();
+			cpuLoadValue = current.getCpuLoadValue();
+			memoryLoadValue = current.getMemoryLoadValue();
+			valid = stamp != 0 && lock.validate(stamp);
+		}
+		if (!valid) {
+			long stamp = lock.readLock();
+			try {
+				count = record.getCount();
+				cpuLoadValue = record.getCpuLoadValue();
+				memoryLoadValue = record.getMemoryLoadValue();
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		visitor.visit(serverName, intervalSeconds, bucketUtc, count, cpuLoadValue, memoryLoadValue);
+	}
+}
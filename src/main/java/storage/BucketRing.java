@@ -0,0 +1,176 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import client.ServerStatusData;
+
+/**
+ * @author alex
+ *
+ * Fixed-size circular array of time buckets for a single server and a single resolution.
+ * 
+ * Every slot holds the start timestamp of the interval it currently represents, the count of measurements
+ * and the sums of cpuLoad and memoryLoad, all as primitives. The slot for a timestamp is
+ * (timestamp / intervalSeconds) % size, so a slot is reused as soon as its interval is more than
+ * size intervals old. Memory per ring is constant no matter how long the server reports.
+ * 
+ * The ring itself does no locking, the owner is responsible for it.
+ */
+class BucketRing {
+
+	private final int size;
+	private final long intervalSeconds;
+
+	private final long[] timestamps;
+	private final int[] counts;
+	private final double[] cpuLoadValues;
+	private final double[] memoryLoadValues;
+
+	BucketRing(int size, long intervalSeconds) {
+		this.size = size;
+		this.intervalSeconds = intervalSeconds;
+		this.timestamps = new long[size];
+		this.counts = new int[size];
+		this.cpuLoadValues = new double[size];
+		this.memoryLoadValues = new double[size];
+		for (int i = 0; i < size; i++) {
+			timestamps[i] = Long.MIN_VALUE;
+		}
+	}
+
+	/**
+	 * @param timestampUtc
+	 * @return the start of the interval the timestamp belongs to
+	 */
+	long bucketStart(long timestampUtc) {
+		return (timestampUtc / intervalSeconds) * intervalSeconds;
+	}
+
+	private int slot(long bucketStartUtc) {
+		return (int) Math.floorMod(bucketStartUtc / intervalSeconds, (long) size);
+	}
+
+	/**
+	 * @param timestampUtc
+	 * @param count number of measurements
+	 * @param cpuLoad sum of their cpuLoad
+	 * @param memoryLoad sum of their memoryLoad
+	 * @return true if the values were added, false if the interval is too old to be kept in the ring.
+	 * 
+	 * Adds a measurement to the bucket for the given timestamp, recycling the slot if it still holds an older interval.
+	 */
+	boolean add(long timestampUtc, int count, double cpuLoad, double memoryLoad) {
+		long bucketStartUtc = bucketStart(timestampUtc);
+		int slot = slot(bucketStartUtc);
+		long slotTimestampUtc = timestamps[slot];
+		if (slotTimestampUtc != bucketStartUtc) {
+			if (slotTimestampUtc > bucketStartUtc) {
+				// a newer interval already owns this slot, this data has aged out
+				return false;
+			}
+			timestamps[slot] = bucketStartUtc;
+			counts[slot] = 0;
+			cpuLoadValues[slot] = 0.0;
+			memoryLoadValues[slot] = 0.0;
+		}
+		counts[slot] += count;
+		cpuLoadValues[slot] += cpuLoad;
+		memoryLoadValues[slot] += memoryLoad;
+		return true;
+	}
+
+	/**
+	 * @param serverName
+	 * @param visitor receives every slot that holds data
+	 */
+	void forEach(String serverName, BucketVisitor visitor) {
+		for (int slot = 0; slot < size; slot++) {
+			if (counts[slot] > 0) {
+				visitor.visit(serverName, intervalSeconds, timestamps[slot], counts[slot], cpuLoadValues[slot],
+						memoryLoadValues[slot]);
+			}
+		}
+	}
+
+	/**
+	 * @param bucketStartUtc
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 * 
+	 * Overwrites the slot for this interval unless it already holds a newer interval.
+	 */
+	void restore(long bucketStartUtc, int count, double cpuLoadValue, double memoryLoadValue) {
+		int slot = slot(bucketStartUtc);
+		if (timestamps[slot] > bucketStartUtc) {
+			return;
+		}
+		timestamps[slot] = bucketStartUtc;
+		counts[slot] = count;
+		cpuLoadValues[slot] = cpuLoadValue;
+		memoryLoadValues[slot] = memoryLoadValue;
+	}
+
+	/**
+	 * @param timestampUtc
+	 * @param target array of size * 3 that receives count, cpuLoad sum and memoryLoad sum for each interval,
+	 * starting with the interval containing timestampUtc and going back in time.
+	 * 
+	 * Copies the raw bucket values without allocating, so the caller can validate the copy against a lock stamp.
+	 */
+	void copyTo(long timestampUtc, double[] target) {
+		long latestUtc = bucketStart(timestampUtc);
+		for (int i = 0; i < size; i++) {
+			long bucketStartUtc = latestUtc - i * intervalSeconds;
+			int slot = slot(bucketStartUtc);
+			if (timestamps[slot] == bucketStartUtc) {
+				target[i * 3] = counts[slot];
+				target[i * 3 + 1] = cpuLoadValues[slot];
+				target[i * 3 + 2] = memoryLoadValues[slot];
+			} else {
+				target[i * 3] = 0;
+				target[i * 3 + 1] = 0.0;
+				target[i * 3 + 2] = 0.0;
+			}
+		}
+	}
+
+	/**
+	 * @param bucketStartUtc
+	 * @param target receives the count at offset and the cpuLoad and memoryLoad sums after it
+	 * @param offset
+	 * 
+	 * Adds the bucket for this interval to the target if the ring still holds it.
+	 */
+	void addTo(long bucketStartUtc, double[] target, int offset) {
+		int slot = slot(bucketStartUtc);
+		if (timestamps[slot] == bucketStartUtc) {
+			target[offset] += counts[slot];
+			target[offset + 1] += cpuLoadValues[slot];
+			target[offset + 2] += memoryLoadValues[slot];
+		}
+	}
+
+	/**
+	 * @param timestampUtc
+	 * @param size number of intervals
+	 * @param intervalSeconds
+	 * @param values array previously filled by copyTo, all zeroes if there is no data
+	 * @return the averages for each interval, latest first
+	 */
+	static List<ServerStatusData> toResult(long timestampUtc, int size, long intervalSeconds, double[] values) {
+		long latestUtc = (timestampUtc / intervalSeconds) * intervalSeconds;
+		List<ServerStatusData> result = new ArrayList<ServerStatusData>(size);
+		for (int i = 0; i < size; i++) {
+			double count = values[i * 3];
+			if (count == 0) {
+				result.add(new ServerStatusData(latestUtc - i * intervalSeconds, 0.0, 0.0));
+			} else {
+				result.add(new ServerStatusData(latestUtc - i * intervalSeconds, values[i * 3 + 1] / count,
+						values[i * 3 + 2] / count));
+			}
+		}
+		return result;
+	}
+}
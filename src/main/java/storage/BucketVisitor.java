@@ -0,0 +1,21 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * Receives the raw contents of stored buckets, one call per bucket.
+ */
+@FunctionalInterface
+public interface BucketVisitor {
+
+	/**
+	 * @param serverName
+	 * @param intervalSeconds width of the bucket, 60 for minute buckets, 3600 for hour buckets and 86400 for day buckets
+	 * @param bucketUtc start of the interval
+	 * @param count number of measurements
+	 * @param cpuLoadValue sum of cpuLoad
+	 * @param memoryLoadValue sum of memoryLoad
+	 */
+	void visit(String serverName, long intervalSeconds, long bucketUtc, int count, double cpuLoadValue,
+			double memoryLoadValue);
+}
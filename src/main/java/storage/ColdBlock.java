@@ -0,0 +1,81 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * An immutable run of compressed buckets of one server and one resolution, oldest first. The encoded bits are
+ * either kept on the heap or, once spilled, in a file of a ColdBlockStore.
+ */
+final class ColdBlock {
+
+	final long intervalSeconds;
+
+	final long firstUtc;
+
+	final long lastUtc;
+
+	final int bucketCount;
+
+	/**
+	 * The encoded bits, null if the block lives in a file
+	 */
+	private final byte[] data;
+
+	private final long bitLength;
+
+	private final ColdBlockStore.BlockFile file;
+
+	private final long offset;
+
+	ColdBlock(long intervalSeconds, long firstUtc, long lastUtc, int bucketCount, byte[] data, long bitLength) {
+		this(intervalSeconds, firstUtc, lastUtc, bucketCount, data, bitLength, null, 0);
+	}
+
+	private ColdBlock(long intervalSeconds, long firstUtc, long lastUtc, int bucketCount, byte[] data, long bitLength,
+			ColdBlockStore.BlockFile file, long offset) {
+		this.intervalSeconds = intervalSeconds;
+		this.firstUtc = firstUtc;
+		this.lastUtc = lastUtc;
+		this.bucketCount = bucketCount;
+		this.data = data;
+		this.bitLength = bitLength;
+		this.file = file;
+		this.offset = offset;
+	}
+
+	/**
+	 * @param file
+	 * @param offset where the bits of this block were written
+	 * @return the same block, read from the file instead of the heap
+	 */
+	ColdBlock spilled(ColdBlockStore.BlockFile file, long offset) {
+		return new ColdBlock(intervalSeconds, firstUtc, lastUtc, bucketCount, null, bitLength, file, offset);
+	}
+
+	/**
+	 * @return a decoder positioned before the first bucket, null if the block was dropped and its file deleted
+	 * while this reader still held it
+	 */
+	GorillaDecoder decoder() {
+		byte[] bits = null == file ? data : file.read(offset, getSizeBytes());
+		return null == bits ? null : new GorillaDecoder(intervalSeconds, bits, bucketCount);
+	}
+
+	byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return the size of the encoded bits
+	 */
+	int getSizeBytes() {
+		return (int) ((bitLength + 7) >>> 3);
+	}
+
+	/**
+	 * @return the file holding this block, null if it is on the heap
+	 */
+	ColdBlockStore.BlockFile getFile() {
+		return file;
+	}
+}
@@ -0,0 +1,168 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author alex
+ *
+ * Keeps sealed cold blocks on disk instead of the heap.
+ *
+ * Blocks are appended to the current file until it reaches FILE_BYTES, then a new file is started. Every file
+ * counts the blocks that still live in it. Retention drops the oldest blocks first, so older files empty out and
+ * are deleted, and the disk space follows the cold retention window.
+ *
+ * The files only hold what is also reachable through forEachBucket, they are not read back after a restart.
+ * Existing block files in the directory are deleted when the store is opened.
+ *
+ * One store is shared by all servers of a StatStorage, and writers of different servers may spill and release
+ * blocks at the same time, so those methods synchronize on the store. Readers read without it.
+ */
+final class ColdBlockStore {
+
+	static final String SUFFIX = ".blocks";
+
+	static final long FILE_BYTES = 64 << 20;
+
+	/**
+	 * One file of blocks and the number of blocks still in use.
+	 */
+	final class BlockFile {
+
+		private final File file;
+
+		private final FileChannel channel;
+
+		private long size;
+
+		private int liveBlocks;
+
+		private BlockFile(File file) throws IOException {
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		/**
+		 * @param offset
+		 * @param length
+		 * @return the bytes, null if the file has been deleted in the meantime
+		 */
+		byte[] read(long offset, int length) {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			try {
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) {
+						throw new IOException("unexpected end of " + file);
+					}
+				}
+			} catch (ClosedChannelException e) {
+				return null;
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to read cold block from " + file, e);
+			}
+			return buffer.array();
+		}
+	}
+
+	private final File directory;
+
+	private final List<BlockFile> files = new ArrayList<BlockFile>();
+
+	private BlockFile current;
+
+	private long generation;
+
+	private final static Logger logger = LoggerFactory.getLogger(ColdBlockStore.class);
+
+	/**
+	 * @param directory where the block files are written, created if it does not exist
+	 */
+	ColdBlockStore(File directory) {
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new UncheckedIOException(new IOException("Failed to create " + directory));
+		}
+		File[] stale = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+		for (File file : null == stale ? new File[0] : stale) {
+			if (!file.delete()) {
+				logger.warn("Failed to delete stale cold block file " + file);
+			}
+		}
+	}
+
+	/**
+	 * @param block a block on the heap
+	 * @return the same block, now read from disk
+	 */
+	synchronized ColdBlock spill(ColdBlock block) {
+		try {
+			if (null == current || current.size >= FILE_BYTES) {
+				if (null != current && current.liveBlocks == 0) {
+					delete(current);
+				}
+				current = new BlockFile(new File(directory, "cold-" + generation++ + SUFFIX));
+				files.add(current);
+			}
+			long offset = current.size;
+			ByteBuffer buffer = ByteBuffer.wrap(block.getData(), 0, block.getSizeBytes());
+			while (buffer.hasRemaining()) {
+				current.channel.write(buffer, offset + buffer.position());
+			}
+			current.size += block.getSizeBytes();
+			current.liveBlocks++;
+			return block.spilled(current, offset);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to write cold block in " + directory, e);
+		}
+	}
+
+	/**
+	 * @param block a block that has been dropped
+	 */
+	synchronized void release(ColdBlock block) {
+		BlockFile file = block.getFile();
+		if (null != file && --file.liveBlocks == 0 && file != current) {
+			delete(file);
+		}
+	}
+
+	private void delete(BlockFile file) {
+		files.remove(file);
+		try {
+			file.channel.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close " + file.file + ": " + e.getMessage());
+		}
+		if (!file.file.delete()) {
+			logger.warn("Failed to delete " + file.file);
+		}
+	}
+
+	/**
+	 * Closes and deletes all files. Blocks in them can no longer be read.
+	 */
+	synchronized void close() {
+		for (BlockFile file : new ArrayList<BlockFile>(files)) {
+			delete(file);
+		}
+		current = null;
+	}
+
+	/**
+	 * @return the number of block files currently on disk
+	 */
+	synchronized int getFileCount() {
+		return files.size();
+	}
+}
@@ -0,0 +1,204 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * @author alex
+ *
+ * Compressed history of one server and one resolution, for the buckets that aged out of the hot BucketMap.
+ *
+ * Aged-out buckets are appended to an open GorillaEncoder in time order. Once it holds a block's worth of buckets,
+ * a day of minutes or a week of hours, it is sealed into an immutable ColdBlock, which is moved to disk if a
+ * ColdBlockStore is configured. Blocks older than the cold retention window are dropped as a whole. Only sums are
+ * kept, percentile sketches are not.
+ *
+ * Only the trim of the BucketMap appends, one thread at a time. Readers get the blocks, including a view of the open
+ * encoder, through a volatile array that is replaced after every change, so they never lock and never see a partly
+ * written bucket.
+ */
+final class ColdTier {
+
+	static final int MINUTE_BLOCK_BUCKETS = 1440;
+
+	static final int HOUR_BLOCK_BUCKETS = 168;
+
+	private static final ColdBlock[] EMPTY = new ColdBlock[0];
+
+	private final long intervalSeconds;
+
+	private final int blockBuckets;
+
+	private final long retentionSeconds;
+
+	/**
+	 * Where sealed blocks are spilled, null to keep them on the heap
+	 */
+	private final ColdBlockStore store;
+
+	private final ArrayList<ColdBlock> sealed = new ArrayList<ColdBlock>();
+
+	private GorillaEncoder open;
+
+	/**
+	 * Sealed blocks followed by a view of the open encoder, oldest first. Replaced by the appender, read by everyone.
+	 */
+	private volatile ColdBlock[] blocks = EMPTY;
+
+	/**
+	 * @param intervalSeconds 60 or 3600
+	 * @param retentionSeconds how long buckets are kept after they aged out of the hot window
+	 * @param store where sealed blocks are spilled, null to keep them on the heap
+	 */
+	ColdTier(long intervalSeconds, long retentionSeconds, ColdBlockStore store) {
+		this.intervalSeconds = intervalSeconds;
+		this.blockBuckets = intervalSeconds == 60 ? MINUTE_BLOCK_BUCKETS : HOUR_BLOCK_BUCKETS;
+		this.retentionSeconds = retentionSeconds;
+		this.store = store;
+	}
+
+	/**
+	 * @param aged buckets that just left the hot window, by time
+	 * @param hotCutoffUtc the buckets at or before this time are no longer hot
+	 *
+	 * Buckets older than the cold retention window or older than what the tier already holds are dropped.
+	 */
+	void append(SortedMap<Long, Bucket> aged, long hotCutoffUtc) {
+		long cutoffUtc = hotCutoffUtc - retentionSeconds;
+		for (Map.Entry<Long, Bucket> entry : aged.entrySet()) {
+			long bucketUtc = entry.getKey();
+			if (bucketUtc <= cutoffUtc || (null != open && bucketUtc <= open.getLastUtc())
+					|| (sealed.size() > 0 && bucketUtc <= sealed.get(sealed.size() - 1).lastUtc)) {
+				continue;
+			}
+			if (null == open) {
+				open = new GorillaEncoder(intervalSeconds);
+			}
+			entry.getValue().visit(null, intervalSeconds, bucketUtc, this::appendOpen);
+			if (open.getBucketCount() == blockBuckets) {
+				ColdBlock block = open.seal();
+				sealed.add(null == store ? block : store.spill(block));
+				open = null;
+			}
+		}
+		while (!sealed.isEmpty() && sealed.get(0).lastUtc <= cutoffUtc) {
+			ColdBlock block = sealed.remove(0);
+			if (null != store) {
+				store.release(block);
+			}
+		}
+		publish();
+	}
+
+	private void appendOpen(String serverName, long intervalSeconds, long bucketUtc, int count, double cpuLoadValue,
+			double memoryLoadValue) {
+		open.append(bucketUtc, count, cpuLoadValue, memoryLoadValue);
+	}
+
+	private void publish() {
+		ColdBlock[] published = sealed.toArray(new ColdBlock[sealed.size() + (null == open ? 0 : 1)]);
+		if (null != open) {
+			published[sealed.size()] = open.view();
+		}
+		blocks = published;
+	}
+
+	/**
+	 * Gives all blocks back to the store, used when the server is removed.
+	 */
+	void clear() {
+		if (null != store) {
+			for (ColdBlock block : sealed) {
+				store.release(block);
+			}
+		}
+		sealed.clear();
+		open = null;
+		blocks = EMPTY;
+	}
+
+	/**
+	 * @return the published blocks, oldest first. The trim publishes a bucket here before it removes it from the
+	 * hot map, so a reader that gets the same snapshot before and after reading the hot map has seen every bucket
+	 * exactly once when it takes buckets up to lastUtc(snapshot) from the snapshot and newer ones from the hot map.
+	 */
+	ColdBlock[] snapshot() {
+		return blocks;
+	}
+
+	/**
+	 * @param snapshot
+	 * @return the newest bucket in the snapshot, Long.MIN_VALUE if it is empty
+	 */
+	static long lastUtc(ColdBlock[] snapshot) {
+		return snapshot.length == 0 ? Long.MIN_VALUE : snapshot[snapshot.length - 1].lastUtc;
+	}
+
+	/**
+	 * @param snapshot blocks obtained from snapshot()
+	 * @param startUtc start of the first interval
+	 * @param stepSeconds length of every interval, a multiple of the tier's interval
+	 * @param steps number of intervals
+	 * @param target array of steps * 3 that receives count, cpuLoad sum and memoryLoad sum for each interval,
+	 * oldest first
+	 *
+	 * Decodes the blocks that overlap the range, stopping at its end.
+	 */
+	static void addTo(ColdBlock[] snapshot, long startUtc, long stepSeconds, int steps, double[] target) {
+		long endUtc = startUtc + steps * stepSeconds;
+		for (ColdBlock block : snapshot) {
+			if (block.lastUtc < startUtc) {
+				continue;
+			}
+			if (block.firstUtc >= endUtc) {
+				return;
+			}
+			GorillaDecoder decoder = block.decoder();
+			while (null != decoder && decoder.next()) {
+				if (decoder.bucketUtc >= endUtc) {
+					return;
+				}
+				if (decoder.bucketUtc >= startUtc) {
+					int offset = (int) ((decoder.bucketUtc - startUtc) / stepSeconds) * 3;
+					target[offset] += decoder.count;
+					target[offset + 1] += decoder.cpuLoadValue;
+					target[offset + 2] += decoder.memoryLoadValue;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param serverName
+	 * @param visitor receives every bucket, oldest first
+	 */
+	void forEach(String serverName, BucketVisitor visitor) {
+		for (ColdBlock block : blocks) {
+			GorillaDecoder decoder = block.decoder();
+			while (null != decoder && decoder.next()) {
+				visitor.visit(serverName, intervalSeconds, decoder.bucketUtc, decoder.count, decoder.cpuLoadValue,
+						decoder.memoryLoadValue);
+			}
+		}
+	}
+
+	int bucketCount() {
+		int count = 0;
+		for (ColdBlock block : blocks) {
+			count += block.bucketCount;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the compressed size of all blocks, on the heap or on disk
+	 */
+	long sizeBytes() {
+		long size = 0;
+		for (ColdBlock block : blocks) {
+			size += block.getSizeBytes();
+		}
+		return size;
+	}
+}
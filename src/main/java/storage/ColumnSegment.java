@@ -0,0 +1,168 @@
+package storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author alex
+ *
+ * A block of up to CAPACITY buckets of one server and one resolution, stored column by column in an off-heap buffer.
+ *
+ * The buffer holds four columns one after the other: the timestamp of every bucket as a delta in intervals from the
+ * segment's base timestamp (int), the count of measurements (int), the sum of cpuLoad (double) and the sum of
+ * memoryLoad (double). That is 24 bytes per bucket with no per-bucket object at all. Buckets are sorted by time.
+ *
+ * A segment does no locking, the owning ColumnSeries is guarded by its server's lock.
+ */
+final class ColumnSegment {
+
+	static final int CAPACITY = 64;
+
+	static final int BYTES_PER_BUCKET = 4 + 4 + 8 + 8;
+
+	static final int BYTES = CAPACITY * BYTES_PER_BUCKET;
+
+	private static final int COUNTS = CAPACITY * 4;
+
+	private static final int CPU_LOAD_VALUES = CAPACITY * 8;
+
+	private static final int MEMORY_LOAD_VALUES = CAPACITY * 16;
+
+	private final ByteBuffer buffer;
+
+	private long baseUtc;
+
+	private long intervalSeconds;
+
+	private int size;
+
+	/**
+	 * @param buffer BYTES of off-heap memory owned by this segment
+	 */
+	ColumnSegment(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * @param baseUtc timestamp the deltas are relative to, normally the first bucket
+	 * @param intervalSeconds
+	 *
+	 * Empties the segment, used when a segment is taken from the pool.
+	 */
+	void reset(long baseUtc, long intervalSeconds) {
+		this.baseUtc = baseUtc;
+		this.intervalSeconds = intervalSeconds;
+		this.size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isFull() {
+		return size == CAPACITY;
+	}
+
+	long timestamp(int index) {
+		return baseUtc + buffer.getInt(index * 4) * intervalSeconds;
+	}
+
+	long first() {
+		return timestamp(0);
+	}
+
+	long last() {
+		return timestamp(size - 1);
+	}
+
+	int count(int index) {
+		return buffer.getInt(COUNTS + index * 4);
+	}
+
+	double cpuLoadValue(int index) {
+		return buffer.getDouble(CPU_LOAD_VALUES + index * 8);
+	}
+
+	double memoryLoadValue(int index) {
+		return buffer.getDouble(MEMORY_LOAD_VALUES + index * 8);
+	}
+
+	/**
+	 * @param bucketUtc
+	 * @return the index of the bucket, or -(insertion point) - 1 if the segment does not hold it
+	 */
+	int indexOf(long bucketUtc) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long middleUtc = timestamp(middle);
+			if (middleUtc < bucketUtc) {
+				low = middle + 1;
+			} else if (middleUtc > bucketUtc) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * @param index
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 *
+	 * Adds to the sums of an existing bucket.
+	 */
+	void add(int index, int count, double cpuLoadValue, double memoryLoadValue) {
+		buffer.putInt(COUNTS + index * 4, count(index) + count);
+		buffer.putDouble(CPU_LOAD_VALUES + index * 8, cpuLoadValue(index) + cpuLoadValue);
+		buffer.putDouble(MEMORY_LOAD_VALUES + index * 8, memoryLoadValue(index) + memoryLoadValue);
+	}
+
+	/**
+	 * Overwrites an existing bucket.
+	 */
+	void set(int index, int count, double cpuLoadValue, double memoryLoadValue) {
+		buffer.putInt(COUNTS + index * 4, count);
+		buffer.putDouble(CPU_LOAD_VALUES + index * 8, cpuLoadValue);
+		buffer.putDouble(MEMORY_LOAD_VALUES + index * 8, memoryLoadValue);
+	}
+
+	/**
+	 * @param index insertion point, the buckets from there on move up by one
+	 * @param bucketUtc
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 *
+	 * Inserts a new bucket. The segment must not be full. Appending is the common case and moves nothing.
+	 */
+	void insert(int index, long bucketUtc, int count, double cpuLoadValue, double memoryLoadValue) {
+		for (int i = size; i > index; i--) {
+			buffer.putInt(i * 4, buffer.getInt((i - 1) * 4));
+			set(i, count(i - 1), cpuLoadValue(i - 1), memoryLoadValue(i - 1));
+		}
+		if (size == 0) {
+			baseUtc = bucketUtc;
+		}
+		buffer.putInt(index * 4, (int) ((bucketUtc - baseUtc) / intervalSeconds));
+		set(index, count, cpuLoadValue, memoryLoadValue);
+		size++;
+	}
+
+	/**
+	 * @param target an empty segment of the same resolution
+	 *
+	 * Moves the upper half of the buckets to the target, used to make room for a bucket that arrives out of order.
+	 */
+	void splitInto(ColumnSegment target) {
+		int from = size / 2;
+		target.reset(timestamp(from), intervalSeconds);
+		for (int i = from; i < size; i++) {
+			target.insert(i - from, timestamp(i), count(i), cpuLoadValue(i), memoryLoadValue(i));
+		}
+		size = from;
+	}
+}
@@ -0,0 +1,183 @@
+package storage;
+
+import java.util.ArrayList;
+
+/**
+ * @author alex
+ *
+ * The buckets of one server at one resolution, as a time-ordered list of ColumnSegments.
+ *
+ * New buckets are appended to the last segment. A bucket that arrives out of order is inserted into the segment
+ * covering its time, which is split in two if it is full. Retention drops whole segments, so up to
+ * ColumnSegment.CAPACITY - 1 buckets older than the retention window can still be kept.
+ *
+ * The series does no locking, ColumnarStatStorage guards it with the server's lock.
+ */
+final class ColumnSeries {
+
+	private final long intervalSeconds;
+
+	private final ArrayList<ColumnSegment> segments = new ArrayList<ColumnSegment>();
+
+	ColumnSeries(long intervalSeconds) {
+		this.intervalSeconds = intervalSeconds;
+	}
+
+	/**
+	 * @param pool
+	 * @param bucketUtc start of the interval
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 * @param replace true to overwrite an existing bucket, false to add to it
+	 */
+	void put(SegmentPool pool, long bucketUtc, int count, double cpuLoadValue, double memoryLoadValue,
+			boolean replace) {
+		if (segments.isEmpty()) {
+			segments.add(pool.allocate(bucketUtc, intervalSeconds));
+		}
+		int segmentIndex = segmentFor(bucketUtc);
+		ColumnSegment segment = segments.get(segmentIndex);
+		int index = segment.indexOf(bucketUtc);
+		if (index >= 0) {
+			if (replace) {
+				segment.set(index, count, cpuLoadValue, memoryLoadValue);
+			} else {
+				segment.add(index, count, cpuLoadValue, memoryLoadValue);
+			}
+			return;
+		}
+		int insertion = -index - 1;
+		if (segment.isFull()) {
+			if (insertion == ColumnSegment.CAPACITY && segmentIndex == segments.size() - 1) {
+				// appending to a full last segment, the normal case when time moves on
+				segment = pool.allocate(bucketUtc, intervalSeconds);
+				segments.add(segment);
+				insertion = 0;
+			} else {
+				ColumnSegment upper = pool.allocate(bucketUtc, intervalSeconds);
+				segment.splitInto(upper);
+				segments.add(segmentIndex + 1, upper);
+				if (bucketUtc > segment.last()) {
+					segment = upper;
+				}
+				insertion = -segment.indexOf(bucketUtc) - 1;
+			}
+		}
+		segment.insert(insertion, bucketUtc, count, cpuLoadValue, memoryLoadValue);
+	}
+
+	/**
+	 * @param bucketUtc
+	 * @return the index of the last segment starting at or before bucketUtc, the first segment if there is none
+	 */
+	private int segmentFor(long bucketUtc) {
+		int last = segments.size() - 1;
+		if (segments.get(last).first() <= bucketUtc) {
+			return last;
+		}
+		int low = 0;
+		int high = last;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (segments.get(middle).first() <= bucketUtc) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @param pool receives the dropped segments
+	 * @param retentionSeconds
+	 * @return the number of buckets removed
+	 *
+	 * Drops every segment whose newest bucket is older than the retention window, measured back from the newest
+	 * bucket of the series.
+	 */
+	int trim(SegmentPool pool, long retentionSeconds) {
+		if (segments.size() < 2) {
+			return 0;
+		}
+		long cutoffUtc = segments.get(segments.size() - 1).last() - retentionSeconds;
+		int dropped = 0;
+		int removed = 0;
+		while (dropped < segments.size() - 1 && segments.get(dropped).last() <= cutoffUtc) {
+			ColumnSegment segment = segments.get(dropped);
+			removed += segment.size();
+			pool.release(segment);
+			dropped++;
+		}
+		if (dropped > 0) {
+			segments.subList(0, dropped).clear();
+		}
+		return removed;
+	}
+
+	/**
+	 * @param pool receives all segments
+	 * @return the number of buckets removed
+	 */
+	int clear(SegmentPool pool) {
+		int removed = 0;
+		for (ColumnSegment segment : segments) {
+			removed += segment.size();
+			pool.release(segment);
+		}
+		segments.clear();
+		return removed;
+	}
+
+	/**
+	 * @param startUtc start of the first interval
+	 * @param stepSeconds length of every interval, a multiple of the series' interval
+	 * @param steps number of intervals
+	 * @param target array of steps * 3 that receives count, cpuLoad sum and memoryLoad sum for each interval,
+	 * oldest first
+	 *
+	 * Adds up the buckets of every interval. Only the buckets within the range are read.
+	 */
+	void addTo(long startUtc, long stepSeconds, int steps, double[] target) {
+		if (segments.isEmpty()) {
+			return;
+		}
+		long endUtc = startUtc + steps * stepSeconds;
+		for (int s = segmentFor(startUtc); s < segments.size(); s++) {
+			ColumnSegment segment = segments.get(s);
+			int index = segment.indexOf(startUtc);
+			for (int i = index >= 0 ? index : -index - 1; i < segment.size(); i++) {
+				long bucketUtc = segment.timestamp(i);
+				if (bucketUtc >= endUtc) {
+					return;
+				}
+				int offset = (int) ((bucketUtc - startUtc) / stepSeconds) * 3;
+				target[offset] += segment.count(i);
+				target[offset + 1] += segment.cpuLoadValue(i);
+				target[offset + 2] += segment.memoryLoadValue(i);
+			}
+		}
+	}
+
+	/**
+	 * @param serverName
+	 * @param visitor receives every bucket, oldest first
+	 */
+	void forEach(String serverName, BucketVisitor visitor) {
+		for (ColumnSegment segment : segments) {
+			for (int i = 0; i < segment.size(); i++) {
+				visitor.visit(serverName, intervalSeconds, segment.timestamp(i), segment.count(i),
+						segment.cpuLoadValue(i), segment.memoryLoadValue(i));
+			}
+		}
+	}
+
+	int bucketCount() {
+		int count = 0;
+		for (ColumnSegment segment : segments) {
+			count += segment.size();
+		}
+		return count;
+	}
+}
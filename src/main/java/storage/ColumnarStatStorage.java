@@ -0,0 +1,291 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Columnar off-heap statistics storage for long retention.
+ *
+ * Every server has a minute, an hour and a day ColumnSeries. A series stores its buckets in ColumnSegments, blocks
+ * of direct memory laid out as columns: delta-encoded timestamps, counts, cpuLoad sums and memoryLoad sums. A bucket
+ * costs 24 bytes of direct memory instead of the roughly 480 bytes of heap of a StatStorage bucket, and none of it
+ * is visible to the garbage collector. The per-server index is a hash map from the server name to its series.
+ *
+ * Segments come from a SegmentPool owned by this storage and go back to it when retention drops them or the
+ * server is evicted, so memory is reused rather than reallocated. Set long windows through the RetentionPolicy,
+ * for example two weeks of minutes, and query them with getData.
+ *
+ * Only the sums are kept, so results have no percentiles and there are no rollups. Writers take the per-server
+ * write lock, readers the read lock. Like the other engines, the data is inserted by a single thread.
+ *
+ */
+public class ColumnarStatStorage implements IStatStorage {
+
+	/**
+	 * The three series of one server, guarded by the same lock.
+	 */
+	private static class ServerColumns {
+		private final StampedLock lock = new StampedLock();
+		private final ColumnSeries minutes = new ColumnSeries(60);
+		private final ColumnSeries hours = new ColumnSeries(3600);
+		private final ColumnSeries days = new ColumnSeries(86400);
+		private volatile long lastReportMillis;
+		private int serverId = -1;
+
+		private ColumnSeries tier(long intervalSeconds) {
+			return intervalSeconds == 60 ? minutes : intervalSeconds == 3600 ? hours : days;
+		}
+	}
+
+	private final ConcurrentHashMap<String, ServerColumns> servers;
+
+	/**
+	 * The same series by server ID, for the writer.
+	 */
+	private final ServerIndex<ServerColumns> byId = new ServerIndex<ServerColumns>();
+
+	private final RetentionPolicy retentionPolicy;
+
+	private final SegmentPool pool = new SegmentPool();
+
+	/**
+	 * Wall clock time of the last idle server sweep. Only used by the writer.
+	 */
+	private long lastSweepMillis;
+
+	private final static Logger logger = LoggerFactory.getLogger(ColumnarStatStorage.class);
+
+	public ColumnarStatStorage() {
+		this(new RetentionPolicy());
+	}
+
+	/**
+	 * @param retentionPolicy how long to keep buckets and idle servers
+	 */
+	public ColumnarStatStorage(RetentionPolicy retentionPolicy) {
+		this.servers = new ConcurrentHashMap<String, ServerColumns>();
+		this.retentionPolicy = retentionPolicy;
+		this.lastSweepMillis = System.currentTimeMillis();
+	}
+
+	/*
+	 * @param message - the message that contains server status data
+	 *
+	 * Adds data from the message to the minute, hour and day series
+	 */
+	@Override
+	public void addToMaps(QueuedServerStatusMessage message) {
+		long nowMillis = System.currentTimeMillis();
+		ServerColumns columns = byId.get(message.getServerId(), message.getServerName());
+		if (null == columns) {
+			columns = servers.computeIfAbsent(message.getServerName(), name -> new ServerColumns());
+			if (message.getServerId() >= 0) {
+				columns.serverId = message.getServerId();
+				byId.put(columns.serverId, message.getServerName(), columns);
+			}
+		}
+		columns.lastReportMillis = nowMillis;
+		long timestampUtc = message.getTimestampUtc();
+		long stamp = columns.lock.writeLock();
+		try {
+			put(columns.minutes, (timestampUtc / 60) * 60, message, retentionPolicy.getMinuteRetentionSeconds());
+			put(columns.hours, (timestampUtc / 3600) * 3600, message, retentionPolicy.getHourRetentionSeconds());
+			put(columns.days, (timestampUtc / 86400) * 86400, message, retentionPolicy.getDayRetentionSeconds());
+		} finally {
+			columns.lock.unlockWrite(stamp);
+		}
+		if (nowMillis - lastSweepMillis >= retentionPolicy.getSweepIntervalSeconds() * 1000) {
+			evictIdleServers(nowMillis);
+		}
+	}
+
+	private void put(ColumnSeries series, long bucketUtc, QueuedServerStatusMessage message, long retentionSeconds) {
+		series.put(pool, bucketUtc, message.getCount(), message.getCpuLoad(), message.getRamLoad(), false);
+		series.trim(pool, retentionSeconds);
+	}
+
+	/**
+	 * @param nowMillis wall clock time
+	 * @return the number of servers removed
+	 *
+	 * Removes every server that has not reported for longer than the idle time of the retention policy and gives
+	 * its segments back to the pool. Must only be called from the writer thread.
+	 */
+	public int evictIdleServers(long nowMillis) {
+		lastSweepMillis = nowMillis;
+		long cutoffMillis = nowMillis - retentionPolicy.getServerIdleSeconds() * 1000;
+		int evicted = 0;
+		Iterator<ServerColumns> iterator = servers.values().iterator();
+		while (iterator.hasNext()) {
+			ServerColumns columns = iterator.next();
+			if (columns.lastReportMillis < cutoffMillis) {
+				iterator.remove();
+				byId.remove(columns.serverId, columns);
+				long stamp = columns.lock.writeLock();
+				try {
+					columns.minutes.clear(pool);
+					columns.hours.clear(pool);
+					columns.days.clear(pool);
+				} finally {
+					columns.lock.unlockWrite(stamp);
+				}
+				evicted++;
+			}
+		}
+		if (evicted > 0) {
+			logger.info("evicted " + evicted + " idle servers, " + servers.size() + " left");
+		}
+		return evicted;
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName) {
+		return getDataForLast60Minutes(serverName, System.currentTimeMillis() / 1000);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName, long timestampUtc) {
+		return window(serverName, 60, (timestampUtc / 60) * 60, 60);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast24Hours(String serverName) {
+		return getDataForLast24Hours(serverName, System.currentTimeMillis() / 1000);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast24Hours(String serverName, long timestampUtc) {
+		return window(serverName, 3600, (timestampUtc / 3600) * 3600, 24);
+	}
+
+	/**
+	 * Reads the coarsest series whose interval divides the step. Only the buckets within the range are read.
+	 */
+	@Override
+	public ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds) {
+		int steps = RangeQuery.steps(fromUtc, toUtc, stepSeconds);
+		long startUtc = RangeQuery.alignDown(fromUtc, stepSeconds);
+		double[] values = read(serverName, RangeQuery.tierFor(stepSeconds, 86400), startUtc, stepSeconds, steps);
+		List<ServerStatusData> result = new ArrayList<ServerStatusData>(steps);
+		for (int i = 0; i < steps; i++) {
+			result.add(average(startUtc + i * stepSeconds, values, i));
+		}
+		return new ServerStatusResult(serverName, result);
+	}
+
+	/**
+	 * @param serverName
+	 * @param intervalSeconds
+	 * @param endUtc start of the newest interval in the window
+	 * @param size number of intervals
+	 * @return the averages for every interval, newest first
+	 */
+	private ServerStatusResult window(String serverName, long intervalSeconds, long endUtc, int size) {
+		long startUtc = endUtc - (size - 1) * intervalSeconds;
+		double[] values = read(serverName, intervalSeconds, startUtc, intervalSeconds, size);
+		List<ServerStatusData> result = new ArrayList<ServerStatusData>(size);
+		for (int i = size - 1; i >= 0; i--) {
+			result.add(average(startUtc + i * intervalSeconds, values, i));
+		}
+		return new ServerStatusResult(serverName, result);
+	}
+
+	/**
+	 * @return count, cpuLoad sum and memoryLoad sum for every interval, oldest first, all zeroes for an unknown server
+	 */
+	private double[] read(String serverName, long tierSeconds, long startUtc, long stepSeconds, int steps) {
+		double[] values = new double[steps * 3];
+		ServerColumns columns = servers.get(serverName);
+		if (null != columns) {
+			long stamp = columns.lock.readLock();
+			try {
+				columns.tier(tierSeconds).addTo(startUtc, stepSeconds, steps, values);
+			} finally {
+				columns.lock.unlockRead(stamp);
+			}
+		}
+		return values;
+	}
+
+	private static ServerStatusData average(long intervalUtc, double[] values, int index) {
+		double count = values[index * 3];
+		if (count == 0) {
+			return new ServerStatusData(intervalUtc, 0.0, 0.0);
+		}
+		return new ServerStatusData(intervalUtc, values[index * 3 + 1] / count, values[index * 3 + 2] / count);
+	}
+
+	@Override
+	public Stream<String> serverNames() {
+		return servers.keySet().stream();
+	}
+
+	@Override
+	public void forEachBucket(BucketVisitor visitor) {
+		servers.forEach((serverName, columns) -> {
+			long stamp = columns.lock.readLock();
+			try {
+				columns.minutes.forEach(serverName, visitor);
+				columns.hours.forEach(serverName, visitor);
+				columns.days.forEach(serverName, visitor);
+			} finally {
+				columns.lock.unlockRead(stamp);
+			}
+		});
+	}
+
+	@Override
+	public void restoreBucket(String serverName, long intervalSeconds, long bucketUtc, int count,
+			double cpuLoadValue, double memoryLoadValue) {
+		ServerColumns columns = servers.get(serverName);
+		if (null == columns) {
+			columns = servers.computeIfAbsent(serverName, name -> new ServerColumns());
+			columns.lastReportMillis = System.currentTimeMillis();
+		}
+		long stamp = columns.lock.writeLock();
+		try {
+			columns.tier(intervalSeconds).put(pool, bucketUtc, count, cpuLoadValue, memoryLoadValue, true);
+		} finally {
+			columns.lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public long getBucketCount() {
+		long count = 0;
+		for (ServerColumns columns : servers.values()) {
+			long stamp = columns.lock.readLock();
+			try {
+				count += columns.minutes.bucketCount() + columns.hours.bucketCount() + columns.days.bucketCount();
+			} finally {
+				columns.lock.unlockRead(stamp);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the direct memory allocated for buckets so far. Memory of dropped buckets is reused, not released.
+	 */
+	public long getOffHeapBytes() {
+		return pool.getAllocatedBytes();
+	}
+
+	@Override
+	public int getServerCount() {
+		return servers.size();
+	}
+}
@@ -0,0 +1,478 @@
+package storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+import entity.RollupRecord;
+
+/**
+ * @author alex
+ *
+ * Crash-recoverable storage. Keeps the aggregates in an in-memory delegate and makes them durable with an
+ * append-only write-ahead log plus periodic snapshots.
+ *
+ * Every message is appended to the current log generation before it is applied to the delegate. Appends go to a
+ * buffer that is written to the file once per batch (group commit, see flush), so a JVM crash loses nothing that
+ * was processed. The file is forced to disk at most every syncIntervalMillis.
+ *
+ * Every checkpointIntervalMillis the writer starts a new log generation and writes all buckets of the delegate
+ * into a memory-mapped snapshot file that records that generation. Older log files are then deleted.
+ *
+ * On startup the snapshot is mapped and restored into the delegate, and only the log generations written after
+ * it are replayed, so recovery time depends on the checkpoint interval, not on how long the process ran.
+ * A torn record at the end of the log is cut off.
+ *
+ * The snapshot holds only the count and the two sums of every bucket, like forEachBucket. Min, max and the
+ * percentile sketches of the snapshotted buckets are lost on restart, so those buckets report NaN for them, or
+ * values over the samples that arrived since the restart if the bucket keeps receiving data. Buckets rebuilt from
+ * the log get their sketches back, since the log is replayed message by message.
+ *
+ * Like the other engines this is written by a single thread. With sharding, every shard needs its own directory.
+ */
+public class DurableStatStorage implements IStatStorage {
+
+	static final int SNAPSHOT_MAGIC = 0x53534e50;
+
+	static final int SNAPSHOT_VERSION = 1;
+
+	static final String SNAPSHOT_FILE = "snapshot.bin";
+
+	static final String WAL_PREFIX = "wal-";
+
+	static final String WAL_SUFFIX = ".log";
+
+	/**
+	 * name length, timestamp, count, cpuLoad, ramLoad and crc, without the name itself
+	 */
+	private static final int WAL_RECORD_OVERHEAD = 2 + 8 + 4 + 8 + 8 + 4;
+
+	/**
+	 * name length, interval, bucket start, count, two sums, without the name itself
+	 */
+	private static final int SNAPSHOT_RECORD_OVERHEAD = 2 + 4 + 8 + 4 + 8 + 8;
+
+	private static final int SNAPSHOT_HEADER = 4 + 4 + 8 + 4;
+
+	private final File directory;
+
+	private final IStatStorage delegate;
+
+	private final long checkpointIntervalMillis;
+
+	private final long syncIntervalMillis;
+
+	private FileChannel walChannel;
+
+	private long walGeneration;
+
+	private final ByteBuffer walBuffer = ByteBuffer.allocateDirect(1 << 20);
+
+	/**
+	 * One record is assembled here so the crc can be computed before it is copied into walBuffer.
+	 */
+	private final ByteBuffer recordBuffer = ByteBuffer.allocate(WAL_RECORD_OVERHEAD + Short.MAX_VALUE);
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Encoded server names, so we do not encode the same name for every message.
+	 */
+	private final HashMap<String, byte[]> nameBytes = new HashMap<String, byte[]>();
+
+	private long lastCheckpointMillis;
+
+	private long lastSyncMillis;
+
+	private boolean dirty = false;
+
+	private final static Logger logger = LoggerFactory.getLogger(DurableStatStorage.class);
+
+	/**
+	 * @param directory where the snapshot and log files are kept, created if missing
+	 * @param delegate the in-memory engine holding the aggregates
+	 */
+	public DurableStatStorage(File directory, IStatStorage delegate) {
+		this(directory, delegate, 60 * 1000, 1000);
+	}
+
+	/**
+	 * @param directory where the snapshot and log files are kept, created if missing
+	 * @param delegate the in-memory engine holding the aggregates
+	 * @param checkpointIntervalMillis how often to write a snapshot and drop old log files
+	 * @param syncIntervalMillis how often to force the log to disk, 0 to force after every batch
+	 */
+	public DurableStatStorage(File directory, IStatStorage delegate, long checkpointIntervalMillis,
+			long syncIntervalMillis) {
+		this.directory = directory;
+		this.delegate = delegate;
+		this.checkpointIntervalMillis = checkpointIntervalMillis;
+		this.syncIntervalMillis = syncIntervalMillis;
+		try {
+			Files.createDirectories(directory.toPath());
+			recover();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to recover storage from " + directory, e);
+		}
+	}
+
+	/**
+	 * Restores the snapshot, replays newer log generations and starts a fresh checkpoint.
+	 */
+	private void recover() throws IOException {
+		long start = System.currentTimeMillis();
+		long snapshotGeneration = readSnapshot();
+		long replayed = 0;
+		long lastGeneration = snapshotGeneration;
+		for (long generation : walGenerations()) {
+			if (generation >= snapshotGeneration) {
+				replayed += replay(walFile(generation));
+				lastGeneration = Math.max(lastGeneration, generation);
+			}
+		}
+		walGeneration = lastGeneration;
+		checkpoint();
+		logger.info("recovered " + directory + " from snapshot generation " + snapshotGeneration + " and "
+				+ replayed + " log records in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	@Override
+	public void addToMaps(QueuedServerStatusMessage message) {
+		append(message);
+		delegate.addToMaps(message);
+		dirty = true;
+	}
+
+	/**
+	 * Group commit: writes everything appended since the last flush with one write call, forces it to disk if the
+	 * sync interval elapsed and checkpoints if the checkpoint interval elapsed.
+	 */
+	@Override
+	public void flush() {
+		try {
+			writeWalBuffer();
+			long nowMillis = System.currentTimeMillis();
+			if (dirty && nowMillis - lastSyncMillis >= syncIntervalMillis) {
+				walChannel.force(false);
+				lastSyncMillis = nowMillis;
+				dirty = false;
+			}
+			if (nowMillis - lastCheckpointMillis >= checkpointIntervalMillis) {
+				checkpoint();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to write log in " + directory, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			writeWalBuffer();
+			walChannel.force(false);
+			walChannel.close();
+		} catch (IOException e) {
+			logger.warn("Failed to close log in " + directory + ": " + e.getMessage());
+		}
+		delegate.close();
+	}
+
+	/**
+	 * Writes a snapshot of the delegate and moves on to a new log generation. Runs on the writer thread, so the
+	 * snapshot contains exactly the messages logged in the previous generations.
+	 */
+	public void checkpoint() {
+		try {
+			if (null != walChannel) {
+				writeWalBuffer();
+				walChannel.force(false);
+				walChannel.close();
+			}
+			walGeneration++;
+			walChannel = FileChannel.open(walFile(walGeneration).toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			writeSnapshot(walGeneration);
+			for (long generation : walGenerations()) {
+				if (generation < walGeneration) {
+					Files.deleteIfExists(walFile(generation).toPath());
+				}
+			}
+			lastCheckpointMillis = System.currentTimeMillis();
+			lastSyncMillis = lastCheckpointMillis;
+			dirty = false;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to checkpoint " + directory, e);
+		}
+	}
+
+	private void append(QueuedServerStatusMessage message) {
+		byte[] name = nameBytes.get(message.getServerName());
+		if (null == name) {
+			name = message.getServerName().getBytes(StandardCharsets.UTF_8);
+			if (name.length > Short.MAX_VALUE) {
+				throw new IllegalArgumentException("server name too long: " + name.length + " bytes");
+			}
+			nameBytes.put(message.getServerName(), name);
+		}
+		recordBuffer.clear();
+		recordBuffer.putShort((short) name.length);
+		recordBuffer.put(name);
+		recordBuffer.putLong(message.getTimestampUtc());
+		recordBuffer.putInt(message.getCount());
+		recordBuffer.putDouble(message.getCpuLoad());
+		recordBuffer.putDouble(message.getRamLoad());
+		crc.reset();
+		crc.update(recordBuffer.array(), 0, recordBuffer.position());
+		recordBuffer.putInt((int) crc.getValue());
+		recordBuffer.flip();
+		if (walBuffer.remaining() < recordBuffer.remaining()) {
+			try {
+				writeWalBuffer();
+			} catch (IOException e) {
+				throw new UncheckedIOException("Failed to write log in " + directory, e);
+			}
+		}
+		walBuffer.put(recordBuffer);
+	}
+
+	private void writeWalBuffer() throws IOException {
+		walBuffer.flip();
+		while (walBuffer.hasRemaining()) {
+			walChannel.write(walBuffer);
+		}
+		walBuffer.clear();
+	}
+
+	/**
+	 * @param file
+	 * @return the number of records replayed into the delegate
+	 *
+	 * Replays a log file. Stops at the first incomplete or corrupt record and truncates the file there.
+	 */
+	private long replay(File file) throws IOException {
+		long records = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+			byte[] record = new byte[WAL_RECORD_OVERHEAD + Short.MAX_VALUE];
+			int validEnd = 0;
+			while (buffer.remaining() >= WAL_RECORD_OVERHEAD) {
+				int start = buffer.position();
+				int nameLength = buffer.getShort(start);
+				if (nameLength < 0 || buffer.remaining() < WAL_RECORD_OVERHEAD + nameLength) {
+					break;
+				}
+				int length = WAL_RECORD_OVERHEAD + nameLength;
+				buffer.get(record, 0, length);
+				crc.reset();
+				crc.update(record, 0, length - 4);
+				ByteBuffer fields = ByteBuffer.wrap(record, 0, length);
+				if ((int) crc.getValue() != fields.getInt(length - 4)) {
+					break;
+				}
+				message.set(new String(record, 2, nameLength, StandardCharsets.UTF_8), fields.getInt(2 + nameLength + 8),
+						fields.getDouble(2 + nameLength + 12), fields.getDouble(2 + nameLength + 20),
+						fields.getLong(2 + nameLength));
+				delegate.addToMaps(message);
+				records++;
+				validEnd = buffer.position();
+			}
+			if (validEnd < channel.size()) {
+				logger.warn("truncating torn log tail of " + file + " at " + validEnd + " of " + channel.size() + " bytes");
+				channel.truncate(validEnd);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * @param generation the first log generation that is not part of the snapshot
+	 *
+	 * Writes all buckets into a memory-mapped temporary file and renames it over the previous snapshot.
+	 */
+	private void writeSnapshot(long generation) throws IOException {
+		long[] size = new long[] { SNAPSHOT_HEADER + 4, 0 };
+		delegate.forEachBucket((serverName, intervalSeconds, bucketUtc, count, cpuLoadValue, memoryLoadValue) -> {
+			size[0] += SNAPSHOT_RECORD_OVERHEAD + encodedName(serverName).length;
+			size[1]++;
+		});
+		if (size[0] > Integer.MAX_VALUE) {
+			throw new IOException("snapshot too large: " + size[0] + " bytes");
+		}
+		File tmpFile = new File(directory, SNAPSHOT_FILE + ".tmp");
+		Files.deleteIfExists(tmpFile.toPath());
+		try (RandomAccessFile file = new RandomAccessFile(tmpFile, "rw"); FileChannel channel = file.getChannel()) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size[0]);
+			buffer.putInt(SNAPSHOT_MAGIC);
+			buffer.putInt(SNAPSHOT_VERSION);
+			buffer.putLong(generation);
+			buffer.putInt((int) size[1]);
+			delegate.forEachBucket((serverName, intervalSeconds, bucketUtc, count, cpuLoadValue, memoryLoadValue) -> {
+				byte[] name = encodedName(serverName);
+				buffer.putShort((short) name.length);
+				buffer.put(name);
+				buffer.putInt((int) intervalSeconds);
+				buffer.putLong(bucketUtc);
+				buffer.putInt(count);
+				buffer.putDouble(cpuLoadValue);
+				buffer.putDouble(memoryLoadValue);
+			});
+			ByteBuffer content = buffer.duplicate();
+			content.flip();
+			crc.reset();
+			crc.update(content);
+			buffer.putInt((int) crc.getValue());
+			buffer.force();
+		}
+		Files.move(tmpFile.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return the first log generation that is not part of the snapshot, 0 if there is no snapshot
+	 *
+	 * Maps the snapshot file and restores every bucket into the delegate.
+	 */
+	private long readSnapshot() throws IOException {
+		File file = new File(directory, SNAPSHOT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < SNAPSHOT_HEADER + 4 || buffer.getInt(0) != SNAPSHOT_MAGIC
+					|| buffer.getInt(4) != SNAPSHOT_VERSION) {
+				throw new IOException("not a snapshot file: " + file);
+			}
+			ByteBuffer content = buffer.duplicate();
+			content.limit(buffer.limit() - 4);
+			crc.reset();
+			crc.update(content);
+			if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+				throw new IOException("snapshot checksum mismatch: " + file);
+			}
+			buffer.position(4 + 4);
+			long generation = buffer.getLong();
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				byte[] name = new byte[buffer.getShort()];
+				buffer.get(name);
+				int intervalSeconds = buffer.getInt();
+				long bucketUtc = buffer.getLong();
+				int bucketCount = buffer.getInt();
+				double cpuLoadValue = buffer.getDouble();
+				double memoryLoadValue = buffer.getDouble();
+				delegate.restoreBucket(new String(name, StandardCharsets.UTF_8), intervalSeconds, bucketUtc,
+						bucketCount, cpuLoadValue, memoryLoadValue);
+			}
+			return generation;
+		}
+	}
+
+	private byte[] encodedName(String serverName) {
+		return nameBytes.computeIfAbsent(serverName, name -> name.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private File walFile(long generation) {
+		return new File(directory, WAL_PREFIX + generation + WAL_SUFFIX);
+	}
+
+	/**
+	 * @return the generations of all log files in the directory, oldest first
+	 */
+	private List<Long> walGenerations() {
+		List<Long> generations = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (null != names) {
+			for (String name : names) {
+				if (name.startsWith(WAL_PREFIX) && name.endsWith(WAL_SUFFIX)) {
+					try {
+						generations.add(Long.parseLong(name.substring(WAL_PREFIX.length(),
+								name.length() - WAL_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						logger.warn("ignoring unexpected file " + name + " in " + directory);
+					}
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName) {
+		return delegate.getDataForLast60Minutes(serverName);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName, long timestampUtc) {
+		return delegate.getDataForLast60Minutes(serverName, timestampUtc);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast24Hours(String serverName) {
+		return delegate.getDataForLast24Hours(serverName);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast24Hours(String serverName, long timestampUtc) {
+		return delegate.getDataForLast24Hours(serverName, timestampUtc);
+	}
+
+	@Override
+	public void forEachBucket(BucketVisitor visitor) {
+		delegate.forEachBucket(visitor);
+	}
+
+	@Override
+	public ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds) {
+		return delegate.getData(serverName, fromUtc, toUtc, stepSeconds);
+	}
+
+	@Override
+	public RollupRecord getRollup(String groupName, long intervalSeconds, long bucketUtc) {
+		return delegate.getRollup(groupName, intervalSeconds, bucketUtc);
+	}
+
+	@Override
+	public int getServerCount() {
+		return delegate.getServerCount();
+	}
+
+	@Override
+	public long getBucketCount() {
+		return delegate.getBucketCount();
+	}
+
+	@Override
+	public Stream<String> serverNames() {
+		return delegate.serverNames();
+	}
+
+	@Override
+	public void restoreBucket(String serverName, long intervalSeconds, long bucketUtc, int count,
+			double cpuLoadValue, double memoryLoadValue) {
+		delegate.restoreBucket(serverName, intervalSeconds, bucketUtc, count, cpuLoadValue, memoryLoadValue);
+	}
+
+}
@@ -0,0 +1,143 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * Streaming decoder for the buckets written by GorillaEncoder. Every call to next() decodes one bucket into the
+ * fields, nothing is allocated per bucket.
+ */
+final class GorillaDecoder {
+
+	private final long intervalSeconds;
+
+	private final byte[] data;
+
+	private final int bucketCount;
+
+	private long position;
+
+	private int decoded;
+
+	private long previousDelta = 1;
+
+	private long cpuLoadBits;
+
+	private int cpuLoadLeading;
+
+	private int cpuLoadTrailing;
+
+	private long memoryLoadBits;
+
+	private int memoryLoadLeading;
+
+	private int memoryLoadTrailing;
+
+	long bucketUtc;
+
+	int count;
+
+	double cpuLoadValue;
+
+	double memoryLoadValue;
+
+	/**
+	 * @param intervalSeconds
+	 * @param data the encoded bits
+	 * @param bucketCount number of buckets to decode
+	 */
+	GorillaDecoder(long intervalSeconds, byte[] data, int bucketCount) {
+		this.intervalSeconds = intervalSeconds;
+		this.data = data;
+		this.bucketCount = bucketCount;
+	}
+
+	/**
+	 * @return false if all buckets have been decoded, otherwise decodes the next bucket into the fields
+	 */
+	boolean next() {
+		if (decoded == bucketCount) {
+			return false;
+		}
+		if (decoded == 0) {
+			bucketUtc = readBits(64);
+			count = (int) readBits(32);
+			cpuLoadBits = readBits(64);
+			memoryLoadBits = readBits(64);
+		} else {
+			long delta = previousDelta + readDeltaOfDelta();
+			bucketUtc += delta * intervalSeconds;
+			previousDelta = delta;
+			if (readBits(1) != 0) {
+				count = (int) readBits(32);
+			}
+			if (readBits(1) != 0) {
+				if (readBits(1) != 0) {
+					cpuLoadLeading = (int) readBits(5);
+					int meaningful = (int) readBits(6);
+					cpuLoadTrailing = 64 - cpuLoadLeading - (meaningful == 0 ? 64 : meaningful);
+				}
+				cpuLoadBits ^= readBits(64 - cpuLoadLeading - cpuLoadTrailing) << cpuLoadTrailing;
+			}
+			if (readBits(1) != 0) {
+				if (readBits(1) != 0) {
+					memoryLoadLeading = (int) readBits(5);
+					int meaningful = (int) readBits(6);
+					memoryLoadTrailing = 64 - memoryLoadLeading - (meaningful == 0 ? 64 : meaningful);
+				}
+				memoryLoadBits ^= readBits(64 - memoryLoadLeading - memoryLoadTrailing) << memoryLoadTrailing;
+			}
+		}
+		cpuLoadValue = Double.longBitsToDouble(cpuLoadBits);
+		memoryLoadValue = Double.longBitsToDouble(memoryLoadBits);
+		decoded++;
+		return true;
+	}
+
+	private long readDeltaOfDelta() {
+		if (readBits(1) == 0) {
+			return 0;
+		}
+		if (readBits(1) == 0) {
+			return signExtend(readBits(7), 7);
+		}
+		if (readBits(1) == 0) {
+			return signExtend(readBits(9), 9);
+		}
+		if (readBits(1) == 0) {
+			return signExtend(readBits(12), 12);
+		}
+		return readBits(64);
+	}
+
+	private static long signExtend(long value, int bits) {
+		return (value << (64 - bits)) >> (64 - bits);
+	}
+
+	/**
+	 * @param bits number of bits to read, at most 64
+	 * @return the bits, most significant first
+	 */
+	private long readBits(int bits) {
+		int index = (int) (position >>> 3);
+		int offset = (int) (position & 7);
+		if (offset + bits <= 64 && index + 8 <= data.length) {
+			// the common case, all bits are within the next 8 bytes
+			long word = 0;
+			for (int i = 0; i < 8; i++) {
+				word = (word << 8) | (data[index + i] & 0xff);
+			}
+			position += bits;
+			return bits == 0 ? 0 : (word << offset) >>> (64 - bits);
+		}
+		long value = 0;
+		while (bits > 0) {
+			int available = 8 - (int) (position & 7);
+			int n = Math.min(available, bits);
+			int chunk = ((data[(int) (position >>> 3)] & 0xff) >>> (available - n)) & ((1 << n) - 1);
+			value = (value << n) | chunk;
+			bits -= n;
+			position += n;
+		}
+		return value;
+	}
+}
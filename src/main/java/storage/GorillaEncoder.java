@@ -0,0 +1,174 @@
+package storage;
+
+import java.util.Arrays;
+
+/**
+ * @author alex
+ *
+ * Compresses a time-ordered stream of buckets of one resolution in the style of Facebook's Gorilla.
+ *
+ * Timestamps are counted in intervals and stored as delta-of-delta, so a run of consecutive buckets costs one bit
+ * per bucket. The count is stored as a single bit when it repeats. The cpuLoad and memoryLoad sums are XORed with
+ * the previous value and only the meaningful bits of the result are written, reusing the previous leading and
+ * trailing zero counts when they fit.
+ *
+ * The first bucket is written in full, so a block can be decoded without any outside state. Bits are only ever
+ * ORed into zeroed bytes, which lets readers decode everything up to a length published earlier while the writer
+ * keeps appending, see ColdTier.
+ */
+final class GorillaEncoder {
+
+	private final long intervalSeconds;
+
+	private byte[] data = new byte[64];
+
+	private long bitLength;
+
+	private int bucketCount;
+
+	private long firstUtc;
+
+	private long previousUtc;
+
+	private long previousDelta;
+
+	private int previousCount;
+
+	private final XorState cpuLoad = new XorState();
+
+	private final XorState memoryLoad = new XorState();
+
+	/**
+	 * Previous value and zero counts of one XOR encoded column.
+	 */
+	private static final class XorState {
+		private long previousBits;
+		private int previousLeading = -1;
+		private int previousTrailing;
+	}
+
+	GorillaEncoder(long intervalSeconds) {
+		this.intervalSeconds = intervalSeconds;
+	}
+
+	/**
+	 * @param bucketUtc start of the interval, later than the previous bucket
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 */
+	void append(long bucketUtc, int count, double cpuLoadValue, double memoryLoadValue) {
+		if (bucketCount == 0) {
+			firstUtc = bucketUtc;
+			writeBits(bucketUtc, 64);
+			writeBits(count, 32);
+			previousCount = count;
+			previousDelta = 1;
+		} else {
+			long delta = (bucketUtc - previousUtc) / intervalSeconds;
+			writeDeltaOfDelta(delta - previousDelta);
+			previousDelta = delta;
+			if (count == previousCount) {
+				writeBits(0, 1);
+			} else {
+				writeBits(1, 1);
+				writeBits(count, 32);
+				previousCount = count;
+			}
+		}
+		writeXor(cpuLoad, Double.doubleToRawLongBits(cpuLoadValue));
+		writeXor(memoryLoad, Double.doubleToRawLongBits(memoryLoadValue));
+		previousUtc = bucketUtc;
+		bucketCount++;
+	}
+
+	private void writeDeltaOfDelta(long deltaOfDelta) {
+		if (deltaOfDelta == 0) {
+			writeBits(0, 1);
+		} else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+			writeBits(0b10, 2);
+			writeBits(deltaOfDelta, 7);
+		} else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+			writeBits(0b110, 3);
+			writeBits(deltaOfDelta, 9);
+		} else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+			writeBits(0b1110, 4);
+			writeBits(deltaOfDelta, 12);
+		} else {
+			writeBits(0b1111, 4);
+			writeBits(deltaOfDelta, 64);
+		}
+	}
+
+	private void writeXor(XorState state, long bits) {
+		if (bucketCount == 0) {
+			writeBits(bits, 64);
+			state.previousBits = bits;
+			return;
+		}
+		long xor = bits ^ state.previousBits;
+		state.previousBits = bits;
+		if (xor == 0) {
+			writeBits(0, 1);
+			return;
+		}
+		writeBits(1, 1);
+		int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+		int trailing = Long.numberOfTrailingZeros(xor);
+		if (state.previousLeading >= 0 && leading >= state.previousLeading && trailing >= state.previousTrailing) {
+			writeBits(0, 1);
+			writeBits(xor >>> state.previousTrailing, 64 - state.previousLeading - state.previousTrailing);
+		} else {
+			int meaningful = 64 - leading - trailing;
+			writeBits(1, 1);
+			writeBits(leading, 5);
+			// 64 meaningful bits do not fit in 6 bits and are written as 0
+			writeBits(meaningful & 63, 6);
+			writeBits(xor >>> trailing, meaningful);
+			state.previousLeading = leading;
+			state.previousTrailing = trailing;
+		}
+	}
+
+	/**
+	 * @param value
+	 * @param bits number of low bits of value to write, most significant first
+	 */
+	private void writeBits(long value, int bits) {
+		if (bitLength + bits > (long) data.length * 8) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		while (bits > 0) {
+			int free = 8 - (int) (bitLength & 7);
+			int n = Math.min(free, bits);
+			int chunk = (int) ((value >>> (bits - n)) & ((1 << n) - 1));
+			data[(int) (bitLength >>> 3)] |= (byte) (chunk << (free - n));
+			bits -= n;
+			bitLength += n;
+		}
+	}
+
+	/**
+	 * @return a block with the buckets appended so far. Sharing the buffer is safe because the encoder only adds
+	 * bits after the block's length.
+	 */
+	ColdBlock view() {
+		return new ColdBlock(intervalSeconds, firstUtc, previousUtc, bucketCount, data, bitLength);
+	}
+
+	/**
+	 * @return an immutable block with its own trimmed copy of the buffer
+	 */
+	ColdBlock seal() {
+		return new ColdBlock(intervalSeconds, firstUtc, previousUtc, bucketCount,
+				Arrays.copyOf(data, (int) ((bitLength + 7) >>> 3)), bitLength);
+	}
+
+	int getBucketCount() {
+		return bucketCount;
+	}
+
+	long getLastUtc() {
+		return previousUtc;
+	}
+}
@@ -1,12 +1,124 @@
 package storage;
 
+import java.util.stream.Stream;
+
+import client.ServerStatusResult;
 import entity.QueuedServerStatusMessage;
+import entity.RollupRecord;
 
 /**
  * @author alex
  *
- * Storage engine interface for MessageProcessor
+ * Storage engine interface. MessageProcessor writes through it and ServerTrack queries through it,
+ * so the engine can be swapped without touching either of them.
  */
 public interface IStatStorage {
+	/**
+	 * @param message a single measurement, or an aggregate of getCount() measurements from one minute
+	 */
 	void addToMaps(QueuedServerStatusMessage message);
+
+	/**
+	 * @param serverName
+	 * @return ServerStatusResult with the data for this server for the last 60 minutes
+	 */
+	ServerStatusResult getDataForLast60Minutes(String serverName);
+
+	/**
+	 * @param serverName
+	 * @param timestampUtc
+	 * @return ServerStatusResult with the data for this server for the last 60 minutes preceding the timestamp
+	 */
+	ServerStatusResult getDataForLast60Minutes(String serverName, long timestampUtc);
+
+	/**
+	 * @param serverName
+	 * @return ServerStatusResult with the data for this server for the last 24 hours
+	 */
+	ServerStatusResult getDataForLast24Hours(String serverName);
+
+	/**
+	 * @param serverName
+	 * @param timestampUtc
+	 * @return ServerStatusResult with the data for this server for the last 24 hours preceding the timestamp
+	 */
+	ServerStatusResult getDataForLast24Hours(String serverName, long timestampUtc);
+
+	/**
+	 * @param visitor receives every stored minute and hour bucket
+	 * 
+	 * Used to checkpoint the aggregates. Must be called from the writer thread to get a consistent view.
+	 */
+	void forEachBucket(BucketVisitor visitor);
+
+	/**
+	 * @param serverName
+	 * @param intervalSeconds 60 or 3600
+	 * @param bucketUtc start of the interval
+	 * @param count
+	 * @param cpuLoadValue
+	 * @param memoryLoadValue
+	 * 
+	 * Puts a bucket previously obtained from forEachBucket back, replacing whatever the bucket held.
+	 */
+	void restoreBucket(String serverName, long intervalSeconds, long bucketUtc, int count, double cpuLoadValue,
+			double memoryLoadValue);
+
+	/**
+	 * @param serverName
+	 * @param fromUtc start of the range, rounded down to a multiple of stepSeconds
+	 * @param toUtc end of the range, exclusive
+	 * @param stepSeconds length of every interval, a positive multiple of 60
+	 * @return ServerStatusResult with one entry per interval, oldest first
+	 * @throws IllegalArgumentException for an invalid step, an empty range or too many intervals
+	 */
+	ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds);
+
+	/**
+	 * @param groupName the rollup group, null for the whole fleet
+	 * @param intervalSeconds 60 or 3600
+	 * @param bucketUtc start of the interval
+	 * @return the rollup of all servers of the group in this storage, or null if there is none. Engines that do
+	 * not keep rollups always return null.
+	 */
+	default RollupRecord getRollup(String groupName, long intervalSeconds, long bucketUtc) {
+		return null;
+	}
+
+	/**
+	 * @return the names of all servers that currently have data. The stream is weakly consistent: servers added or
+	 * removed while it is consumed may or may not show up.
+	 */
+	Stream<String> serverNames();
+
+	/**
+	 * @return the number of servers currently stored
+	 */
+	default int getServerCount() {
+		return (int) serverNames().count();
+	}
+
+	/**
+	 * @return the number of buckets currently stored, in every tier. Read for metrics, so engines that can should
+	 * answer without visiting every bucket.
+	 */
+	default long getBucketCount() {
+		long[] count = new long[1];
+		forEachBucket((serverName, intervalSeconds, bucketUtc, measurements, cpuLoadValue, memoryLoadValue) -> {
+			count[0]++;
+		});
+		return count[0];
+	}
+
+	/**
+	 * Called by the writer after every batch of messages. Storage engines that buffer writes commit them here.
+	 */
+	default void flush() {
+	}
+
+	/**
+	 * Called once the writer has stopped. Releases files and other resources.
+	 */
+	default void close() {
+	}
 }
@@ -0,0 +1,19 @@
+package storage;
+
+import entity.QueuedServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Receives the samples that StatStorage rejected as late under LateDataPolicy.SIDE_CHANNEL. Called on the writer
+ * thread, so it should be quick, and the message object is reused once it returns: copy what is needed.
+ */
+@FunctionalInterface
+public interface LateDataHandler {
+
+	/**
+	 * @param message the late sample
+	 * @param watermarkUtc the watermark of its server when it arrived
+	 */
+	void late(QueuedServerStatusMessage message, long watermarkUtc);
+}
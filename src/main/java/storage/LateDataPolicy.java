@@ -0,0 +1,25 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * What StatStorage does with a sample older than the watermark of its server, see RetentionPolicy.
+ */
+public enum LateDataPolicy {
+
+	/**
+	 * Add the sample to its bucket like any other. Late samples are only counted and no bucket is ever sealed.
+	 */
+	ACCEPT,
+
+	/**
+	 * Discard the sample. Buckets behind the watermark are sealed.
+	 */
+	DROP,
+
+	/**
+	 * Pass the sample to the LateDataHandler of the RetentionPolicy instead of storing it. Buckets behind the
+	 * watermark are sealed.
+	 */
+	SIDE_CHANNEL
+}
@@ -0,0 +1,58 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * Validation and tier selection shared by the range queries of the storage engines.
+ */
+final class RangeQuery {
+
+	/**
+	 * Upper limit for the number of intervals in one result.
+	 */
+	static final int MAX_STEPS = 100000;
+
+	private RangeQuery() {
+	}
+
+	/**
+	 * @param fromUtc
+	 * @param toUtc
+	 * @param stepSeconds
+	 * @return the number of intervals of the result
+	 * @throws IllegalArgumentException if the step is not a positive multiple of 60, the range is empty or the
+	 * result would have more than MAX_STEPS intervals
+	 */
+	static int steps(long fromUtc, long toUtc, long stepSeconds) {
+		if (stepSeconds <= 0 || stepSeconds % 60 != 0) {
+			throw new IllegalArgumentException("step must be a positive multiple of 60 seconds: " + stepSeconds);
+		}
+		if (toUtc <= fromUtc) {
+			throw new IllegalArgumentException("empty range from " + fromUtc + " to " + toUtc);
+		}
+		long startUtc = alignDown(fromUtc, stepSeconds);
+		long steps = (toUtc - startUtc + stepSeconds - 1) / stepSeconds;
+		if (steps > MAX_STEPS) {
+			throw new IllegalArgumentException("range has " + steps + " steps, at most " + MAX_STEPS + " allowed");
+		}
+		return (int) steps;
+	}
+
+	/**
+	 * @param stepSeconds a multiple of 60
+	 * @param coarsestTierSeconds interval of the coarsest tier the engine keeps
+	 * @return the interval of the coarsest tier that divides the step
+	 */
+	static long tierFor(long stepSeconds, long coarsestTierSeconds) {
+		for (long tierSeconds : new long[] { 86400, 3600 }) {
+			if (tierSeconds <= coarsestTierSeconds && stepSeconds % tierSeconds == 0) {
+				return tierSeconds;
+			}
+		}
+		return 60;
+	}
+
+	static long alignDown(long timestampUtc, long stepSeconds) {
+		return Math.floorDiv(timestampUtc, stepSeconds) * stepSeconds;
+	}
+}
@@ -0,0 +1,151 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * How long StatStorage keeps data.
+ * 
+ * Bucket retention is measured back from the newest bucket of the same server and resolution, so history that is
+ * replayed with old timestamps is not thrown away before it can be queried. Idle servers are measured in wall clock
+ * time since their last report.
+ * 
+ * The minute and hour defaults keep exactly what getDataForLast60Minutes and getDataForLast24Hours can return.
+ * Day buckets are only used by range queries and are kept for 31 days.
+ * 
+ * With a cold retention, minute and hour buckets that age out are not dropped but sealed into compressed blocks
+ * that range queries can still read, see ColdTier.
+ * 
+ * Every server also has an event-time watermark: its newest timestamp minus the allowed lateness. Samples older
+ * than the watermark are late and are handled according to the LateDataPolicy. Unless the policy is ACCEPT, no
+ * sample can change a bucket that ends at or before the watermark, so such buckets are sealed and read without
+ * locking, see Bucket.
+ */
+public class RetentionPolicy {
+
+	/**
+	 * Minute buckets older than this, relative to the server's newest minute bucket, are removed.
+	 */
+	private long minuteRetentionSeconds = 3600;
+
+	/**
+	 * Hour buckets older than this, relative to the server's newest hour bucket, are removed.
+	 */
+	private long hourRetentionSeconds = 24 * 3600;
+
+	/**
+	 * Day buckets older than this, relative to the server's newest day bucket, are removed.
+	 */
+	private long dayRetentionSeconds = 31 * 24 * 3600;
+
+	/**
+	 * Minute and hour buckets are kept this much longer in compressed cold blocks, 0 to drop them right away.
+	 */
+	private long coldRetentionSeconds = 0;
+
+	/**
+	 * Servers that have not reported for this long are removed completely.
+	 */
+	private long serverIdleSeconds = 24 * 3600;
+
+	/**
+	 * How often the writer looks for idle servers.
+	 */
+	private long sweepIntervalSeconds = 60;
+
+	/**
+	 * Samples this much older than the newest sample of their server are still on time.
+	 */
+	private long allowedLatenessSeconds = 3600;
+
+	/**
+	 * What to do with samples that are later than that.
+	 */
+	private LateDataPolicy lateDataPolicy = LateDataPolicy.ACCEPT;
+
+	/**
+	 * Receives late samples with LateDataPolicy.SIDE_CHANNEL, null to drop them.
+	 */
+	private LateDataHandler lateDataHandler;
+
+	public long getMinuteRetentionSeconds() {
+		return minuteRetentionSeconds;
+	}
+
+	public void setMinuteRetentionSeconds(long minuteRetentionSeconds) {
+		this.minuteRetentionSeconds = minuteRetentionSeconds;
+	}
+
+	public long getHourRetentionSeconds() {
+		return hourRetentionSeconds;
+	}
+
+	public void setHourRetentionSeconds(long hourRetentionSeconds) {
+		this.hourRetentionSeconds = hourRetentionSeconds;
+	}
+
+	public long getDayRetentionSeconds() {
+		return dayRetentionSeconds;
+	}
+
+	public void setDayRetentionSeconds(long dayRetentionSeconds) {
+		this.dayRetentionSeconds = dayRetentionSeconds;
+	}
+
+	public long getColdRetentionSeconds() {
+		return coldRetentionSeconds;
+	}
+
+	public void setColdRetentionSeconds(long coldRetentionSeconds) {
+		this.coldRetentionSeconds = coldRetentionSeconds;
+	}
+
+	public long getServerIdleSeconds() {
+		return serverIdleSeconds;
+	}
+
+	public void setServerIdleSeconds(long serverIdleSeconds) {
+		this.serverIdleSeconds = serverIdleSeconds;
+	}
+
+	public long getSweepIntervalSeconds() {
+		return sweepIntervalSeconds;
+	}
+
+	public void setSweepIntervalSeconds(long sweepIntervalSeconds) {
+		this.sweepIntervalSeconds = sweepIntervalSeconds;
+	}
+
+	public long getAllowedLatenessSeconds() {
+		return allowedLatenessSeconds;
+	}
+
+	public void setAllowedLatenessSeconds(long allowedLatenessSeconds) {
+		this.allowedLatenessSeconds = allowedLatenessSeconds;
+	}
+
+	public LateDataPolicy getLateDataPolicy() {
+		return lateDataPolicy;
+	}
+
+	public void setLateDataPolicy(LateDataPolicy lateDataPolicy) {
+		this.lateDataPolicy = lateDataPolicy;
+	}
+
+	public LateDataHandler getLateDataHandler() {
+		return lateDataHandler;
+	}
+
+	public void setLateDataHandler(LateDataHandler lateDataHandler) {
+		this.lateDataHandler = lateDataHandler;
+	}
+
+	@Override
+	public String toString() {
+		return "RetentionPolicy [minuteRetentionSeconds=" + minuteRetentionSeconds + ", hourRetentionSeconds="
+				+ hourRetentionSeconds + ", dayRetentionSeconds=" + dayRetentionSeconds + ", coldRetentionSeconds="
+				+ coldRetentionSeconds
+				+ ", serverIdleSeconds=" + serverIdleSeconds + ", sweepIntervalSeconds=" + sweepIntervalSeconds
+				+ ", allowedLatenessSeconds=" + allowedLatenessSeconds + ", lateDataPolicy=" + lateDataPolicy + "]";
+	}
+
+}
@@ -0,0 +1,191 @@
+package storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.Stream;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+
+/**
+ * @author alex
+ *
+ * Fixed-size statistics storage for the server data.
+ * 
+ * Each server gets two circular arrays of primitive buckets, 60 for minutes and 24 for hours. A bucket is reused once
+ * its interval falls out of the window, so memory per server is constant and nothing needs to be evicted.
+ * Messages that are older than the oldest interval still kept in the ring are ignored.
+ * 
+ * Queries are a straight walk over the ring. Writers take the per-server write lock, readers use an optimistic read
+ * and only fall back to the read lock if a write happened while they were copying the buckets.
+ *
+ */
+public class RingStatStorage implements IStatStorage {
+
+	static final int MINUTE_BUCKETS = 60;
+
+	static final int HOUR_BUCKETS = 24;
+
+	/**
+	 * Minute and hour rings for one server, guarded by the same lock.
+	 */
+	private static class ServerRings {
+		private final StampedLock lock = new StampedLock();
+		private final BucketRing minutes = new BucketRing(MINUTE_BUCKETS, 60);
+		private final BucketRing hours = new BucketRing(HOUR_BUCKETS, 3600);
+	}
+
+	private ConcurrentHashMap<String, ServerRings> servers;
+
+	/**
+	 * The same rings by server ID, for the writer.
+	 */
+	private final ServerIndex<ServerRings> byId = new ServerIndex<ServerRings>();
+
+	public RingStatStorage() {
+		servers = new ConcurrentHashMap<String, ServerRings>();
+	}
+
+	/* 
+	 * @param message - the message that contains server status data
+	 * 
+	 * Adds data from the message to both minute and hour rings
+	 */
+	@Override
+	public void addToMaps(QueuedServerStatusMessage message) {
+		ServerRings rings = byId.get(message.getServerId(), message.getServerName());
+		if (null == rings) {
+			rings = servers.computeIfAbsent(message.getServerName(), name -> new ServerRings());
+			byId.put(message.getServerId(), message.getServerName(), rings);
+		}
+		long stamp = rings.lock.writeLock();
+		try {
+			rings.minutes.add(message.getTimestampUtc(), message.getCount(), message.getCpuLoad(), message.getRamLoad());
+			rings.hours.add(message.getTimestampUtc(), message.getCount(), message.getCpuLoad(), message.getRamLoad());
+		} finally {
+			rings.lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName) {
+		return getDataForLast60Minutes(serverName, System.currentTimeMillis() / 1000);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName, long timestampUtc) {
+		ServerRings rings = servers.get(serverName);
+		return read(serverName, rings, rings == null ? null : rings.minutes, MINUTE_BUCKETS, 60, timestampUtc);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast24Hours(String serverName) {
+		return getDataForLast24Hours(serverName, System.currentTimeMillis() / 1000);
+	}
+
+	@Override
+	public ServerStatusResult getDataForLast24Hours(String serverName, long timestampUtc) {
+		ServerRings rings = servers.get(serverName);
+		return read(serverName, rings, rings == null ? null : rings.hours, HOUR_BUCKETS, 3600, timestampUtc);
+	}
+
+	/**
+	 * Reads the hour ring for steps that are whole hours and the minute ring otherwise, so only the last 60 minutes
+	 * and the last 24 hours can have data.
+	 */
+	@Override
+	public ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds) {
+		int steps = RangeQuery.steps(fromUtc, toUtc, stepSeconds);
+		long tierSeconds = RangeQuery.tierFor(stepSeconds, 3600);
+		long startUtc = RangeQuery.alignDown(fromUtc, stepSeconds);
+		double[] values = new double[steps * 3];
+		ServerRings rings = servers.get(serverName);
+		if (null != rings) {
+			BucketRing ring = tierSeconds == 60 ? rings.minutes : rings.hours;
+			long stamp = rings.lock.readLock();
+			try {
+				for (int i = 0; i < steps; i++) {
+					long intervalUtc = startUtc + i * stepSeconds;
+					for (long bucketUtc = intervalUtc; bucketUtc < intervalUtc + stepSeconds; bucketUtc += tierSeconds) {
+						ring.addTo(bucketUtc, values, i * 3);
+					}
+				}
+			} finally {
+				rings.lock.unlockRead(stamp);
+			}
+		}
+		List<ServerStatusData> result = new ArrayList<ServerStatusData>(steps);
+		for (int i = 0; i < steps; i++) {
+			double count = values[i * 3];
+			result.add(new ServerStatusData(startUtc + i * stepSeconds, count == 0 ? 0.0 : values[i * 3 + 1] / count,
+					count == 0 ? 0.0 : values[i * 3 + 2] / count));
+		}
+		return new ServerStatusResult(serverName, result);
+	}
+
+	@Override
+	public Stream<String> serverNames() {
+		return servers.keySet().stream();
+	}
+
+	@Override
+	public void forEachBucket(BucketVisitor visitor) {
+		servers.forEach((serverName, rings) -> {
+			long stamp = rings.lock.readLock();
+			try {
+				rings.minutes.forEach(serverName, visitor);
+				rings.hours.forEach(serverName, visitor);
+			} finally {
+				rings.lock.unlockRead(stamp);
+			}
+		});
+	}
+
+	@Override
+	public void restoreBucket(String serverName, long intervalSeconds, long bucketUtc, int count,
+			double cpuLoadValue, double memoryLoadValue) {
+		if (intervalSeconds != 60 && intervalSeconds != 3600) {
+			// only minute and hour rings
+			return;
+		}
+		ServerRings rings = servers.computeIfAbsent(serverName, name -> new ServerRings());
+		long stamp = rings.lock.writeLock();
+		try {
+			(intervalSeconds == 60 ? rings.minutes : rings.hours).restore(bucketUtc, count, cpuLoadValue,
+					memoryLoadValue);
+		} finally {
+			rings.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param serverName
+	 * @param rings the server's rings, null if the server never reported
+	 * @param ring the ring to read
+	 * @param size number of buckets in the ring
+	 * @param intervalSeconds bucket width
+	 * @param timestampUtc
+	 * @return the averages for the ring window ending at the given timestamp
+	 */
+	private ServerStatusResult read(String serverName, ServerRings rings, BucketRing ring, int size,
+			long intervalSeconds, long timestampUtc) {
+		double[] values = new double[size * 3];
+		if (null != rings) {
+			long stamp = rings.lock.tryOptimisticRead();
+			ring.copyTo(timestampUtc, values);
+			if (!rings.lock.validate(stamp)) {
+				stamp = rings.lock.readLock();
+				try {
+					ring.copyTo(timestampUtc, values);
+				} finally {
+					rings.lock.unlockRead(stamp);
+				}
+			}
+		}
+		return new ServerStatusResult(serverName, BucketRing.toResult(timestampUtc, size, intervalSeconds, values));
+	}
+
+}
@@ -0,0 +1,88 @@
+package storage;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import entity.RollupRecord;
+import entity.ServerStatusRecord;
+
+/**
+ * @author alex
+ *
+ * Minute and hour rollup buckets for the whole fleet or one group of servers. Maintained by the StatStorage writer
+ * whenever a server bucket changes, so a rollup query reads one record per interval no matter how many servers
+ * there are. Records are updated in place while holding their monitor, which is held by every server of the group
+ * only for a few additions, and readers get a copy taken under the same monitor.
+ *
+ * Like Bucket, the records do not use adders: a rollup average divides the sum of the per-server averages by the
+ * number of servers, and a reader must get both from the same moment. The sealed state of a server bucket makes
+ * its rollup share final as well, since no further update can reach the record for it.
+ */
+class RollupSeries {
+
+	static class RollupMap {
+
+		final ConcurrentHashMap<Long, RollupRecord> buckets = new ConcurrentHashMap<Long, RollupRecord>();
+
+		volatile long newestUtc = Long.MIN_VALUE;
+
+		/**
+		 * @param bucketUtc start of the interval
+		 * @param beforeCount the server's bucket count before the update, 0 if it had none
+		 * @param beforeCpuLoadValue the server's cpuLoad sum before the update
+		 * @param beforeMemoryLoadValue the server's memoryLoad sum before the update
+		 * @param after the server's bucket after the update
+		 * @param cpuLoadMax highest cpuLoad of the new measurements
+		 * @param memoryLoadMax highest memoryLoad of the new measurements
+		 * @param retentionSeconds rollups are kept as long as server buckets of the same resolution
+		 */
+		void update(long bucketUtc, int beforeCount, double beforeCpuLoadValue, double beforeMemoryLoadValue,
+				ServerStatusRecord after, double cpuLoadMax, double memoryLoadMax, long retentionSeconds) {
+			if (bucketUtc > newestUtc) {
+				advance(bucketUtc, retentionSeconds);
+			} else if (bucketUtc <= newestUtc - retentionSeconds) {
+				return;
+			}
+			RollupRecord rollupRecord = buckets.get(bucketUtc);
+			if (null == rollupRecord) {
+				rollupRecord = buckets.computeIfAbsent(bucketUtc, key -> new RollupRecord());
+			}
+			synchronized (rollupRecord) {
+				rollupRecord.update(beforeCount, beforeCpuLoadValue, beforeMemoryLoadValue, after, cpuLoadMax,
+						memoryLoadMax);
+			}
+		}
+
+		private synchronized void advance(long bucketUtc, long retentionSeconds) {
+			if (bucketUtc <= newestUtc) {
+				return;
+			}
+			newestUtc = bucketUtc;
+			long cutoffUtc = newestUtc - retentionSeconds;
+			Iterator<Long> iterator = buckets.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next() <= cutoffUtc) {
+					iterator.remove();
+				}
+			}
+		}
+
+		/**
+		 * @param bucketUtc
+		 * @return a copy of the rollup of this interval, null if there is none
+		 */
+		RollupRecord snapshot(long bucketUtc) {
+			RollupRecord rollupRecord = buckets.get(bucketUtc);
+			if (null == rollupRecord) {
+				return null;
+			}
+			synchronized (rollupRecord) {
+				return new RollupRecord(rollupRecord);
+			}
+		}
+	}
+
+	final RollupMap minutes = new RollupMap();
+
+	final RollupMap hours = new RollupMap();
+}
@@ -0,0 +1,71 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * @author alex
+ *
+ * Hands out ColumnSegments carved from large direct buffers and takes them back when their buckets age out.
+ *
+ * Direct memory is allocated a slab at a time and never given back to the JVM, released segments are reused
+ * before a new slab is allocated. This keeps the number of direct buffers small and the bucket data out of the
+ * reach of the garbage collector.
+ *
+ * Only the writer allocates and releases segments, so the pool does no locking.
+ */
+final class SegmentPool {
+
+	static final int SEGMENTS_PER_SLAB = 256;
+
+	private final ArrayDeque<ColumnSegment> free = new ArrayDeque<ColumnSegment>();
+
+	private int slabCount;
+
+	private int segmentsInUse;
+
+	/**
+	 * @param baseUtc
+	 * @param intervalSeconds
+	 * @return an empty segment
+	 */
+	ColumnSegment allocate(long baseUtc, long intervalSeconds) {
+		if (free.isEmpty()) {
+			allocateSlab();
+		}
+		ColumnSegment segment = free.pop();
+		segment.reset(baseUtc, intervalSeconds);
+		segmentsInUse++;
+		return segment;
+	}
+
+	/**
+	 * @param segment a segment that is no longer referenced by any series
+	 */
+	void release(ColumnSegment segment) {
+		free.push(segment);
+		segmentsInUse--;
+	}
+
+	private void allocateSlab() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(SEGMENTS_PER_SLAB * ColumnSegment.BYTES);
+		for (int i = 0; i < SEGMENTS_PER_SLAB; i++) {
+			slab.limit((i + 1) * ColumnSegment.BYTES);
+			slab.position(i * ColumnSegment.BYTES);
+			free.push(new ColumnSegment(slab.slice().order(ByteOrder.nativeOrder())));
+		}
+		slabCount++;
+	}
+
+	/**
+	 * @return the direct memory allocated so far
+	 */
+	long getAllocatedBytes() {
+		return (long) slabCount * SEGMENTS_PER_SLAB * ColumnSegment.BYTES;
+	}
+
+	int getSegmentsInUse() {
+		return segmentsInUse;
+	}
+}
@@ -0,0 +1,29 @@
+package storage;
+
+/**
+ * @author alex
+ *
+ * Assigns servers to groups for the group rollups of StatStorage. Called once per server, when the server is first
+ * seen, so it does not have to be fast.
+ */
+@FunctionalInterface
+public interface ServerGroupMapper {
+
+	/**
+	 * @param serverName
+	 * @return the group of this server, or null if it is only part of the fleet rollup
+	 */
+	String groupOf(String serverName);
+
+	/**
+	 * @param separator
+	 * @return a mapper that uses the part of the name before the first separator as the group, so "web-01" is in
+	 * group "web" with separator "-". Names without the separator have no group.
+	 */
+	static ServerGroupMapper bySeparator(String separator) {
+		return serverName -> {
+			int index = serverName.indexOf(separator);
+			return index > 0 ? serverName.substring(0, index) : null;
+		};
+	}
+}
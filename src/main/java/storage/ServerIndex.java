@@ -0,0 +1,85 @@
+package storage;
+
+import java.util.Arrays;
+
+/**
+ * @author alex
+ *
+ * Per-server state of a storage engine indexed by the server ID of the ServerRegistry, so the ingest path finds a
+ * server with an array access instead of a hash lookup. The name-keyed map of the engine stays the source of truth
+ * for queries; this index is only a shortcut for the writers.
+ *
+ * IDs are global to a ServerTrack, so a shard only fills some slots. That costs a reference per server and shard.
+ *
+ * Lookups do not lock. Changes synchronize, they only happen when a server is first seen or evicted. A lookup that
+ * misses a change that is in progress returns null, and the engine falls back to its name-keyed map. So does a
+ * lookup with an ID that was stored for another name: every value is kept with its name, so a wrong ID cannot
+ * reach another server's state.
+ *
+ * @param <T> what the engine keeps per server
+ */
+final class ServerIndex<T> {
+
+	/**
+	 * A value with the name it was stored for. Immutable, so a lookup sees both or neither.
+	 */
+	private static final class Entry {
+
+		final String serverName;
+
+		final Object value;
+
+		Entry(String serverName, Object value) {
+			this.serverName = serverName;
+			this.value = value;
+		}
+	}
+
+	private volatile Entry[] entries = new Entry[1024];
+
+	/**
+	 * @param serverId
+	 * @param serverName
+	 * @return the value for this ID, null if there is none, the ID is -1 or the value was stored for another name
+	 */
+	@SuppressWarnings("unchecked")
+	T get(int serverId, String serverName) {
+		Entry[] current = entries;
+		if (serverId < 0 || serverId >= current.length) {
+			return null;
+		}
+		Entry entry = current[serverId];
+		// the same String instance in the common case, the name came from the same registry
+		return null != entry && (entry.serverName == serverName || entry.serverName.equals(serverName))
+				? (T) entry.value : null;
+	}
+
+	/**
+	 * @param serverId ignored if -1
+	 * @param serverName
+	 * @param value
+	 */
+	synchronized void put(int serverId, String serverName, T value) {
+		if (serverId < 0) {
+			return;
+		}
+		Entry[] current = entries;
+		if (serverId >= current.length) {
+			current = Arrays.copyOf(current, Math.max(current.length * 2, serverId + 1));
+		}
+		current[serverId] = new Entry(serverName, value);
+		entries = current;
+	}
+
+	/**
+	 * @param serverId
+	 * @param value removed only if it is still the value for this ID
+	 */
+	synchronized void remove(int serverId, T value) {
+		Entry[] current = entries;
+		if (serverId >= 0 && serverId < current.length && null != current[serverId]
+				&& current[serverId].value == value) {
+			current[serverId] = null;
+		}
+	}
+}
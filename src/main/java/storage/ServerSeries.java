@@ -0,0 +1,371 @@
+package storage;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+import entity.ServerStatusRecord;
+
+/**
+ * @author alex
+ *
+ * Everything StatStorage keeps for one server: minute, hour and day buckets, when the server last reported and its
+ * event-time watermark.
+ * Writers update the buckets in place, see Bucket. Readers only look at the bucket maps and the cached query results.
+ */
+class ServerSeries {
+
+	/**
+	 * The last query result for one resolution, with the window it covers, the bucket map version it was built
+	 * from and the buckets it was built from. Immutable, so readers can share it without locking.
+	 */
+	static final class CachedWindow {
+
+		final long endUtc;
+
+		final long version;
+
+		/**
+		 * buckets[i] is the bucket for endUtc - i * interval, null for an empty bucket
+		 */
+		final Bucket[] buckets;
+
+		/**
+		 * versions[i] is the version of buckets[i] when its entry of the result was built
+		 */
+		final long[] versions;
+
+		final ServerStatusResult result;
+
+		CachedWindow(long endUtc, long version, Bucket[] buckets, long[] versions, ServerStatusResult result) {
+			this.endUtc = endUtc;
+			this.version = version;
+			this.buckets = buckets;
+			this.versions = versions;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Buckets of one resolution, keyed by the start of the interval, plus the newest interval seen.
+	 * 
+	 * Buckets are created with computeIfAbsent and updated in place, so any number of writers can add to the map.
+	 * Only opening a new newest bucket, which trims the map, synchronizes on it, at most once per interval. A write
+	 * that races with the trim of its own bucket may be lost, but that bucket was leaving the retention window.
+	 */
+	static class BucketMap {
+
+		final ConcurrentHashMap<Long, Bucket> buckets = new ConcurrentHashMap<Long, Bucket>();
+
+		volatile long newestUtc = Long.MIN_VALUE;
+
+		/**
+		 * Incremented after every change to the buckets, so readers can tell whether a cached result is still
+		 * current.
+		 */
+		final AtomicLong version = new AtomicLong();
+
+		volatile CachedWindow cachedWindow;
+
+		/**
+		 * Compressed buckets that aged out of this map, null if there is no cold retention.
+		 */
+		ColdTier cold;
+
+		/**
+		 * Buckets that start before this have been sealed, see seal.
+		 */
+		volatile long sealedBeforeUtc = Long.MIN_VALUE;
+
+		/**
+		 * @param bucketUtc start of the interval
+		 * @param message a measurement or an aggregate of measurements
+		 * @param retentionSeconds
+		 * @param fleetRollup rollup to apply the change to, null for none
+		 * @param groupRollup rollup of the server's group to apply the change to, null for none
+		 * @param cpuLoadMax highest cpuLoad of the message, for the rollups
+		 * @param memoryLoadMax highest memoryLoad of the message, for the rollups
+		 * @return the number of buckets removed because they fell out of the retention window
+		 * 
+		 * Adds the message to the bucket. If this opens a new newest bucket, buckets older than the retention window
+		 * are removed, so the cleanup runs at most once per interval.
+		 */
+		int add(long bucketUtc, QueuedServerStatusMessage message, long retentionSeconds,
+				RollupSeries.RollupMap fleetRollup, RollupSeries.RollupMap groupRollup, double cpuLoadMax,
+				double memoryLoadMax) {
+			int removed = 0;
+			if (bucketUtc > newestUtc) {
+				removed = advance(bucketUtc, retentionSeconds);
+			} else if (bucketUtc <= newestUtc - retentionSeconds) {
+				// already outside the retention window, do not bring it back
+				return 0;
+			}
+			Bucket bucket = bucketFor(bucketUtc);
+			long stamp = bucket.writeLock();
+			if (stamp == 0) {
+				// sealed by another writer since this message passed the watermark check
+				return removed;
+			}
+			try {
+				ServerStatusRecord record = bucket.record();
+				int beforeCount = record.getCount();
+				double beforeCpuLoadValue = record.getCpuLoadValue();
+				double beforeMemoryLoadValue = record.getMemoryLoadValue();
+				if (null != message.getRecord()) {
+					record.merge(message.getRecord());
+				} else {
+					record.update(message.getCount(), message.getCpuLoad(), message.getRamLoad());
+				}
+				rollUp(bucketUtc, beforeCount, beforeCpuLoadValue, beforeMemoryLoadValue, record, fleetRollup,
+						groupRollup, cpuLoadMax, memoryLoadMax, retentionSeconds);
+			} finally {
+				bucket.unlockWrite(stamp);
+			}
+			version.incrementAndGet();
+			return removed;
+		}
+
+		/**
+		 * @param bucketUtc
+		 * @param record
+		 * @param retentionSeconds
+		 * @param fleetRollup
+		 * @param groupRollup
+		 * Replaces a bucket with a record as it is, used to restore buckets from a snapshot. The rollups get the
+		 * difference, with the average as the highest measurement, which is not stored with the bucket. A sealed
+		 * bucket is left as it is.
+		 *
+		 * Restoring trims like add does, so buckets that were cold when the snapshot was taken go back to the cold
+		 * tier, or are dropped if there is none, instead of piling up in the hot map.
+		 */
+		void restore(long bucketUtc, ServerStatusRecord record, long retentionSeconds,
+				RollupSeries.RollupMap fleetRollup, RollupSeries.RollupMap groupRollup) {
+			if (bucketUtc > newestUtc) {
+				advance(bucketUtc, retentionSeconds);
+			} else if (bucketUtc <= newestUtc - retentionSeconds) {
+				if (null != cold) {
+					restoreCold(bucketUtc, record, retentionSeconds);
+				}
+				return;
+			}
+			Bucket bucket = bucketFor(bucketUtc);
+			long stamp = bucket.writeLock();
+			if (stamp == 0) {
+				return;
+			}
+			try {
+				ServerStatusRecord before = bucket.record();
+				bucket.replace(record);
+				int count = record.getCount();
+				rollUp(bucketUtc, before.getCount(), before.getCpuLoadValue(), before.getMemoryLoadValue(), record,
+						fleetRollup, groupRollup, count == 0 ? 0.0 : record.getCpuLoadValue() / count,
+						count == 0 ? 0.0 : record.getMemoryLoadValue() / count, retentionSeconds);
+			} finally {
+				bucket.unlockWrite(stamp);
+			}
+			version.incrementAndGet();
+		}
+
+		/**
+		 * @param bucketUtc a bucket older than the hot window
+		 * @param record
+		 * @param retentionSeconds
+		 * Appends the bucket to the cold tier, under the monitor like every other append.
+		 */
+		private synchronized void restoreCold(long bucketUtc, ServerStatusRecord record, long retentionSeconds) {
+			Bucket bucket = new Bucket();
+			long stamp = bucket.writeLock();
+			bucket.replace(record);
+			bucket.unlockWrite(stamp);
+			TreeMap<Long, Bucket> aged = new TreeMap<Long, Bucket>();
+			aged.put(bucketUtc, bucket);
+			cold.append(aged, newestUtc - retentionSeconds);
+			version.incrementAndGet();
+		}
+
+		private Bucket bucketFor(long bucketUtc) {
+			Bucket bucket = buckets.get(bucketUtc);
+			return null != bucket ? bucket : buckets.computeIfAbsent(bucketUtc, key -> new Bucket());
+		}
+
+		private static void rollUp(long bucketUtc, int beforeCount, double beforeCpuLoadValue,
+				double beforeMemoryLoadValue, ServerStatusRecord after, RollupSeries.RollupMap fleetRollup,
+				RollupSeries.RollupMap groupRollup, double cpuLoadMax, double memoryLoadMax, long retentionSeconds) {
+			if (null != fleetRollup) {
+				fleetRollup.update(bucketUtc, beforeCount, beforeCpuLoadValue, beforeMemoryLoadValue, after,
+						cpuLoadMax, memoryLoadMax, retentionSeconds);
+			}
+			if (null != groupRollup) {
+				groupRollup.update(bucketUtc, beforeCount, beforeCpuLoadValue, beforeMemoryLoadValue, after,
+						cpuLoadMax, memoryLoadMax, retentionSeconds);
+			}
+		}
+
+		/**
+		 * @param watermarkUtc watermark of the server
+		 * @param intervalSeconds width of the buckets
+		 * 
+		 * Seals every bucket that ends at or before the watermark. The buckets are only scanned when the watermark
+		 * crosses into a new interval, so at most once per interval.
+		 */
+		void seal(long watermarkUtc, long intervalSeconds) {
+			long boundaryUtc = Math.floorDiv(watermarkUtc, intervalSeconds) * intervalSeconds;
+			if (boundaryUtc > sealedBeforeUtc) {
+				sealBefore(boundaryUtc);
+			}
+		}
+
+		private synchronized void sealBefore(long boundaryUtc) {
+			if (boundaryUtc <= sealedBeforeUtc) {
+				return;
+			}
+			for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+				long bucketUtc = entry.getKey();
+				if (bucketUtc < boundaryUtc && bucketUtc >= sealedBeforeUtc) {
+					entry.getValue().seal();
+				}
+			}
+			sealedBeforeUtc = boundaryUtc;
+		}
+
+		/**
+		 * @param bucketUtc
+		 * @param retentionSeconds
+		 * @return the number of buckets removed
+		 * 
+		 * Makes bucketUtc the newest bucket unless another writer got there first, and trims the map.
+		 */
+		private synchronized int advance(long bucketUtc, long retentionSeconds) {
+			if (bucketUtc <= newestUtc) {
+				return 0;
+			}
+			newestUtc = bucketUtc;
+			return removeOlderThan(bucketUtc - retentionSeconds);
+		}
+
+		/**
+		 * @param cutoffUtc
+		 * @return the number of buckets removed
+		 */
+		private int removeOlderThan(long cutoffUtc) {
+			if (null != cold) {
+				// publish the aged buckets in the cold tier before they disappear from the map, see ColdTier.snapshot
+				TreeMap<Long, Bucket> aged = new TreeMap<Long, Bucket>();
+				for (Map.Entry<Long, Bucket> entry : buckets.entrySet()) {
+					if (entry.getKey() <= cutoffUtc) {
+						aged.put(entry.getKey(), entry.getValue());
+					}
+				}
+				if (!aged.isEmpty()) {
+					cold.append(aged, cutoffUtc);
+				}
+			}
+			int removed = 0;
+			Iterator<Long> iterator = buckets.keySet().iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next() <= cutoffUtc) {
+					iterator.remove();
+					removed++;
+				}
+			}
+			if (removed > 0) {
+				version.incrementAndGet();
+			}
+			return removed;
+		}
+	}
+
+	final BucketMap minutes = new BucketMap();
+
+	final BucketMap hours = new BucketMap();
+
+	/**
+	 * Day buckets, only read by range queries.
+	 */
+	final BucketMap days = new BucketMap();
+
+	/**
+	 * Rollup group of this server, null if it only counts towards the fleet.
+	 */
+	final String group;
+
+	/**
+	 * Rollup of the server's group, looked up on the first write. Only used by writers.
+	 */
+	volatile RollupSeries groupRollup;
+
+	/**
+	 * ID of the server in the ServerRegistry, -1 until a message with an ID arrives. Only used by writers.
+	 */
+	volatile int serverId = -1;
+
+	/**
+	 * Wall clock time of the last write, used to find servers that stopped reporting.
+	 */
+	volatile long lastReportMillis;
+
+	/**
+	 * Set by the idle server sweep before it removes the series. A writer that finds it set after updating
+	 * lastReportMillis writes to a new series instead, see StatStorage.evictIdleServers.
+	 */
+	volatile boolean evicted;
+
+	/**
+	 * Newest event timestamp of the server, Long.MIN_VALUE before the first message.
+	 */
+	volatile long newestEventUtc = Long.MIN_VALUE;
+
+	/**
+	 * Samples older than this are late: newestEventUtc minus the allowed lateness, Long.MIN_VALUE before the first
+	 * message. Only moves forward.
+	 */
+	volatile long watermarkUtc = Long.MIN_VALUE;
+
+	ServerSeries(String group) {
+		this.group = group;
+	}
+
+	/**
+	 * @param timestampUtc event time of a message
+	 * @param allowedLatenessSeconds
+	 * 
+	 * Moves the watermark forward if the message is the newest so far.
+	 */
+	synchronized void advanceWatermark(long timestampUtc, long allowedLatenessSeconds) {
+		if (timestampUtc > newestEventUtc) {
+			newestEventUtc = timestampUtc;
+			watermarkUtc = Math.max(watermarkUtc, timestampUtc - allowedLatenessSeconds);
+		}
+	}
+
+	/**
+	 * @param intervalSeconds 60, 3600 or 86400
+	 * @return the buckets of this resolution
+	 */
+	BucketMap tier(long intervalSeconds) {
+		if (intervalSeconds == 60) {
+			return minutes;
+		}
+		return intervalSeconds == 3600 ? hours : days;
+	}
+
+	/**
+	 * Gives the cold blocks back to their store, used when the server is removed.
+	 */
+	void clearCold() {
+		if (null != minutes.cold) {
+			minutes.cold.clear();
+		}
+		if (null != hours.cold) {
+			hours.cold.clear();
+		}
+	}
+
+	int bucketCount() {
+		return minutes.buckets.size() + hours.buckets.size() + days.buckets.size();
+	}
+}
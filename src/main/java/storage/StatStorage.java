@@ -1,9 +1,12 @@
 package storage;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import client.ServerStatusData;
 import client.ServerStatusResult;
 import entity.QueuedServerStatusMessage;
+import entity.RollupRecord;
 import entity.ServerStatusRecord;
 
 /**
@@ -18,51 +22,116 @@ import entity.ServerStatusRecord;
  *
  * Statistics storage for the server data.
  * 
- * Minute data and hourly data are stored in 2 separate concurrent HashMaps with the server name as the key.
- * 
- * For each server, we keep a concurrent HashMap with the timestapm of the interval as the key and data object as a value.
+ * Each server has a ServerSeries holding a concurrent HashMap of minute buckets, one of hour buckets and one of day
+ * buckets, with the timestamp of the interval as the key and data object as a value.
  * Since we only need the results for the last 60 minutes by minute and 24 hours by the hour, we keep the sums by minute and by hour
  * so we only need to calculate the average when we get a request for results.
  * 
- * The data is always inserted by a single thread so there is no need for locking.
+ * Every resolution of a server caches its last query result, see window(). Dashboards that poll the same servers
+ * get a copy of the cached result until a bucket in the window changes or the window moves.
+ * 
+ * The writers also keep rollup buckets for the whole fleet and, if a ServerGroupMapper is configured, for every
+ * group of servers. Each server bucket change is applied to the rollups as a difference, so a rollup query costs
+ * one lookup per interval.
+ * 
+ * Old data is removed according to the RetentionPolicy: buckets are trimmed lazily whenever a server opens a new
+ * bucket, and servers that stopped reporting are removed by a sweep that a writer runs every sweep interval.
+ * With a cold retention, trimmed minute and hour buckets are compressed into a ColdTier instead, about 16 bytes per
+ * bucket instead of BYTES_PER_BUCKET, and range queries read them from there. Given a directory, sealed cold blocks
+ * are kept on disk.
+ * 
+ * Buckets are updated in place, each under its own lock, and readers take consistent copies without blocking the
+ * writers, see Bucket. Several threads can therefore add data, even for the same server. ServerTrack still gives
+ * every shard its own StatStorage and a single writer, so in practice the locks are never contended.
+ * 
+ * Every server has an event-time watermark, its newest timestamp minus the allowed lateness of the RetentionPolicy.
+ * Unless the LateDataPolicy is ACCEPT, samples behind the watermark are turned away, so the buckets behind it are
+ * sealed and read without any locking.
  *
  */
 public class StatStorage implements IStatStorage {
 
-	private ConcurrentHashMap<String, ConcurrentHashMap<Long, ServerStatusRecord>> minuteMap;
+	/**
+	 * Rough heap cost of one bucket: map node, boxed key, bucket with its lock, record and its two sketches. Used to
+	 * estimate reclaimed memory.
+	 */
+	static final long BYTES_PER_BUCKET = 540;
+
+	/**
+	 * Rough heap cost of an empty ServerSeries with its two maps.
+	 */
+	static final long BYTES_PER_SERVER = 400;
+
+	private ConcurrentHashMap<String, ServerSeries> servers;
+
+	/**
+	 * The same series by server ID, for the writers.
+	 */
+	private final ServerIndex<ServerSeries> byId = new ServerIndex<ServerSeries>();
+
+	private RetentionPolicy retentionPolicy;
 
-	private ConcurrentHashMap<String, ConcurrentHashMap<Long, ServerStatusRecord>> hourMap;
+	/**
+	 * Assigns servers to rollup groups, null for no groups.
+	 */
+	private final ServerGroupMapper groupMapper;
+
+	/**
+	 * Where sealed cold blocks are kept, null to keep them on the heap.
+	 */
+	private final ColdBlockStore coldStore;
+
+	private final RollupSeries fleet = new RollupSeries();
+
+	private final ConcurrentHashMap<String, RollupSeries> groups = new ConcurrentHashMap<String, RollupSeries>();
+
+	/**
+	 * Wall clock time of the last idle server sweep. Only used by writers.
+	 */
+	private volatile long lastSweepMillis;
+
+	private final AtomicLong reclaimedBucketCount = new AtomicLong();
+
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+
+	private final AtomicLong evictedServerCount = new AtomicLong();
+
+	private final AtomicLong lateSampleCount = new AtomicLong();
 
 	private final static Logger logger = LoggerFactory.getLogger(StatStorage.class);
 
 	public StatStorage() {
-		minuteMap = new ConcurrentHashMap<String, ConcurrentHashMap<Long, ServerStatusRecord>>();
-		hourMap = new ConcurrentHashMap<String, ConcurrentHashMap<Long, ServerStatusRecord>>();
+		this(new RetentionPolicy());
 	}
 
 	/**
-	 * @param map
-	 * @param timestampUtc
-	 * @param message
-	 * 
-	 * adds the data from a message to given map with the given timestamp
+	 * @param retentionPolicy how long to keep buckets and idle servers
 	 */
-	private void addToMap(ConcurrentHashMap<String, ConcurrentHashMap<Long, ServerStatusRecord>> map, Long timestampUtc,
-			QueuedServerStatusMessage message) {
-		String serverName = message.getServerName();
-		if (!map.containsKey(serverName)) {
-			map.put(serverName, new ConcurrentHashMap<Long, ServerStatusRecord>());
-		}
-		ConcurrentHashMap<Long, ServerStatusRecord> serverHashMap = map.get(serverName);
-		if (!serverHashMap.containsKey(timestampUtc)) {
-			serverHashMap.put(timestampUtc, new ServerStatusRecord(0, 0.0, 0.0));
-		}
-		// create a copy of the original status record and insert it into the
-		// map. We want the update to be atomic to make sure the data in the map is always consistent.
-		ServerStatusRecord originalRecord = serverHashMap.get(timestampUtc);
-		ServerStatusRecord statusRecord = new ServerStatusRecord(originalRecord);
-		statusRecord.update(message.getCpuLoad(), message.getRamLoad());
-		serverHashMap.put(timestampUtc, statusRecord);
+	public StatStorage(RetentionPolicy retentionPolicy) {
+		this(retentionPolicy, null);
+	}
+
+	/**
+	 * @param retentionPolicy how long to keep buckets and idle servers
+	 * @param groupMapper assigns servers to rollup groups, null for the fleet rollup only
+	 */
+	public StatStorage(RetentionPolicy retentionPolicy, ServerGroupMapper groupMapper) {
+		this(retentionPolicy, groupMapper, null);
+	}
+
+	/**
+	 * @param retentionPolicy how long to keep buckets and idle servers
+	 * @param groupMapper assigns servers to rollup groups, null for the fleet rollup only
+	 * @param coldDirectory where sealed cold blocks are written, null to keep them on the heap. Only used with a
+	 * cold retention. Block files left in it are deleted.
+	 */
+	public StatStorage(RetentionPolicy retentionPolicy, ServerGroupMapper groupMapper, File coldDirectory) {
+		this.servers = new ConcurrentHashMap<String, ServerSeries>();
+		this.retentionPolicy = retentionPolicy;
+		this.groupMapper = groupMapper;
+		this.coldStore = null == coldDirectory || retentionPolicy.getColdRetentionSeconds() <= 0 ? null
+				: new ColdBlockStore(coldDirectory);
+		this.lastSweepMillis = System.currentTimeMillis();
 	}
 
 	/* 
@@ -70,52 +139,304 @@ public class StatStorage implements IStatStorage {
 	 * 
 	 * Adds data from the message to both minute and hour maps
 	 */
+	@Override
 	public void addToMaps(QueuedServerStatusMessage message) {
+		long nowMillis = System.currentTimeMillis();
+		ServerSeries series = byId.get(message.getServerId(), message.getServerName());
+		if (null == series) {
+			series = seriesFor(message.getServerName(), message.getServerId());
+		}
+		series.lastReportMillis = nowMillis;
+		while (series.evicted) {
+			// the sweep is removing the series we looked up, write to a new one
+			series = seriesFor(message.getServerName(), message.getServerId());
+			series.lastReportMillis = nowMillis;
+		}
 		long timestampUtc = message.getTimestampUtc();
-		long minuteTimestampUtc = (timestampUtc / 60) * 60;
-		addToMap(minuteMap, minuteTimestampUtc, message);
-		long hourTimestampUtc = (timestampUtc / 3600) * 3600;
-		addToMap(hourMap, hourTimestampUtc, message);
+		if (timestampUtc > series.newestEventUtc) {
+			series.advanceWatermark(timestampUtc, retentionPolicy.getAllowedLatenessSeconds());
+		}
+		LateDataPolicy latePolicy = retentionPolicy.getLateDataPolicy();
+		long watermarkUtc = series.watermarkUtc;
+		if (timestampUtc < watermarkUtc) {
+			lateSampleCount.incrementAndGet();
+			if (latePolicy != LateDataPolicy.ACCEPT) {
+				LateDataHandler handler = retentionPolicy.getLateDataHandler();
+				if (latePolicy == LateDataPolicy.SIDE_CHANNEL && null != handler) {
+					handler.late(message, watermarkUtc);
+				}
+				return;
+			}
+		}
+		double cpuLoadMax;
+		double memoryLoadMax;
+		if (null != message.getRecord()) {
+			cpuLoadMax = message.getRecord().getCpuLoadSketch().getMax();
+			memoryLoadMax = message.getRecord().getMemoryLoadSketch().getMax();
+		} else {
+			// an aggregate message only has sums, its average is the best estimate of its highest measurement
+			cpuLoadMax = message.getCpuLoad() / message.getCount();
+			memoryLoadMax = message.getRamLoad() / message.getCount();
+		}
+		RollupSeries groupSeries = groupRollupOf(series);
+		int removed = series.minutes.add((timestampUtc / 60) * 60, message, retentionPolicy.getMinuteRetentionSeconds(),
+				fleet.minutes, null == groupSeries ? null : groupSeries.minutes, cpuLoadMax, memoryLoadMax);
+		removed += series.hours.add((timestampUtc / 3600) * 3600, message, retentionPolicy.getHourRetentionSeconds(),
+				fleet.hours, null == groupSeries ? null : groupSeries.hours, cpuLoadMax, memoryLoadMax);
+		// there are no day rollups
+		removed += series.days.add((timestampUtc / 86400) * 86400, message, retentionPolicy.getDayRetentionSeconds(),
+				null, null, 0.0, 0.0);
+		if (removed > 0) {
+			reclaimed(removed, 0);
+		}
+		if (latePolicy != LateDataPolicy.ACCEPT) {
+			series.minutes.seal(watermarkUtc, 60);
+			series.hours.seal(watermarkUtc, 3600);
+			series.days.seal(watermarkUtc, 86400);
+		}
+		if (nowMillis - lastSweepMillis >= retentionPolicy.getSweepIntervalSeconds() * 1000) {
+			evictIdleServers(nowMillis);
+		}
 	}
 
 	/**
 	 * @param serverName
-	 * @return ServerStatusResult with the data for this server for the last 60 minutes
+	 * @param serverId -1 if unknown
+	 * @return the series of this server, created if it is new and indexed by serverId from now on
 	 */
-	public ServerStatusResult getDataForLast60Minutes(String serverName) {
-		return getDataForLast60Minutes(serverName, System.currentTimeMillis() / 1000);
+	private ServerSeries seriesFor(String serverName, int serverId) {
+		ServerSeries series = servers.get(serverName);
+		if (null == series) {
+			series = servers.computeIfAbsent(serverName, this::newSeries);
+		}
+		if (serverId >= 0) {
+			series.serverId = serverId;
+			byId.put(serverId, serverName, series);
+		}
+		return series;
+	}
+
+	private ServerSeries newSeries(String serverName) {
+		ServerSeries series = new ServerSeries(null == groupMapper ? null : groupMapper.groupOf(serverName));
+		long coldRetentionSeconds = retentionPolicy.getColdRetentionSeconds();
+		if (coldRetentionSeconds > 0) {
+			series.minutes.cold = new ColdTier(60, coldRetentionSeconds, coldStore);
+			series.hours.cold = new ColdTier(3600, coldRetentionSeconds, coldStore);
+		}
+		return series;
+	}
+
+	/**
+	 * @param series the server, which remembers its group rollup after the first lookup
+	 * @return the rollup of the server's group, null if it only counts towards the fleet
+	 */
+	private RollupSeries groupRollupOf(ServerSeries series) {
+		if (null == series.group) {
+			return null;
+		}
+		RollupSeries groupSeries = series.groupRollup;
+		if (null == groupSeries) {
+			groupSeries = groups.computeIfAbsent(series.group, group -> new RollupSeries());
+			series.groupRollup = groupSeries;
+		}
+		return groupSeries;
+	}
+
+	private static RollupSeries.RollupMap rollupMap(RollupSeries rollupSeries, long intervalSeconds) {
+		return intervalSeconds == 60 ? rollupSeries.minutes : rollupSeries.hours;
+	}
+
+	@Override
+	public RollupRecord getRollup(String groupName, long intervalSeconds, long bucketUtc) {
+		RollupSeries rollupSeries = null == groupName ? fleet : groups.get(groupName);
+		return null == rollupSeries ? null : rollupMap(rollupSeries, intervalSeconds).snapshot(bucketUtc);
+	}
+
+	/**
+	 * @param nowMillis wall clock time
+	 * @return the number of servers removed
+	 * 
+	 * Removes every server that has not reported for longer than the idle time of the retention policy.
+	 * 
+	 * A writer may have looked the series up just before. The sweep marks the series as evicted and then checks
+	 * lastReportMillis again, while the writer updates lastReportMillis and then checks the mark. Both are volatile,
+	 * so at least one of them sees the other: either the sweep keeps the series, or the writer moves on to a new one.
+	 */
+	public synchronized int evictIdleServers(long nowMillis) {
+		lastSweepMillis = nowMillis;
+		long cutoffMillis = nowMillis - retentionPolicy.getServerIdleSeconds() * 1000;
+		int evicted = 0;
+		Iterator<ServerSeries> iterator = servers.values().iterator();
+		while (iterator.hasNext()) {
+			ServerSeries series = iterator.next();
+			if (series.lastReportMillis < cutoffMillis) {
+				series.evicted = true;
+				if (series.lastReportMillis >= cutoffMillis) {
+					// a writer got to it in the meantime
+					series.evicted = false;
+					continue;
+				}
+				iterator.remove();
+				byId.remove(series.serverId, series);
+				series.clearCold();
+				reclaimed(series.bucketCount(), 1);
+				evicted++;
+			}
+		}
+		if (evicted > 0) {
+			logger.info("evicted " + evicted + " idle servers, " + servers.size() + " left");
+		}
+		return evicted;
+	}
+
+	private void reclaimed(int buckets, int serverCount) {
+		reclaimedBucketCount.addAndGet(buckets);
+		reclaimedBytes.addAndGet(buckets * BYTES_PER_BUCKET + serverCount * BYTES_PER_SERVER);
+		evictedServerCount.addAndGet(serverCount);
+	}
+
+	@Override
+	public Stream<String> serverNames() {
+		return servers.keySet().stream();
+	}
+
+	@Override
+	public void forEachBucket(BucketVisitor visitor) {
+		servers.forEach((serverName, series) -> {
+			// cold buckets first, oldest first, so restoreBucket can append them to the cold tier again in order
+			if (null != series.minutes.cold) {
+				series.minutes.cold.forEach(serverName, visitor);
+				series.hours.cold.forEach(serverName, visitor);
+			}
+			series.minutes.buckets.forEach((bucketUtc, bucket) -> bucket.visit(serverName, 60, bucketUtc, visitor));
+			series.hours.buckets.forEach((bucketUtc, bucket) -> bucket.visit(serverName, 3600, bucketUtc, visitor));
+			series.days.buckets.forEach((bucketUtc, bucket) -> bucket.visit(serverName, 86400, bucketUtc, visitor));
+		});
+	}
+
+	@Override
+	public void restoreBucket(String serverName, long intervalSeconds, long bucketUtc, int count,
+			double cpuLoadValue, double memoryLoadValue) {
+		ServerSeries series = servers.get(serverName);
+		if (null == series) {
+			series = servers.computeIfAbsent(serverName, name -> {
+				ServerSeries restored = newSeries(name);
+				restored.lastReportMillis = System.currentTimeMillis();
+				return restored;
+			});
+		}
+		ServerStatusRecord record = new ServerStatusRecord(count, cpuLoadValue, memoryLoadValue);
+		if (intervalSeconds == 86400) {
+			// there are no day rollups
+			series.days.restore(bucketUtc, record, retentionPolicy.getDayRetentionSeconds(), null, null);
+			return;
+		}
+		RollupSeries groupSeries = groupRollupOf(series);
+		long retentionSeconds = intervalSeconds == 60 ? retentionPolicy.getMinuteRetentionSeconds()
+				: retentionPolicy.getHourRetentionSeconds();
+		series.tier(intervalSeconds).restore(bucketUtc, record, retentionSeconds, rollupMap(fleet, intervalSeconds),
+				null == groupSeries ? null : rollupMap(groupSeries, intervalSeconds));
+	}
+
+	/**
+	 * @return the number of buckets removed by retention since this storage was created
+	 */
+	public long getReclaimedBucketCount() {
+		return reclaimedBucketCount.get();
+	}
+
+	/**
+	 * @return an estimate of the heap released by retention since this storage was created
+	 */
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	/**
+	 * @return the number of idle servers removed since this storage was created
+	 */
+	public long getEvictedServerCount() {
+		return evictedServerCount.get();
+	}
+
+	/**
+	 * @return the number of samples older than the watermark of their server since this storage was created,
+	 * whatever the LateDataPolicy did with them
+	 */
+	public long getLateSampleCount() {
+		return lateSampleCount.get();
+	}
+
+	@Override
+	public int getServerCount() {
+		return servers.size();
+	}
+
+	/**
+	 * Hot buckets of all tiers plus the buckets in cold tiers.
+	 */
+	@Override
+	public long getBucketCount() {
+		long count = 0;
+		for (ServerSeries series : servers.values()) {
+			count += series.bucketCount();
+		}
+		return count + getColdBucketCount();
+	}
+
+	/**
+	 * @return the number of buckets in cold tiers
+	 */
+	public long getColdBucketCount() {
+		long count = 0;
+		for (ServerSeries series : servers.values()) {
+			if (null != series.minutes.cold) {
+				count += series.minutes.cold.bucketCount() + series.hours.cold.bucketCount();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the compressed size of all cold tiers, on the heap or on disk
+	 */
+	public long getColdBytes() {
+		long size = 0;
+		for (ServerSeries series : servers.values()) {
+			if (null != series.minutes.cold) {
+				size += series.minutes.cold.sizeBytes() + series.hours.cold.sizeBytes();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public void close() {
+		if (null != coldStore) {
+			coldStore.close();
+		}
 	}
 
 	/**
 	 * @param serverName
-	 * @param timestampUtc
-	 * @return ServerStatusResult with the data for this server for the last 60 minutes preceding the timestamp
+	 * @return ServerStatusResult with the data for this server for the last 60 minutes
 	 */
+	@Override
+	public ServerStatusResult getDataForLast60Minutes(String serverName) {
+		return getDataForLast60Minutes(serverName, System.currentTimeMillis() / 1000);
+	}
+
+	@Override
 	public ServerStatusResult getDataForLast60Minutes(String serverName, long timestampUtc) {
-		long minuteTimestampUtc = (timestampUtc / 60) * 60;
-		long earliestTimestampUtc = minuteTimestampUtc - 3600;
-		HashMap<Long, ServerStatusRecord> resultHash = new HashMap<Long,ServerStatusRecord>();
-		for (int i = 0; i < 60; i++) {
-			resultHash.put(minuteTimestampUtc - i * 60, new ServerStatusRecord(0, 0.0, 0.0));
-		}
-		if (minuteMap.containsKey(serverName)) {
-			minuteMap.get(serverName).forEach((key,value) -> { //logger.info("key: " + key + " value: " + value);
-					if ( null != key && null != value && key > earliestTimestampUtc && key <= minuteTimestampUtc ) {
-						resultHash.put(key, new ServerStatusRecord(minuteMap.get(serverName).get(key)));
-					}
-				});
-		}
-		List<ServerStatusData> result = new ArrayList<ServerStatusData>();
-		for (int i = 0; i < 60; i++) {
-			result.add(new ServerStatusData(minuteTimestampUtc - i * 60, resultHash.get(minuteTimestampUtc - i * 60).getAverage()));
-		}
-		return new ServerStatusResult(serverName, result);
+		ServerSeries series = servers.get(serverName);
+		return window(serverName, null == series ? null : series.minutes, (timestampUtc / 60) * 60, 60, 60);
 	}
 
 	/**
 	 * @param serverName
 	 * @return ServerStatusResult with the data for this server for the last 24 hours
 	 */
+	@Override
 	public ServerStatusResult getDataForLast24Hours(String serverName) {
 		return getDataForLast24Hours(serverName, System.currentTimeMillis() / 1000);
 	}
@@ -125,26 +446,170 @@ public class StatStorage implements IStatStorage {
 	 * @param timestampUtc
 	 * @return ServerStatusResult with the data for this server for the last 24 hours preceding the timestamp
 	 */
+	@Override
 	public ServerStatusResult getDataForLast24Hours(String serverName, long timestampUtc) {
-		long minuteTimestampUtc = (timestampUtc / 3600) * 3600;
-		long earliestTimestampUtc = minuteTimestampUtc - 3600 * 24;
-		HashMap<Long, ServerStatusRecord> resultHash = new HashMap<Long,ServerStatusRecord>();
-		for (int i = 0; i < 24; i++) {
-			resultHash.put(minuteTimestampUtc - i * 3600, new ServerStatusRecord(0, 0.0, 0.0));
-		}
-		if (hourMap.containsKey(serverName)) {
-			hourMap.get(serverName).forEach((key,value) -> { // logger.info("key: " + key + " value: " + value);
-					if ( null != key && null != value && key > earliestTimestampUtc && key <= minuteTimestampUtc ) {
-						resultHash.put(key, new ServerStatusRecord(hourMap.get(serverName).get(key)));
-					}
-				});
-		}
-		List<ServerStatusData> result = new ArrayList<ServerStatusData>();
-		for (int i = 0; i < 24; i++) {
-			result.add(new ServerStatusData(minuteTimestampUtc - i * 3600, resultHash.get(minuteTimestampUtc - i * 3600).getAverage()));
+		ServerSeries series = servers.get(serverName);
+		return window(serverName, null == series ? null : series.hours, (timestampUtc / 3600) * 3600, 24, 3600);
+	}
+
+	/**
+	 * @param serverName
+	 * @param fromUtc start of the range, rounded down to a multiple of stepSeconds
+	 * @param toUtc end of the range, exclusive
+	 * @param stepSeconds length of every interval, a multiple of 60
+	 * @return one entry per interval, oldest first
+	 * 
+	 * Reads the coarsest tier whose interval divides the step, so a 6 hour step reads 6 hour buckets and a day
+	 * step one day bucket, and merges the buckets of every interval. The cost is proportional to the number of
+	 * buckets read, not to the history kept. Intervals that are no longer retained in that tier are empty.
+	 */
+	@Override
+	public ServerStatusResult getData(String serverName, long fromUtc, long toUtc, long stepSeconds) {
+		int steps = RangeQuery.steps(fromUtc, toUtc, stepSeconds);
+		long tierSeconds = RangeQuery.tierFor(stepSeconds, 86400);
+		ServerSeries series = servers.get(serverName);
+		ServerSeries.BucketMap bucketMap = null == series ? null : series.tier(tierSeconds);
+		long startUtc = RangeQuery.alignDown(fromUtc, stepSeconds);
+		ServerStatusRecord[] merged = new ServerStatusRecord[steps];
+		double[] cold = null;
+		if (null != bucketMap) {
+			ColdBlock[] snapshot = null == bucketMap.cold ? null : bucketMap.cold.snapshot();
+			while (!mergeHot(bucketMap, snapshot, startUtc, stepSeconds, tierSeconds, merged)) {
+				// buckets moved to the cold tier while reading, read again with the new snapshot
+				snapshot = bucketMap.cold.snapshot();
+			}
+			if (null != snapshot && snapshot.length > 0) {
+				cold = new double[steps * 3];
+				ColdTier.addTo(snapshot, startUtc, stepSeconds, steps, cold);
+			}
+		}
+		List<ServerStatusData> result = new ArrayList<ServerStatusData>(steps);
+		for (int i = 0; i < steps; i++) {
+			long intervalUtc = startUtc + i * stepSeconds;
+			ServerStatusRecord record = merged[i];
+			double count = null == record ? 0 : record.getCount();
+			if (null == cold || cold[i * 3] == 0) {
+				if (count == 0) {
+					result.add(new ServerStatusData(intervalUtc, 0.0, 0.0));
+				} else {
+					result.add(new ServerStatusData(intervalUtc, record.getCpuLoadValue() / count,
+							record.getMemoryLoadValue() / count, record.getCpuLoadSketch(),
+							record.getMemoryLoadSketch()));
+				}
+			} else {
+				// cold buckets have no sketches
+				count += cold[i * 3];
+				double cpuLoadValue = cold[i * 3 + 1] + (null == record ? 0.0 : record.getCpuLoadValue());
+				double memoryLoadValue = cold[i * 3 + 2] + (null == record ? 0.0 : record.getMemoryLoadValue());
+				result.add(new ServerStatusData(intervalUtc, cpuLoadValue / count, memoryLoadValue / count));
+			}
 		}
 		return new ServerStatusResult(serverName, result);
 	}
 
+	/**
+	 * @param bucketMap
+	 * @param snapshot the cold blocks of the map, null if it has no cold tier
+	 * @param startUtc
+	 * @param stepSeconds
+	 * @param tierSeconds interval of the bucket map
+	 * @param merged receives the merged hot record of every interval, null if it has none
+	 * @return false if the cold tier changed while reading, then the result must be discarded
+	 *
+	 * Buckets up to the newest bucket of the snapshot are left to the cold tier.
+	 */
+	private static boolean mergeHot(ServerSeries.BucketMap bucketMap, ColdBlock[] snapshot, long startUtc,
+			long stepSeconds, long tierSeconds, ServerStatusRecord[] merged) {
+		long coldUtc = null == snapshot ? Long.MIN_VALUE : ColdTier.lastUtc(snapshot);
+		for (int i = 0; i < merged.length; i++) {
+			long intervalUtc = startUtc + i * stepSeconds;
+			ServerStatusRecord record = null;
+			for (long bucketUtc = Math.max(intervalUtc, coldUtc + tierSeconds); bucketUtc < intervalUtc
+					+ stepSeconds; bucketUtc += tierSeconds) {
+				Bucket bucket = bucketMap.buckets.get(bucketUtc);
+				if (null == bucket) {
+					continue;
+				}
+				if (null == record) {
+					// the snapshot is a copy, the other buckets of the interval can be merged into it
+					record = bucket.snapshot();
+				} else {
+					record.merge(bucket.snapshot());
+				}
+			}
+			merged[i] = record;
+		}
+		return null == snapshot || snapshot == bucketMap.cold.snapshot();
+	}
+
+	/**
+	 * @param serverName
+	 * @param bucketMap buckets of the requested resolution, null if the server is unknown
+	 * @param endUtc start of the newest interval in the window
+	 * @param size number of intervals
+	 * @param intervalSeconds
+	 * @return the averages for every interval, newest first
+	 * 
+	 * Every bucket map caches its last result. If neither the window nor the buckets changed since, a copy of the
+	 * cached result is returned. Otherwise the result is rebuilt with one lookup per interval, and every entry
+	 * whose bucket is still the one the cached result was built from, at the same version, is reused, at its new
+	 * position if the window rolled forward.
+	 * Callers get their own list, so they can sort or change it; the ServerStatusData entries are immutable and
+	 * shared. Copying the list is one array copy, far cheaper than rebuilding the entries.
+	 */
+	private ServerStatusResult window(String serverName, ServerSeries.BucketMap bucketMap, long endUtc, int size,
+			long intervalSeconds) {
+		if (null == bucketMap) {
+			List<ServerStatusData> result = new ArrayList<ServerStatusData>(size);
+			for (int i = 0; i < size; i++) {
+				result.add(new ServerStatusData(endUtc - i * intervalSeconds, 0.0, 0.0));
+			}
+			return new ServerStatusResult(serverName, result);
+		}
+		// read the version before the buckets, a concurrent write then makes the next query rebuild
+		long version = bucketMap.version.get();
+		ServerSeries.CachedWindow cached = bucketMap.cachedWindow;
+		if (null != cached && cached.endUtc == endUtc && cached.version == version) {
+			return new ServerStatusResult(serverName, new ArrayList<ServerStatusData>(cached.result.getData()));
+		}
+		Bucket[] buckets = new Bucket[size];
+		long[] versions = new long[size];
+		List<ServerStatusData> result = new ArrayList<ServerStatusData>(size);
+		for (int i = 0; i < size; i++) {
+			long bucketUtc = endUtc - i * intervalSeconds;
+			Bucket bucket = bucketMap.buckets.get(bucketUtc);
+			buckets[i] = bucket;
+			// read the version before the record, a concurrent write then makes the next query rebuild the entry
+			versions[i] = null == bucket ? 0 : bucket.version();
+			int cachedIndex = null == cached ? -1 : cachedIndex(cached, bucketUtc, size, intervalSeconds);
+			if (cachedIndex >= 0 && cached.buckets[cachedIndex] == bucket
+					&& cached.versions[cachedIndex] == versions[i]) {
+				result.add(cached.result.getData().get(cachedIndex));
+				continue;
+			}
+			ServerStatusRecord record = null == bucket ? null : bucket.snapshot();
+			if (null == record || record.getCount() == 0) {
+				result.add(new ServerStatusData(bucketUtc, 0.0, 0.0));
+			} else {
+				result.add(new ServerStatusData(bucketUtc, record.getCpuLoadValue() / record.getCount(),
+						record.getMemoryLoadValue() / record.getCount(), record.getCpuLoadSketch(),
+						record.getMemoryLoadSketch()));
+			}
+		}
+		ServerStatusResult serverStatusResult = new ServerStatusResult(serverName, result);
+		bucketMap.cachedWindow = new ServerSeries.CachedWindow(endUtc, version, buckets, versions, serverStatusResult);
+		return new ServerStatusResult(serverName, new ArrayList<ServerStatusData>(result));
+	}
+
+	/**
+	 * @return the position of bucketUtc in the cached window, or -1 if the cached window does not contain it
+	 */
+	private static int cachedIndex(ServerSeries.CachedWindow cached, long bucketUtc, int size, long intervalSeconds) {
+		long offset = cached.endUtc - bucketUtc;
+		if (offset < 0 || offset % intervalSeconds != 0 || offset / intervalSeconds >= size) {
+			return -1;
+		}
+		return (int) (offset / intervalSeconds);
+	}
 
 }
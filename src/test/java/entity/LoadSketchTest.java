@@ -0,0 +1,86 @@
+package entity;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LoadSketchTest {
+
+	private static void assertWithinAccuracy(double expected, double actual) {
+		assertEquals(expected, actual, expected * LoadSketch.RELATIVE_ACCURACY);
+	}
+
+	private static double exactQuantile(double[] sorted, double quantile) {
+		return sorted[(int) (quantile * (sorted.length - 1))];
+	}
+
+	@Test
+	public void testQuantilesAreWithinRelativeAccuracy() {
+		Random random = new Random(42);
+		double[] values = new double[10000];
+		LoadSketch sketch = new LoadSketch();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = 1.0 + random.nextDouble() * 9.0;
+			sketch.add(values[i]);
+		}
+		Arrays.sort(values);
+		assertEquals(values.length, sketch.getCount());
+		assertEquals(values[0], sketch.getMin(), 0.0);
+		assertEquals(values[values.length - 1], sketch.getMax(), 0.0);
+		for (double quantile : new double[] { 0.5, 0.95, 0.99 }) {
+			assertWithinAccuracy(exactQuantile(values, quantile), sketch.getQuantile(quantile));
+		}
+	}
+
+	@Test
+	public void testSpikesKeepHighQuantiles() {
+		LoadSketch sketch = new LoadSketch();
+		for (int i = 0; i < 97; i++) {
+			sketch.add(0.01);
+		}
+		// far outside the range the sketch started with, the low values are collapsed
+		sketch.add(500.0);
+		sketch.add(600.0);
+		sketch.add(700.0);
+		assertWithinAccuracy(600.0, sketch.getQuantile(0.99));
+		assertEquals(700.0, sketch.getMax(), 0.0);
+		assertEquals(0.01, sketch.getMin(), 0.0);
+		assertEquals(100, sketch.getCount());
+	}
+
+	@Test
+	public void testMergeEqualsAddingEverything() {
+		LoadSketch all = new LoadSketch();
+		LoadSketch first = new LoadSketch();
+		LoadSketch second = new LoadSketch();
+		for (int i = 1; i <= 200; i++) {
+			all.add(i / 10.0);
+			(i % 2 == 0 ? first : second).add(i / 10.0);
+		}
+		first.merge(second);
+		assertEquals(all.getCount(), first.getCount());
+		for (double quantile : new double[] { 0.0, 0.5, 0.95, 0.99, 1.0 }) {
+			assertEquals(all.getQuantile(quantile), first.getQuantile(quantile), 1e-9);
+		}
+		assertTrue(Double.isNaN(new LoadSketch().getQuantile(0.5)));
+	}
+
+	@Test
+	public void testRecordsMergeSketches() {
+		ServerStatusRecord minute1 = new ServerStatusRecord(0, 0.0, 0.0);
+		ServerStatusRecord minute2 = new ServerStatusRecord(0, 0.0, 0.0);
+		minute1.update(1.0, 10.0);
+		minute2.update(9.0, 20.0);
+		ServerStatusRecord hour = new ServerStatusRecord(0, 0.0, 0.0);
+		hour.merge(minute1);
+		hour.merge(minute2);
+		assertEquals(2, hour.getCount());
+		assertEquals(10.0, hour.getCpuLoadValue(), 1e-9);
+		assertEquals(1.0, hour.getCpuLoadSketch().getMin(), 0.0);
+		assertEquals(9.0, hour.getCpuLoadSketch().getMax(), 0.0);
+		assertEquals(20.0, hour.getMemoryLoadSketch().getMax(), 0.0);
+	}
+}
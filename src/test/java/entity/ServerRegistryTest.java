@@ -0,0 +1,74 @@
+package entity;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class ServerRegistryTest {
+
+	@Test
+	public void testIdsAreDense() {
+		ServerRegistry registry = new ServerRegistry();
+		assertEquals(-1, registry.lookup("myserver1"));
+		for (int i = 0; i < 3000; i++) {
+			assertEquals(i, registry.idOf("myserver" + i));
+		}
+		assertEquals(3000, registry.size());
+		assertEquals(7, registry.idOf("myserver7"));
+		assertEquals(7, registry.lookup("myserver7"));
+		assertEquals("myserver2999", registry.nameOf(2999));
+	}
+
+	@Test
+	public void testConcurrentRegistrationGivesOneIdPerName() throws InterruptedException {
+		ServerRegistry registry = new ServerRegistry();
+		ConcurrentHashMap<String, Integer> seen = new ConcurrentHashMap<String, Integer>();
+		List<Thread> threads = new ArrayList<Thread>();
+		List<String> errors = new ArrayList<String>();
+		for (int t = 0; t < 4; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 5000; i++) {
+					String name = "myserver" + i;
+					int id = registry.idOf(name);
+					Integer previous = seen.putIfAbsent(name, id);
+					if ((null != previous && previous != id) || !name.equals(registry.nameOf(id))) {
+						synchronized (errors) {
+							errors.add(name);
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(5000, registry.size());
+	}
+
+	@Test
+	public void testStripesAndLimit() {
+		ServerRegistry registry = new ServerRegistry(4, serverName -> serverName.length() % 4, 6);
+		assertEquals(1, registry.idOf("a"));
+		assertEquals(5, registry.idOf("b"));
+		assertEquals(2, registry.idOf("aa"));
+		assertEquals(0, registry.idOf("aaaa"));
+		assertEquals(9, registry.idOf("c"));
+		assertEquals(1, registry.localId(5));
+		assertEquals(2, registry.localId(9));
+		assertEquals(-1, registry.localId(-1));
+		assertEquals(4, registry.idOf("bbbb"));
+		// full
+		assertEquals(-1, registry.idOf("d"));
+		assertEquals(6, registry.size());
+		assertEquals("c", registry.nameOf(9));
+		assertNull(registry.nameOf(13));
+		assertNull(registry.nameOf(-1));
+	}
+}
@@ -0,0 +1,132 @@
+package export;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+import storage.StatStorage;
+
+public class ResultWriterTest {
+
+	private static double EPSILON = 1e-6;
+
+	// 2016-08-24 06:00:00 UTC, aligned to the hour
+	private static long NOW = 1472018400L;
+
+	private static ServerStatusResult result(String serverName) {
+		StatStorage storage = new StatStorage();
+		for (int i = 0; i < 100; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage(serverName, i, 100 - i, NOW + (i % 3) * 60));
+		}
+		return storage.getDataForLast60Minutes(serverName, NOW + 120);
+	}
+
+	@Test
+	public void testToString() {
+		List<ServerStatusData> data = new ArrayList<ServerStatusData>();
+		data.add(new ServerStatusData(NOW, 1.5, 2.5));
+		data.add(new ServerStatusData(NOW - 60, 0.0, 0.0));
+		String expected = "ServerStatusResult [serverName=myserver\n[" + data.get(0) + "]\n[" + data.get(1) + "]\n]";
+		assertEquals(expected, new ServerStatusResult("myserver", data).toString());
+	}
+
+	@Test
+	public void testJson() throws IOException {
+		ServerStatusResult result = new ServerStatusResult("my\"server\u00e9",
+				Arrays.asList(new ServerStatusData(NOW, 1.5, 0.25)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (JsonResultWriter writer = new JsonResultWriter(out)) {
+			writer.write(result);
+		}
+		String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		assertEquals("{\"serverName\":\"my\\\"server\u00e9\",\"data\":[{\"timestampUtc\":1472018400,\"cpuLoad\":1.5,"
+				+ "\"memoryLoad\":0.25,\"cpuLoadMin\":null,\"cpuLoadMax\":null,\"cpuLoadP50\":null,"
+				+ "\"cpuLoadP95\":null,\"cpuLoadP99\":null,\"memoryLoadMin\":null,\"memoryLoadMax\":null,"
+				+ "\"memoryLoadP50\":null,\"memoryLoadP95\":null,\"memoryLoadP99\":null}]}\n", json);
+	}
+
+	@Test
+	public void testJsonFromBuckets() throws IOException {
+		StatStorage storage = new StatStorage();
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 3.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 2.0, 4.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 6.0, 6.0, NOW + 60));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonResultWriter writer = new JsonResultWriter(out);
+		storage.forEachBucket(writer);
+		writer.flush();
+		String json = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(json, json.contains("{\"serverName\":\"myserver\",\"intervalSeconds\":60,\"data\":["));
+		assertTrue(json, json.contains("{\"timestampUtc\":1472018400,\"cpuLoad\":1.5,\"memoryLoad\":3.5}"));
+		assertTrue(json, json.contains("{\"timestampUtc\":1472018460,\"cpuLoad\":6.0,\"memoryLoad\":6.0}"));
+		assertTrue(json, json.contains("{\"serverName\":\"myserver\",\"intervalSeconds\":3600,\"data\":["
+				+ "{\"timestampUtc\":1472018400,\"cpuLoad\":3.0,\"memoryLoad\":4.333333333333333}]}\n"));
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		List<ServerStatusResult> results = Arrays.asList(result("myserver0"), result("myserver1"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (BinaryResultWriter writer = new BinaryResultWriter(out)) {
+			for (ServerStatusResult result : results) {
+				writer.write(result);
+			}
+			writer.visit("myserver2", 3600, NOW, 4, 2.0, 6.0);
+		}
+		BinaryResultReader reader = new BinaryResultReader(new ByteArrayInputStream(out.toByteArray()));
+		for (ServerStatusResult expected : results) {
+			ServerStatusResult actual = reader.read();
+			assertEquals(expected.getServerName(), actual.getServerName());
+			assertEquals(0, reader.getIntervalSeconds());
+			assertEquals(expected.getData().size(), actual.getData().size());
+			for (int i = 0; i < expected.getData().size(); i++) {
+				ServerStatusData e = expected.getData().get(i);
+				ServerStatusData a = actual.getData().get(i);
+				assertEquals(e.getTimestampUtc(), a.getTimestampUtc());
+				assertEquals(e.getCpuLoad(), a.getCpuLoad(), 0.0);
+				assertEquals(e.getMemoryLoad(), a.getMemoryLoad(), 0.0);
+				assertEquals(e.getCpuLoadP95(), a.getCpuLoadP95(), 0.0);
+				assertEquals(e.getMemoryLoadMax(), a.getMemoryLoadMax(), 0.0);
+			}
+		}
+		ServerStatusResult buckets = reader.read();
+		assertEquals("myserver2", buckets.getServerName());
+		assertEquals(3600, reader.getIntervalSeconds());
+		assertEquals(0.5, buckets.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(1.5, buckets.getData().get(0).getMemoryLoad(), EPSILON);
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void testByteBufferTarget() throws IOException {
+		ByteBuffer target = ByteBuffer.allocateDirect(256);
+		JsonResultWriter writer = new JsonResultWriter(target);
+		writer.visit("myserver", 60, NOW, 1, 1.0, 1.0);
+		writer.flush();
+		byte[] bytes = new byte[target.position()];
+		target.flip();
+		target.get(bytes);
+		assertEquals("{\"serverName\":\"myserver\",\"intervalSeconds\":60,\"data\":[{\"timestampUtc\":1472018400,"
+				+ "\"cpuLoad\":1.0,\"memoryLoad\":1.0}]}\n", new String(bytes, StandardCharsets.UTF_8));
+		target.clear();
+		try {
+			writer.write(result("myserver"));
+			fail("output larger than the buffer accepted");
+		} catch (BufferOverflowException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package listener;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import client.ServerStatusResult;
+import loader.BinaryEncoder;
+import processor.ServerTrack;
+
+public class IngestListenerTest {
+
+	private static double EPSILON = 1e-6;
+
+	private static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+	private static void waitFor(BooleanSupplier condition) {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (Exception e) {
+
+			}
+		}
+	}
+
+	private static double cpuLoad(ServerTrack serverTrack, String serverName) {
+		serverTrack.flush().join();
+		ServerStatusResult result = serverTrack.getDataForLast60Minutes(serverName);
+		return result.getData().get(0).getCpuLoad() + result.getData().get(1).getCpuLoad();
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+		try {
+			// give the listener a chance to read the pieces separately
+			Thread.sleep(20);
+		} catch (InterruptedException e) {
+
+		}
+	}
+
+	@Test
+	public void testTcpLines() throws IOException {
+		ServerTrack serverTrack = new ServerTrack();
+		try (IngestListener listener = new IngestListener(serverTrack, LOOPBACK, null, 64, 16)) {
+			listener.start();
+			assertNull(listener.getUdpAddress());
+			try (Socket socket = new Socket()) {
+				socket.connect(listener.getTcpAddress());
+				OutputStream out = socket.getOutputStream();
+				// one absolute timestamp, so all lines fall into the same minute
+				String ts = String.valueOf(System.currentTimeMillis() / 1000 - 30);
+				// a line split across writes
+				write(out, ts + ",tcpserver,1.5,2.5\n" + ts + ",tcp");
+				write(out, "server,1.5,2.5\r\n\n");
+				// many times longer than the 64 byte buffer, still one malformed line
+				StringBuilder longLine = new StringBuilder("-30,");
+				for (int i = 0; i < 1000; i++) {
+					longLine.append('x');
+				}
+				write(out, longLine.append(",1.5,2.5\n").toString());
+				write(out, "garbage\n" + ts + ",tcpserver,-1.0,2.5\n");
+				// no newline after the last line
+				write(out, ts + ",tcpserver,1.5,2.5");
+			}
+			waitFor(() -> listener.getLines() == 6 && listener.getAccepted() == 3);
+			assertEquals(1, listener.getConnections());
+			assertEquals(6, listener.getLines());
+			assertEquals(3, listener.getAccepted());
+			assertEquals(2, listener.getMalformed());
+			assertEquals(1, listener.getRejected());
+			assertEquals(1.5, cpuLoad(serverTrack, "tcpserver"), EPSILON);
+		}
+	}
+
+	@Test
+	public void testUdpDatagrams() throws IOException {
+		ServerTrack serverTrack = new ServerTrack();
+		try (IngestListener listener = new IngestListener(serverTrack, null, LOOPBACK)) {
+			listener.start();
+			assertNull(listener.getTcpAddress());
+			try (DatagramSocket socket = new DatagramSocket()) {
+				for (String text : new String[] { "-30,udpserver,1.0,2.0\n-30,udpserver,3.0,4.0", "bad line\n" }) {
+					byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+					socket.send(new DatagramPacket(bytes, bytes.length, listener.getUdpAddress()));
+				}
+			}
+			waitFor(() -> listener.getLines() == 3 && listener.getAccepted() == 2);
+			assertEquals(2, listener.getAccepted());
+			assertEquals(1, listener.getMalformed());
+			assertEquals(2.0, cpuLoad(serverTrack, "udpserver"), EPSILON);
+		}
+	}
+
+	@Test
+	public void testBinaryFrames() throws IOException {
+		ServerTrack serverTrack = new ServerTrack();
+		try (IngestListener listener = new IngestListener(serverTrack, LOOPBACK, LOOPBACK)) {
+			listener.start();
+			long ts = System.currentTimeMillis() / 1000 - 30;
+			BinaryEncoder encoder = new BinaryEncoder();
+			encoder.add("binserver", 1.0, 2.0, ts);
+			encoder.add("binserver", 3.0, 4.0, ts);
+			byte[] frame = new byte[encoder.encodedLength()];
+			encoder.encode().get(frame);
+			try (Socket socket = new Socket()) {
+				socket.connect(listener.getTcpAddress());
+				OutputStream out = socket.getOutputStream();
+				// two frames, the second split across writes
+				out.write(frame);
+				out.write(frame, 0, 5);
+				out.flush();
+				Thread.sleep(20);
+				out.write(frame, 5, frame.length - 5);
+				out.flush();
+			} catch (InterruptedException e) {
+
+			}
+			try (DatagramSocket socket = new DatagramSocket()) {
+				socket.send(new DatagramPacket(frame, frame.length, listener.getUdpAddress()));
+			}
+			waitFor(() -> listener.getAccepted() == 6);
+			assertEquals(6, listener.getLines());
+			assertEquals(6, listener.getAccepted());
+			assertEquals(0, listener.getMalformed());
+			assertEquals(2.0, cpuLoad(serverTrack, "binserver"), EPSILON);
+		}
+	}
+
+	@Test
+	public void testTimestampsBeforeTheEpochAreMalformed() throws Exception {
+		ServerTrack serverTrack = new ServerTrack();
+		try (IngestListener listener = new IngestListener(serverTrack, LOOPBACK, null)) {
+			listener.start();
+			long ts = System.currentTimeMillis() / 1000 - 30;
+			// relative timestamps before the epoch, -1 used to stop the processor
+			BinaryEncoder encoder = new BinaryEncoder();
+			encoder.add("epochserver", 1.0, 1.0, -(ts + 3600));
+			byte[] frame = new byte[encoder.encodedLength()];
+			encoder.encode().get(frame);
+			try (Socket socket = new Socket(); Socket binarySocket = new Socket()) {
+				socket.connect(listener.getTcpAddress());
+				write(socket.getOutputStream(), "-" + (ts + 3600) + ",epochserver,1.0,1.0\n" + ts
+						+ ",epochserver,2.0,2.0\n");
+				binarySocket.connect(listener.getTcpAddress());
+				binarySocket.getOutputStream().write(frame);
+				binarySocket.getOutputStream().flush();
+				waitFor(() -> listener.getLines() == 3 && listener.getAccepted() == 1);
+			}
+			assertEquals(2, listener.getMalformed());
+			assertEquals(1, listener.getAccepted());
+			serverTrack.flush().get(10, TimeUnit.SECONDS);
+			assertEquals(2.0, cpuLoad(serverTrack, "epochserver"), EPSILON);
+		}
+	}
+}
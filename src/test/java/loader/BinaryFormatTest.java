@@ -0,0 +1,142 @@
+package loader;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import entity.QueuedServerStatusMessage;
+import entity.ServerRegistry;
+import processor.ServerTrack;
+
+public class BinaryFormatTest {
+
+	private static double EPSILON = 1e-6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static BinaryEncoder sample(boolean scaledLoads) {
+		BinaryEncoder encoder = new BinaryEncoder(scaledLoads);
+		encoder.add("myserver0", 1.5, 2.25, 1500000000);
+		encoder.add("myserver1", 0.1, 99.9999, 1500000060);
+		encoder.add("myserver0", 3.0, 0.5, 1499999990);
+		return encoder;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		for (boolean scaledLoads : new boolean[] { false, true }) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+			buffer.position(10);
+			int length = sample(scaledLoads).encode(buffer);
+			assertEquals(10 + length, buffer.position());
+			assertEquals(length, BinaryFormat.frameLength(buffer, 10, buffer.position()));
+
+			ServerRegistry registry = new ServerRegistry();
+			int id1 = registry.idOf("myserver1");
+			BinaryBatchDecoder decoder = new BinaryBatchDecoder(new NameTable(registry));
+			assertEquals(length, decoder.wrap(buffer, 10, buffer.position(), 0));
+			assertEquals(3, decoder.remaining());
+			QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+
+			assertTrue(decoder.next());
+			decoder.decodeTo(message);
+			assertEquals("myserver0", message.getServerName());
+			assertEquals(1500000000, message.getTimestampUtc());
+			assertEquals(1.5, message.getCpuLoad(), 0.0);
+			assertEquals(2.25, message.getRamLoad(), 0.0);
+
+			assertTrue(decoder.next());
+			assertEquals("myserver1", decoder.serverName());
+			assertEquals(id1, decoder.serverId());
+			assertEquals(1500000060, decoder.timestampUtc());
+			assertEquals(0.1, decoder.cpuLoad(), scaledLoads ? EPSILON : 0.0);
+			assertEquals(99.9999, decoder.ramLoad(), scaledLoads ? EPSILON : 0.0);
+
+			assertTrue(decoder.next());
+			assertEquals("myserver0", decoder.serverName());
+			assertEquals(1499999990, decoder.timestampUtc());
+			assertFalse(decoder.next());
+		}
+	}
+
+	@Test
+	public void testSmallerThanCsv() {
+		BinaryEncoder encoder = new BinaryEncoder(true);
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			encoder.add("myserver" + (i % 10), 12.5, 40.25, 1500000000 + i);
+			csv.append(1500000000 + i).append(",myserver").append(i % 10).append(",12.5,40.25\n");
+		}
+		assertTrue(encoder.encodedLength() * 3 < csv.length());
+	}
+
+	@Test
+	public void testRelativeTimestamps() {
+		BinaryEncoder encoder = new BinaryEncoder();
+		encoder.add("myserver0", 1.0, 1.0, -30);
+		encoder.add("myserver0", 1.0, 1.0, -10);
+		ByteBuffer buffer = encoder.encode();
+		BinaryBatchDecoder decoder = new BinaryBatchDecoder(new NameTable());
+		decoder.wrap(buffer, 0, buffer.limit(), 1000);
+		assertTrue(decoder.next());
+		assertEquals(970, decoder.timestampUtc());
+		assertTrue(decoder.next());
+		assertEquals(990, decoder.timestampUtc());
+		assertEquals(-1, decoder.serverId());
+	}
+
+	@Test
+	public void testTruncatedFrame() {
+		ByteBuffer buffer = sample(false).encode();
+		BinaryBatchDecoder decoder = new BinaryBatchDecoder(new NameTable());
+		assertEquals(-1, BinaryFormat.frameLength(buffer, 0, 5));
+		try {
+			decoder.wrap(buffer, 0, buffer.limit() - 1, 0);
+			fail("incomplete frame accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		// a body length that lies about the messages
+		buffer.put(7, (byte) (buffer.get(7) - 9));
+		decoder.wrap(buffer, 0, buffer.limit(), 0);
+		try {
+			while (decoder.next()) {
+			}
+			fail("message beyond the end of the frame accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLoader() throws IOException {
+		File file = folder.newFile("data.bin");
+		long nowUtc = System.currentTimeMillis() / 1000;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			for (int frame = 0; frame < 10; frame++) {
+				BinaryEncoder encoder = new BinaryEncoder(frame % 2 == 0);
+				for (int i = 0; i < 100; i++) {
+					encoder.add("myserver" + (i % 10), i % 50 == 0 ? -1.0 : 1.5, 2.5, nowUtc - 30);
+				}
+				channel.write(encoder.encode());
+			}
+		}
+		ServerTrack serverTrack = new ServerTrack();
+		// small chunks and batches, so frames cross chunk boundaries
+		BinaryLoader loader = new BinaryLoader(serverTrack, 64, 4096);
+		LoadStats stats = loader.load(file);
+		assertEquals(1000, stats.getLines());
+		assertEquals(980, stats.getAccepted());
+		assertEquals(20, stats.getRejected());
+		assertEquals(10, loader.getServerNames().size());
+	}
+}
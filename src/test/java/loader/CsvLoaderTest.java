@@ -0,0 +1,122 @@
+package loader;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+import entity.ServerRegistry;
+import processor.ServerTrack;
+
+public class CsvLoaderTest {
+
+	private static double EPSILON = 1e-6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static double parseDouble(String value) {
+		ByteBuffer buffer = ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+		return CsvLineParser.parseDouble(buffer, 0, buffer.limit());
+	}
+
+	@Test
+	public void testDoublesMatchParseDouble() {
+		String[] values = { "0", "1", "1.5", "-2.25", "+3.0", "0.1", "0.2", "123456.789", "1e3", "2.5E-2",
+				"0.000000000000000000000001", "12345678901234567890.5", "7." };
+		for (String value : values) {
+			assertEquals(value, Double.parseDouble(value), parseDouble(value), 0.0);
+		}
+		assertTrue(Double.isNaN(parseDouble("")));
+		assertTrue(Double.isNaN(parseDouble(".")));
+		assertTrue(Double.isNaN(parseDouble("1.2.3")));
+		assertTrue(Double.isNaN(parseDouble("abc")));
+	}
+
+	@Test
+	public void testLinesAreParsed() {
+		CsvLineParser parser = new CsvLineParser(new NameTable());
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		ByteBuffer buffer = ByteBuffer.wrap("-30,myserver1,1.5,0.5\r".getBytes(StandardCharsets.US_ASCII));
+		assertTrue(parser.parse(buffer, 0, buffer.limit(), 1000, message));
+		assertEquals(970, message.getTimestampUtc());
+		assertEquals("myserver1", message.getServerName());
+		assertEquals(1.5, message.getCpuLoad(), EPSILON);
+		assertEquals(0.5, message.getRamLoad(), EPSILON);
+		for (String line : new String[] { "1,a,1.0", "1,a,1.0,2.0,3.0", "x,a,1.0,2.0", "1,,1.0,2.0", "1,a,b,2.0" }) {
+			buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+			assertFalse(line, parser.parse(buffer, 0, buffer.limit(), 1000, message));
+		}
+	}
+
+	@Test
+	public void testNamesAreInterned() {
+		NameTable names = new NameTable(1);
+		for (int i = 0; i < 1000; i++) {
+			ByteBuffer buffer = ByteBuffer.wrap(("server" + (i % 100)).getBytes(StandardCharsets.US_ASCII));
+			assertEquals("server" + (i % 100), names.intern(buffer, 0, buffer.limit()));
+		}
+		assertEquals(100, names.size());
+		ByteBuffer buffer = ByteBuffer.wrap("server7".getBytes(StandardCharsets.US_ASCII));
+		assertSame(names.intern(buffer, 0, buffer.limit()), names.intern(buffer, 0, buffer.limit()));
+	}
+
+	@Test
+	public void testNamesCarryServerIds() {
+		ServerRegistry registry = new ServerRegistry();
+		registry.idOf("other");
+		CsvLineParser parser = new CsvLineParser(new NameTable(1, registry));
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		for (int i = 0; i < 100; i++) {
+			ByteBuffer buffer = ByteBuffer.wrap(("1,server" + (i % 50) + ",1.0,2.0").getBytes(StandardCharsets.US_ASCII));
+			assertTrue(parser.parse(buffer, 0, buffer.limit(), 1000, message));
+			assertEquals(1 + i % 50, message.getServerId());
+			assertEquals(message.getServerName(), registry.nameOf(message.getServerId()));
+		}
+		ByteBuffer buffer = ByteBuffer.wrap("1,a,1.0,2.0".getBytes(StandardCharsets.US_ASCII));
+		new CsvLineParser(new NameTable()).parse(buffer, 0, buffer.limit(), 1000, message);
+		assertEquals(-1, message.getServerId());
+	}
+
+	@Test
+	public void testFileIsLoadedAcrossChunks() throws IOException {
+		File file = folder.newFile("input.csv");
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			content.append("-30,myserver").append(i % 10).append(",1.5,2.5\n");
+			if (i % 100 == 0) {
+				content.append("garbage\n\n");
+			}
+			if (i % 100 == 1) {
+				content.append("-30,myserver1,-1.0,2.5\n");
+			}
+		}
+		// no newline after the last line
+		content.append("-30,myserver0,1.5,2.5");
+		Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.US_ASCII));
+
+		ServerTrack serverTrack = new ServerTrack();
+		CsvLoader loader = new CsvLoader(serverTrack, 64, 256);
+		LoadStats stats = loader.load(file);
+		assertEquals(1001, stats.getAccepted());
+		assertEquals(10, stats.getMalformed());
+		assertEquals(10, stats.getRejected());
+		assertEquals(1021, stats.getLines());
+		assertEquals(10, new HashSet<String>(loader.getServerNames()).size());
+		serverTrack.flush().join();
+		ServerStatusResult result = serverTrack.getDataForLast60Minutes("myserver0");
+		double cpuLoad = result.getData().get(0).getCpuLoad() + result.getData().get(1).getCpuLoad();
+		assertEquals(1.5, cpuLoad, EPSILON);
+	}
+
+}
@@ -0,0 +1,108 @@
+package loader;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import client.ServerStatusData;
+import processor.ServerTrack;
+import processor.ServerTrackConfig;
+
+public class ParallelBackfillTest {
+
+	private static double EPSILON = 1e-6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static void waitForQueue(ServerTrack serverTrack) {
+		serverTrack.flush().join();
+	}
+
+	@Test
+	public void testSameResultAsSequentialLoad() throws IOException {
+		File file = folder.newFile("input.csv");
+		long nowUtc = System.currentTimeMillis() / 1000;
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			// spread over the last 3 hours, not in order
+			content.append(nowUtc - (i * 7919L) % 10800).append(",myserver").append(i % 13).append(',')
+					.append(1 + i % 5).append('.').append(i % 10).append(',').append(2 + i % 3).append(".25\n");
+			if (i % 1000 == 0) {
+				content.append("garbage\n");
+			}
+			if (i % 1000 == 1) {
+				content.append("-10,myserver1,0.0,2.5\n");
+			}
+		}
+		Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.US_ASCII));
+
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setShardCount(2);
+		ServerTrack sequentialTrack = new ServerTrack(config);
+		ServerTrack parallelTrack = new ServerTrack(config);
+		LoadStats sequentialStats = new CsvLoader(sequentialTrack).load(file);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ParallelBackfill backfill = new ParallelBackfill(parallelTrack, pool, 4096);
+		LoadStats parallelStats = backfill.load(file);
+		pool.shutdown();
+		waitForQueue(sequentialTrack);
+		waitForQueue(parallelTrack);
+
+		assertEquals(sequentialStats.getLines(), parallelStats.getLines());
+		assertEquals(20000, parallelStats.getAccepted());
+		assertEquals(20, parallelStats.getRejected());
+		assertEquals(20, parallelStats.getMalformed());
+		assertEquals(13, backfill.getServerNames().size());
+		for (String server : backfill.getServerNames()) {
+			List<ServerStatusData> sequentialMinutes, parallelMinutes, sequentialHours, parallelHours;
+			long minute;
+			do {
+				// query both in the same minute
+				minute = System.currentTimeMillis() / 60000;
+				sequentialMinutes = sequentialTrack.getDataForLast60Minutes(server).getData();
+				parallelMinutes = parallelTrack.getDataForLast60Minutes(server).getData();
+				sequentialHours = sequentialTrack.getDataForLast24Hours(server).getData();
+				parallelHours = parallelTrack.getDataForLast24Hours(server).getData();
+			} while (minute != System.currentTimeMillis() / 60000);
+			assertSameData(sequentialMinutes, parallelMinutes);
+			assertSameData(sequentialHours, parallelHours);
+		}
+	}
+
+	@Test
+	public void testSplitsAtLineStarts() throws IOException {
+		File file = folder.newFile("split.csv");
+		Files.write(file.toPath(),
+				"-1,a,1.0,1.0\n-2,bbbbbbbbbbbbbbbbbbbb,1.0,1.0\n-3,c,1.0,1.0".getBytes(StandardCharsets.US_ASCII));
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			long[] boundaries = ParallelBackfill.split(channel, 8);
+			assertEquals(0, boundaries[0]);
+			assertEquals(bytes.length, boundaries[8]);
+			for (int i = 1; i < boundaries.length; i++) {
+				assertTrue(boundaries[i] >= boundaries[i - 1]);
+				assertTrue(boundaries[i] == bytes.length || bytes[(int) boundaries[i] - 1] == '\n');
+			}
+		}
+	}
+
+	private static void assertSameData(List<ServerStatusData> expected, List<ServerStatusData> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getTimestampUtc(), actual.get(i).getTimestampUtc());
+			assertEquals(expected.get(i).getCpuLoad(), actual.get(i).getCpuLoad(), EPSILON);
+			assertEquals(expected.get(i).getMemoryLoad(), actual.get(i).getMemoryLoad(), EPSILON);
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package metrics;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsCoverEveryValue() {
+		for (long value : new long[] { 0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE }) {
+			int index = LatencyHistogram.indexOf(value);
+			assertTrue(index >= 0 && index < LatencyHistogram.BUCKETS);
+			// the middle of the bucket is within 1/32 of every value in it
+			assertEquals(value, LatencyHistogram.valueOf(index), value / 32.0 + 1);
+		}
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testQuantilesAreWithinBucketAccuracy() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getQuantile(0.99));
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			// 1% slow outliers around 10ms, the rest around 1us
+			histogram.record(i % 100 == 0 ? 10000000 + random.nextInt(1000000) : 1000 + random.nextInt(100));
+		}
+		assertEquals(100000, histogram.getCount());
+		assertEquals(1050, histogram.getQuantile(0.50), 1050 / 16);
+		assertEquals(1100, histogram.getQuantile(0.98), 1100 / 16);
+		assertTrue(histogram.getQuantile(0.999) >= 10000000);
+		assertTrue(histogram.getMax() < 11000000);
+		assertTrue(histogram.getQuantile(1.0) <= histogram.getMax());
+	}
+
+	@Test
+	public void testBatchesAreWeighted() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100, 99);
+		histogram.record(-5);
+		assertEquals(100, histogram.getCount());
+		assertEquals(99.0, histogram.getMean(), 1e-9);
+		assertEquals(0, histogram.getQuantile(0.01));
+		assertEquals(100, histogram.getQuantile(0.5), 100 / 16);
+	}
+}
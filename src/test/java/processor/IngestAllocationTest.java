@@ -0,0 +1,85 @@
+package processor;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import client.ServerStatusMessage;
+import entity.QueuedServerStatusMessage;
+import storage.RingStatStorage;
+
+/**
+ * Uses the per-thread allocation counters of the HotSpot ThreadMXBean to check that the allocation-free ingest
+ * mode really does not allocate once it is warmed up.
+ */
+public class IngestAllocationTest {
+
+	private static int WARMUP = 200000;
+
+	private static int MESSAGES = 1000000;
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+		Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+		threadBean.setThreadAllocatedMemoryEnabled(true);
+		return threadBean;
+	}
+
+	@Test
+	public void testStorageUpdateDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threadBean = threadBean();
+		RingStatStorage storage = new RingStatStorage();
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		long now = System.currentTimeMillis() / 1000;
+		for (int i = 0; i < WARMUP; i++) {
+			message.set("server" + (i & 15), 1.0, 2.0, now - (i & 4095));
+			storage.addToMaps(message);
+		}
+		String[] names = new String[16];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "server" + i;
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threadBean.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MESSAGES; i++) {
+			message.set(names[i & 15], 1.0, 2.0, now - (i & 4095));
+			storage.addToMaps(message);
+		}
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+		assertTrue("allocated " + allocated + " bytes for " + MESSAGES + " messages", allocated < MESSAGES / 100);
+	}
+
+	@Test
+	public void testReportDataDoesNotAllocate() {
+		com.sun.management.ThreadMXBean threadBean = threadBean();
+		ServerTrack serverTrack = new ServerTrack(RingStatStorage::new, 1 << 20);
+		ServerStatusMessage message = new ServerStatusMessage("myserver", 1.0, 2.0);
+		for (int i = 0; i < WARMUP; i++) {
+			serverTrack.reportData(message);
+		}
+		waitForQueue(serverTrack);
+		long producerId = Thread.currentThread().getId();
+		long consumerId = serverTrack.shards[0].workerThread.getId();
+		long producerBefore = threadBean.getThreadAllocatedBytes(producerId);
+		long consumerBefore = threadBean.getThreadAllocatedBytes(consumerId);
+		for (int i = 0; i < MESSAGES; i++) {
+			serverTrack.reportData(message);
+		}
+		long producerAllocated = threadBean.getThreadAllocatedBytes(producerId) - producerBefore;
+		waitForQueue(serverTrack);
+		long consumerAllocated = threadBean.getThreadAllocatedBytes(consumerId) - consumerBefore;
+		assertTrue("producer allocated " + producerAllocated + " bytes for " + MESSAGES + " messages",
+				producerAllocated < MESSAGES / 100);
+		assertTrue("consumer allocated " + consumerAllocated + " bytes for " + MESSAGES + " messages",
+				consumerAllocated < MESSAGES / 100);
+	}
+
+	private void waitForQueue(ServerTrack serverTrack) {
+		serverTrack.flush().join();
+	}
+}
@@ -0,0 +1,306 @@
+package processor;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import client.ServerStatusMessage;
+import entity.QueuedServerStatusMessage;
+import metrics.MetricsSnapshot;
+import metrics.ServerTrackMetrics;
+import storage.StatStorage;
+
+public class MessageRingBufferTest {
+
+	private static double EPSILON = 1e-6;
+
+	private void fill(MessageRingBuffer ring, int count) {
+		for (int i = 0; i < count; i++) {
+			long sequence = ring.claim();
+			assertTrue(sequence >= 0);
+			ring.slot(sequence).set("myserver", i + 1, i + 1, i);
+			ring.publish(sequence);
+		}
+	}
+
+	@Test
+	public void testCapacityIsRoundedUp() {
+		assertEquals(8, new MessageRingBuffer(5).getCapacity());
+		assertEquals(8, new MessageRingBuffer(8).getCapacity());
+		assertEquals(1, new MessageRingBuffer(1).getCapacity());
+	}
+
+	@Test
+	public void testMessagesAreTakenInOrder() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(4);
+		fill(ring, 3);
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		for (int i = 0; i < 3; i++) {
+			assertFalse(ring.isEmpty());
+			assertEquals(i, ring.take(message));
+			assertEquals(i + 1, message.getCpuLoad(), EPSILON);
+			ring.markProcessed();
+		}
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testRejectWhenFull() {
+		MessageRingBuffer ring = new MessageRingBuffer(4, FullQueuePolicy.REJECT);
+		fill(ring, 4);
+		assertEquals(-1L, ring.claim());
+		assertEquals(1, ring.getDroppedCount());
+		assertEquals(4, ring.size());
+	}
+
+	@Test
+	public void testDropNewestWhenFull() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(4, FullQueuePolicy.DROP_NEWEST);
+		fill(ring, 4);
+		assertEquals(-1L, ring.claim());
+		assertEquals(-1L, ring.claim());
+		assertEquals(2, ring.getDroppedCount());
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		assertEquals(0, ring.take(message));
+		assertEquals(1.0, message.getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testDropOldestWhenFull() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(4, FullQueuePolicy.DROP_OLDEST);
+		fill(ring, 6);
+		assertEquals(2, ring.getDroppedCount());
+		assertEquals(4, ring.size());
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		for (int i = 2; i < 6; i++) {
+			assertEquals(i, ring.take(message));
+			assertEquals(i + 1, message.getCpuLoad(), EPSILON);
+			ring.markProcessed();
+		}
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testStopRequestIsNotDropped() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(4, FullQueuePolicy.DROP_OLDEST);
+		fill(ring, 3);
+		ring.requestStop();
+		// drops the three messages, then has to wait for the consumer to take the stop request
+		Thread producer = new Thread(() -> fill(ring, 4));
+		producer.start();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (ring.getDroppedCount() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.yield();
+		}
+		assertEquals(3, ring.getDroppedCount());
+		QueuedServerStatusMessage[] batch = new QueuedServerStatusMessage[8];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+		assertEquals(0, ring.drainTo(batch));
+		producer.join(5000);
+		assertFalse(producer.isAlive());
+		assertEquals(4, ring.drainTo(batch));
+		assertEquals(3, ring.getDroppedCount());
+	}
+
+	@Test(timeout = 30000)
+	public void testStopRequestDuringDrain() throws InterruptedException {
+		QueuedServerStatusMessage[] batch = new QueuedServerStatusMessage[4096];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+		for (int round = 0; round < 500; round++) {
+			MessageRingBuffer ring = new MessageRingBuffer(4096, FullQueuePolicy.BLOCK);
+			// the slot of the stop request still holds a message from the previous lap
+			fill(ring, 4095);
+			ring.drainTo(batch);
+			fill(ring, 4000);
+			AtomicBoolean running = new AtomicBoolean();
+			AtomicBoolean draining = new AtomicBoolean();
+			Thread producer = new Thread(() -> {
+				running.set(true);
+				while (!draining.get()) {
+					// publish the stop request while the consumer copies the batch
+				}
+				ring.requestStop();
+			});
+			producer.start();
+			while (!running.get()) {
+				Thread.yield();
+			}
+			draining.set(true);
+			int received = 0;
+			int count;
+			while ((count = ring.drainTo(batch)) > 0) {
+				for (int i = 0; i < count; i++) {
+					assertEquals(received + i + 1, batch[i].getCpuLoad(), EPSILON);
+				}
+				received += count;
+			}
+			assertEquals(4000, received);
+			producer.join();
+		}
+	}
+
+	@Test
+	public void testBatchIsClaimedAndDrainedAtOnce() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(8, FullQueuePolicy.REJECT);
+		long first = ring.claimBatch(5);
+		assertEquals(0, first);
+		for (int i = 0; i < 5; i++) {
+			ring.slot(first + i).set("myserver", i + 1, i + 1, i);
+		}
+		ring.publish(first, 5);
+		// does not fit, nothing is claimed or dropped
+		assertEquals(-1L, ring.claimBatch(4));
+		assertEquals(0, ring.getDroppedCount());
+		QueuedServerStatusMessage[] batch = new QueuedServerStatusMessage[16];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+		assertEquals(5, ring.drainTo(batch));
+		assertEquals(5.0, batch[4].getCpuLoad(), EPSILON);
+		assertFalse(ring.isEmpty());
+		ring.markProcessed();
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void testServerTrackRejectsWhenFull() {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setQueueCapacity(1);
+		config.setFullQueuePolicy(FullQueuePolicy.REJECT);
+		ServerTrack serverTrack = new ServerTrack(config);
+		int accepted = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (serverTrack.reportData(new ServerStatusMessage("myserver", 1.0, 1.0))) {
+				accepted++;
+			}
+		}
+		assertEquals(10000, accepted + serverTrack.getDroppedCount());
+	}
+
+
+	@Test
+	public void testWhenProcessed() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(8);
+		assertTrue(ring.whenProcessed(ring.getClaimedSequence()).isDone());
+		fill(ring, 3);
+		CompletableFuture<Void> first = ring.whenProcessed(1);
+		CompletableFuture<Void> all = ring.whenProcessed(ring.getClaimedSequence());
+		CompletableFuture<Void> again = ring.whenProcessed(3);
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage();
+		ring.take(message);
+		assertFalse(first.isDone());
+		ring.markProcessed();
+		assertTrue(first.isDone());
+		assertFalse(all.isDone());
+		ring.take(message);
+		ring.take(message);
+		ring.markProcessed();
+		assertTrue(all.isDone());
+		assertTrue(again.isDone());
+
+		fill(ring, 1);
+		CompletableFuture<Void> pending = ring.whenProcessed(ring.getClaimedSequence());
+		ring.failWaiters(new IllegalStateException());
+		assertTrue(pending.isCompletedExceptionally());
+	}
+
+	@Test
+	public void testWhenAppliedTellsDroppedMessages() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(4, FullQueuePolicy.DROP_OLDEST);
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Boolean>[] applied = new CompletableFuture[6];
+		for (int i = 0; i < applied.length; i++) {
+			long sequence = ring.claim();
+			applied[i] = ring.whenApplied(sequence);
+			ring.slot(sequence).set("myserver", i + 1, i + 1, i);
+			ring.publish(sequence);
+		}
+		assertFalse(applied[0].join());
+		assertFalse(applied[1].join());
+		QueuedServerStatusMessage[] batch = new QueuedServerStatusMessage[4];
+		for (int i = 0; i < batch.length; i++) {
+			batch[i] = new QueuedServerStatusMessage();
+		}
+		assertEquals(4, ring.drainTo(batch));
+		assertFalse(applied[2].isDone());
+		ring.markProcessed();
+		for (int i = 2; i < applied.length; i++) {
+			assertTrue(applied[i].join());
+		}
+
+		long sequence = ring.claim();
+		CompletableFuture<Boolean> pending = ring.whenApplied(sequence);
+		ring.publish(sequence);
+		ring.failWaiters(new IllegalStateException());
+		assertTrue(pending.isCompletedExceptionally());
+	}
+
+	private CompletableFuture<Boolean> publishApplied(MessageRingBuffer ring, double load) {
+		long sequence = ring.claim();
+		CompletableFuture<Boolean> applied = ring.whenApplied(sequence);
+		ring.slot(sequence).set("myserver", load, load, 0);
+		ring.publish(sequence);
+		return applied;
+	}
+
+	@Test
+	public void testFailedMessagesAreNotProcessed() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(8);
+		ServerTrackMetrics metrics = new ServerTrackMetrics();
+		StatStorage storage = new StatStorage() {
+			@Override
+			public void addToMaps(QueuedServerStatusMessage message) {
+				if (message.getCpuLoad() == 2) {
+					throw new IllegalArgumentException("bad message");
+				}
+				super.addToMaps(message);
+			}
+		};
+		CompletableFuture<Boolean> first = publishApplied(ring, 1);
+		CompletableFuture<Boolean> second = publishApplied(ring, 2);
+		CompletableFuture<Boolean> third = publishApplied(ring, 3);
+		ring.requestStop();
+		Thread thread = new Thread(new MessageProcessor(ring, storage, metrics));
+		thread.start();
+		thread.join(5000);
+		assertTrue(first.join());
+		assertFalse(second.join());
+		assertTrue(third.join());
+		MetricsSnapshot snapshot = metrics.snapshot(0, 0, 0, 0);
+		assertEquals(2, snapshot.getProcessedCount());
+		assertEquals(1, snapshot.getProcessingErrorCount());
+	}
+
+	@Test
+	public void testProcessorErrorFailsWaiters() throws InterruptedException {
+		MessageRingBuffer ring = new MessageRingBuffer(8);
+		StatStorage storage = new StatStorage() {
+			@Override
+			public void addToMaps(QueuedServerStatusMessage message) {
+				if (message.getCpuLoad() == 2) {
+					throw new Error("storage is broken");
+				}
+				super.addToMaps(message);
+			}
+		};
+		CompletableFuture<Boolean> first = publishApplied(ring, 1);
+		CompletableFuture<Boolean> second = publishApplied(ring, 2);
+		CompletableFuture<Void> all = ring.whenProcessed(ring.getClaimedSequence());
+		Thread thread = new Thread(new MessageProcessor(ring, storage));
+		thread.setUncaughtExceptionHandler((t, e) -> { });
+		thread.start();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		// the first message was applied, but its batch was never finished
+		assertTrue(first.isCompletedExceptionally());
+		assertTrue(second.isCompletedExceptionally());
+		assertTrue(all.isCompletedExceptionally());
+	}
+}
@@ -2,7 +2,20 @@ package processor;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Before;
@@ -11,9 +24,17 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import client.RollupData;
+import client.RollupResult;
 import client.ServerStatusData;
 import client.ServerStatusMessage;
 import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+import metrics.MetricsSnapshot;
+import metrics.ServerTrackJmx;
+import storage.RetentionPolicy;
+import storage.ServerGroupMapper;
+import storage.StatStorage;
 
 public class ServerTrackTest {
 
@@ -165,6 +186,127 @@ public class ServerTrackTest {
 		assertEquals(totalCpuLoad / count, result2.getData().get(0).getCpuLoad(), EPSILON);
 	}
 
+	@Test
+	public void testShardedServersAreNotMixed() {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setShardCount(4);
+		ServerTrack shardedTrack = new ServerTrack(config);
+		int servers = 100;
+		for (int i = 0; i < servers; i++) {
+			shardedTrack.reportData(new ServerStatusMessage("myserver" + i, i + 1.0, i + 2.0));
+			shardedTrack.reportData(new ServerStatusMessage("myserver" + i, i + 3.0, i + 4.0));
+		}
+		waitForQueue(shardedTrack);
+		for (int i = 0; i < servers; i++) {
+			ServerStatusResult result = shardedTrack.getDataForLast60Minutes("myserver" + i);
+			assertEquals(i + 2.0, result.getData().get(0).getCpuLoad(), EPSILON);
+			assertEquals(i + 3.0, result.getData().get(0).getMemoryLoad(), EPSILON);
+		}
+		// every shard got some of the servers
+		Set<Shard> usedShards = new HashSet<Shard>();
+		for (int i = 0; i < servers; i++) {
+			usedShards.add(shardedTrack.shardFor("myserver" + i));
+		}
+		assertEquals(4, usedShards.size());
+		assertSame(shardedTrack.shardFor("myserver0"), shardedTrack.shardFor("myserver0"));
+	}
+
+	@Test
+	public void testFleetQueries() {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setShardCount(4);
+		ServerTrack shardedTrack = new ServerTrack(config);
+		for (int i = 0; i < 50; i++) {
+			shardedTrack.reportData(new ServerStatusMessage("web" + i, i + 1.0, 1.0));
+			shardedTrack.reportData(new ServerStatusMessage("db" + i, i + 1.0, 2.0));
+		}
+		waitForQueue(shardedTrack);
+
+		Map<String, ServerStatusResult> web = shardedTrack.getDataForLast60MinutesByPrefix("web")
+				.collect(Collectors.toMap(ServerStatusResult::getServerName, result -> result));
+		assertEquals(50, web.size());
+		assertEquals(8.0, web.get("web7").getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(100, shardedTrack.getDataForLast24HoursByPrefix("").count());
+
+		List<ServerStatusResult> selected = shardedTrack
+				.getDataForLast24Hours(Arrays.asList("db3", "web3", "unknown")).collect(Collectors.toList());
+		assertEquals("db3", selected.get(0).getServerName());
+		assertEquals(2.0, selected.get(0).getData().get(0).getMemoryLoad(), EPSILON);
+		assertEquals(1.0, selected.get(1).getData().get(0).getMemoryLoad(), EPSILON);
+		assertEquals(0.0, selected.get(2).getData().get(0).getMemoryLoad(), EPSILON);
+		assertEquals(24, selected.get(2).getData().size());
+		assertEquals(60, shardedTrack.getDataForLast60Minutes(Arrays.asList("db3")).findFirst().get().getData().size());
+	}
+
+	@Test
+	public void testRollupsAreMergedAcrossShards() {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setShardCount(4);
+		config.setStorageFactory(() -> new StatStorage(new RetentionPolicy(), ServerGroupMapper.bySeparator("-")));
+		ServerTrack shardedTrack = new ServerTrack(config);
+		for (int i = 0; i < 40; i++) {
+			shardedTrack.reportData(new ServerStatusMessage((i % 2 == 0 ? "web-" : "db-") + i, i + 1.0, 1.0));
+		}
+		waitForQueue(shardedTrack);
+		RollupData fleet = shardedTrack.getRollupForLast24Hours(null).getData().get(0);
+		assertEquals(40, fleet.getServers());
+		assertEquals(20.5, fleet.getCpuLoad(), EPSILON);
+		assertEquals(820.0, fleet.getTotalCpuLoad(), EPSILON);
+		assertEquals(40.0, fleet.getMaxCpuLoad(), EPSILON);
+		RollupResult web = shardedTrack.getRollupForLast60Minutes("web");
+		assertEquals(60, web.getData().size());
+		assertEquals(20, web.getData().get(0).getServers());
+		assertEquals(39.0, web.getData().get(0).getMaxCpuLoad(), EPSILON);
+		assertEquals(0, shardedTrack.getRollupForLast60Minutes("unknown").getData().get(0).getServers());
+	}
+
+	@Test
+	public void testBatchIsValidatedPerItem() {
+		List<ServerStatusMessage> batch = new ArrayList<ServerStatusMessage>();
+		batch.add(new ServerStatusMessage("myserver1", 1.0, 2.0));
+		batch.add(new ServerStatusMessage(null, 1.0, 1.0));
+		batch.add(new ServerStatusMessage("myserver1", 2.0, 4.0));
+		batch.add(new ServerStatusMessage("myserver2", -1.0, 1.0));
+		batch.add(new ServerStatusMessage("myserver2", 3.0, 4.0));
+		BitSet accepted = serverTrack.reportData(batch);
+		assertEquals("{0, 2, 4}", accepted.toString());
+		waitForQueue(serverTrack);
+		ServerStatusResult result1 = serverTrack.getDataForLast60Minutes("myserver1");
+		assertEquals(1.5, result1.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(3.0, result1.getData().get(0).getMemoryLoad(), EPSILON);
+		ServerStatusResult result2 = serverTrack.getDataForLast24Hours("myserver2");
+		assertEquals(3.0, result2.getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testNegativeTimestampsAreRefused() throws Exception {
+		long now = System.currentTimeMillis() / 1000;
+		ServerStatusMessage[] batch = { new QueuedServerStatusMessage("myserver1", 1.0, 1.0, -1L),
+				new QueuedServerStatusMessage("myserver1", 2.0, 2.0, now) };
+		assertEquals("{1}", serverTrack.reportData(batch, 0, batch.length).toString());
+		assertFalse(serverTrack.reportData(new ServerStatusMessage("myserver1", 1.0, 1.0), -1L));
+		// the processor is still running
+		serverTrack.flush().get(10, TimeUnit.SECONDS);
+		assertTrue(serverTrack.reportData(new QueuedServerStatusMessage("myserver1", 4.0, 4.0, now), now));
+		serverTrack.flush().get(10, TimeUnit.SECONDS);
+		assertEquals(3.0, serverTrack.getDataForLast24Hours("myserver1").getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testForeignServerIdsAreOnlyHints() {
+		long now = System.currentTimeMillis() / 1000;
+		int otherId = serverTrack.getServerRegistry().idOf("myserver2");
+		QueuedServerStatusMessage message = new QueuedServerStatusMessage("myserver1", 1.0, 1.0, now);
+		message.setServerId(otherId);
+		QueuedServerStatusMessage unknown = new QueuedServerStatusMessage("myserver1", 3.0, 3.0, now);
+		unknown.setServerId(1 << 20);
+		serverTrack.reportData(Arrays.asList(new QueuedServerStatusMessage("myserver2", 5.0, 5.0, now), message,
+				unknown));
+		serverTrack.flush().join();
+		assertEquals(2.0, serverTrack.getDataForLast24Hours("myserver1").getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(5.0, serverTrack.getDataForLast24Hours("myserver2").getData().get(0).getCpuLoad(), EPSILON);
+	}
+
 	@Test
 	public void testMessagesAreValidated() {
 		assertFalse(serverTrack.reportData(new ServerStatusMessage(null, 1.0, 1.0)));
@@ -188,6 +330,64 @@ public class ServerTrackTest {
 			assertEquals(0.0, data.getMemoryLoad(), EPSILON);
 		}}
 	
+	@Test
+	public void testMetrics() throws Exception {
+		ServerTrackConfig config = new ServerTrackConfig();
+		config.setJmxName("testMetrics");
+		ServerTrack metricsTrack = new ServerTrack(config);
+		assertFalse(metricsTrack.reportData(new ServerStatusMessage("", 1.0, 1.0)));
+		for (int i = 0; i < 10; i++) {
+			assertTrue(metricsTrack.reportData(new ServerStatusMessage("myserver" + (i % 2), 1.0, 1.0)));
+		}
+		waitForQueue(metricsTrack);
+		metricsTrack.getDataForLast60Minutes("myserver0");
+
+		MetricsSnapshot metrics = metricsTrack.getMetrics();
+		assertEquals(11, metrics.getReceivedCount());
+		assertEquals(1, metrics.getInvalidCount());
+		assertEquals(10, metrics.getProcessedCount());
+		assertEquals(0, metrics.getProcessingErrorCount());
+		assertEquals(0, metrics.getQueueDepth());
+		assertEquals(2, metrics.getServerCount());
+		// a minute, an hour and a day bucket per server
+		assertEquals(6, metrics.getBucketCount());
+		assertEquals(1, metrics.getQueryCount());
+		assertTrue(metrics.getProcessingLatencyP50Nanos() > 0);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = ServerTrackJmx.objectName("testMetrics");
+		assertEquals(10L, server.getAttribute(name, "ProcessedCount"));
+		assertEquals(2L, server.getAttribute(name, "ServerCount"));
+
+		// counts survive a reset
+		metricsTrack.Reset();
+		assertEquals(10, metricsTrack.getMetrics().getProcessedCount());
+		metricsTrack.Reset();
+		server.unregisterMBean(name);
+	}
+
+	@Test
+	public void testReportDataAsync() {
+		ServerStatusMessage message = new ServerStatusMessage("asyncserver", 1.5, 2.5);
+		// visible as soon as the future completes, no waiting for the queue
+		assertTrue(serverTrack.reportDataAsync(message).join());
+		ServerStatusResult result = serverTrack.getDataForLast60Minutes("asyncserver");
+		assertEquals(1.5, result.getData().get(0).getCpuLoad(), EPSILON);
+		assertFalse(serverTrack.reportDataAsync(new ServerStatusMessage("asyncserver", -1.0, 2.5)).join());
+
+		List<ServerStatusMessage> messages = new ArrayList<ServerStatusMessage>();
+		for (int i = 0; i < 1000; i++) {
+			messages.add(new ServerStatusMessage("asyncserver" + (i % 10), 1.0, i % 100 == 0 ? -1.0 : 1.0));
+		}
+		BitSet accepted = serverTrack.reportDataAsync(messages).join();
+		assertEquals(990, accepted.cardinality());
+		for (int i = 0; i < 10; i++) {
+			assertEquals(1.0, serverTrack.getDataForLast60Minutes("asyncserver" + i).getData().get(0).getCpuLoad(),
+					EPSILON);
+		}
+		assertTrue(serverTrack.flush().isDone());
+	}
+
 	/**
 	 * @param serverTrack
 	 * 
@@ -195,13 +395,7 @@ public class ServerTrackTest {
 	 * but we want our tests be exact.
 	 */
 	private void waitForQueue(ServerTrack serverTrack) {
-		while (!serverTrack.queueIsEmpty()) {
-			try {
-				Thread.sleep(10);
-			} catch (Exception e) {
-
-			}
-		}
+		serverTrack.flush().join();
 	}
 
 
@@ -0,0 +1,114 @@
+package storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+
+public class ColumnarStatStorageTest {
+
+	private static double EPSILON = 1e-6;
+
+	// 2016-08-24 06:00:00 UTC, aligned to the hour
+	private static long NOW = 1472018400L;
+
+	private ColumnarStatStorage storage;
+
+	@Before
+	public void setupTest() {
+		storage = new ColumnarStatStorage();
+	}
+
+	@Test
+	public void testResultsAreAveragedByBucket() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 2.0, NOW + 10));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 2.0, 4.0, NOW + 20));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 0.1, 0.2, NOW - 60));
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW + 30);
+		assertEquals(60, minutes.getData().size());
+		assertEquals(NOW, minutes.getData().get(0).getTimestampUtc());
+		assertEquals(1.5, minutes.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(3.0, minutes.getData().get(0).getMemoryLoad(), EPSILON);
+		assertEquals(0.1, minutes.getData().get(1).getCpuLoad(), EPSILON);
+		ServerStatusResult hours = storage.getDataForLast24Hours("myserver", NOW + 30);
+		assertEquals(24, hours.getData().size());
+		assertEquals(1.5, hours.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(0.1, hours.getData().get(1).getCpuLoad(), EPSILON);
+		assertEquals(0.0, storage.getDataForLast60Minutes("unknown", NOW).getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testOutOfOrderBucketsSplitSegments() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setMinuteRetentionSeconds(24 * 3600);
+		storage = new ColumnarStatStorage(retentionPolicy);
+		// newest first, so every bucket after the first is inserted in front of the others
+		for (int i = 3 * ColumnSegment.CAPACITY - 1; i >= 0; i--) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", i, 1.0, NOW + i * 60));
+		}
+		ServerStatusResult minutes = storage.getData("myserver", NOW, NOW + 3 * ColumnSegment.CAPACITY * 60, 60);
+		for (int i = 0; i < 3 * ColumnSegment.CAPACITY; i++) {
+			assertEquals(NOW + i * 60, minutes.getData().get(i).getTimestampUtc());
+			assertEquals(i, minutes.getData().get(i).getCpuLoad(), EPSILON);
+		}
+		// 192 minutes, 4 hours and a day
+		assertEquals(3 * ColumnSegment.CAPACITY + 4 + 1, storage.getBucketCount());
+	}
+
+	@Test
+	public void testLongRetention() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setMinuteRetentionSeconds(7 * 24 * 3600);
+		storage = new ColumnarStatStorage(retentionPolicy);
+		// eight days, one message per minute
+		for (int i = 0; i < 8 * 1440; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 2.0, NOW + i * 60));
+		}
+		ServerStatusResult days = storage.getData("myserver", NOW, NOW + 8 * 86400, 86400);
+		assertEquals(1.0, days.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(2.0, days.getData().get(7).getMemoryLoad(), EPSILON);
+		ServerStatusResult sixHours = storage.getData("myserver", NOW + 7 * 86400, NOW + 8 * 86400, 6 * 3600);
+		assertEquals(4, sixHours.getData().size());
+		assertEquals(1.0, sixHours.getData().get(3).getCpuLoad(), EPSILON);
+		// the first day of minutes is dropped a segment at a time
+		ServerStatusResult firstDay = storage.getData("myserver", NOW, NOW + 86400 - ColumnSegment.CAPACITY * 60, 60);
+		assertEquals(0.0, firstDay.getData().get(0).getCpuLoad(), EPSILON);
+		ServerStatusResult lastWeek = storage.getData("myserver", NOW + 86400, NOW + 8 * 86400, 60);
+		assertEquals(1.0, lastWeek.getData().get(0).getCpuLoad(), EPSILON);
+		// a week of minutes, 24 bytes each, in less than 0.5 MB of direct memory
+		assertTrue(storage.getBucketCount() > 7 * 1440);
+		assertTrue(storage.getOffHeapBytes() < 512 * 1024);
+	}
+
+	@Test
+	public void testBucketsCanBeRestored() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW + 3600));
+		ColumnarStatStorage restored = new ColumnarStatStorage();
+		storage.forEachBucket(restored::restoreBucket);
+		assertEquals(storage.getBucketCount(), restored.getBucketCount());
+		assertEquals(2.0, restored.getData("myserver", NOW, NOW + 1, 86400).getData().get(0).getCpuLoad(), EPSILON);
+		// restoring replaces the bucket
+		restored.restoreBucket("myserver", 60, NOW, 2, 10.0, 10.0);
+		assertEquals(5.0, restored.getDataForLast60Minutes("myserver", NOW).getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testIdleServersReleaseSegments() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setServerIdleSeconds(60);
+		storage = new ColumnarStatStorage(retentionPolicy);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver1", 1.0, 1.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver2", 1.0, 1.0, NOW));
+		long offHeapBytes = storage.getOffHeapBytes();
+		assertEquals(2, storage.evictIdleServers(System.currentTimeMillis() + 61 * 1000));
+		assertEquals(0, storage.getServerCount());
+		assertEquals(0, storage.getBucketCount());
+		// the released segments are reused
+		storage.addToMaps(new QueuedServerStatusMessage("myserver3", 1.0, 1.0, NOW));
+		assertEquals(offHeapBytes, storage.getOffHeapBytes());
+	}
+}
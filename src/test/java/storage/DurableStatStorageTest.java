@@ -0,0 +1,88 @@
+package storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+
+public class DurableStatStorageTest {
+
+	private static double EPSILON = 1e-6;
+
+	// 2016-08-24 06:00:00 UTC, aligned to the hour
+	private static long NOW = 1472018400L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private DurableStatStorage open(File directory) {
+		return new DurableStatStorage(directory, new StatStorage(), 60 * 1000, 0);
+	}
+
+	@Test
+	public void testDataSurvivesRestart() throws IOException {
+		File directory = folder.newFolder();
+		DurableStatStorage storage = open(directory);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 2.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 2.0, 4.0, NOW + 10));
+		storage.flush();
+		storage.close();
+
+		DurableStatStorage recovered = open(directory);
+		ServerStatusResult minutes = recovered.getDataForLast60Minutes("myserver", NOW);
+		assertEquals(1.5, minutes.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(3.0, minutes.getData().get(0).getMemoryLoad(), EPSILON);
+		recovered.close();
+	}
+
+	@Test
+	public void testSnapshotPlusLogTail() throws IOException {
+		File directory = folder.newFolder();
+		DurableStatStorage storage = open(directory);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver1", 1.0, 1.0, NOW));
+		storage.flush();
+		storage.checkpoint();
+		storage.addToMaps(new QueuedServerStatusMessage("myserver1", 3.0, 3.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver2", 5.0, 5.0, NOW + 3600));
+		// no close, the process dies after the batch was committed
+		storage.flush();
+
+		DurableStatStorage recovered = open(directory);
+		assertEquals(2.0, recovered.getDataForLast60Minutes("myserver1", NOW).getData().get(0).getCpuLoad(), EPSILON);
+		ServerStatusResult hours = recovered.getDataForLast24Hours("myserver2", NOW + 3600);
+		assertEquals(5.0, hours.getData().get(0).getCpuLoad(), EPSILON);
+		// recovery checkpoints, so only one log generation is left
+		assertEquals(1, directory.list((dir, name) -> name.endsWith(DurableStatStorage.WAL_SUFFIX)).length);
+		recovered.close();
+		storage.close();
+	}
+
+	@Test
+	public void testTornLogTailIsIgnored() throws IOException {
+		File directory = folder.newFolder();
+		DurableStatStorage storage = open(directory);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		storage.close();
+		File[] logs = directory.listFiles((dir, name) -> name.endsWith(DurableStatStorage.WAL_SUFFIX));
+		assertEquals(1, logs.length);
+		try (FileOutputStream out = new FileOutputStream(logs[0], true)) {
+			out.write(new byte[] { 0, 8, 'm', 'y', 's' });
+		}
+
+		DurableStatStorage recovered = open(directory);
+		assertEquals(1.0, recovered.getDataForLast60Minutes("myserver", NOW).getData().get(0).getCpuLoad(), EPSILON);
+		recovered.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW));
+		recovered.close();
+		assertEquals(2.0, open(directory).getDataForLast60Minutes("myserver", NOW).getData().get(0).getCpuLoad(),
+				EPSILON);
+	}
+
+}
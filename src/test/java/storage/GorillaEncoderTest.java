@@ -0,0 +1,67 @@
+package storage;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class GorillaEncoderTest {
+
+	// 2016-08-24 06:00:00 UTC, aligned to the hour
+	private static long NOW = 1472018400L;
+
+	@Test
+	public void testRoundTrip() {
+		Random random = new Random(42);
+		int size = 5000;
+		long[] timestamps = new long[size];
+		int[] counts = new int[size];
+		double[] cpuLoads = new double[size];
+		double[] memoryLoads = new double[size];
+		long bucketUtc = NOW;
+		for (int i = 0; i < size; i++) {
+			// mostly consecutive minutes, with short and very long gaps
+			int gap = random.nextInt(10) == 0 ? 1 + random.nextInt(3000) : 1;
+			bucketUtc += (i % 1000 == 999 ? 1000000 : gap) * 60;
+			timestamps[i] = bucketUtc;
+			counts[i] = random.nextInt(5) == 0 ? random.nextInt(100) : 60;
+			cpuLoads[i] = i % 7 == 0 ? cpuLoads[Math.max(0, i - 1)] : random.nextDouble() * counts[i];
+			memoryLoads[i] = i % 11 == 0 ? -0.0 : Math.round(random.nextDouble() * 10000) / 100.0;
+		}
+		GorillaEncoder encoder = new GorillaEncoder(60);
+		for (int i = 0; i < size; i++) {
+			encoder.append(timestamps[i], counts[i], cpuLoads[i], memoryLoads[i]);
+		}
+		ColdBlock block = encoder.seal();
+		GorillaDecoder decoder = block.decoder();
+		for (int i = 0; i < size; i++) {
+			assertTrue(decoder.next());
+			assertEquals(timestamps[i], decoder.bucketUtc);
+			assertEquals(counts[i], decoder.count);
+			assertEquals(Double.doubleToRawLongBits(cpuLoads[i]), Double.doubleToRawLongBits(decoder.cpuLoadValue));
+			assertEquals(Double.doubleToRawLongBits(memoryLoads[i]),
+					Double.doubleToRawLongBits(decoder.memoryLoadValue));
+		}
+		assertFalse(decoder.next());
+		assertEquals(timestamps[0], block.firstUtc);
+		assertEquals(timestamps[size - 1], block.lastUtc);
+	}
+
+	@Test
+	public void testViewOfOpenEncoder() {
+		GorillaEncoder encoder = new GorillaEncoder(3600);
+		encoder.append(NOW, 1, 0.5, 0.25);
+		ColdBlock view = encoder.view();
+		for (int i = 1; i < 100; i++) {
+			encoder.append(NOW + i * 3600, 1, 0.5, 0.25);
+		}
+		// the earlier view still decodes exactly the buckets it was created with
+		GorillaDecoder decoder = view.decoder();
+		assertTrue(decoder.next());
+		assertEquals(NOW, decoder.bucketUtc);
+		assertFalse(decoder.next());
+		// a constant series costs a few bits per bucket
+		assertTrue(encoder.seal().getSizeBytes() < 30 + 100);
+	}
+}
@@ -0,0 +1,91 @@
+package storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+import entity.QueuedServerStatusMessage;
+
+public class RingStatStorageTest {
+
+	private static double EPSILON = 1e-6;
+
+	// 2016-08-24 06:00:00 UTC, aligned to the hour
+	private static long NOW = 1472018400L;
+
+	private RingStatStorage storage;
+
+	@Before
+	public void setupTest() {
+		storage = new RingStatStorage();
+	}
+
+	@Test
+	public void testWithoutData() {
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW);
+		assertEquals(60, minutes.getData().size());
+		assertEquals(NOW, minutes.getData().get(0).getTimestampUtc());
+		assertEquals(NOW - 59 * 60, minutes.getData().get(59).getTimestampUtc());
+		ServerStatusResult hours = storage.getDataForLast24Hours("myserver", NOW);
+		assertEquals(24, hours.getData().size());
+		for (ServerStatusData data : hours.getData()) {
+			assertEquals(0.0, data.getCpuLoad(), EPSILON);
+		}
+	}
+
+	@Test
+	public void testResultsAreAveragedByBucket() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 2.0, NOW + 10));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 2.0, 4.0, NOW + 20));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 0.1, 0.2, NOW - 60));
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW + 30);
+		assertEquals(1.5, minutes.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(3.0, minutes.getData().get(0).getMemoryLoad(), EPSILON);
+		assertEquals(0.1, minutes.getData().get(1).getCpuLoad(), EPSILON);
+		ServerStatusResult hours = storage.getDataForLast24Hours("myserver", NOW + 30);
+		assertEquals(1.5, hours.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(0.1, hours.getData().get(1).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testSlotsAreReusedWhenBucketsAgeOut() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		// same minute slot, one hour later
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW + 3600));
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW + 3600);
+		assertEquals(3.0, minutes.getData().get(0).getCpuLoad(), EPSILON);
+		for (int i = 1; i < 60; i++) {
+			assertEquals(0.0, minutes.getData().get(i).getCpuLoad(), EPSILON);
+		}
+		// the old minute is gone from the ring, an old window sees nothing
+		assertEquals(0.0, storage.getDataForLast60Minutes("myserver", NOW).getData().get(0).getCpuLoad(), EPSILON);
+		// the hour ring still has both
+		ServerStatusResult hours = storage.getDataForLast24Hours("myserver", NOW + 3600);
+		assertEquals(3.0, hours.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(1.0, hours.getData().get(1).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testAgedOutMessagesAreIgnored() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW + 3600));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW + 3600);
+		assertEquals(3.0, minutes.getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+
+	@Test
+	public void testRangeQueries() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 2.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 4.0, NOW + 240));
+		ServerStatusResult fiveMinutes = storage.getData("myserver", NOW - 300, NOW + 300, 300);
+		assertEquals(2, fiveMinutes.getData().size());
+		assertEquals(0.0, fiveMinutes.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(2.0, fiveMinutes.getData().get(1).getCpuLoad(), EPSILON);
+		assertEquals(3.0, fiveMinutes.getData().get(1).getMemoryLoad(), EPSILON);
+		assertEquals(2.0, storage.getData("myserver", NOW, NOW + 7200, 7200).getData().get(0).getCpuLoad(), EPSILON);
+	}
+}
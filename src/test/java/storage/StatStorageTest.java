@@ -0,0 +1,399 @@
+package storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import client.ServerStatusData;
+import client.ServerStatusResult;
+import entity.LoadSketch;
+import entity.QueuedServerStatusMessage;
+import entity.RollupRecord;
+import entity.ServerStatusRecord;
+
+public class StatStorageTest {
+
+	private static double EPSILON = 1e-6;
+
+	// 2016-08-24 06:00:00 UTC, aligned to the hour
+	private static long NOW = 1472018400L;
+
+	private StatStorage storage;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Before
+	public void setupTest() {
+		storage = new StatStorage();
+	}
+
+	@Test
+	public void testOldMinuteBucketsAreReclaimed() {
+		// two hours of data, one message per minute
+		for (int i = 0; i < 120; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW + i * 60));
+		}
+		// 60 minute buckets and 2 hour buckets are left
+		assertEquals(60, storage.getReclaimedBucketCount());
+		assertEquals(60 * StatStorage.BYTES_PER_BUCKET, storage.getReclaimedBytes());
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW + 119 * 60);
+		for (int i = 0; i < 60; i++) {
+			assertEquals(1.0, minutes.getData().get(i).getCpuLoad(), EPSILON);
+		}
+		// the first hour is still there by the hour, but not by the minute
+		ServerStatusResult hours = storage.getDataForLast24Hours("myserver", NOW + 119 * 60);
+		assertEquals(1.0, hours.getData().get(1).getCpuLoad(), EPSILON);
+		assertEquals(0.0, storage.getDataForLast60Minutes("myserver", NOW + 30 * 60).getData().get(0).getCpuLoad(),
+				EPSILON);
+	}
+
+	@Test
+	public void testDataOutsideRetentionIsNotStored() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW + 7200));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 5.0, 5.0, NOW));
+		ServerStatusResult hours = storage.getDataForLast24Hours("myserver", NOW + 7200);
+		assertEquals(1.0, hours.getData().get(0).getCpuLoad(), EPSILON);
+		// too old for the minute map, but still inside the hour retention
+		assertEquals(5.0, hours.getData().get(2).getCpuLoad(), EPSILON);
+		assertEquals(0.0, storage.getDataForLast60Minutes("myserver", NOW).getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testIdleServersAreEvicted() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setServerIdleSeconds(60);
+		storage = new StatStorage(retentionPolicy);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver1", 1.0, 1.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver2", 1.0, 1.0, NOW));
+		assertEquals(2, storage.getServerCount());
+		assertEquals(0, storage.evictIdleServers(System.currentTimeMillis()));
+		assertEquals(2, storage.evictIdleServers(System.currentTimeMillis() + 61 * 1000));
+		assertEquals(0, storage.getServerCount());
+		assertEquals(2, storage.getEvictedServerCount());
+		// a minute, an hour and a day bucket per server
+		assertEquals(6, storage.getReclaimedBucketCount());
+		assertEquals(0.0, storage.getDataForLast60Minutes("myserver1", NOW).getData().get(0).getCpuLoad(), EPSILON);
+	}
+
+	@Test
+	public void testRepeatedQueriesAreCached() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW + 60));
+		ServerStatusResult first = storage.getDataForLast60Minutes("myserver", NOW + 60);
+		ServerStatusResult again = storage.getDataForLast60Minutes("myserver", NOW + 90);
+		assertNotSame(first.getData(), again.getData());
+		for (int i = 0; i < 60; i++) {
+			assertSame(first.getData().get(i), again.getData().get(i));
+		}
+
+		// a change inside the window rebuilds only the changed bucket
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 5.0, 5.0, NOW + 60));
+		ServerStatusResult patched = storage.getDataForLast60Minutes("myserver", NOW + 60);
+		assertNotSame(first.getData().get(0), patched.getData().get(0));
+		assertEquals(4.0, patched.getData().get(0).getCpuLoad(), EPSILON);
+		assertSame(first.getData().get(1), patched.getData().get(1));
+
+		// the next minute reuses the existing entries one position further back
+		ServerStatusResult rolled = storage.getDataForLast60Minutes("myserver", NOW + 120);
+		assertEquals(0.0, rolled.getData().get(0).getCpuLoad(), EPSILON);
+		assertSame(patched.getData().get(0), rolled.getData().get(1));
+		assertSame(patched.getData().get(1), rolled.getData().get(2));
+		assertEquals(NOW, rolled.getData().get(2).getTimestampUtc());
+	}
+
+	@Test
+	public void testCachedResultsAreCopies() {
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		List<ServerStatusData> data = storage.getDataForLast24Hours("myserver", NOW).getData();
+		data.sort((a, b) -> Long.compare(a.getTimestampUtc(), b.getTimestampUtc()));
+		data.clear();
+		List<ServerStatusData> again = storage.getDataForLast24Hours("myserver", NOW).getData();
+		assertEquals(24, again.size());
+		assertEquals(NOW - NOW % 3600, again.get(0).getTimestampUtc());
+	}
+
+	@Test
+	public void testConcurrentWritersToOneServer() throws InterruptedException {
+		int writers = 4;
+		int messages = 20000;
+		AtomicBoolean inconsistent = new AtomicBoolean();
+		AtomicBoolean done = new AtomicBoolean();
+		Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				// every measurement is 2.0 and 4.0, a count read without its sums would give another average
+				ServerStatusData data = storage.getDataForLast60Minutes("myserver", NOW).getData().get(0);
+				if ((data.getCpuLoad() != 0.0 || data.getMemoryLoad() != 0.0)
+						&& (data.getCpuLoad() != 2.0 || data.getMemoryLoad() != 4.0)) {
+					inconsistent.set(true);
+				}
+			}
+		});
+		reader.start();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < writers; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < messages; i++) {
+					storage.addToMaps(new QueuedServerStatusMessage("myserver", 2.0, 4.0, NOW + i % 60));
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		done.set(true);
+		reader.join();
+
+		assertFalse(inconsistent.get());
+		ServerStatusData minute = storage.getDataForLast60Minutes("myserver", NOW).getData().get(0);
+		assertEquals(2.0, minute.getCpuLoad(), EPSILON);
+		RollupRecord fleetMinute = storage.getRollup(null, 60, NOW);
+		assertEquals(1, fleetMinute.getServers());
+		assertEquals(writers * messages, fleetMinute.getCount());
+		assertEquals(writers * messages * 4.0, fleetMinute.getMemoryLoadValue(), EPSILON);
+		assertEquals(writers * messages, storage.getRollup(null, 3600, NOW).getCount());
+	}
+
+	@Test
+	public void testFleetAndGroupRollups() {
+		storage = new StatStorage(new RetentionPolicy(), ServerGroupMapper.bySeparator("-"));
+		storage.addToMaps(new QueuedServerStatusMessage("web-1", 1.0, 10.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("web-1", 3.0, 10.0, NOW + 10));
+		storage.addToMaps(new QueuedServerStatusMessage("web-2", 5.0, 20.0, NOW + 20));
+		storage.addToMaps(new QueuedServerStatusMessage("db-1", 8.0, 30.0, NOW + 30));
+		storage.addToMaps(new QueuedServerStatusMessage("standalone", 6.0, 40.0, NOW + 70));
+
+		RollupRecord fleetMinute = storage.getRollup(null, 60, NOW);
+		assertEquals(3, fleetMinute.getServers());
+		assertEquals(4, fleetMinute.getCount());
+		assertEquals(17.0, fleetMinute.getCpuLoadValue(), EPSILON);
+		// averages per server are 2, 5 and 8
+		assertEquals(15.0, fleetMinute.getCpuLoadTotal(), EPSILON);
+		assertEquals(8.0, fleetMinute.getCpuLoadMax(), EPSILON);
+
+		RollupRecord webMinute = storage.getRollup("web", 60, NOW);
+		assertEquals(2, webMinute.getServers());
+		assertEquals(7.0, webMinute.getCpuLoadTotal(), EPSILON);
+		assertEquals(5.0, webMinute.getCpuLoadMax(), EPSILON);
+		assertEquals(30.0, webMinute.getMemoryLoadTotal(), EPSILON);
+
+		RollupRecord fleetHour = storage.getRollup(null, 3600, NOW);
+		assertEquals(4, fleetHour.getServers());
+		assertEquals(21.0, fleetHour.getCpuLoadTotal(), EPSILON);
+		assertNull(storage.getRollup("standalone", 3600, NOW));
+		assertNull(storage.getRollup("db", 60, NOW + 60));
+	}
+	@Test
+	public void testPercentilesArePerBucket() {
+		for (int i = 1; i <= 100; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", i, 50.0, NOW + i % 60));
+		}
+		ServerStatusData minute = storage.getDataForLast60Minutes("myserver", NOW).getData().get(0);
+		assertEquals(50.5, minute.getCpuLoad(), EPSILON);
+		assertEquals(1.0, minute.getCpuLoadMin(), EPSILON);
+		assertEquals(100.0, minute.getCpuLoadMax(), EPSILON);
+		assertEquals(50.0, minute.getCpuLoadP50(), 50.0 * LoadSketch.RELATIVE_ACCURACY);
+		assertEquals(95.0, minute.getCpuLoadP95(), 95.0 * LoadSketch.RELATIVE_ACCURACY);
+		assertEquals(99.0, minute.getCpuLoadP99(), 99.0 * LoadSketch.RELATIVE_ACCURACY);
+		assertEquals(50.0, minute.getMemoryLoadP99(), 50.0 * LoadSketch.RELATIVE_ACCURACY);
+		assertEquals(100.0, storage.getDataForLast24Hours("myserver", NOW).getData().get(0).getCpuLoadMax(), EPSILON);
+		assertTrue(Double.isNaN(storage.getDataForLast60Minutes("myserver", NOW).getData().get(1).getCpuLoadP99()));
+	}
+
+	@Test
+	public void testRangeQueries() {
+		// two hours of data, one message per minute, cpu load is the minute index
+		for (int i = 0; i < 120; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", i, 1.0, NOW + i * 60));
+		}
+		ServerStatusResult fiveMinutes = storage.getData("myserver", NOW + 100 * 60, NOW + 120 * 60, 300);
+		assertEquals(4, fiveMinutes.getData().size());
+		assertEquals(NOW + 100 * 60, fiveMinutes.getData().get(0).getTimestampUtc());
+		assertEquals(102.0, fiveMinutes.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(117.0, fiveMinutes.getData().get(3).getCpuLoad(), EPSILON);
+		assertEquals(119.0, fiveMinutes.getData().get(3).getCpuLoadMax(), EPSILON);
+
+		ServerStatusResult hours = storage.getData("myserver", NOW - 3600, NOW + 7200, 3600);
+		assertEquals(3, hours.getData().size());
+		assertEquals(0.0, hours.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(29.5, hours.getData().get(1).getCpuLoad(), EPSILON);
+		assertEquals(89.5, hours.getData().get(2).getCpuLoad(), EPSILON);
+
+		ServerStatusResult days = storage.getData("myserver", NOW, NOW + 1, 86400);
+		assertEquals(1, days.getData().size());
+		assertEquals(59.5, days.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(0.0, storage.getData("unknown", NOW, NOW + 600, 60).getData().get(9).getCpuLoad(), EPSILON);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRangeQueryStepMustBeWholeMinutes() {
+		storage.getData("myserver", NOW, NOW + 3600, 90);
+	}
+
+	@Test
+	public void testColdTier() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setColdRetentionSeconds(7 * 24 * 3600);
+		storage = new StatStorage(retentionPolicy);
+		// three days, one message per minute
+		for (int i = 0; i < 3 * 1440; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", i % 100, 1.0, NOW + i * 60));
+		}
+		// the first day and a half only exist in the cold tier
+		ServerStatusResult minutes = storage.getData("myserver", NOW, NOW + 2 * 1440 * 60, 60);
+		for (int i = 0; i < 2 * 1440; i++) {
+			assertEquals(i % 100, minutes.getData().get(i).getCpuLoad(), EPSILON);
+		}
+		ServerStatusResult hours = storage.getData("myserver", NOW, NOW + 3 * 86400, 3600);
+		assertEquals(29.5, hours.getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(1.0, hours.getData().get(71).getMemoryLoad(), EPSILON);
+		// a 7 minute step with two cold and five hot minutes
+		long hotUtc = NOW + (3 * 1440 - 60) * 60;
+		ServerStatusData spanning = storage.getData("myserver", hotUtc, hotUtc + 1, 420).getData().get(0);
+		assertEquals(hotUtc - 120, spanning.getTimestampUtc());
+		assertEquals(61.0, spanning.getCpuLoad(), EPSILON);
+		assertEquals(1.0, spanning.getMemoryLoad(), EPSILON);
+
+		assertEquals(3 * 1440 - 60 + 72 - 24, storage.getColdBucketCount());
+		assertTrue(storage.getColdBytes() < storage.getColdBucketCount() * 20);
+		int[] buckets = new int[1];
+		storage.forEachBucket((serverName, intervalSeconds, bucketUtc, count, cpuLoadValue,
+				memoryLoadValue) -> buckets[0]++);
+		// every minute and hour once, plus four calendar days since NOW is 06:00
+		assertEquals(3 * 1440 + 72 + 4, buckets[0]);
+	}
+
+	@Test
+	public void testColdBlocksOnDisk() throws IOException {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setColdRetentionSeconds(24 * 3600);
+		File directory = folder.newFolder();
+		storage = new StatStorage(retentionPolicy, null, directory);
+		// three days, so the first day of minutes is sealed, spilled and then dropped again
+		for (int i = 0; i < 3 * 1440; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", 2.0, 1.0, NOW + i * 60));
+		}
+		assertEquals(1, directory.list().length);
+		ServerStatusResult minutes = storage.getData("myserver", NOW + 1440 * 60, NOW + 2 * 1440 * 60, 60);
+		for (int i = 0; i < 1440; i++) {
+			assertEquals(2.0, minutes.getData().get(i).getCpuLoad(), EPSILON);
+		}
+		assertEquals(0.0, storage.getData("myserver", NOW, NOW + 60, 60).getData().get(0).getCpuLoad(), EPSILON);
+		storage.close();
+		assertEquals(0, directory.list().length);
+	}
+
+	@Test
+	public void testRestoredColdBucketsStayCold() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setColdRetentionSeconds(7 * 24 * 3600);
+		storage = new StatStorage(retentionPolicy);
+		for (int i = 0; i < 3 * 1440; i++) {
+			storage.addToMaps(new QueuedServerStatusMessage("myserver", i % 100, 1.0, NOW + i * 60));
+		}
+		StatStorage restored = new StatStorage(retentionPolicy);
+		storage.forEachBucket(restored::restoreBucket);
+		assertEquals(storage.getColdBucketCount(), restored.getColdBucketCount());
+		assertEquals(storage.getBucketCount(), restored.getBucketCount());
+		ServerStatusResult minutes = restored.getData("myserver", NOW, NOW + 3 * 1440 * 60, 60);
+		for (int i = 0; i < 3 * 1440; i++) {
+			assertEquals(i % 100, minutes.getData().get(i).getCpuLoad(), EPSILON);
+		}
+
+		// without a cold tier the buckets outside the hot window are dropped
+		StatStorage hotOnly = new StatStorage();
+		storage.forEachBucket(hotOnly::restoreBucket);
+		assertEquals(0, hotOnly.getColdBucketCount());
+		assertEquals(storage.getBucketCount() - storage.getColdBucketCount(), hotOnly.getBucketCount());
+	}
+
+	@Test
+	public void testLateSamplesAreCountedAndAccepted() {
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setAllowedLatenessSeconds(300);
+		storage = new StatStorage(retentionPolicy);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW + 600));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW));
+		assertEquals(1, storage.getLateSampleCount());
+		assertEquals(3.0, storage.getDataForLast60Minutes("myserver", NOW + 600).getData().get(10).getCpuLoad(),
+				EPSILON);
+	}
+
+	@Test
+	public void testLateSamplesGoToTheSideChannel() {
+		List<Long> late = new ArrayList<Long>();
+		RetentionPolicy retentionPolicy = new RetentionPolicy();
+		retentionPolicy.setAllowedLatenessSeconds(300);
+		retentionPolicy.setLateDataPolicy(LateDataPolicy.SIDE_CHANNEL);
+		retentionPolicy.setLateDataHandler((message, watermarkUtc) -> {
+			assertEquals(NOW + 300, watermarkUtc);
+			late.add(message.getTimestampUtc());
+		});
+		storage = new StatStorage(retentionPolicy);
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 1.0, 1.0, NOW + 600));
+		// exactly at the watermark is still on time, one second before is late
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 3.0, 3.0, NOW + 300));
+		storage.addToMaps(new QueuedServerStatusMessage("myserver", 5.0, 5.0, NOW + 299));
+		storage.addToMaps(new QueuedServerStatusMessage("otherserver", 5.0, 5.0, NOW));
+		assertEquals(1, storage.getLateSampleCount());
+		assertEquals(1, late.size());
+		assertEquals(NOW + 299, (long) late.get(0));
+		ServerStatusResult minutes = storage.getDataForLast60Minutes("myserver", NOW + 600);
+		assertEquals(1.0, minutes.getData().get(10).getCpuLoad(), EPSILON);
+		assertEquals(3.0, minutes.getData().get(5).getCpuLoad(), EPSILON);
+		assertEquals(0.0, minutes.getData().get(4).getCpuLoad(), EPSILON);
+		assertEquals(1.0, minutes.getData().get(0).getCpuLoad(), EPSILON);
+		// the watermark is per server
+		assertEquals(5.0, storage.getDataForLast60Minutes("otherserver", NOW).getData().get(0).getCpuLoad(),
+				EPSILON);
+	}
+
+	@Test
+	public void testSealedBuckets() {
+		Bucket bucket = new Bucket();
+		long stamp = bucket.writeLock();
+		bucket.record().update(2.0, 4.0);
+		bucket.unlockWrite(stamp);
+		long version = bucket.version();
+		bucket.seal();
+		assertTrue(bucket.isSealed());
+		assertEquals(0, bucket.writeLock());
+		assertEquals(version, bucket.version());
+		ServerStatusRecord copy = bucket.snapshot();
+		copy.update(6.0, 6.0);
+		assertEquals(1, bucket.snapshot().getCount());
+		double[] sums = new double[3];
+		bucket.visit("myserver", 60, NOW, (serverName, intervalSeconds, bucketUtc, count, cpuLoadValue,
+				memoryLoadValue) -> {
+			sums[0] = count;
+			sums[1] = cpuLoadValue;
+			sums[2] = memoryLoadValue;
+		});
+		assertArrayEquals(new double[] { 1, 2.0, 4.0 }, sums, EPSILON);
+	}
+
+	@Test
+	public void testServerIdsAreCheckedAgainstNames() {
+		for (String serverName : new String[] { "myserver1", "myserver2" }) {
+			QueuedServerStatusMessage message = new QueuedServerStatusMessage(serverName,
+					serverName.equals("myserver1") ? 1.0 : 3.0, 1.0, NOW);
+			// the same ID for both, as a stale or foreign ID would be
+			message.setServerId(7);
+			storage.addToMaps(message);
+		}
+		assertEquals(1.0, storage.getDataForLast60Minutes("myserver1", NOW).getData().get(0).getCpuLoad(), EPSILON);
+		assertEquals(3.0, storage.getDataForLast60Minutes("myserver2", NOW).getData().get(0).getCpuLoad(), EPSILON);
+	}
+}